@@ -10,6 +10,8 @@ import time
 import sys
 import argparse
 import shutil
+import socket
+import struct
 
 import hybridpy.hybrid_tool as hybrid_tool
 from hybridpy.hybrid_tool import get_tool_path
@@ -27,6 +29,14 @@ TOOLS = {'flowstar':FlowstarTool(), 'spaceex':SpaceExTool(),
 
 EXIT_CODE_TERM = 143
 
+# environment variable with the port of a running Hyst server, used by Engines without set_server()
+HYST_SERVER_ENV = 'HYPY_HYST_SERVER'
+
+def _quote_params(params):
+    'join command-line params, quoting ones with spaces'
+
+    return " ".join(["'" + param + "'" if (' ' in param or len(param) == 0) else param for param in params])
+
 def _get_all_toolnames():
     ''' get a comma-separated list of all tool names'''
     rv = ''
@@ -73,6 +83,128 @@ class OutputHandler(object):
             self.add_line(line)
             line = pipe.readline().decode('utf-8')
 
+def start_hyst_server(port=0):
+    '''start a resident Hyst process which accepts conversion jobs (see HystServer.java)
+
+    returns a 2-tuple: (process, port)
+    '''
+
+    hyst_path = get_tool_path('Hyst.jar')
+
+    if hyst_path is None:
+        raise RuntimeError('Hyst not found. Did you add the directory with Hyst.jar to HYPYPATH?')
+
+    proc = subprocess.Popen(['java', '-jar', hyst_path, '-server', str(port)], stdout=subprocess.PIPE)
+    line = proc.stdout.readline().decode('utf-8')
+    prefix = 'Hyst server listening on port '
+
+    if not line.startswith(prefix):
+        proc.kill()
+        raise RuntimeError('Hyst server did not start: ' + line)
+
+    return (proc, int(line[len(prefix):]))
+
+def get_hyst_server_token_path(port):
+    '''get the path of the file with the token of the Hyst server on a port, which only the user
+    can read (see HystServer.getTokenFile())'''
+
+    return os.path.join(os.path.expanduser('~'), '.hyst', 'server_{}.token'.format(port))
+
+def _read_hyst_server_token(port):
+    'read the token of the Hyst server on a port'
+
+    path = get_hyst_server_token_path(port)
+
+    if not os.path.exists(path):
+        raise RuntimeError('No Hyst server token file (is the server running?): ' + path)
+
+    with open(path) as f:
+        return f.read().strip()
+
+def stop_hyst_server(port):
+    '''stop a Hyst server started with start_hyst_server()'''
+
+    run_hyst_job(port, ['-shutdown'])
+
+def _send_string(sock, s):
+    'send a length-prefixed utf-8 string'
+
+    data = s.encode('utf-8')
+    sock.sendall(struct.pack('>i', len(data)) + data)
+
+def _recv_exactly(sock, num_bytes):
+    'receive a fixed number of bytes'
+
+    chunks = []
+
+    while num_bytes > 0:
+        chunk = sock.recv(num_bytes)
+
+        if not chunk:
+            raise RuntimeError('Hyst server closed the connection')
+
+        chunks.append(chunk)
+        num_bytes -= len(chunk)
+
+    return b''.join(chunks)
+
+def run_hyst_job(port, args, inline_files=None, output_handler=None):
+    '''run a conversion on a Hyst server
+
+    args - Hyst command-line arguments (without 'java -jar Hyst.jar'). Relative paths are resolved in
+           the server's working directory, so use absolute paths.
+    inline_files - optional dict of file name -> contents, written to a temporary directory by the
+                   server. Arguments equal to a file name are replaced with the file's path.
+    output_handler - optional OutputHandler which receives the lines of Hyst's stdout and stderr
+
+    returns Hyst's exit code
+    '''
+
+    if inline_files is None:
+        inline_files = {}
+
+    token = _read_hyst_server_token(port)
+    sock = socket.create_connection(('127.0.0.1', port))
+    partial = {b'O': '', b'E': ''}
+
+    try:
+        _send_string(sock, token)
+        sock.sendall(struct.pack('>i', len(args)))
+
+        for arg in args:
+            _send_string(sock, arg)
+
+        sock.sendall(struct.pack('>i', len(inline_files)))
+
+        for name, contents in inline_files.items():
+            _send_string(sock, name)
+            _send_string(sock, contents)
+
+        while True:
+            msg_type = _recv_exactly(sock, 1)
+
+            if msg_type == b'X':
+                code = struct.unpack('>i', _recv_exactly(sock, 4))[0]
+                break
+
+            length = struct.unpack('>i', _recv_exactly(sock, 4))[0]
+            text = partial[msg_type] + _recv_exactly(sock, length).decode('utf-8')
+            lines = text.split('\n')
+            partial[msg_type] = lines.pop()
+
+            if output_handler is not None:
+                for line in lines:
+                    output_handler.add_line(line)
+    finally:
+        sock.close()
+
+    if output_handler is not None:
+        for text in partial.values():
+            if text:
+                output_handler.add_line(text)
+
+    return code
+
 class Engine(object):
     '''HyPy engine. Runs a hybrid systems tool'''
 
@@ -105,6 +237,15 @@ class Engine(object):
         self.additional_hyst_params = [] # manually-specified parameters 
         self.debug = False
         self.verbose = False
+        self.inline_files = None # dict of name -> contents, for set_input_xml()
+
+        port = os.environ.get(HYST_SERVER_ENV)
+        self.server_port = int(port) if port else None
+
+    def set_server(self, port):
+        '''convert using the Hyst server on the given local port (see start_hyst_server()), rather
+        than starting a new Hyst process. None disables this.'''
+        self.server_port = port
 
     def set_debug(self, is_debug):
         'set debug printing mode'
@@ -117,6 +258,15 @@ class Engine(object):
     def set_input(self, xml_path, cfg_path=None):
         '''Set the input model file'''
         self.input_ = (xml_path, cfg_path)
+        self.inline_files = None
+
+    def set_input_xml(self, xml_text, cfg_text=None):
+        '''Set the input model as the contents of the xml and cfg files (requires a Hyst server)'''
+        self.input_ = ('model.xml', None if cfg_text is None else 'model.cfg')
+        self.inline_files = {'model.xml': xml_text}
+
+        if cfg_text is not None:
+            self.inline_files['model.cfg'] = cfg_text
 
     def set_generator(self, gen_name, gen_param=""):
         '''set the name of the model generator and param'''
@@ -155,12 +305,7 @@ class Engine(object):
             "generated model" if self.input_[0] is None else 
             "model '" + self.input_[0] + "'", self.printer[0]))
 
-        hyst_path = get_tool_path('Hyst.jar')
-
-        if hyst_path is None:
-            raise RuntimeError('Hyst not found. Did you add the directory with Hyst.jar to HYPYPATH?')
-
-        params = ['java', '-jar', hyst_path]
+        params = []
 
         if self.debug:
             params.append('-debug')
@@ -171,11 +316,19 @@ class Engine(object):
         if self.input_[0] is not None and self.gen[0] is not None:
             raise RuntimeError("Input file provided and model generation selected. These options are incompatible.")
 
+        # a Hyst server may have a different working directory, so paths are made absolute (inline
+        # files are referred to by their names)
         if self.input_[0] is not None:
-            params += ['-i', self.input_[0]]
+            if self.inline_files is None:
+                params += ['-i', os.path.abspath(self.input_[0])]
+
+                if self.input_[1] is not None:
+                    params.append(os.path.abspath(self.input_[1])) # cfg file
+            else:
+                params += ['-i', self.input_[0]]
 
-            if self.input_[1] is not None:
-                params.append(self.input_[1]) # cfg file
+                if self.input_[1] is not None:
+                    params.append(self.input_[1]) # cfg file
         elif self.gen[0] is not None:
             params += ['-gen', self.gen[0], self.gen[1]]
         else:
@@ -187,31 +340,50 @@ class Engine(object):
             for (pass_name, param) in self.passes:
                 params += [pass_name, param]
         
-        params += ['-o', self.output]
+        params += ['-o', os.path.abspath(self.output)]
         params += ['-tool', self.printer[0], self.printer[1]]
 
         params += self.additional_hyst_params
 
-        quoted_params = ["'" + param + "'" if (' ' in param or len(param) == 0) else param for param in params]
-        hypy_out.add_line("Hyst command: {}".format(" ".join(quoted_params)))
+        if self.inline_files is not None and self.server_port is None:
+            raise RuntimeError("Inline input models (set_input_xml) require a Hyst server (set_server).")
+
+        code = None
 
-        try:
-            proc = subprocess.Popen(params, stdout=subprocess.PIPE, stderr=subprocess.STDOUT)
-            hyst_out.stdout_handler(proc.stdout)
-            code = proc.wait()
+        if self.server_port is not None:
+            hypy_out.add_line("Hyst server job on port {}: {}".format(self.server_port, _quote_params(params)))
 
-            if code == 2: # Hyst exit code 2 = preconditions not met for printer
-                rv = Engine.ERROR_UNSUPPORTED
-            elif code != 0:
+            try:
+                code = run_hyst_job(self.server_port, params, self.inline_files, hyst_out)
+            except (socket.error, RuntimeError) as e:
+                hypy_out.add_line('Error while running Hyst server job: {}\n'.format(e))
                 rv = Engine.ERROR_CONVERSION
-                hypy_out.add_line('Error: Hyst returned nonzero exit code: {}.\n'.format(code))
-        except OSError as e:
-            hypy_out.add_line('Error while running Hyst: {}\n'.format(e))
+        else:
+            hyst_path = get_tool_path('Hyst.jar')
+
+            if hyst_path is None:
+                raise RuntimeError('Hyst not found. Did you add the directory with Hyst.jar to HYPYPATH?')
+
+            params = ['java', '-jar', hyst_path] + params
+            hypy_out.add_line("Hyst command: {}".format(_quote_params(params)))
+
+            try:
+                proc = subprocess.Popen(params, stdout=subprocess.PIPE, stderr=subprocess.STDOUT)
+                hyst_out.stdout_handler(proc.stdout)
+                code = proc.wait()
+            except OSError as e:
+                hypy_out.add_line('Error while running Hyst: {}\n'.format(e))
+                rv = Engine.ERROR_CONVERSION
+            try:
+                proc.stdout.close()
+            except:
+                pass
+
+        if code == 2: # Hyst exit code 2 = preconditions not met for printer
+            rv = Engine.ERROR_UNSUPPORTED
+        elif code is not None and code != 0:
             rv = Engine.ERROR_CONVERSION
-        try:
-            proc.stdout.close()
-        except:
-            pass
+            hypy_out.add_line('Error: Hyst returned nonzero exit code: {}.\n'.format(code))
 
         return rv
 
@@ -334,6 +506,8 @@ def main():
     parser.add_argument('--image_tool', '-it', metavar='PATH', help='path to tool which displays image')
     parser.add_argument('--timeout', '-to', metavar='SECONDS', type=float, \
                         help='sets timeout (seconds) for running the tool (Hyst runs without timeout)')
+    parser.add_argument('--server', metavar='PORT', type=int, \
+                        help='convert using a running Hyst server (java -jar Hyst.jar -server PORT)')
     parser.add_argument('tool_param', nargs='*', help='tool parameter passed to Hyst')
 
     args = parser.parse_args()
@@ -360,6 +534,9 @@ def main():
     if model_save_path is not None:
         e.set_output(model_save_path)
 
+    if args.server is not None:
+        e.set_server(args.server)
+
     result = e.run(print_stdout=True, timeout=timeout, image_path=image_path, parse_output=parse_output)
 
     if result['code'] == Engine.SUCCESS and image_path is not None and image_tool is not None:
@@ -62,7 +62,7 @@ public class BuildGenerator extends ModelGenerator
 	{
 		BaseComponent ha = new BaseComponent();
 
-		ha.variables = vars;
+		ha.variables.addAll(vars);
 
 		int div = 2 + vars.size();
 
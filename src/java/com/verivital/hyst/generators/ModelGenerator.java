@@ -8,6 +8,7 @@ import org.kohsuke.args4j.CmdLineParser;
 import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.ir.AutomatonValidationException;
 import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.main.ConversionContext;
 import com.verivital.hyst.util.AutomatonUtil;
 import com.verivital.hyst.util.CmdLineRuntimeException;
 
@@ -27,6 +28,9 @@ public abstract class ModelGenerator
 {
 	private CmdLineParser parser = new CmdLineParser(this);
 
+	// the context of the conversion running the generator (assigned in generate)
+	protected ConversionContext context = ConversionContext.getDefault();
+
 	public ModelGenerator()
 	{
 		String flag = getCommandLineFlag();
@@ -56,6 +60,8 @@ public abstract class ModelGenerator
 
 	public Configuration generate(String params)
 	{
+		context = ConversionContext.get();
+
 		if (params == null)
 			params = "";
 
@@ -5,6 +5,8 @@ import java.util.Collection;
 import java.util.LinkedHashSet;
 import java.util.List;
 
+import com.verivital.hyst.main.ConversionContext;
+
 /**
  * A Hyperrectangle is an n-dimensional rectangle representing a portion of the state space
  * 
@@ -13,19 +15,16 @@ import java.util.List;
 
 public class HyperRectangle implements Comparable<HyperRectangle>
 {
-	private static ArrayList<String> dimensionNames = new ArrayList<String>();
 	public Interval[] dims;
 	public static final double TOL = 0.00000001;
 
-	static
-	{
-		dimensionNames.add("X");
-		dimensionNames.add("Y");
-		dimensionNames.add("Z");
-	}
-
+	/**
+	 * Set the dimension names used by toString(), in the current ConversionContext
+	 */
 	public static void setDimensionNames(List<String> names)
 	{
+		ArrayList<String> dimensionNames = ConversionContext.get().dimensionNames;
+
 		dimensionNames.clear();
 		dimensionNames.addAll(names);
 	}
@@ -563,6 +562,7 @@ public class HyperRectangle implements Comparable<HyperRectangle>
 	public String toString()
 	{
 		String s = "{HyperRectangle: ";
+		ArrayList<String> dimensionNames = ConversionContext.get().dimensionNames;
 
 		for (int x = 0; x < dims.length; ++x)
 		{
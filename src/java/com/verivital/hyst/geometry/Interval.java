@@ -1,5 +1,6 @@
 package com.verivital.hyst.geometry;
 
+import java.io.Serializable;
 import java.util.Map;
 
 import com.verivital.hyst.grammar.formula.Constant;
@@ -13,8 +14,10 @@ import com.verivital.hyst.ir.AutomatonExportException;
  * @author Stanley Bak
  *
  */
-public class Interval
+public class Interval implements Serializable
 {
+	private static final long serialVersionUID = 1L;
+
 	public static double COMPARE_TOL = 1e-10;
 	public static final Interval NONDETERMINISTIC_ASSIGNMENT_INTERVAL = new Interval(
 			Integer.MIN_VALUE, Integer.MAX_VALUE);
@@ -278,7 +281,7 @@ public class Interval
 		catch (AutomatonExportException ex)
 		{
 			throw new AutomatonExportException(
-					"Error performing interval evaluation on expression: " + e, ex);
+					"Error performing interval evaluation on expression: " + e.toDefaultString(), ex);
 		}
 
 		return rv;
@@ -387,25 +390,40 @@ public class Interval
 					throw new AutomatonExportException(
 							"Interval evaluate of sqrt with min < 0: " + i.min);
 
-				rv = new Interval(Math.sqrt(i.max), Math.sqrt(i.min));
+				rv = new Interval(Math.sqrt(i.min), Math.sqrt(i.max));
 				break;
 			}
 			case POW:
 				rv = intervalPow(left, right);
 				break;
 			case EXP:
+			{
 				Interval i = intervalEvaluateRec(o.children.get(0), ranges);
-				rv = intervalPow(new Interval(Math.E), i);
+				rv = new Interval(Math.exp(i.min), Math.exp(i.max));
 				break;
+			}
 			case SIN:
+				rv = intervalSin(intervalEvaluateRec(o.children.get(0), ranges));
+				break;
 			case COS:
+			{
+				// cos(x) = sin(x + pi / 2)
+				Interval i = intervalEvaluateRec(o.children.get(0), ranges);
+				rv = intervalSin(new Interval(i.min + Math.PI / 2, i.max + Math.PI / 2));
+				break;
+			}
 			case TAN:
-				// these could be done using Algorithm 2 on page 29 of Xin
-				// Chen's dissertation
-				// tan would need division tan(x) = sin(x) / cos(x)
-				throw new AutomatonExportException(
-						"Operator is not yet supported (submit a feature request if you need it): "
-								+ o.op.name());
+			{
+				Interval i = intervalEvaluateRec(o.children.get(0), ranges);
+
+				// tan is increasing between consecutive asymptotes at pi/2 + k*pi
+				if (containsPeriodicPoint(i, Math.PI / 2, Math.PI))
+					throw new AutomatonExportException(
+							"Interval evaluate of tan contains an asymptote: " + i);
+
+				rv = new Interval(Math.tan(i.min), Math.tan(i.max));
+				break;
+			}
 
 			case AND:
 			case EQUAL:
@@ -482,6 +500,47 @@ public class Interval
 		return new Interval(c, d);
 	}
 
+	/**
+	 * Interval sine, using the endpoints and the extreme points inside the interval
+	 * 
+	 * @param i
+	 *            the input interval
+	 * @return the range of sin over the interval
+	 */
+	private static Interval intervalSin(Interval i)
+	{
+		Interval rv;
+
+		if (i.width() >= 2 * Math.PI)
+			rv = new Interval(-1, 1);
+		else
+		{
+			double a = Math.sin(i.min);
+			double b = Math.sin(i.max);
+
+			rv = new Interval(Math.min(a, b), Math.max(a, b));
+
+			// maximum at pi/2 + 2k*pi, minimum at -pi/2 + 2k*pi
+			if (containsPeriodicPoint(i, Math.PI / 2, 2 * Math.PI))
+				rv.max = 1;
+
+			if (containsPeriodicPoint(i, -Math.PI / 2, 2 * Math.PI))
+				rv.min = -1;
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Check if an interval contains p + k * period, for some integer k
+	 */
+	private static boolean containsPeriodicPoint(Interval i, double p, double period)
+	{
+		double k = Math.ceil((i.min - p) / period);
+
+		return p + k * period <= i.max;
+	}
+
 	public static Interval mult(Interval i, Interval j)
 	{
 		double a = i.min;
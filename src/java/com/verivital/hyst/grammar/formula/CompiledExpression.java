@@ -0,0 +1,653 @@
+package com.verivital.hyst.grammar.formula;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.SymbolTable;
+
+/**
+ * An Expression compiled into a flat postfix program, which can be evaluated many times without
+ * allocating memory. Variable values are read from a double[], in the order of the variable names
+ * passed to compile() (usually the automaton's variable ordering).
+ *
+ * The evaluation semantics match substituting every variable with a Constant and running
+ * SimplifyExpressionsPass.simplifyExpression: boolean operators return 1 (true) or 0 (false), and
+ * any nonzero value is treated as true.
+ *
+ * The evaluate(double[]) method uses an internal stack and so is not thread-safe. If a single
+ * compiled expression is shared between threads, use evaluate(double[], double[]) with a stack
+ * from newStack() for each thread.
+ *
+ * Code which evaluates the same expressions over and over (like AutomatonUtil.evaluateExpression)
+ * should use getCached(), which keeps the recently used programs of the current thread. Since
+ * expressions can be modified in place, a cached program is only reused after checking that the
+ * expression still compiles to it (which doesn't allocate memory).
+ */
+public class CompiledExpression
+{
+	// number of programs getCached() keeps per thread
+	public static final int CACHE_SIZE = 256;
+
+	private static final ThreadLocal<LinkedHashMap<Expression, CacheEntry>> cache = new ThreadLocal<LinkedHashMap<Expression, CacheEntry>>()
+	{
+		@Override
+		protected LinkedHashMap<Expression, CacheEntry> initialValue()
+		{
+			// access order, for least-recently-used eviction
+			return new LinkedHashMap<Expression, CacheEntry>(16, 0.75f, true)
+			{
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Expression, CacheEntry> eldest)
+				{
+					return size() > CACHE_SIZE;
+				}
+			};
+		}
+	};
+
+	// opcodes with an argument (index into constants or variable values)
+	static final int OP_CONST = 0;
+	static final int OP_VAR = 1;
+
+	// unary opcodes
+	static final int OP_NEG = 2;
+	static final int OP_NOT = 3;
+	static final int OP_SIN = 4;
+	static final int OP_COS = 5;
+	static final int OP_TAN = 6;
+	static final int OP_EXP = 7;
+	static final int OP_SQRT = 8;
+	static final int OP_LN = 9;
+
+	// binary opcodes
+	static final int OP_ADD = 10;
+	static final int OP_SUB = 11;
+	static final int OP_MUL = 12;
+	static final int OP_DIV = 13;
+	static final int OP_POW = 14;
+	static final int OP_AND = 15;
+	static final int OP_OR = 16;
+	static final int OP_EQ = 17;
+	static final int OP_NE = 18;
+	static final int OP_LT = 19;
+	static final int OP_GT = 20;
+	static final int OP_LE = 21;
+	static final int OP_GE = 22;
+
+	final int[] ops;
+	final int[] args; // constant or variable index, for OP_CONST and OP_VAR
+	final double[] constants;
+	final int stackSize;
+	final int numVars; // minimum length of the values array
+	private final double[] stack;
+	private int matchPos; // position in the program while checking compiledFrom()
+
+	private CompiledExpression(Builder b)
+	{
+		ops = new int[b.size];
+		args = new int[b.size];
+		System.arraycopy(b.ops, 0, ops, 0, b.size);
+		System.arraycopy(b.args, 0, args, 0, b.size);
+
+		constants = new double[b.numConstants];
+		System.arraycopy(b.constants, 0, constants, 0, b.numConstants);
+
+		stackSize = Math.max(1, b.maxDepth);
+		numVars = b.maxVarIndex + 1;
+		stack = new double[stackSize];
+	}
+
+	/**
+	 * Compile an expression
+	 *
+	 * @param e
+	 *            the expression to compile
+	 * @param variableNames
+	 *            the variable names, in the order they'll be passed to evaluate()
+	 * @return the compiled expression
+	 * @throws AutomatonExportException
+	 *             if the expression contains unknown variables or unsupported operations
+	 */
+	public static CompiledExpression compile(Expression e, List<String> variableNames)
+	{
+		return compile(e, getIndices(variableNames));
+	}
+
+	/**
+	 * Compile an expression using the variable ids of a symbol table, so the values array is
+	 * indexed by variable id (the order of the component's variables)
+	 *
+	 * @param e
+	 *            the expression to compile
+	 * @param symbols
+	 *            the symbol table, from Component.getSymbolTable()
+	 * @return the compiled expression
+	 * @throws AutomatonExportException
+	 *             if the expression contains unknown variables or unsupported operations
+	 */
+	public static CompiledExpression compile(Expression e, SymbolTable symbols)
+	{
+		return compile(e, symbols.getVariableIds());
+	}
+
+	/**
+	 * Get a compiled expression from the current thread's cache, compiling it if it's not in the
+	 * cache (or was modified since it was compiled). The result belongs to the current thread, so
+	 * evaluate(double[]) can be used on it, but it should not be passed to other threads.
+	 *
+	 * @param e
+	 *            the expression to compile
+	 * @param variableNames
+	 *            the variable names, in the order they'll be passed to evaluate()
+	 * @return the compiled expression
+	 * @throws AutomatonExportException
+	 *             if the expression contains unknown variables or unsupported operations
+	 */
+	public static CompiledExpression getCached(Expression e, List<String> variableNames)
+	{
+		LinkedHashMap<Expression, CacheEntry> programs = cache.get();
+		CacheEntry entry = programs.get(e);
+
+		if (entry == null || !entry.variableNames.equals(variableNames)
+				|| !entry.program.compiledFrom(e, entry.indices))
+		{
+			entry = new CacheEntry(variableNames);
+			entry.program = compile(e, entry.indices);
+			programs.put(e, entry);
+		}
+
+		return entry.program;
+	}
+
+	/**
+	 * Clear the current thread's cache of compiled expressions
+	 */
+	public static void clearCache()
+	{
+		cache.get().clear();
+	}
+
+	private static HashMap<String, Integer> getIndices(List<String> variableNames)
+	{
+		HashMap<String, Integer> indices = new HashMap<String, Integer>();
+
+		for (int i = 0; i < variableNames.size(); ++i)
+		{
+			String name = variableNames.get(i);
+
+			if (!indices.containsKey(name))
+				indices.put(name, i);
+		}
+
+		return indices;
+	}
+
+	private static CompiledExpression compile(Expression e, Map<String, Integer> indices)
+	{
+		Builder b = new Builder(indices);
+
+		try
+		{
+			b.compileRec(e);
+		}
+		catch (AutomatonExportException ex)
+		{
+			throw new AutomatonExportException(
+					"Could not compile expression for evaluation: " + e.toDefaultString(), ex);
+		}
+
+		return new CompiledExpression(b);
+	}
+
+	/**
+	 * Get a new stack which can be passed to evaluate(double[], double[])
+	 *
+	 * @return a stack large enough for this expression
+	 */
+	public double[] newStack()
+	{
+		return new double[stackSize];
+	}
+
+	/**
+	 * Evaluate the expression using the internal stack (not thread-safe)
+	 *
+	 * @param values
+	 *            the variable values, in the order used in compile()
+	 * @return the value of the expression
+	 */
+	public double evaluate(double[] values)
+	{
+		return evaluate(values, stack);
+	}
+
+	/**
+	 * Evaluate the expression using a caller-provided stack
+	 *
+	 * @param values
+	 *            the variable values, in the order used in compile()
+	 * @param s
+	 *            the stack to use, from newStack()
+	 * @return the value of the expression
+	 */
+	public double evaluate(double[] values, double[] s)
+	{
+		if (values.length < numVars)
+			throw new AutomatonExportException("Compiled expression needs " + numVars
+					+ " variable values, but only " + values.length + " were provided.");
+
+		int top = -1;
+
+		for (int i = 0; i < ops.length; ++i)
+		{
+			switch (ops[i])
+			{
+			case OP_CONST:
+				s[++top] = constants[args[i]];
+				break;
+			case OP_VAR:
+				s[++top] = values[args[i]];
+				break;
+			case OP_NEG:
+				s[top] = -s[top];
+				break;
+			case OP_NOT:
+				s[top] = s[top] == 0 ? 1 : 0;
+				break;
+			case OP_SIN:
+				s[top] = Math.sin(s[top]);
+				break;
+			case OP_COS:
+				s[top] = Math.cos(s[top]);
+				break;
+			case OP_TAN:
+				s[top] = Math.tan(s[top]);
+				break;
+			case OP_EXP:
+				s[top] = Math.exp(s[top]);
+				break;
+			case OP_SQRT:
+				s[top] = Math.sqrt(s[top]);
+				break;
+			case OP_LN:
+				s[top] = Math.log(s[top]);
+				break;
+			default:
+			{
+				double right = s[top--];
+				double left = s[top];
+
+				s[top] = binaryOp(ops[i], left, right);
+			}
+			}
+		}
+
+		return s[0];
+	}
+
+	static double binaryOp(int op, double left, double right)
+	{
+		double rv;
+
+		switch (op)
+		{
+		case OP_ADD:
+			rv = left + right;
+			break;
+		case OP_SUB:
+			rv = left - right;
+			break;
+		case OP_MUL:
+			rv = left * right;
+			break;
+		case OP_DIV:
+			rv = left / right;
+			break;
+		case OP_POW:
+			rv = Math.pow(left, right);
+			break;
+		case OP_AND:
+			// short-circuit semantics match SimplifyExpressionsPass
+			rv = left == 0 ? 0 : right;
+			break;
+		case OP_OR:
+			rv = left == 0 ? right : 1;
+			break;
+		case OP_EQ:
+			rv = left == right ? 1 : 0;
+			break;
+		case OP_NE:
+			rv = left != right ? 1 : 0;
+			break;
+		case OP_LT:
+			rv = left < right ? 1 : 0;
+			break;
+		case OP_GT:
+			rv = left > right ? 1 : 0;
+			break;
+		case OP_LE:
+			rv = left <= right ? 1 : 0;
+			break;
+		case OP_GE:
+			rv = left >= right ? 1 : 0;
+			break;
+		default:
+			throw new AutomatonExportException("Unknown opcode in compiled expression: " + op);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Check if an expression (still) compiles to this program, without allocating memory
+	 *
+	 * @param e
+	 *            the expression
+	 * @param indices
+	 *            the variable indices this was compiled with
+	 * @return true if compiling e would give the same program
+	 */
+	private boolean compiledFrom(Expression e, Map<String, Integer> indices)
+	{
+		matchPos = 0;
+
+		return matchRec(e, indices) && matchPos == ops.length;
+	}
+
+	private boolean matchRec(Expression e, Map<String, Integer> indices)
+	{
+		boolean rv;
+
+		if (matchPos >= ops.length)
+			rv = false;
+		else if (e instanceof Constant)
+			rv = ops[matchPos] == OP_CONST
+					&& constants[args[matchPos++]] == ((Constant) e).getVal();
+		else if (e instanceof Variable)
+		{
+			Integer index = indices.get(((Variable) e).name);
+
+			rv = ops[matchPos] == OP_VAR && index != null && args[matchPos++] == index;
+		}
+		else if (e instanceof Operation)
+		{
+			Operation o = (Operation) e;
+			int numChildren = o.children.size();
+			rv = numChildren > 0 && matchRec(o.children.get(0), indices);
+
+			if (rv && numChildren == 1)
+				rv = matchOpcode(o.op, true);
+
+			for (int i = 1; rv && i < numChildren; ++i)
+				rv = matchRec(o.children.get(i), indices) && matchOpcode(o.op, false);
+		}
+		else
+			rv = false;
+
+		return rv;
+	}
+
+	private boolean matchOpcode(Operator op, boolean unary)
+	{
+		boolean rv;
+
+		if (matchPos >= ops.length)
+			rv = false;
+		else
+		{
+			try
+			{
+				int opcode = unary ? Builder.getUnaryOpcode(op) : Builder.getBinaryOpcode(op);
+				rv = ops[matchPos++] == opcode;
+			}
+			catch (AutomatonExportException ex)
+			{
+				// unsupported operation; compiling again will report it
+				rv = false;
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * A program in the cache, with the variable ordering it was compiled for
+	 */
+	private static class CacheEntry
+	{
+		final List<String> variableNames;
+		final HashMap<String, Integer> indices;
+		CompiledExpression program;
+
+		CacheEntry(List<String> variableNames)
+		{
+			this.variableNames = new ArrayList<String>(variableNames);
+			this.indices = getIndices(variableNames);
+		}
+	}
+
+	/**
+	 * Get the number of instructions in the compiled program
+	 *
+	 * @return the program length
+	 */
+	public int getProgramLength()
+	{
+		return ops.length;
+	}
+
+	/**
+	 * Accumulates the program during compilation
+	 */
+	private static class Builder
+	{
+		private Map<String, Integer> indices;
+
+		int[] ops = new int[16];
+		int[] args = new int[16];
+		int size = 0;
+
+		double[] constants = new double[8];
+		int numConstants = 0;
+
+		int depth = 0;
+		int maxDepth = 0;
+		int maxVarIndex = -1;
+
+		Builder(Map<String, Integer> indices)
+		{
+			this.indices = indices;
+		}
+
+		private void emit(int op, int arg)
+		{
+			if (size == ops.length)
+			{
+				int[] newOps = new int[size * 2];
+				int[] newArgs = new int[size * 2];
+				System.arraycopy(ops, 0, newOps, 0, size);
+				System.arraycopy(args, 0, newArgs, 0, size);
+				ops = newOps;
+				args = newArgs;
+			}
+
+			ops[size] = op;
+			args[size] = arg;
+			++size;
+
+			if (op == OP_CONST || op == OP_VAR)
+			{
+				if (++depth > maxDepth)
+					maxDepth = depth;
+			}
+			else if (op >= OP_ADD)
+				--depth;
+		}
+
+		private int addConstant(double val)
+		{
+			if (numConstants == constants.length)
+			{
+				double[] newConstants = new double[numConstants * 2];
+				System.arraycopy(constants, 0, newConstants, 0, numConstants);
+				constants = newConstants;
+			}
+
+			constants[numConstants] = val;
+
+			return numConstants++;
+		}
+
+		void compileRec(Expression e)
+		{
+			if (e instanceof Constant)
+				emit(OP_CONST, addConstant(((Constant) e).getVal()));
+			else if (e instanceof Variable)
+			{
+				String name = ((Variable) e).name;
+				Integer index = indices.get(name);
+
+				if (index == null)
+					throw new AutomatonExportException("Unknown variable: " + name);
+
+				maxVarIndex = Math.max(maxVarIndex, index);
+				emit(OP_VAR, index);
+			}
+			else if (e instanceof Operation)
+				compileOperation((Operation) e);
+			else
+				throw new AutomatonExportException(
+						"Unsupported expression type: " + e.getClass().getSimpleName());
+		}
+
+		private void compileOperation(Operation o)
+		{
+			int numChildren = o.children.size();
+
+			if (numChildren == 1)
+			{
+				compileRec(o.children.get(0));
+				emit(getUnaryOpcode(o.op), 0);
+			}
+			else if (numChildren >= 2)
+			{
+				int opcode = getBinaryOpcode(o.op);
+
+				if (numChildren > 2 && o.op != Operator.ADD && o.op != Operator.MULTIPLY
+						&& o.op != Operator.AND && o.op != Operator.OR)
+					throw new AutomatonExportException("Operator " + o.op.toDefaultString()
+							+ " has " + numChildren + " children");
+
+				// n-ary commutative operations are folded left-to-right
+				compileRec(o.children.get(0));
+
+				for (int i = 1; i < numChildren; ++i)
+				{
+					compileRec(o.children.get(i));
+					emit(opcode, 0);
+				}
+			}
+			else
+				throw new AutomatonExportException(
+						"Operation " + o.op.toDefaultString() + " has no children");
+		}
+
+		private static int getUnaryOpcode(Operator op)
+		{
+			int rv;
+
+			switch (op)
+			{
+			case NEGATIVE:
+			case SUBTRACT:
+				rv = OP_NEG;
+				break;
+			case LOGICAL_NOT:
+				rv = OP_NOT;
+				break;
+			case SIN:
+				rv = OP_SIN;
+				break;
+			case COS:
+				rv = OP_COS;
+				break;
+			case TAN:
+				rv = OP_TAN;
+				break;
+			case EXP:
+				rv = OP_EXP;
+				break;
+			case SQRT:
+				rv = OP_SQRT;
+				break;
+			case LN:
+				rv = OP_LN;
+				break;
+			default:
+				throw new AutomatonExportException(
+						"Unsupported unary operation: " + op.toDefaultString());
+			}
+
+			return rv;
+		}
+
+		private static int getBinaryOpcode(Operator op)
+		{
+			int rv;
+
+			switch (op)
+			{
+			case ADD:
+				rv = OP_ADD;
+				break;
+			case SUBTRACT:
+				rv = OP_SUB;
+				break;
+			case MULTIPLY:
+				rv = OP_MUL;
+				break;
+			case DIVIDE:
+				rv = OP_DIV;
+				break;
+			case POW:
+				rv = OP_POW;
+				break;
+			case AND:
+				rv = OP_AND;
+				break;
+			case OR:
+				rv = OP_OR;
+				break;
+			case EQUAL:
+				rv = OP_EQ;
+				break;
+			case NOTEQUAL:
+				rv = OP_NE;
+				break;
+			case LESS:
+				rv = OP_LT;
+				break;
+			case GREATER:
+				rv = OP_GT;
+				break;
+			case LESSEQUAL:
+				rv = OP_LE;
+				break;
+			case GREATEREQUAL:
+				rv = OP_GE;
+				break;
+			default:
+				throw new AutomatonExportException(
+						"Unsupported binary operation: " + op.toDefaultString());
+			}
+
+			return rv;
+		}
+	}
+}
@@ -8,6 +8,8 @@ package com.verivital.hyst.grammar.formula;
  */
 public class Constant extends Expression
 {
+	private static final long serialVersionUID = 1L;
+
 	public static final Constant TRUE = new Constant(1);
 	public static final Constant FALSE = new Constant(0);
 
@@ -31,6 +33,9 @@ public class Constant extends Expression
 		if (this == FALSE)
 			throw new RuntimeException("setValue called on Constant.FALSE");
 
+		if (isImmutable())
+			throw new RuntimeException("setValue called on immutable (interned) Constant");
+
 		val = v;
 	}
 
@@ -54,4 +59,13 @@ public class Constant extends Expression
 	{
 		return o instanceof Constant && ((Constant) o).val == val;
 	}
+
+	@Override
+	public int hashCode()
+	{
+		// consistent with equals(), where 0.0 == -0.0
+		long bits = Double.doubleToLongBits(val == 0 ? 0.0 : val);
+
+		return (int) (bits ^ (bits >>> 32));
+	}
 }
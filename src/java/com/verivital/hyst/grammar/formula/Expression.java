@@ -1,18 +1,38 @@
 package com.verivital.hyst.grammar.formula;
 
+import java.io.Serializable;
+
+import com.verivital.hyst.main.ConversionContext;
+
 /**
  * General parent class for expressions.
  * 
  * Expressions can be Constants, Variables, or Operations (like +, -, &&, ==, or cos)
  * 
  * To print expressions differently, you should inherit from ExpressionPrinter, override any methods
- * you want to change, and then assign Expression.expressionPrinter
+ * you want to change, and then set it with Expression.setExpressionPrinter()
  */
-public abstract class Expression
+public abstract class Expression implements Serializable
 {
-	// this printer should be assigned as-needed by printers or passes. Use
-	// DefaultExpressionPrinter.instance for a reasonable default.
-	public static ExpressionPrinter expressionPrinter = null;
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Get the printer used by toString(), from the current ConversionContext
+	 */
+	public static ExpressionPrinter getExpressionPrinter()
+	{
+		return ConversionContext.get().expressionPrinter;
+	}
+
+	/**
+	 * Set the printer used by toString() in the current ConversionContext. This should be assigned
+	 * as-needed by printers or passes. Use DefaultExpressionPrinter.instance for a reasonable
+	 * default.
+	 */
+	public static void setExpressionPrinter(ExpressionPrinter printer)
+	{
+		ConversionContext.get().expressionPrinter = printer;
+	}
 
 	// void setParent(Operation aThis) {
 	// throw new UnsupportedOperationException("Not supported yet."); //To
@@ -29,6 +49,9 @@ public abstract class Expression
 
 	private Operation mParent;
 
+	// set for expressions shared in an ExpressionInterner DAG, which must never be modified
+	private boolean immutable = false;
+
 	public Expression(Operation parent)
 	{
 		setParent(parent);
@@ -46,7 +69,31 @@ public abstract class Expression
 
 	public void setParent(Operation parent)
 	{
-		mParent = parent;
+		// shared expressions have many parents, so the pointer is not tracked
+		if (!immutable)
+			mParent = parent;
+	}
+
+	/**
+	 * Is this expression immutable? This is true for expressions returned by
+	 * ExpressionInterner.intern(), which may be shared between many parent expressions. Code which
+	 * modifies expressions in place should either copy() these first, or construct new expressions
+	 * (copy-on-write).
+	 * 
+	 * @return true iff the expression must not be modified
+	 */
+	public boolean isImmutable()
+	{
+		return immutable;
+	}
+
+	/**
+	 * Mark this expression as immutable (called by ExpressionInterner)
+	 */
+	void markImmutable()
+	{
+		immutable = true;
+		mParent = null;
 	}
 
 	public abstract Expression copy();
@@ -69,7 +116,7 @@ public abstract class Expression
 	@Override
 	public String toString()
 	{
-		return expressionPrinter.print(this);
+		return getExpressionPrinter().print(this);
 	}
 
 	/**
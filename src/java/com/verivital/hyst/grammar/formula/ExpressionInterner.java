@@ -0,0 +1,215 @@
+package com.verivital.hyst.grammar.formula;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Hash-consing factory for expressions. intern() converts an expression tree into a canonical,
+ * immutable DAG, where structurally-equal subexpressions are represented by the same object. Large
+ * models (for example, flattened networks) often contain many duplicate guard, invariant and flow
+ * subexpressions, which then only need to be stored once.
+ *
+ * Since interned expressions are canonical, two interned expressions (from the same interner) are
+ * structurally equal iff they are the same object. This means they can be used directly as keys in
+ * a HashMap or IdentityHashMap for memoization.
+ *
+ * Interned expressions are marked immutable (see Expression.isImmutable()): the children lists of
+ * interned Operations are unmodifiable and Constant.setVal() will raise an exception. Calling
+ * copy() on an interned expression returns a regular, mutable tree. Lookup tables and matrix
+ * expressions are not shared; intern() returns mutable copies of these.
+ *
+ * This class is not thread-safe.
+ */
+public class ExpressionInterner
+{
+	private final HashMap<Key, Expression> table = new HashMap<Key, Expression>();
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * Get the canonical, immutable version of an expression. The passed-in expression is not
+	 * modified.
+	 *
+	 * @param e
+	 *            the expression to intern (may be null)
+	 * @return the shared, immutable expression
+	 */
+	public Expression intern(Expression e)
+	{
+		Expression rv;
+
+		if (e == null)
+			rv = null;
+		else if (e == Constant.TRUE || e == Constant.FALSE)
+			rv = e;
+		else if (e instanceof Constant || e instanceof Variable)
+			rv = lookup(new Key(e, null), e);
+		else if (e instanceof Operation)
+		{
+			Operation o = (Operation) e;
+			int numChildren = o.children.size();
+			Expression[] children = new Expression[numChildren];
+
+			for (int i = 0; i < numChildren; ++i)
+				children[i] = intern(o.children.get(i));
+
+			rv = lookup(new Key(e, children), e);
+		}
+		else
+			rv = e.copy(); // luts and matrices are not shared
+
+		return rv;
+	}
+
+	/**
+	 * Look up a key in the table, creating and inserting a new immutable expression if needed
+	 */
+	private Expression lookup(Key k, Expression original)
+	{
+		Expression rv = table.get(k);
+
+		if (rv != null)
+			++hits;
+		else
+		{
+			++misses;
+
+			if (original instanceof Constant)
+				rv = new Constant(((Constant) original).getVal());
+			else if (original instanceof Variable)
+				rv = new Variable(((Variable) original).name);
+			else
+			{
+				// children are already interned, so they are shared rather than copied
+				rv = new Operation(((Operation) original).op, Collections.unmodifiableList(
+						new ArrayList<Expression>(Arrays.asList(k.children))));
+			}
+
+			rv.markImmutable();
+			table.put(k, rv);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Get the number of distinct expressions stored in this interner
+	 *
+	 * @return the number of shared nodes
+	 */
+	public int size()
+	{
+		return table.size();
+	}
+
+	/**
+	 * Get the number of subexpressions which were found in the table (and so were shared)
+	 *
+	 * @return the hit count
+	 */
+	public long getHits()
+	{
+		return hits;
+	}
+
+	/**
+	 * Get the number of subexpressions which were not found in the table (and so were created)
+	 *
+	 * @return the miss count
+	 */
+	public long getMisses()
+	{
+		return misses;
+	}
+
+	/**
+	 * Remove all shared expressions from the table. Previously-interned expressions remain
+	 * immutable, but will no longer be shared with newly-interned ones.
+	 */
+	public void clear()
+	{
+		table.clear();
+		hits = misses = 0;
+	}
+
+	/**
+	 * Hash table key for a single node. Children of operations are compared by identity, which is
+	 * structural equality since they are interned first. The hash code is computed once.
+	 */
+	private static class Key
+	{
+		private final Operator op; // for operations
+		private final String name; // for variables
+		private final long bits; // for constants
+		private final Expression[] children;
+		private final int hash;
+
+		Key(Expression e, Expression[] children)
+		{
+			this.children = children;
+			int h;
+
+			if (e instanceof Constant)
+			{
+				op = null;
+				name = null;
+				bits = Double.doubleToLongBits(((Constant) e).getVal());
+				h = (int) (bits ^ (bits >>> 32));
+			}
+			else if (e instanceof Variable)
+			{
+				op = null;
+				name = ((Variable) e).name;
+				bits = 0;
+				h = 31 + name.hashCode();
+			}
+			else
+			{
+				op = ((Operation) e).op;
+				name = null;
+				bits = 0;
+				h = 17 * 31 + op.hashCode();
+
+				for (Expression c : children)
+					h = h * 31 + System.identityHashCode(c);
+			}
+
+			hash = h;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			boolean rv = false;
+
+			if (obj instanceof Key)
+			{
+				Key other = (Key) obj;
+
+				if (hash != other.hash || op != other.op)
+					rv = false;
+				else if (op != null)
+				{
+					rv = children.length == other.children.length;
+
+					for (int i = 0; rv && i < children.length; ++i)
+						rv = children[i] == other.children[i];
+				}
+				else if (name != null)
+					rv = name.equals(other.name);
+				else
+					rv = other.name == null && bits == other.bits;
+			}
+
+			return rv;
+		}
+	}
+}
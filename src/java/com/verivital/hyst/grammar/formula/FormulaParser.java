@@ -1,28 +1,148 @@
 package com.verivital.hyst.grammar.formula;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import org.antlr.v4.runtime.ANTLRInputStream;
 import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.BaseErrorListener;
 import org.antlr.v4.runtime.CommonTokenStream;
 import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
+import org.antlr.v4.runtime.atn.PredictionMode;
 import org.antlr.v4.runtime.misc.ParseCancellationException;
 import org.antlr.v4.runtime.tree.ParseTree;
 
 import com.verivital.hyst.grammar.antlr.HystExpressionLexer;
 import com.verivital.hyst.grammar.antlr.HystExpressionParser;
 import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.main.ConversionContext;
+import com.verivital.hyst.main.Hyst;
 
 public class FormulaParser
 {
+	private static final int DEFAULT_CACHE_SIZE = 10000;
+
+	// (part, text) -> parsed expression. Cached expressions are never returned directly, only
+	// copies, so they are never modified.
+	private static int cacheSize = DEFAULT_CACHE_SIZE;
+	private static final LinkedHashMap<String, Expression> cache = new LinkedHashMap<String, Expression>(
+			16, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Expression> eldest)
+		{
+			return size() > cacheSize;
+		}
+	};
+
+	private static long cacheHits = 0;
+	private static long cacheMisses = 0;
+
+	// invalid characters are skipped by the lexer, as before; the warning goes to the log of the
+	// current conversion rather than to System.err (it is only printed when the text is first parsed)
+	private static final BaseErrorListener lexerErrorListener = new BaseErrorListener()
+	{
+		@Override
+		public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line,
+				int charPositionInLine, String msg, RecognitionException e)
+		{
+			Hyst.logInfo("line " + line + ":" + charPositionInLine + " " + msg);
+		}
+	};
+
+	// lexer and parser instances are reused for each thread
+	private static final ThreadLocal<HystExpressionParser> threadParser = new ThreadLocal<HystExpressionParser>()
+	{
+		@Override
+		protected HystExpressionParser initialValue()
+		{
+			HystExpressionLexer lex = new HystExpressionLexer(new ANTLRInputStream(""));
+			HystExpressionParser rv = new HystExpressionParser(new CommonTokenStream(lex));
+
+			// parse errors are reported in the exception (see getParseErrors), rather than on stderr
+			lex.removeErrorListeners();
+			lex.addErrorListener(lexerErrorListener);
+			rv.removeErrorListeners();
+
+			return rv;
+		}
+	};
+
+	/**
+	 * Should the fast parsing mode be used: SLL prediction with LL fallback, reused lexers /
+	 * parsers, and a cache of parsed expressions? If false, every string is parsed from scratch in
+	 * LL mode. This is a setting of the current ConversionContext.
+	 */
+	public static boolean isFastParsing()
+	{
+		return ConversionContext.get().fastParsing;
+	}
+
+	public static void setFastParsing(boolean fast)
+	{
+		ConversionContext.get().fastParsing = fast;
+	}
+
 	private static Expression getExpression(String text, String part)
 	{
 		Expression rv = null;
-		HystExpressionParser par = null;
+
+		if (isFastParsing())
+		{
+			String key = part + "\n" + text;
+			Expression cached;
+
+			synchronized (cache)
+			{
+				cached = cache.get(key);
+
+				if (cached != null)
+					++cacheHits;
+				else
+					++cacheMisses;
+			}
+
+			if (cached == null)
+			{
+				cached = parseExpressionFast(text, part);
+
+				// empty text parses to null, which is not cached
+				if (cached != null)
+				{
+					synchronized (cache)
+					{
+						cache.put(key, cached);
+					}
+				}
+			}
+
+			rv = cached == null ? null : cached.copy();
+		}
+		else
+			rv = parseExpression(text, part);
+
+		return rv;
+	}
+
+	/**
+	 * Parse an expression using a fresh lexer and parser, with full LL prediction
+	 */
+	private static Expression parseExpression(String text, String part)
+	{
+		Expression rv = null;
 
 		try
 		{
 			HystExpressionLexer lex = new HystExpressionLexer(new ANTLRInputStream(text));
+			lex.removeErrorListeners();
+			lex.addErrorListener(lexerErrorListener);
 
-			par = new HystExpressionParser(new CommonTokenStream(lex));
+			HystExpressionParser par = new HystExpressionParser(new CommonTokenStream(lex));
+			par.removeErrorListeners();
 			par.setErrorHandler(new BailErrorStrategy());
 
 			ParseTree tree = getParseTree(par, part);
@@ -40,26 +160,162 @@ public class FormulaParser
 		}
 		catch (ParseCancellationException e)
 		{
-			if (par != null)
+			throw new AutomatonExportException("Could not parse " + part + ": '" + text + "'"
+					+ getParseErrors(text, part), e);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Parse an expression with this thread's lexer and parser. The faster SLL prediction mode is
+	 * tried first. Since SLL can fail on valid input, failures are reparsed with full LL prediction
+	 * before an error is raised.
+	 */
+	private static Expression parseExpressionFast(String text, String part)
+	{
+		Expression rv = null;
+		HystExpressionParser par = threadParser.get();
+		HystExpressionLexer lex = (HystExpressionLexer) par.getTokenStream().getTokenSource();
+
+		lex.setInputStream(new ANTLRInputStream(text));
+		CommonTokenStream tokens = new CommonTokenStream(lex);
+		par.setTokenStream(tokens);
+		par.setErrorHandler(new BailErrorStrategy());
+		par.getInterpreter().setPredictionMode(PredictionMode.SLL);
+
+		try
+		{
+			ParseTree tree;
+
+			try
 			{
-				// reparse with error reporting
-				par.setErrorHandler(new DefaultErrorStrategy());
+				tree = getParseTree(par, part);
+			}
+			catch (ParseCancellationException e)
+			{
+				// SLL failed, retry with full LL prediction
+				tokens.seek(0);
+				par.reset();
+				par.getInterpreter().setPredictionMode(PredictionMode.LL);
 
-				try
-				{
-					getParseTree(par, part);
-				}
-				catch (ParseCancellationException e2)
-				{
-				}
+				tree = getParseTree(par, part);
 			}
 
-			throw new AutomatonExportException("Could not parse " + part + ": '" + text + "'", e);
+			rv = new ExpVisitor().visit(tree);
+
+			// dotted variables are only allowed in loc expressions
+			if (!part.equals("initial/forbidden"))
+				checkNoDottedVariables(rv);
+		}
+		catch (AutomatonExportException e)
+		{
+			throw new AutomatonExportException(
+					"Could not parse " + part + ": '" + text + "'\n" + e.getLocalizedMessage(), e);
+		}
+		catch (ParseCancellationException e)
+		{
+			throw new AutomatonExportException("Could not parse " + part + ": '" + text + "'"
+					+ getParseErrors(text, part), e);
 		}
 
 		return rv;
 	}
 
+	/**
+	 * Reparse with error reporting using a fresh lexer and parser, after a fast parse failed
+	 * 
+	 * @return the syntax errors, each on a new line (for the exception message)
+	 */
+	private static String getParseErrors(String text, String part)
+	{
+		final StringBuilder rv = new StringBuilder();
+		BaseErrorListener listener = new BaseErrorListener()
+		{
+			@Override
+			public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line,
+					int charPositionInLine, String msg, RecognitionException e)
+			{
+				rv.append("\nline " + line + ":" + charPositionInLine + " " + msg);
+			}
+		};
+
+		// collect the errors, rather than printing them to stderr
+		HystExpressionLexer lex = new HystExpressionLexer(new ANTLRInputStream(text));
+		lex.removeErrorListeners();
+		lex.addErrorListener(listener);
+
+		HystExpressionParser par = new HystExpressionParser(new CommonTokenStream(lex));
+		par.removeErrorListeners();
+		par.addErrorListener(listener);
+		par.setErrorHandler(new DefaultErrorStrategy());
+
+		try
+		{
+			getParseTree(par, part);
+		}
+		catch (ParseCancellationException e)
+		{
+		}
+
+		return rv.toString();
+	}
+
+	/**
+	 * Set the maximum number of parsed expressions kept in the parse cache
+	 * 
+	 * @param size
+	 *            the maximum number of entries (0 disables caching)
+	 */
+	public static void setCacheSize(int size)
+	{
+		synchronized (cache)
+		{
+			cacheSize = size;
+
+			if (cache.size() > size)
+				cache.clear();
+		}
+	}
+
+	/**
+	 * Clear the parse cache and reset the hit / miss counters
+	 */
+	public static void clearCache()
+	{
+		synchronized (cache)
+		{
+			cache.clear();
+			cacheHits = cacheMisses = 0;
+		}
+	}
+
+	/**
+	 * Get the number of parses which were answered from the cache
+	 * 
+	 * @return the cache hit count
+	 */
+	public static long getCacheHits()
+	{
+		synchronized (cache)
+		{
+			return cacheHits;
+		}
+	}
+
+	/**
+	 * Get the number of parses which were not in the cache
+	 * 
+	 * @return the cache miss count
+	 */
+	public static long getCacheMisses()
+	{
+		synchronized (cache)
+		{
+			return cacheMisses;
+		}
+	}
+
 	private static void checkNoDottedVariables(Expression e)
 	{
 		if (e != null)
@@ -0,0 +1,643 @@
+package com.verivital.hyst.grammar.formula;
+
+import java.util.List;
+
+import com.verivital.hyst.ir.AutomatonExportException;
+
+/**
+ * Forward-mode automatic differentiation of a vector of expressions (usually an automaton's flow
+ * dynamics), using dual numbers. Each expression is compiled into a CompiledExpression, and the
+ * postfix program is run on (value, derivative) pairs, where the derivative is with respect to a
+ * single seeded variable. One pass per input variable gives a column of the Jacobian matrix, so
+ * the full Jacobian needs n passes over the n rows, rather than the 2n^2 evaluations of a
+ * finite-difference estimate, and the result is exact up to floating-point error.
+ *
+ * Interval-valued dual numbers are also supported, where the values and derivatives are intervals
+ * over a box. This gives bounds on the Jacobian entries over the whole box, which bound the error
+ * of a linearization (by the mean value theorem). The interval operations are not outward rounded,
+ * similar to Interval.
+ *
+ * Evaluation uses preallocated stacks and does not allocate memory. An object is not thread-safe,
+ * so use a separate one for each thread.
+ */
+public class ForwardDiff
+{
+	private final CompiledExpression[] rows;
+	private final int numVars;
+
+	// dual number stacks (value, derivative)
+	private final double[] val;
+	private final double[] der;
+
+	// interval dual number stacks
+	private final double[] valLo, valHi, derLo, derHi;
+
+	// result of the last interval operation
+	private double resLo, resHi;
+
+	// work arrays for linearizationErrorBounds
+	private final double[][] jacCenter, jacMin, jacMax;
+
+	/**
+	 * Create a differentiator for several expressions
+	 *
+	 * @param expressions
+	 *            the expressions (rows of the Jacobian)
+	 * @param variableNames
+	 *            the variable names (columns of the Jacobian), in the order of the point arrays
+	 * @throws AutomatonExportException
+	 *             if an expression contains unknown variables or unsupported operations
+	 */
+	public ForwardDiff(List<Expression> expressions, List<String> variableNames)
+	{
+		this(compileAll(expressions, variableNames), variableNames.size());
+	}
+
+	/**
+	 * Create a differentiator from already-compiled expressions
+	 *
+	 * @param rows
+	 *            the compiled expressions (rows of the Jacobian)
+	 * @param numVars
+	 *            the number of variables (columns of the Jacobian)
+	 */
+	public ForwardDiff(CompiledExpression[] rows, int numVars)
+	{
+		int size = 1;
+
+		for (CompiledExpression ce : rows)
+		{
+			if (ce.numVars > numVars)
+				throw new AutomatonExportException("Compiled expression needs " + ce.numVars
+						+ " variables, but differentiator only has " + numVars + ".");
+
+			size = Math.max(size, ce.stackSize);
+		}
+
+		this.rows = rows;
+		this.numVars = numVars;
+
+		val = new double[size];
+		der = new double[size];
+		valLo = new double[size];
+		valHi = new double[size];
+		derLo = new double[size];
+		derHi = new double[size];
+
+		jacCenter = new double[rows.length][numVars];
+		jacMin = new double[rows.length][numVars];
+		jacMax = new double[rows.length][numVars];
+	}
+
+	private static CompiledExpression[] compileAll(List<Expression> expressions,
+			List<String> variableNames)
+	{
+		CompiledExpression[] rv = new CompiledExpression[expressions.size()];
+
+		for (int i = 0; i < rv.length; ++i)
+			rv[i] = CompiledExpression.compile(expressions.get(i), variableNames);
+
+		return rv;
+	}
+
+	public int getNumRows()
+	{
+		return rows.length;
+	}
+
+	public int getNumVars()
+	{
+		return numVars;
+	}
+
+	/**
+	 * Compute the Jacobian matrix at a point
+	 *
+	 * @param point
+	 *            the point, in the order of the variable names
+	 * @param out
+	 *            [out] the Jacobian, indexed as out[row][variable]
+	 */
+	public void jacobian(double[] point, double[][] out)
+	{
+		checkPoint(point);
+
+		for (int col = 0; col < numVars; ++col)
+		{
+			for (int row = 0; row < rows.length; ++row)
+			{
+				evaluateDual(rows[row], point, col);
+				out[row][col] = der[0];
+			}
+		}
+	}
+
+	/**
+	 * Compute the gradient of a single expression at a point
+	 *
+	 * @param row
+	 *            the index of the expression
+	 * @param point
+	 *            the point, in the order of the variable names
+	 * @param out
+	 *            [out] the partial derivatives with respect to each variable
+	 * @return the value of the expression at the point
+	 */
+	public double gradient(int row, double[] point, double[] out)
+	{
+		checkPoint(point);
+
+		if (numVars == 0)
+			evaluateDual(rows[row], point, -1);
+
+		for (int col = 0; col < numVars; ++col)
+		{
+			evaluateDual(rows[row], point, col);
+			out[col] = der[0];
+		}
+
+		return val[0];
+	}
+
+	/**
+	 * Bound the Jacobian matrix over a box, using interval dual numbers
+	 *
+	 * @param lo
+	 *            the lower bound of the box for each variable
+	 * @param hi
+	 *            the upper bound of the box for each variable
+	 * @param outMin
+	 *            [out] the lower bounds of the Jacobian entries, indexed as out[row][variable]
+	 * @param outMax
+	 *            [out] the upper bounds of the Jacobian entries, indexed as out[row][variable]
+	 * @throws AutomatonExportException
+	 *             if an operation can't be bounded over the box (for example, division by an
+	 *             interval containing zero)
+	 */
+	public void jacobianBounds(double[] lo, double[] hi, double[][] outMin, double[][] outMax)
+	{
+		checkPoint(lo);
+		checkPoint(hi);
+
+		for (int col = 0; col < numVars; ++col)
+		{
+			for (int row = 0; row < rows.length; ++row)
+			{
+				evaluateIntervalDual(rows[row], lo, hi, col);
+				outMin[row][col] = derLo[0];
+				outMax[row][col] = derHi[0];
+			}
+		}
+	}
+
+	/**
+	 * Bound the error of the linearization at the center of a box, over the box. For each row i, the
+	 * linearization is f_i(c) + J(c)_i * (x - c), and by the mean value theorem the error f_i(x) -
+	 * f_i(c) - J(c)_i * (x - c) is contained in sum_j (J_ij(box) - J_ij(c)) * (x_j - c_j).
+	 *
+	 * @param lo
+	 *            the lower bound of the box for each variable
+	 * @param hi
+	 *            the upper bound of the box for each variable
+	 * @param center
+	 *            the linearization point, inside the box
+	 * @param outMin
+	 *            [out] the lower bound of the error for each row
+	 * @param outMax
+	 *            [out] the upper bound of the error for each row
+	 */
+	public void linearizationErrorBounds(double[] lo, double[] hi, double[] center,
+			double[] outMin, double[] outMax)
+	{
+		jacobian(center, jacCenter);
+		jacobianBounds(lo, hi, jacMin, jacMax);
+
+		for (int row = 0; row < rows.length; ++row)
+		{
+			double sumLo = 0, sumHi = 0;
+
+			for (int col = 0; col < numVars; ++col)
+			{
+				double c = jacCenter[row][col];
+
+				mul(jacMin[row][col] - c, jacMax[row][col] - c, lo[col] - center[col],
+						hi[col] - center[col]);
+
+				sumLo += resLo;
+				sumHi += resHi;
+			}
+
+			outMin[row] = sumLo;
+			outMax[row] = sumHi;
+		}
+	}
+
+	private void checkPoint(double[] point)
+	{
+		if (point.length < numVars)
+			throw new AutomatonExportException("Differentiation needs " + numVars
+					+ " variable values, but only " + point.length + " were provided.");
+	}
+
+	/**
+	 * Run a compiled program on dual numbers, with the derivative seeded on one variable. The
+	 * result is in val[0] and der[0].
+	 */
+	private void evaluateDual(CompiledExpression ce, double[] point, int seed)
+	{
+		final int[] ops = ce.ops;
+		final int[] args = ce.args;
+		int top = -1;
+
+		for (int i = 0; i < ops.length; ++i)
+		{
+			int op = ops[i];
+
+			switch (op)
+			{
+			case CompiledExpression.OP_CONST:
+				++top;
+				val[top] = ce.constants[args[i]];
+				der[top] = 0;
+				break;
+			case CompiledExpression.OP_VAR:
+				++top;
+				val[top] = point[args[i]];
+				der[top] = args[i] == seed ? 1 : 0;
+				break;
+			case CompiledExpression.OP_NEG:
+				val[top] = -val[top];
+				der[top] = -der[top];
+				break;
+			case CompiledExpression.OP_NOT:
+				val[top] = val[top] == 0 ? 1 : 0;
+				der[top] = 0;
+				break;
+			case CompiledExpression.OP_SIN:
+				der[top] *= Math.cos(val[top]);
+				val[top] = Math.sin(val[top]);
+				break;
+			case CompiledExpression.OP_COS:
+				der[top] *= -Math.sin(val[top]);
+				val[top] = Math.cos(val[top]);
+				break;
+			case CompiledExpression.OP_TAN:
+			{
+				double t = Math.tan(val[top]);
+				val[top] = t;
+				der[top] *= 1 + t * t;
+				break;
+			}
+			case CompiledExpression.OP_EXP:
+				val[top] = Math.exp(val[top]);
+				der[top] *= val[top];
+				break;
+			case CompiledExpression.OP_SQRT:
+				val[top] = Math.sqrt(val[top]);
+				der[top] /= 2 * val[top];
+				break;
+			case CompiledExpression.OP_LN:
+				der[top] /= val[top];
+				val[top] = Math.log(val[top]);
+				break;
+			default:
+			{
+				double b = val[top], db = der[top];
+				--top;
+				double a = val[top], da = der[top];
+
+				switch (op)
+				{
+				case CompiledExpression.OP_ADD:
+					val[top] = a + b;
+					der[top] = da + db;
+					break;
+				case CompiledExpression.OP_SUB:
+					val[top] = a - b;
+					der[top] = da - db;
+					break;
+				case CompiledExpression.OP_MUL:
+					val[top] = a * b;
+					der[top] = da * b + a * db;
+					break;
+				case CompiledExpression.OP_DIV:
+					val[top] = a / b;
+					der[top] = (da - val[top] * db) / b;
+					break;
+				case CompiledExpression.OP_POW:
+					val[top] = Math.pow(a, b);
+
+					if (db == 0) // also correct for negative bases with integer exponents
+						der[top] = (da == 0 || b == 0) ? 0 : b * Math.pow(a, b - 1) * da;
+					else
+						der[top] = val[top] * (db * Math.log(a) + b * da / a);
+					break;
+				default:
+					// boolean operations are piecewise constant
+					val[top] = CompiledExpression.binaryOp(op, a, b);
+					der[top] = 0;
+				}
+			}
+			}
+		}
+	}
+
+	/**
+	 * Run a compiled program on interval dual numbers over a box, with the derivative seeded on one
+	 * variable. The result is in valLo[0], valHi[0], derLo[0] and derHi[0].
+	 */
+	private void evaluateIntervalDual(CompiledExpression ce, double[] lo, double[] hi, int seed)
+	{
+		final int[] ops = ce.ops;
+		final int[] args = ce.args;
+		int top = -1;
+
+		for (int i = 0; i < ops.length; ++i)
+		{
+			int op = ops[i];
+
+			switch (op)
+			{
+			case CompiledExpression.OP_CONST:
+			{
+				double c = ce.constants[args[i]];
+				++top;
+				valLo[top] = valHi[top] = c;
+				derLo[top] = derHi[top] = 0;
+				break;
+			}
+			case CompiledExpression.OP_VAR:
+			{
+				int v = args[i];
+				double d = v == seed ? 1 : 0;
+				++top;
+				valLo[top] = lo[v];
+				valHi[top] = hi[v];
+				derLo[top] = derHi[top] = d;
+				break;
+			}
+			case CompiledExpression.OP_NEG:
+			{
+				double t = valLo[top];
+				valLo[top] = -valHi[top];
+				valHi[top] = -t;
+
+				t = derLo[top];
+				derLo[top] = -derHi[top];
+				derHi[top] = -t;
+				break;
+			}
+			case CompiledExpression.OP_SIN:
+				// d = cos(a) * da
+				cos(valLo[top], valHi[top]);
+				mul(resLo, resHi, derLo[top], derHi[top]);
+				derLo[top] = resLo;
+				derHi[top] = resHi;
+
+				sin(valLo[top], valHi[top]);
+				valLo[top] = resLo;
+				valHi[top] = resHi;
+				break;
+			case CompiledExpression.OP_COS:
+				// d = -sin(a) * da
+				sin(valLo[top], valHi[top]);
+				mul(-resHi, -resLo, derLo[top], derHi[top]);
+				derLo[top] = resLo;
+				derHi[top] = resHi;
+
+				cos(valLo[top], valHi[top]);
+				valLo[top] = resLo;
+				valHi[top] = resHi;
+				break;
+			case CompiledExpression.OP_EXP:
+				valLo[top] = Math.exp(valLo[top]);
+				valHi[top] = Math.exp(valHi[top]);
+
+				mul(valLo[top], valHi[top], derLo[top], derHi[top]);
+				derLo[top] = resLo;
+				derHi[top] = resHi;
+				break;
+			case CompiledExpression.OP_LN:
+				if (valLo[top] <= 0)
+					throw new AutomatonExportException(
+							"ln of interval containing nonpositive values in derivative bounds: ["
+									+ valLo[top] + ", " + valHi[top] + "]");
+
+				div(derLo[top], derHi[top], valLo[top], valHi[top]);
+				derLo[top] = resLo;
+				derHi[top] = resHi;
+
+				valLo[top] = Math.log(valLo[top]);
+				valHi[top] = Math.log(valHi[top]);
+				break;
+			case CompiledExpression.OP_SQRT:
+				if (valLo[top] <= 0)
+					throw new AutomatonExportException(
+							"sqrt of interval containing nonpositive values in derivative bounds: ["
+									+ valLo[top] + ", " + valHi[top] + "]");
+
+				valLo[top] = Math.sqrt(valLo[top]);
+				valHi[top] = Math.sqrt(valHi[top]);
+
+				div(derLo[top], derHi[top], 2 * valLo[top], 2 * valHi[top]);
+				derLo[top] = resLo;
+				derHi[top] = resHi;
+				break;
+			case CompiledExpression.OP_ADD:
+				--top;
+				valLo[top] += valLo[top + 1];
+				valHi[top] += valHi[top + 1];
+				derLo[top] += derLo[top + 1];
+				derHi[top] += derHi[top + 1];
+				break;
+			case CompiledExpression.OP_SUB:
+				--top;
+				valLo[top] -= valHi[top + 1];
+				valHi[top] -= valLo[top + 1];
+				derLo[top] -= derHi[top + 1];
+				derHi[top] -= derLo[top + 1];
+				break;
+			case CompiledExpression.OP_MUL:
+			{
+				--top;
+				int b = top + 1;
+
+				// d = da * b + a * db
+				mul(derLo[top], derHi[top], valLo[b], valHi[b]);
+				double dLo = resLo, dHi = resHi;
+				mul(valLo[top], valHi[top], derLo[b], derHi[b]);
+				derLo[top] = dLo + resLo;
+				derHi[top] = dHi + resHi;
+
+				mul(valLo[top], valHi[top], valLo[b], valHi[b]);
+				valLo[top] = resLo;
+				valHi[top] = resHi;
+				break;
+			}
+			case CompiledExpression.OP_DIV:
+			{
+				--top;
+				int b = top + 1;
+
+				if (valLo[b] <= 0 && valHi[b] >= 0)
+					throw new AutomatonExportException(
+							"division by interval containing zero in derivative bounds: ["
+									+ valLo[b] + ", " + valHi[b] + "]");
+
+				// v = a / b, d = (da - v * db) / b
+				div(valLo[top], valHi[top], valLo[b], valHi[b]);
+				double vLo = resLo, vHi = resHi;
+
+				mul(vLo, vHi, derLo[b], derHi[b]);
+				div(derLo[top] - resHi, derHi[top] - resLo, valLo[b], valHi[b]);
+
+				derLo[top] = resLo;
+				derHi[top] = resHi;
+				valLo[top] = vLo;
+				valHi[top] = vHi;
+				break;
+			}
+			case CompiledExpression.OP_POW:
+				--top;
+				pow(top);
+				break;
+			default:
+				throw new AutomatonExportException(
+						"Operation is not supported in derivative bounds (opcode " + op + ")");
+			}
+		}
+	}
+
+	/**
+	 * Interval power, where the exponent (at index top + 1) must be a constant. Either the exponent
+	 * is a nonnegative integer, or the base is positive.
+	 */
+	private void pow(int top)
+	{
+		int e = top + 1;
+		double b = valLo[e];
+
+		if (valHi[e] != b || derLo[e] != 0 || derHi[e] != 0)
+			throw new AutomatonExportException(
+					"Exponent must be constant in derivative bounds: [" + valLo[e] + ", "
+							+ valHi[e] + "]");
+
+		boolean isNonnegInt = b >= 0 && b == Math.floor(b) && !Double.isInfinite(b);
+
+		if (!isNonnegInt && valLo[top] <= 0)
+			throw new AutomatonExportException(
+					"Non-integer power of interval containing nonpositive values in derivative "
+							+ "bounds: [" + valLo[top] + ", " + valHi[top] + "]^" + b);
+
+		if (b == 0)
+		{
+			valLo[top] = valHi[top] = 1;
+			derLo[top] = derHi[top] = 0;
+		}
+		else
+		{
+			// d = b * a^(b-1) * da
+			powBound(valLo[top], valHi[top], b - 1);
+			mul(b * resLo, b * resHi, derLo[top], derHi[top]);
+			double dLo = resLo, dHi = resHi;
+
+			powBound(valLo[top], valHi[top], b);
+			valLo[top] = resLo;
+			valHi[top] = resHi;
+			derLo[top] = dLo;
+			derHi[top] = dHi;
+		}
+	}
+
+	/**
+	 * Bound a^b over an interval, where b is a nonnegative integer or the interval is positive
+	 */
+	private void powBound(double lo, double hi, double b)
+	{
+		double pLo = Math.pow(lo, b);
+		double pHi = Math.pow(hi, b);
+
+		if (lo > 0 || b == 0)
+		{
+			resLo = Math.min(pLo, pHi);
+			resHi = Math.max(pLo, pHi);
+		}
+		else if (((long) b) % 2 == 1) // odd integer, monotone increasing
+		{
+			resLo = pLo;
+			resHi = pHi;
+		}
+		else if (hi <= 0) // even integer, decreasing on negatives
+		{
+			resLo = pHi;
+			resHi = pLo;
+		}
+		else
+		{
+			resLo = 0;
+			resHi = Math.max(pLo, pHi);
+		}
+	}
+
+	/**
+	 * Interval multiplication, result in resLo and resHi
+	 */
+	private void mul(double aLo, double aHi, double bLo, double bHi)
+	{
+		double p1 = aLo * bLo, p2 = aLo * bHi, p3 = aHi * bLo, p4 = aHi * bHi;
+
+		resLo = Math.min(Math.min(p1, p2), Math.min(p3, p4));
+		resHi = Math.max(Math.max(p1, p2), Math.max(p3, p4));
+	}
+
+	/**
+	 * Interval division by an interval not containing zero, result in resLo and resHi
+	 */
+	private void div(double aLo, double aHi, double bLo, double bHi)
+	{
+		mul(aLo, aHi, 1.0 / bHi, 1.0 / bLo);
+	}
+
+	/**
+	 * Interval sine, result in resLo and resHi
+	 */
+	private void sin(double lo, double hi)
+	{
+		if (hi - lo >= 2 * Math.PI)
+		{
+			resLo = -1;
+			resHi = 1;
+		}
+		else
+		{
+			double sLo = Math.sin(lo), sHi = Math.sin(hi);
+			resLo = Math.min(sLo, sHi);
+			resHi = Math.max(sLo, sHi);
+
+			// maximum at pi/2 + 2k*pi, minimum at -pi/2 + 2k*pi
+			if (containsPeriodicPoint(lo, hi, Math.PI / 2))
+				resHi = 1;
+
+			if (containsPeriodicPoint(lo, hi, -Math.PI / 2))
+				resLo = -1;
+		}
+	}
+
+	/**
+	 * Interval cosine, result in resLo and resHi
+	 */
+	private void cos(double lo, double hi)
+	{
+		sin(lo + Math.PI / 2, hi + Math.PI / 2);
+	}
+
+	/**
+	 * Does [lo, hi] contain p + 2k*pi for some integer k?
+	 */
+	private static boolean containsPeriodicPoint(double lo, double hi, double p)
+	{
+		double k = Math.ceil((lo - p) / (2 * Math.PI));
+
+		return p + k * 2 * Math.PI <= hi;
+	}
+}
@@ -16,6 +16,8 @@ import com.verivital.hyst.ir.AutomatonExportException;
  */
 public class LutExpression extends Expression
 {
+	private static final long serialVersionUID = 1L;
+
 	public Expression[] inputs; // length >= 1
 	public MatrixExpression table;
 	public double[][] breakpoints; // height = number of variables, width[i] =
@@ -23,6 +23,8 @@ import com.verivital.hyst.passes.basic.SimplifyExpressionsPass;
  */
 public class MatrixExpression extends Expression implements Iterable<Entry<int[], Expression>>
 {
+	private static final long serialVersionUID = 1L;
+
 	private int[] sizes; // the size of each dimension, x y z
 	private Expression[] data; // the data for each cell (should be length
 								// size[0] * size[1] * ...)
@@ -13,6 +13,8 @@ import com.verivital.hyst.ir.AutomatonExportException;
  */
 public class Operation extends Expression
 {
+	private static final long serialVersionUID = 1L;
+
 	public Operator op;
 	public List<Expression> children = null;
 
@@ -13,8 +13,14 @@ package com.verivital.hyst.grammar.formula;
  */
 public class Variable extends Expression
 {
+	private static final long serialVersionUID = 1L;
+
 	public String name;
 
+	// the variable id from the last SymbolTable.resolve() call, or -1 if unresolved. This is only
+	// meaningful for the symbol table which resolved it.
+	public int index = -1;
+
 	public Variable(String name)
 	{
 		this.name = name;
@@ -23,6 +29,9 @@ public class Variable extends Expression
 	@Override
 	public Expression copy()
 	{
-		return new Variable(name);
+		Variable rv = new Variable(name);
+		rv.index = index;
+
+		return rv;
 	}
 }
@@ -88,9 +88,9 @@ public class ConfigurationMaker
 
 		// don't do const validation here, since full automaton is not yet
 		// constructed
-		Component.VALIDATE_CONSTS = false;
+		Component.setValidateConsts(false);
 		rv.validate();
-		Component.VALIDATE_CONSTS = true;
+		Component.setValidateConsts(true);
 
 		return rv;
 	}
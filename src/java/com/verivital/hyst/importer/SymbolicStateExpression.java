@@ -46,9 +46,7 @@ public class SymbolicStateExpression
 	 */
 	public SymbolicStateExpression(boolean entireSpace)
 	{
-		if (doc == null)
-			throw new RuntimeException(
-					"static SymbolicState.setComponent() method must be called before constructor");
+		info();
 
 		if (entireSpace)
 		{
@@ -59,7 +57,7 @@ public class SymbolicStateExpression
 		{
 			discStates = new ArrayList<Collection<String>>();
 
-			for (int i = 0; i < instanceNames.size(); ++i)
+			for (int i = 0; i < info().instanceNames.size(); ++i)
 				discStates.add(new ArrayList<String>());
 
 			contStates = Constant.FALSE;
@@ -88,11 +86,12 @@ public class SymbolicStateExpression
 
 	private List<Collection<String>> getAllDiscStates()
 	{
-		List<Collection<String>> rv = new ArrayList<Collection<String>>(instanceTypes.size());
+		List<Collection<String>> rv = new ArrayList<Collection<String>>(
+				info().instanceTypes.size());
 
-		for (String id : instanceTypes)
+		for (String id : info().instanceTypes)
 		{
-			SpaceExBaseComponent c = (SpaceExBaseComponent) doc.getComponent(id);
+			SpaceExBaseComponent c = (SpaceExBaseComponent) info().doc.getComponent(id);
 
 			ArrayList<String> modes = new ArrayList<String>(c.getLocationCount());
 
@@ -124,7 +123,7 @@ public class SymbolicStateExpression
 
 	public void addDiscreteConstraint(String instance, String state)
 	{
-		int index = instanceNames.indexOf(instance);
+		int index = info().instanceNames.indexOf(instance);
 
 		if (index == -1)
 			throw new AutomatonExportException(
@@ -132,7 +131,7 @@ public class SymbolicStateExpression
 
 		Collection<String> states = discStates.get(index);
 
-		String id = instanceTypes.get(index);
+		String id = info().instanceTypes.get(index);
 
 		if (!componentContainsDiscreteState(id, state))
 			throw new AutomatonExportException(
@@ -249,7 +248,7 @@ public class SymbolicStateExpression
 	{
 		ArrayList<String> rv = null;
 
-		if (componentIndex < instanceTypes.size())
+		if (componentIndex < info().instanceTypes.size())
 		{
 			Collection<String> states = discStates.get(componentIndex);
 
@@ -284,16 +283,33 @@ public class SymbolicStateExpression
 	/// static below //
 	///////////////////
 
-	private static SpaceExDocument doc;
+	private static class ComponentInfo
+	{
+		SpaceExDocument doc;
+
+		// example: ["net.controller_i", "net.plant_i"]
+		List<String> instanceNames;
+
+		// example: ["controller", "plant"]
+		List<String> instanceTypes;
+	}
+
+	// stored per thread, so models can be imported on several threads at the same time
+	private static final ThreadLocal<ComponentInfo> component = new ThreadLocal<ComponentInfo>();
 
-	// example: ["net.controller_i", "net.plant_i"]
-	private static List<String> instanceNames;
+	private static ComponentInfo info()
+	{
+		ComponentInfo rv = component.get();
 
-	// example: ["controller", "plant"]
-	private static List<String> instanceTypes;
+		if (rv == null)
+			throw new RuntimeException(
+					"static SymbolicState.setComponent() method must be called before constructor");
+
+		return rv;
+	}
 
 	/**
-	 * Initializes the instanceNames and instanceTypes (statically stored)
+	 * Initializes the instanceNames and instanceTypes (stored for the current thread)
 	 * 
 	 * @param root
 	 *            the root component
@@ -305,17 +321,19 @@ public class SymbolicStateExpression
 		if (doc == null)
 			throw new RuntimeException("doc cannot be null");
 
-		SymbolicStateExpression.doc = doc;
+		ComponentInfo info = new ComponentInfo();
+		info.doc = doc;
+		component.set(info);
 
-		instanceNames = getInstanceNames("", root);
-		instanceTypes = getInstanceTypes(root);
+		info.instanceNames = getInstanceNames("", root);
+		info.instanceTypes = getInstanceTypes(root);
 	}
 
 	private static boolean componentContainsDiscreteState(String id, String state)
 	{
 		boolean rv = false;
 
-		SpaceExBaseComponent c = (SpaceExBaseComponent) doc.getComponent(id);
+		SpaceExBaseComponent c = (SpaceExBaseComponent) info().doc.getComponent(id);
 
 		for (int i = 0; i < c.getLocationCount(); ++i)
 		{
@@ -346,7 +364,7 @@ public class SymbolicStateExpression
 				Bind b = nc.getBind(i);
 
 				String compName = b.getComponent();
-				SpaceExComponent comp = doc.getComponent(compName);
+				SpaceExComponent comp = info().doc.getComponent(compName);
 
 				rv.addAll(getInstanceTypes(comp));
 			}
@@ -370,7 +388,7 @@ public class SymbolicStateExpression
 				Bind b = nc.getBind(i);
 
 				String compName = b.getComponent();
-				SpaceExComponent comp = doc.getComponent(compName);
+				SpaceExComponent comp = info().doc.getComponent(compName);
 
 				String newInstName = (instanceName.length() > 0 ? instanceName + "." : "")
 						+ b.getAs();
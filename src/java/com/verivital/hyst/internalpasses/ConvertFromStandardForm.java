@@ -84,7 +84,7 @@ public class ConvertFromStandardForm
 						+ "Transition into " + INIT_MODE_NAME + " not allowed.");
 		}
 
-		ha.transitions.removeAll(toRemove);
+		ha.removeTransitions(toRemove);
 		ha.modes.remove(INIT_MODE_NAME);
 
 		config.validate();
@@ -136,7 +136,7 @@ public class ConvertFromStandardForm
 						+ "Transition out of " + ERROR_MODE_NAME + " not allowed.");
 		}
 
-		ha.transitions.removeAll(toRemove);
+		ha.removeTransitions(toRemove);
 		ha.modes.remove(ERROR_MODE_NAME);
 
 		config.validate();
@@ -13,6 +13,7 @@ import com.verivital.hyst.grammar.formula.Operation;
 import com.verivital.hyst.grammar.formula.Variable;
 import com.verivital.hyst.ir.Component;
 import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.ir.SymbolTable;
 import com.verivital.hyst.ir.base.AutomatonMode;
 import com.verivital.hyst.ir.base.AutomatonTransition;
 import com.verivital.hyst.ir.base.BaseComponent;
@@ -122,6 +123,8 @@ public class RenameParams
 
 	private static void swapTransitionLabels(BaseComponent bc, Map<String, String> convertMap)
 	{
+		boolean changed = false;
+
 		for (AutomatonTransition at : bc.transitions)
 		{
 			String label = at.label;
@@ -135,7 +138,12 @@ public class RenameParams
 				continue;
 
 			at.label = to;
+			changed = true;
 		}
+
+		// the label index may have been built with the old labels
+		if (changed)
+			bc.invalidateTransitionIndex();
 	}
 
 	/**
@@ -219,7 +227,7 @@ public class RenameParams
 
 	private static void swapConstants(Component c, Map<String, String> convertMap)
 	{
-		LinkedHashMap<String, Interval> newConstants = new LinkedHashMap<String, Interval>();
+		LinkedHashMap<String, Interval> newConstants = new SymbolTable.ConstantMap();
 
 		for (Entry<String, Interval> e : c.constants.entrySet())
 		{
@@ -237,7 +245,7 @@ public class RenameParams
 
 	private static void swapVariables(Component c, Map<String, String> convertMap)
 	{
-		ArrayList<String> newVariables = new ArrayList<String>();
+		ArrayList<String> newVariables = new SymbolTable.SymbolList();
 
 		for (String oldName : c.variables)
 		{
@@ -254,7 +262,7 @@ public class RenameParams
 
 	private static void swapLabels(Component c, Map<String, String> convertMap)
 	{
-		ArrayList<String> newLabels = new ArrayList<String>();
+		ArrayList<String> newLabels = new SymbolTable.SymbolList();
 
 		for (String oldName : c.labels)
 		{
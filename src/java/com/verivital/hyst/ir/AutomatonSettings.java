@@ -1,5 +1,6 @@
 package com.verivital.hyst.ir;
 
+import java.io.Serializable;
 import java.util.Collection;
 
 import de.uni_freiburg.informatik.swt.sxhybridautomaton.SpaceExConfigValues;
@@ -13,8 +14,10 @@ import de.uni_freiburg.informatik.swt.sxhybridautomaton.SpaceExConfigValues;
  * @author Stanley Bak (stanleybak@gmail.com)
  *
  */
-public class AutomatonSettings
+public class AutomatonSettings implements Serializable
 {
+	private static final long serialVersionUID = 1L;
+
 	public Configuration config;
 
 	// values imported from the SpaceEx .cfg file (nonnnull)
@@ -38,7 +41,7 @@ public class AutomatonSettings
 
 	public void validate()
 	{
-		if (!Configuration.DO_VALIDATION)
+		if (!Configuration.isValidationEnabled())
 			return;
 
 		if (config == null)
@@ -1,5 +1,6 @@
 package com.verivital.hyst.ir;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -13,6 +14,7 @@ import com.verivital.hyst.geometry.Interval;
 import com.verivital.hyst.ir.network.ComponentInstance;
 import com.verivital.hyst.ir.network.ComponentMapping;
 import com.verivital.hyst.ir.network.NetworkComponent;
+import com.verivital.hyst.main.ConversionContext;
 
 /**
  * A component is a base component (single hybrid automaton with labels and I/O), or a network
@@ -30,24 +32,44 @@ import com.verivital.hyst.ir.network.NetworkComponent;
  * (circular), if this is a template automaton
  *
  */
-public abstract class Component
+public abstract class Component implements Serializable
 {
-	public static boolean VALIDATE_CONSTS = true; // should constant
-													// names/values be checked
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Should constant names / values be checked in validate()? This is a setting of the current
+	 * ConversionContext, which is disabled while automata are being constructed.
+	 */
+	public static boolean isValidateConsts()
+	{
+		return ConversionContext.get().validateConsts;
+	}
+
+	public static void setValidateConsts(boolean validate)
+	{
+		ConversionContext.get().validateConsts = validate;
+	}
+
 	public NetworkComponent parent;
 	public String instanceName; // component instance name, null for root
 								// component
 
-	public ArrayList<String> variables = new ArrayList<String>();
-	public LinkedHashMap<String, Interval> constants = new LinkedHashMap<String, Interval>();
-	public ArrayList<String> labels = new ArrayList<String>();
+	public ArrayList<String> variables = new SymbolTable.SymbolList();
+	public LinkedHashMap<String, Interval> constants = new SymbolTable.ConstantMap();
+	public ArrayList<String> labels = new SymbolTable.SymbolList();
+
+	// dense ids for the names above, built on demand
+	private transient SymbolTable symbolTable = null;
+
+	// state at the last successful validation (see ValidationCache)
+	private transient Object[] validatedState = null;
 
 	public Component template; // the template component this was instantiated
 								// from (may be null)
 
 	public void validate()
 	{
-		if (!Configuration.DO_VALIDATION)
+		if (!Configuration.isValidationEnabled())
 			return;
 
 		if (instanceName != null)
@@ -72,18 +94,31 @@ public abstract class Component
 		if (instanceName != null)
 			validateName(instanceName, "<instance name>");
 
-		// names should not repeat
-		HashSet<String> allNames = new HashSet<String>();
-
-		checkNameConflicts(allNames, variables, "variable names of " + getPrintableInstanceName());
-		checkNameConflicts(allNames, labels, "label names of " + getPrintableInstanceName());
+		Object[] state = getValidationState();
+		boolean unchanged = ValidationCache.isUnchanged(validatedState, state);
 
-		// we may skip this during automaton construction
-		if (VALIDATE_CONSTS)
+		if (unchanged)
+			ValidationCache.componentsSkipped.incrementAndGet();
+		else
 		{
-			checkNameConflicts(allNames, constants.keySet(),
-					"constant names of " + getPrintableInstanceName());
+			ValidationCache.componentsChecked.incrementAndGet();
+
+			// names should not repeat
+			HashSet<String> allNames = new HashSet<String>();
+
+			checkNameConflicts(allNames, variables,
+					"variable names of " + getPrintableInstanceName());
+			checkNameConflicts(allNames, labels, "label names of " + getPrintableInstanceName());
 
+			// we may skip this during automaton construction
+			if (isValidateConsts())
+				checkNameConflicts(allNames, constants.keySet(),
+						"constant names of " + getPrintableInstanceName());
+		}
+
+		// mapped constant values depend on the parents, so only the root's values can be skipped
+		if (isValidateConsts() && !(unchanged && parent == null))
+		{
 			// make sure every constant has a value
 			for (String cName : constants.keySet())
 			{
@@ -98,6 +133,42 @@ public abstract class Component
 				}
 			}
 		}
+
+		if (isValidateConsts())
+			validatedState = state;
+	}
+
+	/**
+	 * Forget the last successful validation, so the next validate() checks everything again. This
+	 * must be called after an expression in this component is modified in place (for example,
+	 * Operation.children.set), since incremental validation only detects replaced references (see
+	 * ValidationCache). Subclasses also invalidate their modes, transitions or children.
+	 */
+	public void invalidateValidation()
+	{
+		validatedState = null;
+	}
+
+	/**
+	 * Get the references which the name and constant checks in validate() depend on
+	 */
+	private Object[] getValidationState()
+	{
+		Object[] rv = new Object[4 + 2 * constants.size()];
+		int i = 0;
+
+		rv[i++] = getSymbolTable();
+		rv[i++] = instanceName;
+		rv[i++] = parent;
+		rv[i++] = constants;
+
+		for (Entry<String, Interval> e : constants.entrySet())
+		{
+			rv[i++] = e.getKey();
+			rv[i++] = e.getValue();
+		}
+
+		return rv;
 	}
 
 	/**
@@ -285,6 +356,25 @@ public abstract class Component
 		constants.put(name, val);
 	}
 
+	/**
+	 * Get the symbol table of this component, which assigns dense ids to its variables, constants
+	 * and labels. The table is cached, and rebuilt if they were modified since the last call.
+	 * 
+	 * @return the current symbol table
+	 */
+	public SymbolTable getSymbolTable()
+	{
+		SymbolTable rv = symbolTable;
+
+		if (rv == null || !rv.isCurrent(this))
+		{
+			rv = new SymbolTable(this);
+			symbolTable = rv;
+		}
+
+		return rv;
+	}
+
 	/**
 	 * Deep-copy the component, and return it
 	 */
@@ -298,14 +388,11 @@ public abstract class Component
 							// level for deep copy
 		rv.instanceName = null; // instance name should be assigned
 
-		rv.variables = new ArrayList<String>();
-		rv.variables.addAll(variables);
+		rv.variables = new SymbolTable.SymbolList(variables);
 
-		rv.constants = new LinkedHashMap<String, Interval>();
-		rv.constants.putAll(constants);
+		rv.constants = new SymbolTable.ConstantMap(constants);
 
-		rv.labels = new ArrayList<String>();
-		rv.labels.addAll(labels);
+		rv.labels = new SymbolTable.SymbolList(labels);
 		rv.template = template; // shallow copy template
 
 		return rv;
@@ -1,5 +1,6 @@
 package com.verivital.hyst.ir;
 
+import java.io.Serializable;
 import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.Map.Entry;
@@ -7,6 +8,7 @@ import java.util.Set;
 
 import com.verivital.hyst.grammar.formula.Expression;
 import com.verivital.hyst.ir.network.NetworkComponent;
+import com.verivital.hyst.main.ConversionContext;
 import com.verivital.hyst.util.AutomatonUtil;
 
 /**
@@ -19,9 +21,48 @@ import com.verivital.hyst.util.AutomatonUtil;
  * expression may be null (these can be rejected in ToolPrinter)
  *
  */
-public class Configuration
+public class Configuration implements Serializable
 {
-	public static boolean DO_VALIDATION = true;
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Should validate() check the model? This is a setting of the current ConversionContext, which
+	 * is disabled with the -novalidate flag.
+	 */
+	public static boolean isValidationEnabled()
+	{
+		return ConversionContext.get().doValidation;
+	}
+
+	public static void setValidationEnabled(boolean enabled)
+	{
+		ConversionContext.get().doValidation = enabled;
+	}
+
+	/**
+	 * Should validate() recheck every element, rather than only the ones changed since their last
+	 * successful validation (see ValidationCache)? This is a setting of the current
+	 * ConversionContext, which is true unless the -incremental_validation flag is used.
+	 */
+	public static boolean isFullValidation()
+	{
+		return ConversionContext.get().fullValidation;
+	}
+
+	public static void setFullValidation(boolean full)
+	{
+		ConversionContext.get().fullValidation = full;
+	}
+
+	/**
+	 * Forget the last successful validation of every component, mode and transition, so the next
+	 * validate() checks everything. Call this after modifying expressions in place (see
+	 * ValidationCache).
+	 */
+	public void invalidateValidation()
+	{
+		root.invalidateValidation();
+	}
 
 	public AutomatonSettings settings = new AutomatonSettings(this);
 
@@ -51,7 +92,7 @@ public class Configuration
 
 	public void validate()
 	{
-		if (!Configuration.DO_VALIDATION)
+		if (!Configuration.isValidationEnabled())
 			return;
 
 		if (root == null)
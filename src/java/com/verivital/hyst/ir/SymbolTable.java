@@ -0,0 +1,287 @@
+package com.verivital.hyst.ir;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.verivital.hyst.geometry.Interval;
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.Operation;
+import com.verivital.hyst.grammar.formula.Variable;
+
+/**
+ * Dense integer ids for the variables, constants and labels of a component. A variable's id is its
+ * index in the component's variables list (similarly for labels, and constants use the iteration
+ * order of the constants map), so id-indexed arrays are in the same order as the name-based code.
+ *
+ * A symbol table is a snapshot. Use Component.getSymbolTable(), which caches the table and rebuilds
+ * it after the component's variables, labels or constant names are modified (detected using the
+ * modification counts of SymbolList and the insertion count of ConstantMap), or after one of them
+ * is replaced.
+ */
+public class SymbolTable
+{
+	// what the table was built from
+	private final ArrayList<String> variableList;
+	private final ArrayList<String> labelList;
+	private final LinkedHashMap<String, Interval> constantMap;
+	private final int variablesModCount, labelsModCount, constantsInserted, numConstants;
+
+	private final HashMap<String, Integer> variableIds = new HashMap<String, Integer>();
+	private final HashMap<String, Integer> constantIds = new HashMap<String, Integer>();
+	private final HashMap<String, Integer> labelIds = new HashMap<String, Integer>();
+	private final String[] constantNames;
+
+	/**
+	 * Build the symbol table for a component (use Component.getSymbolTable() to get a cached one)
+	 *
+	 * @param c
+	 *            the component
+	 */
+	public SymbolTable(Component c)
+	{
+		variableList = c.variables;
+		labelList = c.labels;
+		constantMap = c.constants;
+		variablesModCount = getModCount(variableList);
+		labelsModCount = getModCount(labelList);
+		constantsInserted = getNumInserted(constantMap);
+		numConstants = constantMap.size();
+
+		addIds(variableIds, variableList);
+		addIds(labelIds, labelList);
+		addIds(constantIds, constantMap.keySet());
+
+		constantNames = constantMap.keySet().toArray(new String[numConstants]);
+	}
+
+	private static void addIds(HashMap<String, Integer> ids, Collection<String> names)
+	{
+		for (String name : names)
+		{
+			// keep the first index, like indexOf
+			if (!ids.containsKey(name))
+				ids.put(name, ids.size());
+		}
+	}
+
+	private static int getModCount(ArrayList<String> list)
+	{
+		return list instanceof SymbolList ? ((SymbolList) list).getModCount() : -1;
+	}
+
+	private static int getNumInserted(LinkedHashMap<String, Interval> map)
+	{
+		return map instanceof ConstantMap ? ((ConstantMap) map).getNumInserted() : -1;
+	}
+
+	/**
+	 * Is this table up to date with the given component? Lists and maps which don't track their
+	 * modification count are never considered up to date.
+	 */
+	boolean isCurrent(Component c)
+	{
+		return c.variables == variableList && c.labels == labelList
+				&& c.constants == constantMap && variablesModCount != -1 && labelsModCount != -1
+				&& constantsInserted != -1 && getModCount(variableList) == variablesModCount
+				&& getModCount(labelList) == labelsModCount
+				&& getNumInserted(constantMap) == constantsInserted
+				&& constantMap.size() == numConstants;
+	}
+
+	/**
+	 * Get the id of a variable
+	 *
+	 * @param name
+	 *            the variable name
+	 * @return the id (index in the component's variables), or -1 if it's not a variable
+	 */
+	public int getVariableId(String name)
+	{
+		Integer rv = variableIds.get(name);
+
+		return rv == null ? -1 : rv;
+	}
+
+	/**
+	 * Get the id of a constant
+	 *
+	 * @param name
+	 *            the constant name
+	 * @return the id (position in the component's constants), or -1 if it's not a constant
+	 */
+	public int getConstantId(String name)
+	{
+		Integer rv = constantIds.get(name);
+
+		return rv == null ? -1 : rv;
+	}
+
+	/**
+	 * Get the id of a label
+	 *
+	 * @param name
+	 *            the label name
+	 * @return the id (index in the component's labels), or -1 if it's not a label
+	 */
+	public int getLabelId(String name)
+	{
+		Integer rv = labelIds.get(name);
+
+		return rv == null ? -1 : rv;
+	}
+
+	public String getVariableName(int id)
+	{
+		return variableList.get(id);
+	}
+
+	public String getConstantName(int id)
+	{
+		return constantNames[id];
+	}
+
+	public String getLabelName(int id)
+	{
+		return labelList.get(id);
+	}
+
+	public int numVariables()
+	{
+		return variableList.size();
+	}
+
+	public int numConstants()
+	{
+		return numConstants;
+	}
+
+	public int numLabels()
+	{
+		return labelList.size();
+	}
+
+	/**
+	 * Get the variable ids, as a read-only map from name to id
+	 *
+	 * @return the variable ids
+	 */
+	public Map<String, Integer> getVariableIds()
+	{
+		return Collections.unmodifiableMap(variableIds);
+	}
+
+	/**
+	 * Convert a name-keyed map (like a mode's flowDynamics or a transition's reset) to an array
+	 * indexed by variable id. Variables which are not in the map get null entries, and keys which
+	 * are not variables are ignored.
+	 *
+	 * @param map
+	 *            the name-keyed map
+	 * @param rv
+	 *            the array to store the result in, with length numVariables()
+	 * @return rv
+	 */
+	public <T> T[] toVariableArray(Map<String, T> map, T[] rv)
+	{
+		if (rv.length != variableList.size())
+			throw new AutomatonExportException("variable array has length " + rv.length
+					+ ", expected " + variableList.size());
+
+		for (int id = 0; id < rv.length; ++id)
+			rv[id] = map.get(variableList.get(id));
+
+		return rv;
+	}
+
+	/**
+	 * Resolve the variables in an expression, setting the index of each Variable node to its
+	 * variable id in this table (or -1 if it's not a variable, for example a constant)
+	 *
+	 * @param e
+	 *            the expression, which is modified
+	 * @return the number of Variable nodes which were resolved to a variable id
+	 */
+	public int resolve(Expression e)
+	{
+		int rv = 0;
+
+		if (e instanceof Variable)
+		{
+			Variable v = (Variable) e;
+			v.index = getVariableId(v.name);
+
+			if (v.index != -1)
+				rv = 1;
+		}
+		else if (e instanceof Operation)
+		{
+			for (Expression child : ((Operation) e).children)
+				rv += resolve(child);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * The variables or labels list of a Component, which exposes its modification count so that
+	 * the symbol table can detect changes. Code which creates a new variables or labels list
+	 * should use this class, otherwise the table is rebuilt on each call to getSymbolTable().
+	 */
+	@SuppressWarnings("serial")
+	public static class SymbolList extends ArrayList<String>
+	{
+		public SymbolList()
+		{
+		}
+
+		public SymbolList(Collection<String> names)
+		{
+			super(names);
+		}
+
+		int getModCount()
+		{
+			return modCount;
+		}
+	}
+
+	/**
+	 * The constants map of a Component, which counts insertions of new names so that the symbol
+	 * table can detect changes (LinkedHashMap calls removeEldestEntry() after each one). Removing a
+	 * name without inserting one changes the size, so the count and the size together change
+	 * whenever the names do, but not when a constant's value changes. Code which creates a new
+	 * constants map should use this class, otherwise the table is rebuilt on each call to
+	 * getSymbolTable().
+	 */
+	@SuppressWarnings("serial")
+	public static class ConstantMap extends LinkedHashMap<String, Interval>
+	{
+		private transient int numInserted = 0;
+
+		public ConstantMap()
+		{
+		}
+
+		public ConstantMap(Map<String, Interval> constants)
+		{
+			putAll(constants);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Interval> eldest)
+		{
+			++numInserted;
+
+			return false;
+		}
+
+		int getNumInserted()
+		{
+			return numInserted;
+		}
+	}
+}
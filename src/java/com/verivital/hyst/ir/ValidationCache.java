@@ -0,0 +1,74 @@
+package com.verivital.hyst.ir;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Support for incremental validation. Components, modes and transitions remember the references
+ * they were last successfully validated with (names, expressions, maps, and the component's
+ * SymbolTable), and skip their checks in validate() if none of them changed. Since the IR fields
+ * are public, this compares references rather than relying on setters: replacing an expression,
+ * putting or removing a map entry, or modifying the variables / labels lists all cause the element
+ * to be rechecked. Modifying an expression tree in place (for example, Operation.children.set) is
+ * not detected, so code which does this must call invalidateValidation() on the modified element
+ * (or its Component or Configuration) afterwards; ExpressionModifier.modifyBaseComponent() does
+ * this. Since passes are not guaranteed to do so, full validation
+ * (Configuration.setFullValidation()) is the default, and incremental validation is only used with
+ * the -incremental_validation flag.
+ *
+ * The counters show how much work incremental validation saved. They are shared by all
+ * conversions, so they include concurrently validated configurations.
+ */
+public class ValidationCache
+{
+	public static final AtomicLong componentsChecked = new AtomicLong(),
+			componentsSkipped = new AtomicLong();
+	public static final AtomicLong modesChecked = new AtomicLong(), modesSkipped = new AtomicLong();
+	public static final AtomicLong transitionsChecked = new AtomicLong(),
+			transitionsSkipped = new AtomicLong();
+
+	/**
+	 * Can the checks of an element be skipped?
+	 *
+	 * @param validated
+	 *            the element's state at its last successful validation (may be null)
+	 * @param current
+	 *            the element's current state
+	 * @return true iff incremental validation is enabled and the states have identical entries
+	 */
+	public static boolean isUnchanged(Object[] validated, Object[] current)
+	{
+		if (Configuration.isFullValidation() || validated == null
+				|| validated.length != current.length)
+			return false;
+
+		for (int i = 0; i < current.length; ++i)
+		{
+			if (validated[i] != current[i])
+				return false;
+		}
+
+		return true;
+	}
+
+	public static void resetCounters()
+	{
+		componentsChecked.set(0);
+		componentsSkipped.set(0);
+		modesChecked.set(0);
+		modesSkipped.set(0);
+		transitionsChecked.set(0);
+		transitionsSkipped.set(0);
+	}
+
+	/**
+	 * Get a one-line description of the counters, for logging
+	 */
+	public static String getCounterString()
+	{
+		return "validation skipped " + componentsSkipped.get() + " of "
+				+ (componentsChecked.get() + componentsSkipped.get()) + " components, "
+				+ modesSkipped.get() + " of " + (modesChecked.get() + modesSkipped.get())
+				+ " modes, and " + transitionsSkipped.get() + " of "
+				+ (transitionsChecked.get() + transitionsSkipped.get()) + " transitions";
+	}
+}
@@ -1,5 +1,6 @@
 package com.verivital.hyst.ir.base;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.Map.Entry;
@@ -11,6 +12,8 @@ import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.ir.AutomatonValidationException;
 import com.verivital.hyst.ir.Component;
 import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.ir.SymbolTable;
+import com.verivital.hyst.ir.ValidationCache;
 import com.verivital.hyst.util.AutomatonUtil;
 
 /**
@@ -27,14 +30,19 @@ import com.verivital.hyst.util.AutomatonUtil;
  * @author Stanley Bak (stanleybak@gmail.com)
  *
  */
-public class AutomatonMode
+public class AutomatonMode implements Serializable
 {
+	private static final long serialVersionUID = 1L;
+
 	public String name;
 	public final BaseComponent automaton;
 	public Expression invariant;
 	public boolean urgent = false;
 	public LinkedHashMap<String, ExpressionInterval> flowDynamics;
 
+	// state at the last successful validation (see ValidationCache)
+	private transient Object[] validatedState = null;
+
 	/**
 	 * The correct way to create a new automaton mode is using HybridAutomaton.createMode(name),
 	 * which will manage the internal state of the automaton
@@ -65,17 +73,26 @@ public class AutomatonMode
 
 	public void validate()
 	{
-		if (!Configuration.DO_VALIDATION)
+		if (!Configuration.isValidationEnabled())
 			return;
 
 		if (name == null)
 			throw new AutomatonValidationException("name was null");
 
-		Component.validateName(name, automaton.getPrintableInstanceName());
-
 		if (automaton == null)
 			throw new AutomatonValidationException("automaton was null");
 
+		Object[] state = getValidationState();
+
+		if (ValidationCache.isUnchanged(validatedState, state))
+		{
+			ValidationCache.modesSkipped.incrementAndGet();
+			return;
+		}
+
+		ValidationCache.modesChecked.incrementAndGet();
+		Component.validateName(name, automaton.getPrintableInstanceName());
+
 		if (invariant == null)
 			throw new AutomatonValidationException("invariant was null in mode " + name);
 
@@ -93,9 +110,11 @@ public class AutomatonMode
 
 		if (flowDynamics != null)
 		{
+			SymbolTable symbols = automaton.getSymbolTable();
+
 			for (String s : flowDynamics.keySet())
 			{
-				if (!automaton.variables.contains(s))
+				if (symbols.getVariableId(s) == -1)
 				{
 					throw new AutomatonValidationException(
 							"dynamics were defined for variable '" + s + "' in mode '" + name
@@ -105,9 +124,6 @@ public class AutomatonMode
 			}
 		}
 
-		if (invariant == null)
-			throw new AutomatonValidationException("mode " + name + " invariant is null ");
-
 		if (!urgent)
 		{
 			for (Entry<String, ExpressionInterval> entry : flowDynamics.entrySet())
@@ -117,8 +133,51 @@ public class AutomatonMode
 				if (ei == null)
 					throw new AutomatonValidationException(
 							"Flow for " + entry.getKey() + " was null in mode " + name);
+
+				automaton.checkFlowExpression(this, entry.getKey(), ei.getExpression());
 			}
 		}
+
+		validatedState = state;
+	}
+
+	/**
+	 * Forget the last successful validation, so the next validate() rechecks this mode. Call
+	 * this after modifying one of its expressions in place (see ValidationCache).
+	 */
+	public void invalidateValidation()
+	{
+		validatedState = null;
+	}
+
+	/**
+	 * Get the references which validate() depends on
+	 */
+	private Object[] getValidationState()
+	{
+		int numFlows = flowDynamics == null ? 0 : flowDynamics.size();
+		Object[] rv = new Object[5 + 3 * numFlows];
+		int i = 0;
+
+		rv[i++] = name;
+		rv[i++] = invariant;
+		rv[i++] = Boolean.valueOf(urgent);
+		rv[i++] = automaton.getSymbolTable();
+		rv[i++] = flowDynamics;
+
+		if (flowDynamics != null)
+		{
+			for (Entry<String, ExpressionInterval> e : flowDynamics.entrySet())
+			{
+				ExpressionInterval ei = e.getValue();
+
+				rv[i++] = e.getKey();
+				rv[i++] = ei;
+				rv[i++] = ei == null ? null : ei.getExpression();
+			}
+		}
+
+		return rv;
 	}
 
 	@Override
@@ -129,6 +188,24 @@ public class AutomatonMode
 				+ AutomatonUtil.getMapExpressionIntervalString(flowDynamics) + "]";
 	}
 
+	/**
+	 * Get the flow dynamics as an array indexed by variable id (see Component.getSymbolTable()).
+	 * Variables without dynamics (inputs) have null entries. The array is created on each call, so
+	 * it doesn't reflect later changes to flowDynamics.
+	 * 
+	 * @return the flows by variable id, or null for urgent modes
+	 */
+	public ExpressionInterval[] getFlowArray()
+	{
+		if (flowDynamics == null)
+			return null;
+
+		SymbolTable symbols = automaton.getSymbolTable();
+
+		return symbols.toVariableArray(flowDynamics,
+				new ExpressionInterval[symbols.numVariables()]);
+	}
+
 	/**
 	 * Duplicate (deep copy) the mode, and add link the new one with this one's parent automaton.
 	 * This does not copy any transitions. The automaton link is shallow-copied
@@ -169,25 +246,23 @@ public class AutomatonMode
 		AutomatonMode rv = copy(automaton, newName);
 
 		// also copy the transitions
-		ArrayList<AutomatonTransition> fromCopy = new ArrayList<AutomatonTransition>();
-		ArrayList<AutomatonTransition> toCopy = new ArrayList<AutomatonTransition>();
-
-		for (AutomatonTransition at : automaton.transitions)
+		for (AutomatonTransition at : automaton.getIncomingTransitions(this))
 		{
-			if (at.from == this && at.to == this)
+			if (at.from == this)
 				throw new AutomatonExportException(
 						"Can't clone automaton mode with self-loop since meaning is unclear.");
-			else if (at.from == this)
-				fromCopy.add(at);
-			else if (at.to == this)
-				toCopy.add(at);
 		}
 
+		ArrayList<AutomatonTransition> fromCopy = new ArrayList<AutomatonTransition>(
+				automaton.getOutgoingTransitions(this));
+		ArrayList<AutomatonTransition> toCopy = new ArrayList<AutomatonTransition>(
+				automaton.getIncomingTransitions(this));
+
 		for (AutomatonTransition at : fromCopy)
-			at.copy(automaton).from = rv;
+			at.copy(automaton, rv, at.to);
 
 		for (AutomatonTransition at : toCopy)
-			at.copy(automaton).to = rv;
+			at.copy(automaton, at.from, rv);
 
 		return rv;
 	}
@@ -1,5 +1,6 @@
 package com.verivital.hyst.ir.base;
 
+import java.io.Serializable;
 import java.util.LinkedHashMap;
 import java.util.Map.Entry;
 
@@ -9,6 +10,8 @@ import com.verivital.hyst.grammar.formula.Expression;
 import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.ir.AutomatonValidationException;
 import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.ir.SymbolTable;
+import com.verivital.hyst.ir.ValidationCache;
 import com.verivital.hyst.util.AutomatonUtil;
 
 /**
@@ -20,8 +23,10 @@ import com.verivital.hyst.util.AutomatonUtil;
  * @author Stanley Bak (stanleybak@gmail.com)
  *
  */
-public class AutomatonTransition
+public class AutomatonTransition implements Serializable
 {
+	private static final long serialVersionUID = 1L;
+
 	public static final Expression DEFAULT_GUARD = Constant.TRUE;
 
 	public BaseComponent parent;
@@ -34,6 +39,9 @@ public class AutomatonTransition
 															// then x maps to x
 															// + 1
 
+	// state at the last successful validation (see ValidationCache)
+	private transient Object[] validatedState = null;
+
 	/**
 	 * The way to create a new transition in a hybrid automaton is to do
 	 * HybridAutomaton.createTransition(from, to), which will manage the internal state of the
@@ -68,16 +76,8 @@ public class AutomatonTransition
 	{
 		// parent may be different, so search for from.name and to.name in
 		// parent
-		AutomatonMode parentFrom = null, parentTo = null;
-
-		for (AutomatonMode am : parent.modes.values())
-		{
-			if (am.name.equals(from.name))
-				parentFrom = am;
-
-			if (am.name.equals(to.name))
-				parentTo = am;
-		}
+		AutomatonMode parentFrom = findMode(parent, from.name);
+		AutomatonMode parentTo = findMode(parent, to.name);
 
 		if (parentFrom == null)
 			throw new AutomatonExportException("Source mode ('" + from.name
@@ -87,7 +87,46 @@ public class AutomatonTransition
 			throw new AutomatonExportException("Destination mode ('" + to.name
 					+ "') not found in parent automaton: " + parent.getPrintableInstanceName());
 
-		AutomatonTransition rv = parent.createTransition(parentFrom, parentTo);
+		return copy(parent, parentFrom, parentTo);
+	}
+
+	/**
+	 * Find a mode by name. Modes are normally keyed by their name, but if a mode was renamed
+	 * without updating the key, this falls back to searching all the modes.
+	 */
+	private static AutomatonMode findMode(BaseComponent parent, String name)
+	{
+		AutomatonMode rv = parent.modes.get(name);
+
+		if (rv == null || !rv.name.equals(name))
+		{
+			rv = null;
+
+			for (AutomatonMode am : parent.modes.values())
+			{
+				if (am.name.equals(name))
+					rv = am;
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Deep copy with a different source and destination. This also updates the transitions in the
+	 * passed-in parent HybridAutomaton
+	 * 
+	 * @param parent
+	 *            the automaton to add the copy to
+	 * @param from
+	 *            the source mode of the copy (in parent)
+	 * @param to
+	 *            the destination mode of the copy (in parent)
+	 * @return the copied transition
+	 */
+	public AutomatonTransition copy(BaseComponent parent, AutomatonMode from, AutomatonMode to)
+	{
+		AutomatonTransition rv = parent.createTransition(from, to);
 
 		rv.guard = guard.copy();
 
@@ -108,7 +147,7 @@ public class AutomatonTransition
 	 */
 	public void validate()
 	{
-		if (!Configuration.DO_VALIDATION)
+		if (!Configuration.isValidationEnabled())
 			return;
 
 		if (parent == null)
@@ -128,6 +167,17 @@ public class AutomatonTransition
 			throw new AutomatonValidationException("mode '" + to.name + "' in" + " transition '"
 					+ from.name + "'->'" + to.name + "' does not exist in parent");
 
+		// the mode lookups above depend on the parent's modes map, so they are always checked
+		Object[] state = getValidationState();
+
+		if (ValidationCache.isUnchanged(validatedState, state))
+		{
+			ValidationCache.transitionsSkipped.incrementAndGet();
+			return;
+		}
+
+		ValidationCache.transitionsChecked.incrementAndGet();
+
 		if (guard == null)
 			throw new AutomatonValidationException("guard was null");
 
@@ -147,6 +197,57 @@ public class AutomatonTransition
 				throw new AutomatonValidationException("transition reset is null for variable "
 						+ e.getKey() + ": " + from.name + " -> " + to.name);
 		}
+
+		validatedState = state;
+	}
+
+	/**
+	 * Forget the last successful validation, so the next validate() rechecks this transition. Call
+	 * this after modifying one of its expressions in place (see ValidationCache).
+	 */
+	public void invalidateValidation()
+	{
+		validatedState = null;
+	}
+
+	/**
+	 * Get the references which validate() depends on
+	 */
+	private Object[] getValidationState()
+	{
+		int numResets = reset == null ? 0 : reset.size();
+		Object[] rv = new Object[4 + 2 * numResets];
+		int i = 0;
+
+		rv[i++] = parent;
+		rv[i++] = guard;
+		rv[i++] = label;
+		rv[i++] = reset;
+
+		if (reset != null)
+		{
+			for (Entry<String, ExpressionInterval> e : reset.entrySet())
+			{
+				rv[i++] = e.getKey();
+				rv[i++] = e.getValue();
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Get the reset as an array indexed by variable id (see Component.getSymbolTable()). Variables
+	 * which are not reset have null entries. The array is created on each call, so it doesn't
+	 * reflect later changes to reset.
+	 * 
+	 * @return the resets by variable id
+	 */
+	public ExpressionInterval[] getResetArray()
+	{
+		SymbolTable symbols = parent.getSymbolTable();
+
+		return symbols.toVariableArray(reset, new ExpressionInterval[symbols.numVariables()]);
 	}
 
 	public String toString()
@@ -2,7 +2,12 @@ package com.verivital.hyst.ir.base;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
 
@@ -13,6 +18,7 @@ import com.verivital.hyst.grammar.formula.Variable;
 import com.verivital.hyst.ir.AutomatonValidationException;
 import com.verivital.hyst.ir.Component;
 import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.ir.SymbolTable;
 import com.verivital.hyst.main.Hyst;
 import com.verivital.hyst.util.AutomatonUtil;
 
@@ -34,8 +40,13 @@ import com.verivital.hyst.util.AutomatonUtil;
  */
 public class BaseComponent extends Component
 {
+	private static final long serialVersionUID = 1L;
+
 	public LinkedHashMap<String, AutomatonMode> modes = new LinkedHashMap<String, AutomatonMode>();
-	public ArrayList<AutomatonTransition> transitions = new ArrayList<AutomatonTransition>();
+	public ArrayList<AutomatonTransition> transitions = new TransitionIndex.TransitionList();
+
+	// per-mode adjacency index of transitions, built on demand
+	private transient TransitionIndex transitionIndex = null;
 
 	/**
 	 * Create a new mode in this hybrid automaton. By default the invariant is null (must be
@@ -127,11 +138,176 @@ public class BaseComponent extends Component
 			throw new AutomatonValidationException(
 					"created transition between different Hybrid Automata");
 
+		boolean indexCurrent = transitionIndex != null && transitionIndex.isCurrent(transitions);
 		transitions.add(rv);
 
+		if (indexCurrent)
+		{
+			transitionIndex.add(rv);
+			transitionIndex.sync();
+		}
+
 		return rv;
 	}
 
+	/**
+	 * Get the adjacency index, rebuilding it if the transitions list was changed directly
+	 */
+	private TransitionIndex getTransitionIndex()
+	{
+		if (transitionIndex == null || !transitionIndex.isCurrent(transitions))
+		{
+			if (!(transitions instanceof TransitionIndex.TransitionList))
+			{
+				// the list was replaced; switch to one which tracks modifications
+				TransitionIndex.TransitionList list = new TransitionIndex.TransitionList();
+				list.addAll(transitions);
+				transitions = list;
+			}
+
+			transitionIndex = new TransitionIndex(transitions);
+		}
+
+		return transitionIndex;
+	}
+
+	/**
+	 * Discard the adjacency index. This must be called if the from or to mode of a transition in
+	 * this automaton is assigned directly (use redirectTransition instead, when possible), or if a
+	 * label is changed after getTransitionsWithLabel was called.
+	 */
+	public void invalidateTransitionIndex()
+	{
+		transitionIndex = null;
+	}
+
+	@Override
+	public void invalidateValidation()
+	{
+		super.invalidateValidation();
+
+		for (AutomatonMode m : modes.values())
+			m.invalidateValidation();
+
+		for (AutomatonTransition t : transitions)
+			t.invalidateValidation();
+	}
+
+	/**
+	 * Get the transitions leaving a mode, in the same order as the transitions list. This takes
+	 * constant time, unless the transitions list was changed directly since the last query.
+	 * 
+	 * @param am
+	 *            the source mode
+	 * @return an unmodifiable list of the outgoing transitions
+	 */
+	public List<AutomatonTransition> getOutgoingTransitions(AutomatonMode am)
+	{
+		return getTransitionIndex().getOutgoing(am);
+	}
+
+	/**
+	 * Get the transitions entering a mode, in the same order as the transitions list
+	 * 
+	 * @param am
+	 *            the destination mode
+	 * @return an unmodifiable list of the incoming transitions
+	 */
+	public List<AutomatonTransition> getIncomingTransitions(AutomatonMode am)
+	{
+		return getTransitionIndex().getIncoming(am);
+	}
+
+	/**
+	 * Get the transitions with a given label, in the same order as the transitions list
+	 * 
+	 * @param label
+	 *            the label
+	 * @return an unmodifiable list of the transitions with the label
+	 */
+	public List<AutomatonTransition> getTransitionsWithLabel(String label)
+	{
+		return getTransitionIndex().getWithLabel(label);
+	}
+
+	/**
+	 * Change the source and destination of a transition in this automaton, keeping the adjacency
+	 * index up to date
+	 * 
+	 * @param at
+	 *            the transition
+	 * @param from
+	 *            the new source mode
+	 * @param to
+	 *            the new destination mode
+	 */
+	public void redirectTransition(AutomatonTransition at, AutomatonMode from, AutomatonMode to)
+	{
+		if (this != from.automaton || this != to.automaton)
+			throw new AutomatonValidationException(
+					"redirected transition between different Hybrid Automata");
+
+		at.from = from;
+		at.to = to;
+
+		// the index lists are ordered by position in the transitions list, so rebuild it
+		transitionIndex = null;
+	}
+
+	/**
+	 * Remove a set of transitions from this automaton. This takes linear time in the number of
+	 * transitions, regardless of how many are removed.
+	 * 
+	 * @param toRemove
+	 *            the transitions to remove
+	 */
+	public void removeTransitions(Collection<AutomatonTransition> toRemove)
+	{
+		if (toRemove.size() > 0)
+		{
+			Set<AutomatonTransition> remove = Collections
+					.newSetFromMap(new IdentityHashMap<AutomatonTransition, Boolean>());
+			remove.addAll(toRemove);
+
+			for (Iterator<AutomatonTransition> i = transitions.iterator(); i.hasNext();)
+			{
+				if (remove.contains(i.next()))
+					i.remove();
+			}
+		}
+	}
+
+	/**
+	 * Remove a set of modes from this automaton, along with every transition entering or leaving
+	 * them. This takes linear time in the number of modes and transitions.
+	 * 
+	 * @param toRemove
+	 *            the modes to remove
+	 */
+	public void removeModes(Collection<AutomatonMode> toRemove)
+	{
+		if (toRemove.size() > 0)
+		{
+			Set<AutomatonMode> remove = Collections
+					.newSetFromMap(new IdentityHashMap<AutomatonMode, Boolean>());
+			remove.addAll(toRemove);
+
+			for (Iterator<AutomatonMode> i = modes.values().iterator(); i.hasNext();)
+			{
+				if (remove.contains(i.next()))
+					i.remove();
+			}
+
+			for (Iterator<AutomatonTransition> i = transitions.iterator(); i.hasNext();)
+			{
+				AutomatonTransition at = i.next();
+
+				if (remove.contains(at.from) || remove.contains(at.to))
+					i.remove();
+			}
+		}
+	}
+
 	/**
 	 * Check if the guarantees expected of this class are met. This is run prior to any printing
 	 * procedures.
@@ -141,7 +317,7 @@ public class BaseComponent extends Component
 	 */
 	public void validate()
 	{
-		if (!Configuration.DO_VALIDATION)
+		if (!Configuration.isValidationEnabled())
 			return;
 
 		super.validate();
@@ -170,20 +346,14 @@ public class BaseComponent extends Component
 		for (AutomatonTransition t : transitions)
 			t.validate();
 
-		for (String label : labels)
-		{
-			boolean found = false;
+		HashSet<String> usedLabels = new HashSet<String>();
 
-			for (AutomatonTransition t : transitions)
-			{
-				if (label.equals(t.label))
-				{
-					found = true;
-					break;
-				}
-			}
+		for (AutomatonTransition t : transitions)
+			usedLabels.add(t.label);
 
-			if (!found)
+		for (String label : labels)
+		{
+			if (!usedLabels.contains(label))
 			{
 				String msg = "Exported label '" + label + "' was not used in BaseComponent '"
 						+ getPrintableInstanceName() + "'.";
@@ -223,24 +393,32 @@ public class BaseComponent extends Component
 							+ firstModeFlows + ") differ from mode '" + name + "' (" + flows + ")");
 				}
 			}
+		}
+	}
 
-			for (Entry<String, ExpressionInterval> entry : am.flowDynamics.entrySet())
-			{
-				Expression exp = entry.getValue().getExpression();
-
-				try
-				{
-					checkExpression(exp);
-				}
-				catch (AutomatonValidationException ave)
-				{
-					throw new AutomatonValidationException("BaseComponent "
-							+ getPrintableInstanceName() + ": Flow in mode '" + am.name
-							+ "' for variable '" + entry.getKey() + "'='" + exp.toDefaultString()
-							+ "' uses a variable/constant not in the component. "
-							+ ave.getMessage());
-				}
-			}
+	/**
+	 * Check that a flow only uses variables and constants which are defined in this component
+	 * (called from AutomatonMode.validate())
+	 * 
+	 * @param am
+	 *            the mode
+	 * @param variable
+	 *            the variable whose derivative is defined
+	 * @param exp
+	 *            the flow expression
+	 */
+	void checkFlowExpression(AutomatonMode am, String variable, Expression exp)
+	{
+		try
+		{
+			checkExpression(exp, getSymbolTable());
+		}
+		catch (AutomatonValidationException ave)
+		{
+			throw new AutomatonValidationException("BaseComponent " + getPrintableInstanceName()
+					+ ": Flow in mode '" + am.name + "' for variable '" + variable + "'='"
+					+ exp.toDefaultString() + "' uses a variable/constant not in the component. "
+					+ ave.getMessage());
 		}
 	}
 
@@ -249,14 +427,16 @@ public class BaseComponent extends Component
 	 * 
 	 * @param e
 	 *            the expression to check
+	 * @param symbols
+	 *            the symbol table of this component
 	 */
-	private void checkExpression(Expression e)
+	private void checkExpression(Expression e, SymbolTable symbols)
 	{
 		if (e instanceof Variable)
 		{
 			Variable v = (Variable) e;
 
-			if (!variables.contains(v.name) && !constants.containsKey(v.name))
+			if (symbols.getVariableId(v.name) == -1 && !constants.containsKey(v.name))
 				throw new AutomatonValidationException(
 						"Variable/constant not in automaton: '" + v.name + "'");
 		}
@@ -265,7 +445,7 @@ public class BaseComponent extends Component
 			Operation o = e.asOperation();
 
 			for (Expression child : o.children)
-				checkExpression(child);
+				checkExpression(child, symbols);
 		}
 	}
 
@@ -355,13 +535,17 @@ public class BaseComponent extends Component
 	public AutomatonTransition findTransition(String from, String to)
 	{
 		AutomatonTransition rv = null;
+		AutomatonMode fromMode = modes.get(from);
 
-		for (AutomatonTransition at : transitions)
+		if (fromMode != null)
 		{
-			if (at.from.name.equals(from) && at.to.name.equals(to))
+			for (AutomatonTransition at : getOutgoingTransitions(fromMode))
 			{
-				rv = at;
-				break;
+				if (at.to.name.equals(to))
+				{
+					rv = at;
+					break;
+				}
 			}
 		}
 
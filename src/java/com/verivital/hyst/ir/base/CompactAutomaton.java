@@ -0,0 +1,1007 @@
+package com.verivital.hyst.ir.base;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import com.verivital.hyst.geometry.Interval;
+import com.verivital.hyst.grammar.formula.Constant;
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.Operation;
+import com.verivital.hyst.grammar.formula.Operator;
+import com.verivital.hyst.grammar.formula.Variable;
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.util.AutomatonUtil;
+
+/**
+ * A compact, read-only copy of a flat automaton (BaseComponent), for models with many modes (for
+ * example, after hybridization). Instead of AutomatonMode and AutomatonTransition objects, modes and
+ * transitions are stored as parallel arrays indexed by mode / transition number:
+ *
+ * - mode names and labels are stored in one string pool (a single char array)
+ *
+ * - flows and resets are rows in a shared store, indexed by variable id (the index in the
+ * variables list). Affine rows (sum of coefficient * variable, plus a constant, and an optional
+ * interval) are stored as sparse coefficients, and identical rows are stored once. Other
+ * expressions are kept as (residual) expressions.
+ *
+ * - the box part of each invariant (conjuncts like x <= 5, x >= 1 or x == 2) is stored as lower
+ * and upper bounds by variable id, and the rest of the invariant as a residual expression
+ *
+ * Use toBaseComponent() to convert back to the object model. The converted automaton is
+ * equivalent, but flows are written in a normalized affine form and invariants have their box
+ * constraints first.
+ */
+public class CompactAutomaton
+{
+	private final String[] variables;
+	private final HashMap<String, Integer> variableIds = new HashMap<String, Integer>();
+	private final LinkedHashMap<String, Interval> constants;
+	private final String[] labels;
+
+	private final StringPool names = new StringPool(); // mode names and transition labels
+	private final RowStore rows = new RowStore();
+
+	// modes
+	private final int numModes;
+	private final int[] modeNames; // pool ids
+	private final boolean[] urgent;
+	private final int[] flowRows; // [mode * numVariables + variable], -1 if no flow
+	private final double[] invariantLower, invariantUpper; // same indexing, +/- infinity if none
+	private final Expression[] invariantResidual; // null if the invariant is a box
+
+	// transitions
+	private final int numTransitions;
+	private final int[] transitionFrom, transitionTo; // mode numbers
+	private final int[] transitionLabels; // pool ids, -1 if no label
+	private final Expression[] guards;
+	private final int[] resetStart; // resets of transition t are [resetStart[t], resetStart[t+1])
+	private final int[] resetVariables, resetRows;
+
+	/**
+	 * Create a compact copy of a base component. The component is not modified, and the copy doesn't
+	 * share any expressions with it.
+	 *
+	 * @param ha
+	 *            the automaton to copy
+	 */
+	public CompactAutomaton(BaseComponent ha)
+	{
+		int numVars = ha.variables.size();
+		variables = ha.variables.toArray(new String[numVars]);
+
+		for (int i = 0; i < numVars; ++i)
+			variableIds.put(variables[i], i);
+
+		constants = new LinkedHashMap<String, Interval>(ha.constants);
+		labels = ha.labels.toArray(new String[ha.labels.size()]);
+
+		// modes
+		numModes = ha.modes.size();
+		modeNames = new int[numModes];
+		urgent = new boolean[numModes];
+		flowRows = new int[numModes * numVars];
+		invariantLower = new double[numModes * numVars];
+		invariantUpper = new double[numModes * numVars];
+		invariantResidual = new Expression[numModes];
+
+		Arrays.fill(flowRows, -1);
+		Arrays.fill(invariantLower, Double.NEGATIVE_INFINITY);
+		Arrays.fill(invariantUpper, Double.POSITIVE_INFINITY);
+
+		int m = 0;
+
+		for (AutomatonMode am : ha.modes.values())
+		{
+			modeNames[m] = names.add(am.name);
+			urgent[m] = am.urgent;
+
+			if (am.flowDynamics != null)
+			{
+				for (Entry<String, ExpressionInterval> e : am.flowDynamics.entrySet())
+				{
+					int var = getExistingVariableId(e.getKey());
+
+					flowRows[m * numVars + var] = rows.add(e.getValue());
+				}
+			}
+
+			ArrayList<Expression> residual = new ArrayList<Expression>();
+			addInvariant(am.invariant, m, residual);
+			invariantResidual[m] = conjunction(residual);
+
+			++m;
+		}
+
+		if (names.size() != numModes)
+			throw new AutomatonExportException("mode names in compact automaton were not unique");
+
+		// transitions
+		numTransitions = ha.transitions.size();
+		transitionFrom = new int[numTransitions];
+		transitionTo = new int[numTransitions];
+		transitionLabels = new int[numTransitions];
+		guards = new Expression[numTransitions];
+		resetStart = new int[numTransitions + 1];
+
+		int numResets = 0;
+
+		for (AutomatonTransition at : ha.transitions)
+			numResets += at.reset.size();
+
+		resetVariables = new int[numResets];
+		resetRows = new int[numResets];
+
+		int t = 0, r = 0;
+
+		for (AutomatonTransition at : ha.transitions)
+		{
+			transitionFrom[t] = getModeIndex(at.from.name);
+			transitionTo[t] = getModeIndex(at.to.name);
+			transitionLabels[t] = at.label == null ? -1 : names.add(at.label);
+			guards[t] = at.guard.copy();
+			resetStart[t] = r;
+
+			for (Entry<String, ExpressionInterval> e : at.reset.entrySet())
+			{
+				resetVariables[r] = getExistingVariableId(e.getKey());
+				resetRows[r] = rows.add(e.getValue());
+				++r;
+			}
+
+			++t;
+		}
+
+		resetStart[numTransitions] = r;
+		rows.trim();
+	}
+
+	private int getExistingVariableId(String name)
+	{
+		Integer rv = variableIds.get(name);
+
+		if (rv == null)
+			throw new AutomatonExportException(
+					"variable not found while creating compact automaton: " + name);
+
+		return rv;
+	}
+
+	/**
+	 * Split an invariant into box bounds (stored for mode m) and residual conjuncts
+	 */
+	private void addInvariant(Expression e, int m, ArrayList<Expression> residual)
+	{
+		Operation o = e instanceof Operation ? (Operation) e : null;
+
+		if (e == Constant.TRUE)
+			return;
+		else if (o != null && o.op == Operator.AND)
+		{
+			addInvariant(o.getLeft(), m, residual);
+			addInvariant(o.getRight(), m, residual);
+		}
+		else if (!addBound(o, m))
+			residual.add(e.copy());
+	}
+
+	/**
+	 * Try to add a comparison between a variable and a constant as a box bound
+	 *
+	 * @return true if it was a box constraint
+	 */
+	private boolean addBound(Operation o, int m)
+	{
+		if (o == null
+				|| (o.op != Operator.LESSEQUAL && o.op != Operator.GREATEREQUAL
+						&& o.op != Operator.EQUAL)
+				|| o.children.size() != 2)
+			return false;
+
+		Expression left = o.getLeft();
+		Expression right = o.getRight();
+		Operator op = o.op;
+
+		// normalize to variable op constant
+		if (left instanceof Constant && right instanceof Variable)
+		{
+			Expression temp = left;
+			left = right;
+			right = temp;
+
+			if (op == Operator.LESSEQUAL)
+				op = Operator.GREATEREQUAL;
+			else if (op == Operator.GREATEREQUAL)
+				op = Operator.LESSEQUAL;
+		}
+
+		if (!(left instanceof Variable) || !(right instanceof Constant))
+			return false;
+
+		Integer var = variableIds.get(((Variable) left).name);
+
+		if (var == null)
+			return false;
+
+		double val = ((Constant) right).getVal();
+		int index = m * variables.length + var;
+
+		if (op != Operator.GREATEREQUAL)
+			invariantUpper[index] = Math.min(invariantUpper[index], val);
+
+		if (op != Operator.LESSEQUAL)
+			invariantLower[index] = Math.max(invariantLower[index], val);
+
+		return true;
+	}
+
+	private static Expression conjunction(ArrayList<Expression> parts)
+	{
+		Expression rv = null;
+
+		for (Expression e : parts)
+			rv = rv == null ? e : new Operation(Operator.AND, rv, e);
+
+		return rv;
+	}
+
+	/**
+	 * Convert back to the object model
+	 *
+	 * @return a new BaseComponent, which doesn't share anything with this object
+	 */
+	public BaseComponent toBaseComponent()
+	{
+		BaseComponent rv = new BaseComponent();
+
+		rv.variables.addAll(Arrays.asList(variables));
+		rv.labels.addAll(Arrays.asList(labels));
+		rv.constants.putAll(constants);
+
+		AutomatonMode[] modes = new AutomatonMode[numModes];
+
+		for (int m = 0; m < numModes; ++m)
+		{
+			AutomatonMode am = rv.createMode(getModeName(m));
+			modes[m] = am;
+
+			am.invariant = getInvariant(m);
+			am.urgent = urgent[m];
+
+			am.flowDynamics = getFlows(m);
+		}
+
+		for (int t = 0; t < numTransitions; ++t)
+		{
+			AutomatonTransition at = rv.createTransition(modes[transitionFrom[t]],
+					modes[transitionTo[t]]);
+
+			at.guard = guards[t].copy();
+			at.label = getTransitionLabel(t);
+
+			for (int r = resetStart[t]; r < resetStart[t + 1]; ++r)
+				at.reset.put(variables[resetVariables[r]], getRowExpressionInterval(resetRows[r]));
+		}
+
+		return rv;
+	}
+
+	public int numVariables()
+	{
+		return variables.length;
+	}
+
+	public String getVariableName(int id)
+	{
+		return variables[id];
+	}
+
+	/**
+	 * Get the id of a variable (its index in the variables list)
+	 *
+	 * @return the id, or -1 if it's not a variable
+	 */
+	public int getVariableId(String name)
+	{
+		Integer rv = variableIds.get(name);
+
+		return rv == null ? -1 : rv;
+	}
+
+	public int numModes()
+	{
+		return numModes;
+	}
+
+	public String getModeName(int m)
+	{
+		return names.get(modeNames[m]);
+	}
+
+	/**
+	 * Get the number of a mode, by name
+	 *
+	 * @return the mode number, or -1 if there's no such mode
+	 */
+	public int getModeIndex(String name)
+	{
+		int id = names.find(name);
+
+		// mode names are added first, so their pool ids are the mode numbers
+		return id < numModes ? id : -1;
+	}
+
+	public boolean isUrgent(int m)
+	{
+		return urgent[m];
+	}
+
+	/**
+	 * Get the flow of a variable in a mode
+	 *
+	 * @return the row id in the shared store, or -1 if the variable has no flow (or the mode is
+	 *         urgent)
+	 */
+	public int getFlowRow(int m, int var)
+	{
+		return flowRows[m * variables.length + var];
+	}
+
+	/**
+	 * Get the flows of a mode in the object model's format, as new expressions in variable order
+	 *
+	 * @return the flows, or null if the mode is urgent
+	 */
+	public LinkedHashMap<String, ExpressionInterval> getFlows(int m)
+	{
+		if (urgent[m])
+			return null;
+
+		LinkedHashMap<String, ExpressionInterval> rv = new LinkedHashMap<String, ExpressionInterval>();
+
+		for (int v = 0; v < variables.length; ++v)
+		{
+			int row = getFlowRow(m, v);
+
+			if (row != -1)
+				rv.put(variables[v], getRowExpressionInterval(row));
+		}
+
+		return rv;
+	}
+
+	public double getInvariantLower(int m, int var)
+	{
+		return invariantLower[m * variables.length + var];
+	}
+
+	public double getInvariantUpper(int m, int var)
+	{
+		return invariantUpper[m * variables.length + var];
+	}
+
+	/**
+	 * Get the part of a mode's invariant which is not a box constraint
+	 *
+	 * @return a copy of the residual invariant, or null if the invariant is a box
+	 */
+	public Expression getInvariantResidual(int m)
+	{
+		Expression rv = invariantResidual[m];
+
+		return rv == null ? null : rv.copy();
+	}
+
+	/**
+	 * Get the full invariant of a mode, as a new expression (box constraints first, in variable
+	 * order)
+	 */
+	public Expression getInvariant(int m)
+	{
+		ArrayList<Expression> parts = new ArrayList<Expression>();
+
+		for (int v = 0; v < variables.length; ++v)
+		{
+			double lower = getInvariantLower(m, v);
+			double upper = getInvariantUpper(m, v);
+
+			if (lower == upper)
+				parts.add(new Operation(Operator.EQUAL, new Variable(variables[v]),
+						new Constant(lower)));
+			else
+			{
+				if (lower != Double.NEGATIVE_INFINITY)
+					parts.add(new Operation(Operator.GREATEREQUAL, new Variable(variables[v]),
+							new Constant(lower)));
+
+				if (upper != Double.POSITIVE_INFINITY)
+					parts.add(new Operation(Operator.LESSEQUAL, new Variable(variables[v]),
+							new Constant(upper)));
+			}
+		}
+
+		if (invariantResidual[m] != null)
+			parts.add(invariantResidual[m].copy());
+
+		Expression rv = conjunction(parts);
+
+		return rv == null ? Constant.TRUE : rv;
+	}
+
+	public int numTransitions()
+	{
+		return numTransitions;
+	}
+
+	public int getTransitionFrom(int t)
+	{
+		return transitionFrom[t];
+	}
+
+	public int getTransitionTo(int t)
+	{
+		return transitionTo[t];
+	}
+
+	/**
+	 * @return the label, or null if the transition has no label
+	 */
+	public String getTransitionLabel(int t)
+	{
+		int id = transitionLabels[t];
+
+		return id == -1 ? null : names.get(id);
+	}
+
+	/**
+	 * Get a copy of a transition's guard
+	 */
+	public Expression getGuard(int t)
+	{
+		return guards[t].copy();
+	}
+
+	public int numResets(int t)
+	{
+		return resetStart[t + 1] - resetStart[t];
+	}
+
+	/**
+	 * Get the variable id assigned by the k-th reset of a transition
+	 */
+	public int getResetVariable(int t, int k)
+	{
+		return resetVariables[resetStart[t] + k];
+	}
+
+	/**
+	 * Get the row id of the k-th reset of a transition
+	 */
+	public int getResetRow(int t, int k)
+	{
+		return resetRows[resetStart[t] + k];
+	}
+
+	/**
+	 * Get the number of distinct rows (flows and resets) in the shared store
+	 */
+	public int numRows()
+	{
+		return rows.size;
+	}
+
+	/**
+	 * Is a row affine (sparse coefficients plus a constant)? Otherwise, only getRowExpression()
+	 * and getRowInterval() can be used.
+	 */
+	public boolean isAffineRow(int row)
+	{
+		return rows.residual[row] == null;
+	}
+
+	/**
+	 * Get the number of nonzero terms in an affine row
+	 */
+	public int getRowLength(int row)
+	{
+		return rows.start[row + 1] - rows.start[row];
+	}
+
+	/**
+	 * Get the variable id of the k-th term in an affine row
+	 */
+	public int getRowVariable(int row, int k)
+	{
+		return rows.vars[rows.start[row] + k];
+	}
+
+	/**
+	 * Get the coefficient of the k-th term in an affine row
+	 */
+	public double getRowCoefficient(int row, int k)
+	{
+		return rows.coefficients[rows.start[row] + k];
+	}
+
+	public double getRowConstant(int row)
+	{
+		return rows.constants[row];
+	}
+
+	/**
+	 * Store the coefficients of an affine row by variable id (variables not in the row get 0)
+	 *
+	 * @param row
+	 *            the row id
+	 * @param rv
+	 *            the array to store the result in, with length numVariables()
+	 */
+	public void getRowCoefficients(int row, double[] rv)
+	{
+		Arrays.fill(rv, 0.0);
+
+		for (int i = rows.start[row]; i < rows.start[row + 1]; ++i)
+			rv[rows.vars[i]] = rows.coefficients[i];
+	}
+
+	/**
+	 * Get the interval part of a row
+	 *
+	 * @return a new interval, or null if the row has no interval
+	 */
+	public Interval getRowInterval(int row)
+	{
+		double min = rows.intervalMin[row];
+
+		return Double.isNaN(min) ? null : new Interval(min, rows.intervalMax[row]);
+	}
+
+	/**
+	 * Get the expression part of a row, as a new expression (c1 * x1 + ... + cn * xn + constant
+	 * for affine rows)
+	 */
+	public Expression getRowExpression(int row)
+	{
+		if (rows.residual[row] != null)
+			return rows.residual[row].copy();
+
+		Expression rv = null;
+
+		for (int i = rows.start[row]; i < rows.start[row + 1]; ++i)
+		{
+			Expression term = new Operation(Operator.MULTIPLY, new Constant(rows.coefficients[i]),
+					new Variable(variables[rows.vars[i]]));
+
+			rv = rv == null ? term : new Operation(Operator.ADD, rv, term);
+		}
+
+		double c = rows.constants[row];
+
+		if (rv == null)
+			rv = new Constant(c);
+		else if (c != 0)
+			rv = new Operation(Operator.ADD, rv, new Constant(c));
+
+		return rv;
+	}
+
+	private ExpressionInterval getRowExpressionInterval(int row)
+	{
+		return new ExpressionInterval(getRowExpression(row), getRowInterval(row));
+	}
+
+	/**
+	 * The shared store of flow and reset rows. Affine rows are stored in compressed sparse row
+	 * format, and identical rows share an id.
+	 */
+	private class RowStore
+	{
+		int size = 0;
+		int[] start = new int[] { 0 }; // terms of row r are [start[r], start[r+1])
+		int[] vars = new int[16];
+		double[] coefficients = new double[16];
+		double[] constants = new double[16];
+		double[] intervalMin = new double[16]; // NaN if no interval
+		double[] intervalMax = new double[16];
+		Expression[] residual = new Expression[16]; // non-affine expressions
+
+		// used while building, to share identical rows
+		HashMap<RowKey, Integer> ids = new HashMap<RowKey, Integer>();
+
+		/**
+		 * Add a row (or find an identical one)
+		 *
+		 * @return the row id
+		 */
+		int add(ExpressionInterval ei)
+		{
+			Interval i = ei.getInterval();
+			double min = i == null ? Double.NaN : i.min;
+			double max = i == null ? Double.NaN : i.max;
+
+			// sorted by variable id, so rows with reordered terms are shared
+			TreeMap<Integer, Expression> terms = new TreeMap<Integer, Expression>();
+			Expression[] constant = new Expression[1];
+			Expression e = ei.getExpression();
+			double[] coeffs = null;
+			double c = 0;
+
+			if (addTerms(e, 0, terms, constant))
+			{
+				// evaluate the coefficients the same way as DynamicsUtil.extractLinearVector, so
+				// printers produce the same values
+				try
+				{
+					coeffs = new double[terms.size()];
+					int k = 0;
+
+					for (Expression multiplier : terms.values())
+						coeffs[k++] = AutomatonUtil.evaluateConstant(multiplier);
+
+					if (constant[0] != null)
+						c = AutomatonUtil.evaluateConstant(constant[0]);
+				}
+				catch (AutomatonExportException ex)
+				{
+					coeffs = null;
+				}
+			}
+
+			int rv;
+
+			if (coeffs == null)
+				rv = append(null, null, 0, min, max, e.copy());
+			else
+			{
+				int[] termVars = new int[terms.size()];
+				int k = 0;
+
+				for (int var : terms.keySet())
+					termVars[k++] = var;
+
+				RowKey key = new RowKey(termVars, coeffs, c, min, max);
+				Integer id = ids.get(key);
+
+				if (id != null)
+					rv = id;
+				else
+				{
+					rv = append(termVars, coeffs, c, min, max, null);
+					ids.put(key, rv);
+				}
+			}
+
+			return rv;
+		}
+
+		/**
+		 * Collect the terms of a sum of multiples, building each coefficient expression like
+		 * DynamicsUtil.findMultiplier
+		 *
+		 * @param e
+		 *            the expression
+		 * @param negations
+		 *            the number of negations e is nested in
+		 * @param terms
+		 *            [out] variable id -> coefficient expression
+		 * @param constant
+		 *            [out] the constant term expression, in the first element
+		 * @return false if e is not in the supported affine form (or a term is repeated)
+		 */
+		private boolean addTerms(Expression e, int negations,
+				TreeMap<Integer, Expression> terms, Expression[] constant)
+		{
+			boolean rv = true;
+
+			if (e instanceof Constant)
+			{
+				if (constant[0] != null)
+					rv = false;
+				else
+					constant[0] = negate(e, negations);
+			}
+			else if (e instanceof Variable)
+				rv = addTerm(((Variable) e).name, new Constant(1), negations, terms);
+			else if (e instanceof Operation)
+			{
+				Operation o = (Operation) e;
+				Operator op = o.op;
+
+				if (op == Operator.NEGATIVE)
+					rv = addTerms(o.children.get(0), negations + 1, terms, constant);
+				else if (op == Operator.ADD || op == Operator.SUBTRACT)
+				{
+					rv = addTerms(o.getLeft(), negations, terms, constant) && addTerms(
+							o.getRight(), op == Operator.SUBTRACT ? negations + 1 : negations,
+							terms, constant);
+				}
+				else if (op == Operator.MULTIPLY)
+				{
+					Expression left = o.getLeft();
+					Expression right = o.getRight();
+
+					if (left instanceof Variable && !(right instanceof Variable))
+						rv = addTerm(((Variable) left).name, right, negations, terms);
+					else if (right instanceof Variable && !(left instanceof Variable))
+						rv = addTerm(((Variable) right).name, left, negations, terms);
+					else
+						rv = false;
+				}
+				else if (op == Operator.DIVIDE && o.getLeft() instanceof Variable
+						&& o.getRight() instanceof Constant
+						&& ((Constant) o.getRight()).getVal() != 0)
+				{
+					Expression multiplier = new Constant(
+							1.0 / ((Constant) o.getRight()).getVal());
+
+					rv = addTerm(((Variable) o.getLeft()).name, multiplier, negations, terms);
+				}
+				else
+					rv = false;
+			}
+			else
+				rv = false;
+
+			return rv;
+		}
+
+		private boolean addTerm(String name, Expression multiplier, int negations,
+				TreeMap<Integer, Expression> terms)
+		{
+			Integer var = variableIds.get(name);
+
+			if (var == null || terms.containsKey(var))
+				return false;
+
+			terms.put(var, negate(multiplier, negations));
+
+			return true;
+		}
+
+		private Expression negate(Expression e, int negations)
+		{
+			for (int i = 0; i < negations; ++i)
+				e = new Operation(Operator.NEGATIVE, e);
+
+			return e;
+		}
+
+		private int append(int[] termVars, double[] coeffs, double c, double min, double max,
+				Expression res)
+		{
+			int numTerms = termVars == null ? 0 : termVars.length;
+			int first = start[size];
+
+			if (size + 1 >= start.length)
+				start = Arrays.copyOf(start, 2 * (size + 2));
+
+			if (size >= constants.length)
+			{
+				int newLength = 2 * constants.length;
+				constants = Arrays.copyOf(constants, newLength);
+				intervalMin = Arrays.copyOf(intervalMin, newLength);
+				intervalMax = Arrays.copyOf(intervalMax, newLength);
+				residual = Arrays.copyOf(residual, newLength);
+			}
+
+			if (first + numTerms > vars.length)
+			{
+				int newLength = Math.max(2 * vars.length, first + numTerms);
+				vars = Arrays.copyOf(vars, newLength);
+				coefficients = Arrays.copyOf(coefficients, newLength);
+			}
+
+			for (int k = 0; k < numTerms; ++k)
+			{
+				vars[first + k] = termVars[k];
+				coefficients[first + k] = coeffs[k];
+			}
+
+			constants[size] = c;
+			intervalMin[size] = min;
+			intervalMax[size] = max;
+			residual[size] = res;
+			start[size + 1] = first + numTerms;
+
+			return size++;
+		}
+
+		/**
+		 * Release the memory used while building
+		 */
+		void trim()
+		{
+			int numTerms = start[size];
+
+			start = Arrays.copyOf(start, size + 1);
+			vars = Arrays.copyOf(vars, numTerms);
+			coefficients = Arrays.copyOf(coefficients, numTerms);
+			constants = Arrays.copyOf(constants, size);
+			intervalMin = Arrays.copyOf(intervalMin, size);
+			intervalMax = Arrays.copyOf(intervalMax, size);
+			residual = Arrays.copyOf(residual, size);
+			ids = null;
+		}
+	}
+
+	/**
+	 * Hash key of an affine row (exact, bitwise comparison of the values)
+	 */
+	private static class RowKey
+	{
+		final int[] vars;
+		final long[] bits;
+		final int hash;
+
+		RowKey(int[] vars, double[] coeffs, double c, double min, double max)
+		{
+			this.vars = vars;
+			bits = new long[coeffs.length + 3];
+
+			for (int i = 0; i < coeffs.length; ++i)
+				bits[i] = Double.doubleToLongBits(coeffs[i]);
+
+			bits[coeffs.length] = Double.doubleToLongBits(c);
+			bits[coeffs.length + 1] = Double.doubleToLongBits(min);
+			bits[coeffs.length + 2] = Double.doubleToLongBits(max);
+
+			hash = 31 * Arrays.hashCode(vars) + Arrays.hashCode(bits);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof RowKey))
+				return false;
+
+			RowKey k = (RowKey) o;
+
+			return hash == k.hash && Arrays.equals(vars, k.vars) && Arrays.equals(bits, k.bits);
+		}
+	}
+
+	/**
+	 * A pool of distinct strings, stored in a single char array. Ids are assigned in the order
+	 * strings are added, and lookups use an open-addressing hash table of ids.
+	 */
+	private static class StringPool
+	{
+		private char[] chars = new char[256];
+		private int[] start = new int[] { 0 }; // string i is chars[start[i]..start[i+1])
+		private int size = 0;
+		private int[] table = newTable(64); // ids, -1 = empty
+
+		private static int[] newTable(int length)
+		{
+			int[] rv = new int[length];
+			Arrays.fill(rv, -1);
+
+			return rv;
+		}
+
+		int size()
+		{
+			return size;
+		}
+
+		String get(int id)
+		{
+			return new String(chars, start[id], start[id + 1] - start[id]);
+		}
+
+		/**
+		 * Find the id of a string
+		 *
+		 * @return the id, or -1 if the string is not in the pool
+		 */
+		int find(String s)
+		{
+			return table[slot(table, s)];
+		}
+
+		/**
+		 * Add a string (if it's not already in the pool)
+		 *
+		 * @return the id of the string
+		 */
+		int add(String s)
+		{
+			int slot = slot(table, s);
+
+			if (table[slot] != -1)
+				return table[slot];
+
+			int first = start[size];
+			int len = s.length();
+
+			if (first + len > chars.length)
+				chars = Arrays.copyOf(chars, Math.max(2 * chars.length, first + len));
+
+			if (size + 1 >= start.length)
+				start = Arrays.copyOf(start, 2 * (size + 2));
+
+			s.getChars(0, len, chars, first);
+			start[size + 1] = first + len;
+			table[slot] = size;
+
+			// keep the table at most half full
+			if (2 * (size + 1) > table.length)
+				rehash();
+
+			return size++;
+		}
+
+		private void rehash()
+		{
+			int[] newTable = newTable(2 * table.length);
+
+			for (int id : table)
+			{
+				if (id != -1)
+				{
+					int slot = hash(id) & (newTable.length - 1);
+
+					while (newTable[slot] != -1)
+						slot = (slot + 1) & (newTable.length - 1);
+
+					newTable[slot] = id;
+				}
+			}
+
+			table = newTable;
+		}
+
+		/**
+		 * Find the slot of a string: the slot containing its id, or the empty slot where it would
+		 * be inserted
+		 */
+		private int slot(int[] t, String s)
+		{
+			int slot = s.hashCode() & (t.length - 1);
+
+			while (t[slot] != -1 && !matches(t[slot], s))
+				slot = (slot + 1) & (t.length - 1);
+
+			return slot;
+		}
+
+		private boolean matches(int id, String s)
+		{
+			int first = start[id];
+			int len = start[id + 1] - first;
+
+			if (len != s.length())
+				return false;
+
+			for (int i = 0; i < len; ++i)
+			{
+				if (chars[first + i] != s.charAt(i))
+					return false;
+			}
+
+			return true;
+		}
+
+		/**
+		 * Hash of a stored string, consistent with String.hashCode()
+		 */
+		private int hash(int id)
+		{
+			int h = 0;
+
+			for (int i = start[id]; i < start[id + 1]; ++i)
+				h = 31 * h + chars[i];
+
+			return h;
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package com.verivital.hyst.ir.base;
 
+import java.io.Serializable;
+
 import com.verivital.hyst.geometry.Interval;
 import com.verivital.hyst.grammar.formula.Constant;
 import com.verivital.hyst.grammar.formula.DefaultExpressionPrinter;
@@ -19,8 +21,10 @@ import com.verivital.hyst.ir.AutomatonExportException;
  * @author Stanley Bak
  *
  */
-public class ExpressionInterval
+public class ExpressionInterval implements Serializable
 {
+	private static final long serialVersionUID = 1L;
+
 	private Expression e = null;
 	private Interval i = null;
 
@@ -114,7 +118,8 @@ public class ExpressionInterval
 			{
 				Constant c = (Constant) e;
 
-				c.setVal(c.getVal() + i.min);
+				// create a new constant, since c may be shared
+				e = new Constant(c.getVal() + i.min);
 
 				i = null;
 			}
@@ -133,7 +138,7 @@ public class ExpressionInterval
 	 */
 	public String toString()
 	{
-		return toString(Expression.expressionPrinter);
+		return toString(Expression.getExpressionPrinter());
 	}
 
 	/**
@@ -60,7 +60,8 @@ public abstract class ExpressionModifier
 
 	/**
 	 * Enumerate over all the expressions in this base component and modify them with the passed-in
-	 * object
+	 * object. Since the modifier may change expressions in place, the component's validation state
+	 * is invalidated.
 	 * 
 	 * @param ha
 	 *            the automaton to enumerate over
@@ -84,5 +85,7 @@ public abstract class ExpressionModifier
 			t.guard = em.modifyExpression(t.guard);
 			t.reset = modifyMap(t.reset, em);
 		}
+
+		bc.invalidateValidation();
 	}
 }
\ No newline at end of file
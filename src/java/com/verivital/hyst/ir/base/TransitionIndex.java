@@ -0,0 +1,143 @@
+package com.verivital.hyst.ir.base;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Per-mode adjacency index for the transitions of a BaseComponent (outgoing, incoming, and by
+ * label). Each list is in the same order as the component's transitions list.
+ *
+ * The index is owned by the BaseComponent, which updates it incrementally in createTransition.
+ * Direct structural modifications of the transitions list (add, remove, iterator removal) are
+ * detected using the list's modification count, and cause the index to be rebuilt on the next
+ * query. Since labels are usually assigned after a transition is created, the label index is built
+ * separately, on the first label query after any change.
+ */
+class TransitionIndex
+{
+	private static final List<AutomatonTransition> EMPTY = Collections.emptyList();
+
+	// the list this index was built from, and its modification count at that time
+	final ArrayList<AutomatonTransition> list;
+	int modCount;
+
+	private final IdentityHashMap<AutomatonMode, ArrayList<AutomatonTransition>> outgoing = new IdentityHashMap<AutomatonMode, ArrayList<AutomatonTransition>>();
+	private final IdentityHashMap<AutomatonMode, ArrayList<AutomatonTransition>> incoming = new IdentityHashMap<AutomatonMode, ArrayList<AutomatonTransition>>();
+	private HashMap<String, ArrayList<AutomatonTransition>> byLabel = null;
+
+	/**
+	 * Build the index from a list of transitions
+	 */
+	TransitionIndex(ArrayList<AutomatonTransition> list)
+	{
+		this.list = list;
+		this.modCount = getModCount(list);
+
+		for (AutomatonTransition at : list)
+			add(at);
+	}
+
+	/**
+	 * Is this index up to date with the given transitions list? Lists which don't track their
+	 * modification count are never considered up to date.
+	 */
+	boolean isCurrent(ArrayList<AutomatonTransition> transitions)
+	{
+		return transitions == list && list instanceof TransitionList
+				&& ((TransitionList) list).getModCount() == modCount;
+	}
+
+	/**
+	 * Record the list's current modification count, after an incremental update
+	 */
+	void sync()
+	{
+		modCount = getModCount(list);
+	}
+
+	private static int getModCount(ArrayList<AutomatonTransition> list)
+	{
+		return list instanceof TransitionList ? ((TransitionList) list).getModCount() : -1;
+	}
+
+	/**
+	 * Add a transition at the end of the index lists
+	 */
+	void add(AutomatonTransition at)
+	{
+		getOrCreate(outgoing, at.from).add(at);
+		getOrCreate(incoming, at.to).add(at);
+		byLabel = null;
+	}
+
+	List<AutomatonTransition> getOutgoing(AutomatonMode am)
+	{
+		return view(outgoing.get(am));
+	}
+
+	List<AutomatonTransition> getIncoming(AutomatonMode am)
+	{
+		return view(incoming.get(am));
+	}
+
+	List<AutomatonTransition> getWithLabel(String label)
+	{
+		if (byLabel == null)
+		{
+			byLabel = new HashMap<String, ArrayList<AutomatonTransition>>();
+
+			for (AutomatonTransition at : list)
+			{
+				if (at.label != null)
+				{
+					ArrayList<AutomatonTransition> l = byLabel.get(at.label);
+
+					if (l == null)
+					{
+						l = new ArrayList<AutomatonTransition>();
+						byLabel.put(at.label, l);
+					}
+
+					l.add(at);
+				}
+			}
+		}
+
+		return view(byLabel.get(label));
+	}
+
+	private static List<AutomatonTransition> view(ArrayList<AutomatonTransition> l)
+	{
+		return l == null ? EMPTY : Collections.unmodifiableList(l);
+	}
+
+	private static ArrayList<AutomatonTransition> getOrCreate(
+			IdentityHashMap<AutomatonMode, ArrayList<AutomatonTransition>> map, AutomatonMode am)
+	{
+		ArrayList<AutomatonTransition> rv = map.get(am);
+
+		if (rv == null)
+		{
+			rv = new ArrayList<AutomatonTransition>();
+			map.put(am, rv);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * The transitions list of a BaseComponent, which exposes its modification count so that the
+	 * index can detect direct changes
+	 */
+	@SuppressWarnings("serial")
+	static class TransitionList extends ArrayList<AutomatonTransition>
+	{
+		int getModCount()
+		{
+			return modCount;
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package com.verivital.hyst.ir.network;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
 
@@ -17,8 +18,10 @@ import com.verivital.hyst.ir.Component;
  * 
  * mappings are nonnull and valid (parent names exist, child names exist)
  */
-public class ComponentInstance
+public class ComponentInstance implements Serializable
 {
+	private static final long serialVersionUID = 1L;
+
 	public Component parent;
 	public Component child;
 
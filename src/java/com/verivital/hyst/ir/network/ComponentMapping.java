@@ -1,13 +1,16 @@
 package com.verivital.hyst.ir.network;
 
+import java.io.Serializable;
 import java.util.Collection;
 
 import com.verivital.hyst.importer.TemplateImporter;
 import com.verivital.hyst.ir.AutomatonValidationException;
 import com.verivital.hyst.ir.Component;
 
-public class ComponentMapping
+public class ComponentMapping implements Serializable
 {
+	private static final long serialVersionUID = 1L;
+
 	public String childParam; // the parameter in the child
 	public String parentParam; // the parameter in the parent (may be a
 								// ~constant during template instantiation)
@@ -29,7 +32,7 @@ public class ComponentMapping
 			throw new AutomatonValidationException("parentParam is null in mapping of "
 					+ mappingType + " in component " + instanceName);
 
-		if (Component.VALIDATE_CONSTS
+		if (Component.isValidateConsts()
 				|| !parentParam.startsWith(TemplateImporter.TEMPLATE_VALUE_MAP_PREFIX))
 		{
 			if (!parentList.contains(parentParam))
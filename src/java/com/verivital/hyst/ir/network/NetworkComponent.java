@@ -25,6 +25,8 @@ import com.verivital.hyst.ir.Configuration;
  */
 public class NetworkComponent extends Component
 {
+	private static final long serialVersionUID = 1L;
+
 	// should printing using toString() be recursive?
 	public static boolean PRINT_RECURSIVE = true;
 
@@ -33,7 +35,7 @@ public class NetworkComponent extends Component
 
 	public void validate()
 	{
-		if (!Configuration.DO_VALIDATION)
+		if (!Configuration.isValidationEnabled())
 			return;
 
 		super.validate();
@@ -53,6 +55,15 @@ public class NetworkComponent extends Component
 		}
 	}
 
+	@Override
+	public void invalidateValidation()
+	{
+		super.invalidateValidation();
+
+		for (ComponentInstance ci : children.values())
+			ci.child.invalidateValidation();
+	}
+
 	@Override
 	public Collection<String> getAllVariables()
 	{
@@ -25,6 +25,7 @@ import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.ir.base.ExpressionInterval;
 import com.verivital.hyst.passes.complex.ContinuizationPass;
 import com.verivital.hyst.python.PythonBridge;
+import com.verivital.hyst.simulation.HybridSimulator;
 import com.verivital.hyst.util.AutomatonUtil;
 
 @RunWith(Parameterized.class)
@@ -33,7 +34,7 @@ public class ContinuizationPassTests
 	@Before
 	public void setUpClass()
 	{
-		Expression.expressionPrinter = null;
+		Expression.setExpressionPrinter(null);
 	}
 
 	@Parameters
@@ -81,6 +82,35 @@ public class ContinuizationPassTests
 		Assert.assertEquals(new Interval(-1, 1), i2);
 	}
 
+	/**
+	 * Test for the java simulator's range detection (same as testPythonRangeTestSim)
+	 */
+	@Test
+	public void testJavaRangeTestSim()
+	{
+		String[][] dynamics = { { "t", "1" }, { "y", "sin(t)" } };
+		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics);
+
+		ArrayList<Interval> timeIntervals = new ArrayList<Interval>();
+		timeIntervals.add(new Interval(0, Math.PI / 4.0));
+		timeIntervals.add(new Interval(0, 2 * Math.PI));
+
+		SymbolicStatePoint start = new SymbolicStatePoint("on", new HyperPoint(0, 0));
+
+		List<Interval> result = new HybridSimulator(c).simulateDerRange(1, start,
+				timeIntervals);
+
+		Assert.assertEquals(2, result.size());
+
+		Interval i1 = result.get(0);
+		Interval i2 = result.get(1);
+
+		Interval.COMPARE_TOL = 1e-3;
+
+		Assert.assertEquals(new Interval(0, Math.sqrt(2) / 2.0), i1);
+		Assert.assertEquals(new Interval(-1, 1), i2);
+	}
+
 	@Test
 	public void testContinuizationPassSineWave()
 	{
@@ -176,6 +206,29 @@ public class ContinuizationPassTests
 		if (!PythonBridge.hasPython())
 			return;
 
+		runUrgentDoubleIntegrator();
+	}
+
+	/**
+	 * The urgent double integrator continuization, using the java simulator (no python needed)
+	 */
+	@Test
+	public void testUrgentDoubleIntegratorJavaSim()
+	{
+		HybridSimulator.setJavaSimulatorEnabled(true);
+
+		try
+		{
+			runUrgentDoubleIntegrator();
+		}
+		finally
+		{
+			HybridSimulator.setJavaSimulatorEnabled(false);
+		}
+	}
+
+	private void runUrgentDoubleIntegrator()
+	{
 		String[][] dynamics = { { "x", "v", "0" }, { "v", "a", "0" },
 				{ "a", "-10 * v - 3 * a", "0" } };
 		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics);
@@ -52,7 +52,7 @@ public class HybridizePassTests
 	@Before
 	public void setUpClass()
 	{
-		Expression.expressionPrinter = null;
+		Expression.setExpressionPrinter(null);
 	}
 
 	@Parameters
@@ -173,7 +173,7 @@ public class HybridizePassTests
 		AutomatonMode m0 = ha.modes.get("_1_time_trig");
 		Assert.assertNotEquals("mode named '_1_time_trig' exists", null, m0);
 
-		Expression.expressionPrinter = rp;
+		Expression.setExpressionPrinter(rp);
 
 		AutomatonMode m1 = ha.modes.get("_2_time_trig");
 		Assert.assertNotEquals("mode named '_2_time_trig' exists", null, m1);
@@ -308,7 +308,7 @@ public class HybridizePassTests
 		if (pts.length != expected.length)
 			throw new RuntimeException("pts.length should be equal to expected.length");
 
-		Expression.expressionPrinter = DefaultExpressionPrinter.instance;
+		Expression.setExpressionPrinter(DefaultExpressionPrinter.instance);
 
 		for (int i = 0; i < pts.length; ++i)
 		{
@@ -39,8 +39,8 @@ public class LutMatrixTest
 	public void setUpClass()
 	{
 		ConvertLutFlowsPass.MAX_CONVERSIONS = 5;
-		Expression.expressionPrinter = null;
-		ConvertLutFlowsPass.simplifyMode = ConvertLutFlowsPass.SIMPLIFY_NONE;
+		Expression.setExpressionPrinter(null);
+		ConvertLutFlowsPass.setSimplifyMode(ConvertLutFlowsPass.SIMPLIFY_NONE);
 	}
 
 	@Parameters
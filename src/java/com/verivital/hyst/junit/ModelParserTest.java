@@ -1,9 +1,13 @@
 package com.verivital.hyst.junit;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -31,10 +35,15 @@ import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.ir.network.ComponentInstance;
 import com.verivital.hyst.ir.network.ComponentMapping;
 import com.verivital.hyst.ir.network.NetworkComponent;
+import com.verivital.hyst.main.ConversionContext;
+import com.verivital.hyst.main.Hyst;
 import com.verivital.hyst.passes.basic.ConvertHavocFlows;
+import com.verivital.hyst.passes.basic.RemoveDiscreteUnreachablePass;
 import com.verivital.hyst.passes.basic.SubstituteConstantsPass;
+import com.verivital.hyst.passes.complex.FlatView;
 import com.verivital.hyst.passes.complex.FlattenAutomatonPass;
 import com.verivital.hyst.printers.FlowstarPrinter;
+import com.verivital.hyst.printers.PySimPrinter;
 import com.verivital.hyst.printers.SimulinkStateflowPrinter;
 import com.verivital.hyst.printers.SpaceExPrinter;
 import com.verivital.hyst.printers.ToolPrinter;
@@ -91,7 +100,7 @@ UNIT_BASEDIR = "tests/unit/models/";
 	@Before
 	public void setUpClass()
 	{
-		Expression.expressionPrinter = null;
+		Expression.setExpressionPrinter(null);
 	}
 
 	public static Configuration flatten(SpaceExDocument spaceExDoc)
@@ -468,7 +477,7 @@ UNIT_BASEDIR = "tests/unit/models/";
 			Configuration c = flatten(
 					SpaceExImporter.importModels(path + "all_init.cfg", path + "model.xml"));
 
-			Expression.expressionPrinter = DefaultExpressionPrinter.instance;
+			Expression.setExpressionPrinter(DefaultExpressionPrinter.instance);
 			Assert.assertNotEquals(c.init, null);
 
 		}
@@ -1135,10 +1144,10 @@ UNIT_BASEDIR = "tests/unit/models/";
 		BaseComponent ha = (BaseComponent) c.root;
 
 		Classification cls = new Classification();
-		Classification.ha = ha;
 		cls.setVarID(ha);
 		SimulinkStateflowPrinter sp = new SimulinkStateflowPrinter();
 		sp.ha = ha;
+		sp.cls = cls;
 		// sp.setVarID(ha);
 		AutomatonMode mode = ha.modes.get("running");
 		cls.setLinearMatrix(mode);
@@ -1158,10 +1167,10 @@ UNIT_BASEDIR = "tests/unit/models/";
 		BaseComponent ha = (BaseComponent) c.root;
 
 		Classification cls = new Classification();
-		Classification.ha = ha;
 		cls.setVarID(ha);
 		SimulinkStateflowPrinter sp = new SimulinkStateflowPrinter();
 		sp.ha = ha;
+		sp.cls = cls;
 		// sp.setVarID(ha);
 		AutomatonMode mode = ha.modes.get("running");
 		cls.setLinearMatrix(mode);
@@ -1181,10 +1190,10 @@ UNIT_BASEDIR = "tests/unit/models/";
 		BaseComponent ha = (BaseComponent) c.root;
 
 		Classification cls = new Classification();
-		Classification.ha = ha;
 		cls.setVarID(ha);
 		SimulinkStateflowPrinter sp = new SimulinkStateflowPrinter();
 		sp.ha = ha;
+		sp.cls = cls;
 		// sp.setVarID(ha);
 		AutomatonMode mode = ha.modes.get("running");
 		cls.setLinearMatrix(mode);
@@ -1204,10 +1213,10 @@ UNIT_BASEDIR = "tests/unit/models/";
 		BaseComponent ha = (BaseComponent) c.root;
 
 		Classification cls = new Classification();
-		Classification.ha = ha;
 		cls.setVarID(ha);
 		SimulinkStateflowPrinter sp = new SimulinkStateflowPrinter();
 		sp.ha = ha;
+		sp.cls = cls;
 		// sp.setVarID(ha);
 		AutomatonMode mode = ha.modes.get("running");
 		cls.setLinearMatrix(mode);
@@ -1227,10 +1236,10 @@ UNIT_BASEDIR = "tests/unit/models/";
 		BaseComponent ha = (BaseComponent) c.root;
 
 		Classification cls = new Classification();
-		Classification.ha = ha;
 		cls.setVarID(ha);
 		SimulinkStateflowPrinter sp = new SimulinkStateflowPrinter();
 		sp.ha = ha;
+		sp.cls = cls;
 		// sp.setVarID(ha);
 		AutomatonMode mode = ha.modes.get("running");
 		cls.setLinearMatrix(mode);
@@ -1257,11 +1266,10 @@ UNIT_BASEDIR = "tests/unit/models/";
 		AutomatonMode mode = ha.modes.values().iterator().next();
 
 		Classification cls = new Classification();
-		Classification.ha = ha;
 		cls.setVarID(ha);
 		cls.setLinearMatrix(mode);
 		double TOL = 1e-9;
-		Assert.assertEquals(-1, Classification.linearMatrix[0][0], TOL);
+		Assert.assertEquals(-1, cls.linearMatrix[0][0], TOL);
 	}
 
 	@Test
@@ -1281,10 +1289,10 @@ UNIT_BASEDIR = "tests/unit/models/";
 		// Configuration c = flatten(test1);
 		// BaseComponent ha = (BaseComponent)c.root;
 		Classification cls = new Classification();
-		Classification.ha = ha;
 		cls.setVarID(ha);
 		SimulinkStateflowPrinter sp = new SimulinkStateflowPrinter();
 		sp.ha = ha;
+		sp.cls = cls;
 		// sp.setVarID(ha);
 		AutomatonMode mode = ha.modes.get("running");
 		cls.setLinearMatrix(mode);
@@ -1419,4 +1427,387 @@ UNIT_BASEDIR = "tests/unit/models/";
 
 		Assert.assertTrue("some output exists", out.length() > 10);
 	}
+
+	// unit models which are intentionally invalid, so importing them fails (directory/cfg name)
+	private static final List<String> INVALID_UNIT_MODELS = Arrays.asList(
+			"bad_init_comp/bad_init_comp.cfg", "bugfix_local_var_missing/local_var.cfg",
+			"classification_discrete_vars/classification_discrete_vars_flows_zero_some.cfg",
+			"comp_base/sys.cfg", "comp_in_out_mismatch/sys.cfg", "const_model/const_model.cfg",
+			"nondeterm_reset_open/sys.cfg");
+
+	/**
+	 * The unit models listed as invalid should fail to import (so that tests which run on every
+	 * unit model can skip exactly these)
+	 */
+	@Test
+	public void testInvalidUnitModels()
+	{
+		for (String name : INVALID_UNIT_MODELS)
+		{
+			String cfg = UNIT_BASEDIR + name;
+			File xml = new File(cfg.substring(0, cfg.length() - 4) + ".xml");
+
+			if (!xml.exists())
+				xml = new File(new File(cfg).getParentFile(), "model.xml");
+
+			try
+			{
+				importModel(cfg, xml.getPath());
+				Assert.fail("invalid unit model was imported: " + name);
+			}
+			catch (AutomatonExportException e)
+			{
+				// expected
+			}
+			catch (AutomatonValidationException e)
+			{
+				// expected
+			}
+		}
+	}
+
+	/**
+	 * Get the cfg and xml paths of every valid unit model (see INVALID_UNIT_MODELS)
+	 */
+	private List<String[]> getUnitModelPaths()
+	{
+		ArrayList<String[]> rv = new ArrayList<String[]>();
+
+		for (File dir : new File(UNIT_BASEDIR).listFiles())
+		{
+			if (!dir.isDirectory())
+				continue;
+
+			for (File cfg : dir.listFiles())
+			{
+				String name = cfg.getName();
+
+				if (!name.endsWith(".cfg")
+						|| INVALID_UNIT_MODELS.contains(dir.getName() + "/" + name))
+					continue;
+
+				File xml = new File(dir, name.substring(0, name.length() - 4) + ".xml");
+
+				if (!xml.exists())
+					xml = new File(dir, "model.xml");
+
+				if (xml.exists())
+					rv.add(new String[] { cfg.getPath(), xml.getPath() });
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Flattening while only constructing the reachable product locations should give the same
+	 * result as constructing the full product and then removing the unreachable modes
+	 */
+	@Test
+	public void testFlattenReachableMatchesFullProduct()
+	{
+		Expression.setExpressionPrinter(DefaultExpressionPrinter.instance);
+		int numCompared = 0;
+
+		for (String[] paths : getUnitModelPaths())
+		{
+			FlattenAutomatonPass reachablePass = new FlattenAutomatonPass();
+			Configuration full = importModel(paths[0], paths[1]);
+			Configuration reachable = importModel(paths[0], paths[1]);
+
+			reachablePass.runVanillaPass(reachable, "-reachable");
+
+			// skip models where the full product is too large to construct quickly
+			if (reachablePass.getNumExplored() + reachablePass.getNumSkipped() > 10000)
+				continue;
+
+			new FlattenAutomatonPass().runVanillaPass(full, "");
+			new RemoveDiscreteUnreachablePass().runVanillaPass(full, "");
+
+			Assert.assertEquals("flattened output differs for " + paths[0], full.toString(),
+					reachable.toString());
+			++numCompared;
+		}
+
+		Assert.assertTrue("some models were compared", numCompared > 10);
+	}
+
+	/**
+	 * Flattening in parallel should give the same result as flattening sequentially, and the
+	 * planned merge grouping should give the same modes and transitions as merging left to right
+	 * (the transitions may be in a different order), both with and without -reachable
+	 */
+	@Test
+	public void testFlattenParallelAndPlanned()
+	{
+		Expression.setExpressionPrinter(DefaultExpressionPrinter.instance);
+		int numThreads = FlattenAutomatonPass.getNumThreads();
+		boolean planMerges = FlattenAutomatonPass.isPlanMerges();
+		int numCompared = 0;
+
+		try
+		{
+			for (String params : new String[] { "-reachable", "" })
+			{
+				for (String[] paths : getUnitModelPaths())
+				{
+					if (params.isEmpty())
+					{
+						// skip models where the full product is too large to construct quickly
+						FlattenAutomatonPass probe = new FlattenAutomatonPass();
+						probe.runVanillaPass(importModel(paths[0], paths[1]), "-reachable");
+
+						if (probe.getNumExplored() + probe.getNumSkipped() > 10000)
+							continue;
+					}
+
+					Configuration sequential = importModel(paths[0], paths[1]);
+					Configuration parallel = importModel(paths[0], paths[1]);
+					Configuration leftToRight = importModel(paths[0], paths[1]);
+
+					FlattenAutomatonPass.setPlanMerges(true);
+					FlattenAutomatonPass.setNumThreads(1);
+					new FlattenAutomatonPass().runVanillaPass(sequential, params);
+
+					FlattenAutomatonPass.setNumThreads(4);
+					new FlattenAutomatonPass().runVanillaPass(parallel, params);
+
+					FlattenAutomatonPass.setNumThreads(1);
+					FlattenAutomatonPass.setPlanMerges(false);
+					new FlattenAutomatonPass().runVanillaPass(leftToRight, params);
+
+					Assert.assertEquals("parallel flattening differs for " + paths[0],
+							sequential.toString(), parallel.toString());
+
+					BaseComponent planned = (BaseComponent) sequential.root;
+					BaseComponent unplanned = (BaseComponent) leftToRight.root;
+					Assert.assertEquals("planned merge modes differ for " + paths[0],
+							new ArrayList<String>(unplanned.modes.keySet()),
+							new ArrayList<String>(planned.modes.keySet()));
+					Assert.assertEquals("planned merge transitions differ for " + paths[0],
+							describeTransitions(unplanned), describeTransitions(planned));
+					++numCompared;
+				}
+			}
+		}
+		finally
+		{
+			FlattenAutomatonPass.setNumThreads(numThreads);
+			FlattenAutomatonPass.setPlanMerges(planMerges);
+		}
+
+		Assert.assertTrue("some models were compared", numCompared > 20);
+	}
+
+	/**
+	 * Get the sorted descriptions of an automaton's transitions (see describeTransition)
+	 */
+	private static ArrayList<String> describeTransitions(BaseComponent ha)
+	{
+		ArrayList<String> rv = new ArrayList<String>();
+
+		for (AutomatonTransition at : ha.transitions)
+			rv.add(describeTransition(at));
+
+		Collections.sort(rv);
+
+		return rv;
+	}
+
+	/**
+	 * A FlatView should have the same modes and transitions as flattening (left to right)
+	 */
+	@Test
+	public void testFlatViewMatchesFlatten()
+	{
+		Expression.setExpressionPrinter(DefaultExpressionPrinter.instance);
+		boolean planMerges = FlattenAutomatonPass.isPlanMerges();
+		int numCompared = 0;
+
+		try
+		{
+			FlattenAutomatonPass.setPlanMerges(false);
+
+			for (String[] paths : getUnitModelPaths())
+			{
+				Configuration original = importModel(paths[0], paths[1]);
+				ArrayList<String> initBefore = new ArrayList<String>(original.init.keySet());
+				ArrayList<String> varsBefore = new ArrayList<String>(original.root.variables);
+				FlatView view = new FlatView(original, true);
+
+				Assert.assertEquals("flat view modified the initial states", initBefore,
+						new ArrayList<String>(original.init.keySet()));
+				Assert.assertEquals("flat view modified the variables", varsBefore,
+						original.root.variables);
+
+				// skip models where the product is too large to compare quickly
+				if (view.getNumModes() > 10000)
+					continue;
+
+				Configuration flat = importModel(paths[0], paths[1]);
+				new FlattenAutomatonPass().runVanillaPass(flat, "-reachable");
+
+				BaseComponent ha = (BaseComponent) flat.root;
+				Configuration viewConfig = view.getConfiguration();
+				ArrayList<String> flatModes = new ArrayList<String>();
+				ArrayList<String> viewModes = new ArrayList<String>();
+				ArrayList<String> flatTransitions = new ArrayList<String>();
+				ArrayList<String> viewTransitions = new ArrayList<String>();
+
+				for (AutomatonMode am : ha.modes.values())
+					flatModes.add(describeMode(am));
+
+				for (AutomatonMode am : view.modes())
+					viewModes.add(describeMode(am));
+
+				for (AutomatonTransition at : ha.transitions)
+					flatTransitions.add(describeTransition(at));
+
+				for (AutomatonTransition at : view.transitions())
+					viewTransitions.add(describeTransition(at));
+
+				Collections.sort(flatTransitions);
+				Collections.sort(viewTransitions);
+
+				Assert.assertEquals("variables differ for " + paths[0], ha.variables,
+						view.getHeader().variables);
+				Assert.assertEquals("init differs for " + paths[0], flat.init.toString(),
+						viewConfig.init.toString());
+				Assert.assertEquals("forbidden differs for " + paths[0],
+						flat.forbidden.toString(), viewConfig.forbidden.toString());
+				Assert.assertEquals("modes differ for " + paths[0], flatModes, viewModes);
+				Assert.assertEquals("transitions differ for " + paths[0], flatTransitions,
+						viewTransitions);
+				Assert.assertEquals(ha.modes.size(), view.getNumModes(), 1e-9);
+				++numCompared;
+			}
+		}
+		finally
+		{
+			FlattenAutomatonPass.setPlanMerges(planMerges);
+		}
+
+		Assert.assertTrue("some models were compared", numCompared > 10);
+	}
+
+	private static String describeMode(AutomatonMode am)
+	{
+		return am.name + (am.urgent ? " (urgent)" : "") + " inv: " + am.invariant.toDefaultString()
+				+ " flow: " + am.flowDynamics;
+	}
+
+	private static String describeTransition(AutomatonTransition at)
+	{
+		return at.from.name + " -> " + at.to.name + " label: " + at.label + " guard: "
+				+ at.guard.toDefaultString() + " reset: " + at.reset;
+	}
+
+	/**
+	 * Printing a network with PySim through a FlatView should give the same lines as printing the
+	 * flattened automaton (transitions may be in a different order)
+	 */
+	@Test
+	public void testPrintFlatViewPySim()
+	{
+		assertFlatViewPrintsSameLines(new PySimPrinter(), "controller_heater/controller_heater");
+	}
+
+	/**
+	 * Printing a network with Flow* through a FlatView should give the same lines as printing the
+	 * flattened automaton (jumps may be in a different order)
+	 */
+	@Test
+	public void testPrintFlatViewFlowstar()
+	{
+		String[] models = { "controller_heater/controller_heater",
+				"comp_simple_crossprod_network/sys", "three_hier/tank6",
+				"linear_dynamic/two_var_one_input" };
+
+		for (String model : models)
+			assertFlatViewPrintsSameLines(new FlowstarPrinter(), model);
+	}
+
+	private void assertFlatViewPrintsSameLines(ToolPrinter printer, String model)
+	{
+		String path = UNIT_BASEDIR + model;
+		boolean useView = ToolPrinter.isFlatViewEnabled();
+		boolean planMerges = FlattenAutomatonPass.isPlanMerges();
+		ArrayList<String> flatLines, viewLines;
+
+		try
+		{
+			FlattenAutomatonPass.setPlanMerges(false);
+			ToolPrinter.setFlatViewEnabled(false);
+			flatLines = printSortedLines(printer, path);
+
+			ToolPrinter.setFlatViewEnabled(true);
+			viewLines = printSortedLines(printer, path);
+		}
+		finally
+		{
+			ToolPrinter.setFlatViewEnabled(useView);
+			FlattenAutomatonPass.setPlanMerges(planMerges);
+		}
+
+		Assert.assertEquals(flatLines, viewLines);
+	}
+
+	/**
+	 * The -flat_view flag should print a network through a FlatView, giving the same lines as
+	 * printing the flattened automaton (in a possibly different order)
+	 */
+	@Test
+	public void testFlatViewFlag() throws Exception
+	{
+		String path = UNIT_BASEDIR + "controller_heater/controller_heater";
+		File dir = Files.createTempDirectory("hyst_flat_view").toFile();
+		ArrayList<ArrayList<String>> outputs = new ArrayList<ArrayList<String>>();
+
+		for (boolean flatView : new boolean[] { false, true })
+		{
+			File out = new File(dir, "heater_" + flatView + ".py");
+			ArrayList<String> args = new ArrayList<String>(Arrays.asList("-i", path + ".xml",
+					path + ".cfg", "-tool", "pysim", "", "-o", out.getPath()));
+
+			if (flatView)
+				args.add("-flat_view");
+
+			Assert.assertEquals(0, Hyst.runWithArguments(args.toArray(new String[args.size()]),
+					new ConversionContext()));
+
+			ArrayList<String> lines = new ArrayList<String>();
+
+			for (String line : Files.readAllLines(out.toPath(), StandardCharsets.UTF_8))
+			{
+				if (!line.contains("Command Line arguments"))
+					lines.add(line);
+			}
+
+			Collections.sort(lines);
+			outputs.add(lines);
+		}
+
+		Assert.assertEquals(outputs.get(0), outputs.get(1));
+	}
+
+	private static ArrayList<String> printSortedLines(ToolPrinter printer, String path)
+	{
+		Configuration c = importModel(path + ".cfg", path + ".xml");
+		printer.setOutputString();
+		printer.print(c, "", "model.xml");
+
+		ArrayList<String> rv = new ArrayList<String>(
+				Arrays.asList(printer.outputString.toString().split("\n")));
+		Collections.sort(rv);
+
+		return rv;
+	}
+
+	private static Configuration importModel(String cfgPath, String xmlPath)
+	{
+		SpaceExDocument doc = SpaceExImporter.importModels(cfgPath, xmlPath);
+		Map<String, Component> componentTemplates = TemplateImporter.createComponentTemplates(doc);
+
+		return ConfigurationMaker.fromSpaceEx(doc, componentTemplates);
+	}
 }
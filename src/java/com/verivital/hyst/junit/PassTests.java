@@ -31,6 +31,7 @@ import com.verivital.hyst.ir.network.NetworkComponent;
 import com.verivital.hyst.passes.basic.CopyInstancePass;
 import com.verivital.hyst.passes.basic.SimplifyExpressionsPass;
 import com.verivital.hyst.passes.basic.SubstituteConstantsPass;
+import com.verivital.hyst.passes.complex.FlattenAutomatonPass;
 import com.verivital.hyst.printers.FlowstarPrinter;
 import com.verivital.hyst.printers.Hylaa2Printer;
 import com.verivital.hyst.printers.ToolPrinter;
@@ -50,7 +51,7 @@ public class PassTests
 	@Before
 	public void setUpClass()
 	{
-		Expression.expressionPrinter = null;
+		Expression.setExpressionPrinter(null);
 	}
 
 	@Parameters
@@ -130,6 +131,55 @@ public class PassTests
 	/**
 	 * Substitute constants and then simplify expressions
 	 */
+	/**
+	 * Flattening creates transitions based on mode indices, so mode names with underscores don't
+	 * produce extra transitions
+	 */
+	@Test
+	public void testFlattenUnderscoreModeNames()
+	{
+		NetworkComponent nc = new NetworkComponent();
+		nc.variables.add("t");
+
+		BaseComponent left = new BaseComponent();
+		left.variables.add("t");
+		ComponentInstance ci = new ComponentInstance(nc, left);
+		ci.varMapping.add(new ComponentMapping("t", "t"));
+		nc.children.put("left", ci);
+		left.instanceName = "left";
+		left.parent = nc;
+
+		for (String name : new String[] { "a", "a_b", "c", "c_b" })
+		{
+			AutomatonMode am = left.createMode(name);
+			am.flowDynamics.put("t", new ExpressionInterval(new Constant(1)));
+			am.invariant = Constant.TRUE;
+		}
+
+		AutomatonTransition at = left.createTransition(left.modes.get("a"), left.modes.get("c"));
+		at.guard = FormulaParser.parseGuard("t >= 1");
+
+		BaseComponent right = new BaseComponent();
+		ci = new ComponentInstance(nc, right);
+		nc.children.put("right", ci);
+		right.instanceName = "right";
+		right.parent = nc;
+		right.createMode("r").invariant = Constant.TRUE;
+
+		Configuration c = new Configuration(nc);
+		c.settings.plotVariableNames[0] = c.settings.plotVariableNames[1] = "t";
+		c.init.put("a.r", FormulaParser.parseInitialForbidden("t = 0"));
+		c.validate();
+
+		new FlattenAutomatonPass().runVanillaPass(c, "");
+
+		BaseComponent ha = (BaseComponent) c.root;
+		Assert.assertEquals("four product modes", 4, ha.modes.size());
+		Assert.assertEquals("one transition", 1, ha.transitions.size());
+		Assert.assertEquals("a_r", ha.transitions.get(0).from.name);
+		Assert.assertEquals("c_r", ha.transitions.get(0).to.name);
+	}
+
 	@Test
 	public void testSubConstantsPll()
 	{
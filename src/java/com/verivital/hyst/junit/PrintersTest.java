@@ -58,7 +58,7 @@ public class PrintersTest
 	@Before
 	public void setUpClass()
 	{
-		Expression.expressionPrinter = null;
+		Expression.setExpressionPrinter(null);
 	}
 
 	@Parameters
@@ -162,7 +162,7 @@ public class PrintersTest
 			// clear expression printer since no assumptions can be made about
 			// it. If null pointer exceptions are thrown, this means
 			// it should have been assigned on printAutomaton()
-			Expression.expressionPrinter = null;
+			Expression.setExpressionPrinter(null);
 
 			SpaceExDocument sd = SpaceExImporter.importModels(path + cfgName, path + xmlName);
 			Configuration c = ModelParserTest.flatten(sd);
@@ -285,6 +285,15 @@ public class PrintersTest
 		runAllPrintersOnModel("nondeterm_reset");
 	}
 
+	/**
+	 * Printers should be able to print a model with an empty invariant
+	 */
+	@Test
+	public void testPrintEmptyInvariant()
+	{
+		runAllPrintersOnModel("demo_reset");
+	}
+
 	/**
 	 * make a sample configuration, which is used in multiple tests
 	 * 
@@ -26,6 +26,7 @@ import com.verivital.hyst.passes.complex.pi.PseudoInvariantPass;
 import com.verivital.hyst.passes.complex.pi.PseudoInvariantSimulatePass;
 import com.verivital.hyst.printers.FlowstarPrinter;
 import com.verivital.hyst.python.PythonBridge;
+import com.verivital.hyst.simulation.HybridSimulator;
 import com.verivital.hyst.util.AutomatonUtil;
 
 @RunWith(Parameterized.class)
@@ -34,7 +35,7 @@ public class PseudoInvariantTest
 	@Before
 	public void setUpClass()
 	{
-		Expression.expressionPrinter = null;
+		Expression.setExpressionPrinter(null);
 	}
 
 	@Parameters
@@ -113,6 +114,30 @@ public class PseudoInvariantTest
 		Assert.assertEquals(3.0, result.get(1).hp.dims[0], TOL);
 	}
 
+	/**
+	 * Tests for the java simulator, with the same automaton as testPythonSimulate
+	 */
+	@Test
+	public void testJavaSimulate()
+	{
+		String[][] dynamics1 = { { "x", "2" } }; // x' == 2, x(0) = 0
+		String[][] dynamics2 = { { "x", "1" } }; // x' == 1
+		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics1, "x <= 2", "x >= 2",
+				dynamics2);
+
+		SymbolicStatePoint start = new SymbolicStatePoint("mode1", new HyperPoint(0.0));
+		List<Double> times = Arrays.asList(0.5, 2.0);
+
+		List<SymbolicStatePoint> result = new HybridSimulator(c).simulateTimes(start, times);
+		double TOL = 1e-6;
+
+		Assert.assertEquals("mode1", result.get(0).modeName);
+		Assert.assertEquals(1.0, result.get(0).hp.dims[0], TOL);
+
+		Assert.assertEquals("mode2", result.get(1).modeName);
+		Assert.assertEquals(3.0, result.get(1).hp.dims[0], TOL);
+	}
+
 	/**
 	 * Test pseudo-invariant simulate pass (which in turn uses pseudo-invariant pass)
 	 */
@@ -258,6 +283,29 @@ public class PseudoInvariantTest
 		if (!PythonBridge.hasPython())
 			return;
 
+		runInitPIVanderpol();
+	}
+
+	/**
+	 * Test the pseudo-invariant init pass using the java simulator (no python needed)
+	 */
+	@Test
+	public void testInitPIVanderpolJavaSim()
+	{
+		HybridSimulator.setJavaSimulatorEnabled(true);
+
+		try
+		{
+			runInitPIVanderpol();
+		}
+		finally
+		{
+			HybridSimulator.setJavaSimulatorEnabled(false);
+		}
+	}
+
+	private void runInitPIVanderpol()
+	{
 		String[][] dynamics = { { "barrier_clock", "1", "0" }, { "x", "-y", "0" },
 				{ "y", "-((1-x*x)*y-x)", "0" } };
 		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics);
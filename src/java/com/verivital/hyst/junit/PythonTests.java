@@ -16,11 +16,15 @@ import org.junit.runners.Parameterized.Parameters;
 import com.verivital.hyst.geometry.Interval;
 import com.verivital.hyst.grammar.formula.Expression;
 import com.verivital.hyst.grammar.formula.FormulaParser;
+import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.main.ConversionContext;
 import com.verivital.hyst.passes.complex.hybridize.AffineOptimize;
 import com.verivital.hyst.passes.complex.hybridize.AffineOptimize.OptimizationModeParams;
 import com.verivital.hyst.passes.complex.hybridize.AffineOptimize.OptimizationParams;
+import com.verivital.hyst.python.PySimAutomatonCache;
 import com.verivital.hyst.python.PythonBridge;
+import com.verivital.hyst.python.PythonBridgePool;
 import com.verivital.hyst.python.PythonUtil;
 import com.verivital.hyst.util.AutomatonUtil;
 import com.verivital.hyst.util.KodiakUtil;
@@ -311,4 +315,133 @@ public class PythonTests
 			Assert.assertEquals("Result for optimiziation " + i + " wasn't equal", kod, bb);
 		}
 	}
+
+	/**
+	 * Check that expression results, multi-line commands and function declarations are handled by
+	 * the bridge the same way as in python's interactive mode
+	 */
+	@Test
+	public void testBridgeCommands()
+	{
+		if (!PythonBridge.hasPython())
+			return;
+
+		PythonBridge pb = PythonBridge.getInstance();
+
+		Assert.assertEquals("3", pb.send("1 + 2"));
+		Assert.assertEquals("", pb.send("_bridge_x = 5"));
+		Assert.assertEquals("", pb.sendWithTrailingNewline("def _bridge_f(a):\n    return a * 2\n"));
+		Assert.assertEquals("10\n12", pb.send("_bridge_f(_bridge_x)\n_bridge_f(6)"));
+	}
+
+	/**
+	 * Check that the python pool returns results in order, and replaces workers whose process died
+	 */
+	@Test
+	public void testBridgePool()
+	{
+		if (!PythonBridge.hasPython())
+			return;
+
+		PythonBridgePool pool = new PythonBridgePool(2);
+
+		try
+		{
+			List<String> commands = Arrays.asList("1 + 1", "2 + 2", "3 + 3", "4 + 4", "5 + 5");
+			Assert.assertEquals(Arrays.asList("2", "4", "6", "8", "10"),
+					pool.sendAll("import math", commands));
+
+			PythonBridge pb = pool.lease();
+
+			try
+			{
+				pb.send("import os; os._exit(1)");
+				Assert.fail("expected exception when python process exits");
+			}
+			catch (AutomatonExportException e)
+			{
+				Assert.assertTrue(pb.hasCrashed());
+			}
+
+			pool.release(pb);
+			Assert.assertEquals(1, pool.getRestartCount());
+
+			Assert.assertEquals(Arrays.asList("7"), pool.sendAll(null, Arrays.asList("3 + 4")));
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Contexts with a python pool should lease their process from it, and return it (still running)
+	 * when they are closed
+	 */
+	@Test
+	public void testContextBridgePool()
+	{
+		if (!PythonBridge.hasPython())
+			return;
+
+		PythonBridgePool pool = new PythonBridgePool(1);
+
+		try
+		{
+			PythonBridge[] bridges = new PythonBridge[2];
+
+			for (int i = 0; i < bridges.length; ++i)
+			{
+				ConversionContext context = new ConversionContext();
+				context.pythonBridgePool = pool;
+				ConversionContext previous = context.enter();
+
+				try
+				{
+					bridges[i] = PythonBridge.getInstance();
+					Assert.assertEquals("2", bridges[i].send("1 + 1"));
+				}
+				finally
+				{
+					ConversionContext.exit(previous);
+					context.close();
+				}
+
+				Assert.assertTrue(bridges[i].isOpen());
+			}
+
+			Assert.assertTrue(bridges[0] == bridges[1]);
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Check that pysim automata are registered in python once, and that changed automata get a new
+	 * handle
+	 */
+	@Test
+	public void testPySimAutomatonCache()
+	{
+		if (!PythonBridge.hasPython())
+			return;
+
+		PythonBridge pb = PythonBridge.getInstance();
+		String source1 = "def define_ha():\n    return 'ha1'\n";
+		String source2 = "def define_ha():\n    return 'ha2'\n";
+
+		String ha1 = PySimAutomatonCache.load(pb, source1);
+		long misses = PySimAutomatonCache.getMisses();
+		Assert.assertEquals(ha1, PySimAutomatonCache.load(pb, source1));
+		Assert.assertEquals(misses, PySimAutomatonCache.getMisses());
+
+		String ha2 = PySimAutomatonCache.load(pb, source2);
+		Assert.assertFalse(ha1.equals(ha2));
+		Assert.assertEquals(misses + 1, PySimAutomatonCache.getMisses());
+
+		Assert.assertEquals("ha1", pb.send("print(" + ha1 + ")"));
+		Assert.assertEquals("ha2", pb.send("print(" + ha2 + ")"));
+	}
 }
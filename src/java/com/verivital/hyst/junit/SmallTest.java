@@ -1,40 +1,91 @@
 package com.verivital.hyst.junit;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.verivital.hyst.geometry.HyperPoint;
 import com.verivital.hyst.geometry.Interval;
+import com.verivital.hyst.geometry.SymbolicStatePoint;
+import com.verivital.hyst.grammar.formula.CompiledExpression;
 import com.verivital.hyst.grammar.formula.Constant;
 import com.verivital.hyst.grammar.formula.DefaultExpressionPrinter;
 import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.ExpressionInterner;
 import com.verivital.hyst.grammar.formula.FormulaParser;
+import com.verivital.hyst.grammar.formula.ForwardDiff;
 import com.verivital.hyst.grammar.formula.Operation;
 import com.verivital.hyst.grammar.formula.Operator;
 import com.verivital.hyst.grammar.formula.Variable;
+import com.verivital.hyst.internalpasses.RenameParams;
 import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.AutomatonValidationException;
+import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.ir.SymbolTable;
+import com.verivital.hyst.ir.ValidationCache;
+import com.verivital.hyst.ir.base.AutomatonMode;
+import com.verivital.hyst.ir.base.AutomatonTransition;
 import com.verivital.hyst.ir.base.BaseComponent;
+import com.verivital.hyst.ir.base.CompactAutomaton;
 import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.main.ConversionContext;
 import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.main.Hyst.ExitCode;
+import com.verivital.hyst.main.HystBatch;
+import com.verivital.hyst.main.HystServer;
+import com.verivital.hyst.main.PassCache;
+import com.verivital.hyst.passes.basic.DiscreteAnalysisPass;
 import com.verivital.hyst.passes.basic.SimplifyExpressionsPass;
 import com.verivital.hyst.passes.complex.ContinuizationPass;
 import com.verivital.hyst.passes.complex.ContinuizationPass.IntervalTerm;
+import com.verivital.hyst.passes.complex.hybridize.AffineOptimize;
+import com.verivital.hyst.passes.complex.hybridize.AffineOptimize.OptimizationModeParams;
+import com.verivital.hyst.passes.complex.hybridize.AffineOptimize.OptimizationParams;
 import com.verivital.hyst.printers.DReachPrinter.DReachExpressionPrinter;
 import com.verivital.hyst.printers.FlowstarPrinter;
 import com.verivital.hyst.printers.SimulinkStateflowPrinter;
 import com.verivital.hyst.printers.ToolPrinter;
+import com.verivital.hyst.simulation.DormandPrince;
+import com.verivital.hyst.simulation.HybridSimulator;
+import com.verivital.hyst.simulation.ParallelSimulator;
+import com.verivital.hyst.simulation.SimulationException;
 import com.verivital.hyst.util.AutomatonUtil;
 import com.verivital.hyst.util.Classification;
+import com.verivital.hyst.util.CmdLineRuntimeException;
+import com.verivital.hyst.util.DynamicsUtil;
+import com.verivital.hyst.util.IntervalOptimizer;
+import com.verivital.hyst.util.ModeGraph;
 import com.verivital.hyst.util.RangeExtractor;
 import com.verivital.hyst.util.RangeExtractor.ConstantMismatchException;
 import com.verivital.hyst.util.RangeExtractor.EmptyRangeException;
 import com.verivital.hyst.util.RangeExtractor.UnsupportedConditionException;
+import com.verivital.hyst.util.ValueSubstituter;
 
 import de.uni_freiburg.informatik.swt.sxhybridautomaton.Bind;
 import de.uni_freiburg.informatik.swt.sxhybridautomaton.ParamMap;
@@ -53,7 +104,7 @@ public class SmallTest
 	@Before
 	public void setUpClass()
 	{
-		Expression.expressionPrinter = null;
+		Expression.setExpressionPrinter(null);
 	}
 
 	@Test
@@ -839,7 +890,7 @@ public class SmallTest
 	@Test
 	public void testFlowExpressionPrinter()
 	{
-		Expression.expressionPrinter = new FlowstarPrinter.FlowstarExpressionPrinter();
+		Expression.setExpressionPrinter(new FlowstarPrinter.FlowstarExpressionPrinter());
 		Expression e1 = FormulaParser.parseInvariant("t <= 5");
 		Expression e2 = FormulaParser.parseInvariant("5 <= t");
 		Expression e3 = FormulaParser.parseInvariant("5 < t");
@@ -902,6 +953,1472 @@ public class SmallTest
 		Assert.assertEquals("Entry 1, 1 is correct", 5.5, rv[1][1], TOL);
 	}
 
+	/**
+	 * Compiled expressions should evaluate to the same values as substituting and simplifying
+	 */
+	@Test
+	public void testCompiledExpressionEquivalence()
+	{
+		String[] values = { "2 * x + y", "x^2 - 3 * y / z", "sin(x) * cos(y) + tan(z)",
+				"exp(-x) + sqrt(y * y) + ln(z + 10)", "-(x - y) * -z", "1 / (x - x)",
+				"x * y * z - 7.5", "x^0.5" };
+		String[] conditions = { "x <= y & y < z | x = 1", "x >= 1 | y > 2", "x != y & z <= 0",
+				"x < y & y < z & z < 2 * x" };
+
+		ArrayList<Expression> exps = new ArrayList<Expression>();
+
+		for (String v : values)
+			exps.add(FormulaParser.parseValue(v));
+
+		for (String c : conditions)
+			exps.add(FormulaParser.parseGuard(c));
+
+		ArrayList<String> vars = new ArrayList<String>(Arrays.asList("x", "y", "z"));
+		double[][] points = { { 0, 0, 0 }, { 1, 2, 3 }, { -1, 0.5, -2 }, { 1, 1, 1 },
+				{ 3.3, -7.1, 0.01 }, { 1e6, -1e-6, 42 } };
+
+		for (Expression e : exps)
+		{
+			CompiledExpression ce = CompiledExpression.compile(e, vars);
+
+			for (double[] pt : points)
+			{
+				double expected = AutomatonUtil.evaluateExpressionSimplify(e, new HyperPoint(pt),
+						vars);
+				double actual = ce.evaluate(pt);
+
+				Assert.assertEquals("compiled value of '" + e.toDefaultString() + "' at "
+						+ Arrays.toString(pt), expected, actual, 0);
+			}
+		}
+	}
+
+	/**
+	 * Compiling an expression with a variable not in the variable list should give an error
+	 */
+	@Test
+	public void testCompiledExpressionUnknownVariable()
+	{
+		Expression e = FormulaParser.parseValue("x + w");
+
+		try
+		{
+			CompiledExpression.compile(e, Arrays.asList("x", "y"));
+			Assert.fail("expected exception for unknown variable");
+		}
+		catch (AutomatonExportException ex)
+		{
+			// expected
+		}
+	}
+
+	/**
+	 * Cached compiled expressions should be reused, but recompiled if the expression or the
+	 * variable ordering changes
+	 */
+	@Test
+	public void testCompiledExpressionCache()
+	{
+		Operation o = (Operation) FormulaParser.parseValue("2 * x + y");
+		List<String> vars = Arrays.asList("x", "y");
+		double[] pt = { 3, 5 };
+
+		CompiledExpression first = CompiledExpression.getCached(o, vars);
+		Assert.assertSame(first, CompiledExpression.getCached(o, new ArrayList<String>(vars)));
+		Assert.assertEquals(11, first.evaluate(pt), 1e-9);
+
+		// modify in place
+		o.children.set(1, new Variable("x"));
+		CompiledExpression second = CompiledExpression.getCached(o, vars);
+		Assert.assertNotSame(first, second);
+		Assert.assertEquals(9, second.evaluate(pt), 1e-9);
+
+		// different variable ordering
+		Assert.assertEquals(15, CompiledExpression.getCached(o, Arrays.asList("y", "x"))
+				.evaluate(pt), 1e-9);
+
+		// processReset uses the cache, and gives the same result as simplification
+		LinkedHashMap<String, ExpressionInterval> reset = new LinkedHashMap<String, ExpressionInterval>();
+		reset.put("y", new ExpressionInterval(FormulaParser.parseValue("x * x - y")));
+		HyperPoint hp = new HyperPoint(3, 5);
+
+		Assert.assertEquals(4, AutomatonUtil.processReset(hp, new ArrayList<String>(vars), reset)
+				.dims[1], 1e-9);
+		Assert.assertEquals(4, AutomatonUtil.processReset(hp, new ArrayList<String>(vars), reset)
+				.dims[1], 1e-9);
+	}
+
+	/**
+	 * The Jacobian estimate should not depend on whether compiled evaluation is used
+	 */
+	@Test
+	public void testCompiledJacobianEquivalence()
+	{
+		LinkedHashMap<String, ExpressionInterval> dy = new LinkedHashMap<String, ExpressionInterval>();
+		dy.put("x", new ExpressionInterval(FormulaParser.parseValue("sin(x) * y")));
+		dy.put("y", new ExpressionInterval(FormulaParser.parseValue("x^2 - y / 3")));
+
+		HashMap<String, Interval> bounds = new HashMap<String, Interval>();
+		bounds.put("x", new Interval(-1, 2));
+		bounds.put("y", new Interval(0.5, 3));
+
+		boolean original = AutomatonUtil.isCompiledEvaluationEnabled();
+
+		try
+		{
+			AutomatonUtil.setCompiledEvaluationEnabled(false);
+			double[][] expected = AutomatonUtil.estimateJacobian(dy, bounds);
+
+			AutomatonUtil.setCompiledEvaluationEnabled(true);
+			double[][] actual = AutomatonUtil.estimateJacobian(dy, bounds);
+
+			for (int y = 0; y < expected.length; ++y)
+				Assert.assertArrayEquals(expected[y], actual[y], 0);
+		}
+		finally
+		{
+			AutomatonUtil.setCompiledEvaluationEnabled(original);
+		}
+	}
+
+	/**
+	 * Test the per-mode transition index of BaseComponent, including after direct modifications of
+	 * the transitions list
+	 */
+	@Test
+	public void testTransitionIndex()
+	{
+		BaseComponent ha = new BaseComponent();
+		AutomatonMode a = ha.createMode("a");
+		AutomatonMode b = ha.createMode("b");
+		AutomatonMode c = ha.createMode("c");
+
+		AutomatonTransition ab = ha.createTransition(a, b);
+		ab.label = "go";
+		AutomatonTransition bc = ha.createTransition(b, c);
+		AutomatonTransition ac = ha.createTransition(a, c);
+		ac.label = "go";
+
+		Assert.assertEquals(Arrays.asList(ab, ac), ha.getOutgoingTransitions(a));
+		Assert.assertEquals(Arrays.asList(bc, ac), ha.getIncomingTransitions(c));
+		Assert.assertEquals(Arrays.asList(ab, ac), ha.getTransitionsWithLabel("go"));
+		Assert.assertEquals(0, ha.getTransitionsWithLabel("stop").size());
+		Assert.assertSame(bc, ha.findTransition("b", "c"));
+		Assert.assertNull(ha.findTransition("c", "a"));
+
+		// renaming labels rebuilds the label index
+		ha.labels.add("go");
+		Map<String, String> rename = new HashMap<String, String>();
+		rename.put("go", "start");
+		RenameParams.swapNames(ha, rename);
+		Assert.assertEquals(Arrays.asList(ab, ac), ha.getTransitionsWithLabel("start"));
+		Assert.assertEquals(0, ha.getTransitionsWithLabel("go").size());
+
+		// incremental update
+		AutomatonTransition ca = ha.createTransition(c, a);
+		Assert.assertEquals(Arrays.asList(ca), ha.getOutgoingTransitions(c));
+		Assert.assertSame(ca, ha.findTransition("c", "a"));
+
+		// direct modification of the list is detected
+		ha.transitions.remove(ab);
+		Assert.assertEquals(Arrays.asList(ac), ha.getOutgoingTransitions(a));
+		Assert.assertEquals(0, ha.getIncomingTransitions(b).size());
+
+		ha.redirectTransition(ac, a, b);
+		Assert.assertEquals(Arrays.asList(ac), ha.getIncomingTransitions(b));
+		Assert.assertEquals(Arrays.asList(bc), ha.getIncomingTransitions(c));
+
+		ha.removeModes(Arrays.asList(b));
+		Assert.assertEquals(2, ha.modes.size());
+		Assert.assertEquals(Arrays.asList(ca), ha.transitions);
+		Assert.assertEquals(0, ha.getOutgoingTransitions(a).size());
+		Assert.assertEquals(Arrays.asList(ca), ha.getIncomingTransitions(a));
+
+		ha.removeTransitions(Arrays.asList(ca));
+		Assert.assertEquals(0, ha.transitions.size());
+		Assert.assertEquals(0, ha.getOutgoingTransitions(c).size());
+	}
+
+	/**
+	 * Test the symbol table of a component: ids, rebuilding after changes, id-indexed flows and
+	 * resets, and resolving variable nodes
+	 */
+	@Test
+	public void testSymbolTable()
+	{
+		BaseComponent ha = new BaseComponent();
+		ha.variables.add("x");
+		ha.variables.add("y");
+		ha.variables.add("u");
+		ha.constants.put("k", new Interval(2));
+		ha.labels.add("go");
+
+		AutomatonMode am = ha.createMode("on", "x <= 5", "x' == k * x + u & y' == 1");
+		AutomatonTransition at = ha.createTransition(am, am);
+		at.guard = FormulaParser.parseGuard("x >= 5");
+		at.reset.put("x", new ExpressionInterval(FormulaParser.parseValue("0")));
+
+		SymbolTable symbols = ha.getSymbolTable();
+		Assert.assertSame("table is cached", symbols, ha.getSymbolTable());
+		Assert.assertEquals(1, symbols.getVariableId("y"));
+		Assert.assertEquals(-1, symbols.getVariableId("k"));
+		Assert.assertEquals(0, symbols.getConstantId("k"));
+		Assert.assertEquals(0, symbols.getLabelId("go"));
+		Assert.assertEquals("u", symbols.getVariableName(2));
+
+		ExpressionInterval[] flows = am.getFlowArray();
+		Assert.assertEquals(3, flows.length);
+		Assert.assertSame(am.flowDynamics.get("y"), flows[1]);
+		Assert.assertNull("u is an input", flows[2]);
+		Assert.assertEquals(Arrays.asList("u"), DynamicsUtil.getInputVariables(am));
+		Assert.assertTrue(DynamicsUtil.isNonInputVariable(symbols, flows, "x"));
+		Assert.assertFalse(DynamicsUtil.isNonInputVariable(symbols, flows, "u"));
+		Assert.assertFalse(DynamicsUtil.isNonInputVariable(symbols, flows, "k"));
+
+		ExpressionInterval[] resets = at.getResetArray();
+		Assert.assertNotNull(resets[0]);
+		Assert.assertNull(resets[1]);
+
+		// resolving sets the index of variable nodes, but not constants
+		Expression e = am.flowDynamics.get("x").getExpression();
+		Assert.assertEquals(2, symbols.resolve(e));
+		Operation mult = e.asOperation().getLeft().asOperation();
+		Assert.assertEquals(-1, ((Variable) mult.getLeft()).index);
+		Assert.assertEquals(0, ((Variable) mult.getRight()).index);
+
+		// compiled expressions use the ids for the values array
+		CompiledExpression ce = CompiledExpression.compile(
+				FormulaParser.parseValue("y - 2 * u"), symbols);
+		Assert.assertEquals(-3, ce.evaluate(new double[] { 100, 1, 2 }), 1e-9);
+
+		// modifications cause a rebuild
+		ha.variables.add(1, "z");
+		SymbolTable rebuilt = ha.getSymbolTable();
+		Assert.assertNotSame(symbols, rebuilt);
+		Assert.assertEquals(2, rebuilt.getVariableId("y"));
+		Assert.assertEquals(4, am.getFlowArray().length);
+
+		ha.constants.put("c", new Interval(1));
+		Assert.assertEquals(1, ha.getSymbolTable().getConstantId("c"));
+
+		// replacing a constant keeps the same number of constants, but changes the names
+		ha.constants.remove("c");
+		ha.constants.put("d", new Interval(2));
+		Assert.assertEquals(-1, ha.getSymbolTable().getConstantId("c"));
+		Assert.assertEquals(1, ha.getSymbolTable().getConstantId("d"));
+
+		// changing a constant's value doesn't
+		rebuilt = ha.getSymbolTable();
+		ha.constants.put("d", new Interval(3));
+		Assert.assertSame(rebuilt, ha.getSymbolTable());
+
+		// copies keep tracking modifications
+		BaseComponent copy = (BaseComponent) ha.copy();
+		SymbolTable copySymbols = copy.getSymbolTable();
+		Assert.assertSame(copySymbols, copy.getSymbolTable());
+		copy.labels.remove("go");
+		Assert.assertEquals(-1, copy.getSymbolTable().getLabelId("go"));
+	}
+
+	/**
+	 * The automatic differentiation Jacobian should match central differences, and be exact for the
+	 * quadratic dynamics in testSampleJacobian
+	 */
+	@Test
+	public void testForwardDiffJacobian()
+	{
+		LinkedHashMap<String, ExpressionInterval> dy = new LinkedHashMap<String, ExpressionInterval>();
+		dy.put("x", new ExpressionInterval(FormulaParser.parseValue("2 * x + y")));
+		dy.put("y", new ExpressionInterval(FormulaParser.parseValue("3 * y * x + y")));
+
+		HashMap<String, Interval> bounds = new HashMap<String, Interval>();
+		bounds.put("x", new Interval(1, 2));
+		bounds.put("y", new Interval(2, 3));
+
+		double[][] jac = AutomatonUtil.jacobianAtCenter(dy, bounds);
+		Assert.assertArrayEquals(new double[] { 2.0, 1.0 }, jac[0], 1e-12);
+		Assert.assertArrayEquals(new double[] { 7.5, 5.5 }, jac[1], 1e-12);
+
+		String[] values = { "sin(x) * cos(y) + tan(z)", "exp(-x) * sqrt(y * y + 1) + ln(z + 10)",
+				"x^3 - y / z + 2^x", "(x - y) / (z * z + 1)", "x^y", "7" };
+		ArrayList<Expression> exps = new ArrayList<Expression>();
+
+		for (String v : values)
+			exps.add(FormulaParser.parseValue(v));
+
+		ArrayList<String> vars = new ArrayList<String>(Arrays.asList("x", "y", "z"));
+		ForwardDiff fd = new ForwardDiff(exps, vars);
+		double[][] points = { { 1, 2, 3 }, { 0.3, 0.5, -2 }, { 1.7, -1.1, 0.01 } };
+		double[][] out = new double[exps.size()][vars.size()];
+		double h = 1e-6;
+
+		for (double[] pt : points)
+		{
+			fd.jacobian(pt, out);
+
+			for (int row = 0; row < exps.size(); ++row)
+			{
+				CompiledExpression ce = CompiledExpression.compile(exps.get(row), vars);
+				double[] grad = new double[vars.size()];
+				double value = fd.gradient(row, pt, grad);
+
+				Assert.assertEquals(ce.evaluate(pt), value, 1e-12);
+				Assert.assertArrayEquals(out[row], grad, 0);
+
+				for (int col = 0; col < vars.size(); ++col)
+				{
+					double[] left = pt.clone();
+					double[] right = pt.clone();
+					left[col] -= h;
+					right[col] += h;
+
+					double estimate = (ce.evaluate(right) - ce.evaluate(left)) / (2 * h);
+					String msg = "d(" + values[row] + ")/d" + vars.get(col) + " at "
+							+ Arrays.toString(pt);
+
+					if (values[row].startsWith("x^y") && pt[0] < 0)
+						continue; // not real-valued
+
+					Assert.assertEquals(msg, estimate, out[row][col],
+							1e-5 * Math.max(1, Math.abs(estimate)));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Interval-valued automatic differentiation should bound the Jacobian and the linearization
+	 * error over a box
+	 */
+	@Test
+	public void testForwardDiffBounds()
+	{
+		String[] values = { "x * x * y - 2 * y", "sin(x) + cos(y) * exp(x)",
+				"sqrt(y) / (x + 3) + ln(y)", "x^3 - y^2 + 2" };
+		ArrayList<Expression> exps = new ArrayList<Expression>();
+
+		for (String v : values)
+			exps.add(FormulaParser.parseValue(v));
+
+		ArrayList<String> vars = new ArrayList<String>(Arrays.asList("x", "y"));
+		ForwardDiff fd = new ForwardDiff(exps, vars);
+
+		double[] lo = { -1, 0.5 };
+		double[] hi = { 2, 1.5 };
+		double[] center = { 0.5, 1 };
+		int rows = exps.size();
+
+		double[][] jacMin = new double[rows][2];
+		double[][] jacMax = new double[rows][2];
+		double[][] jacCenter = new double[rows][2];
+		double[][] jac = new double[rows][2];
+		double[] errMin = new double[rows];
+		double[] errMax = new double[rows];
+		double[] centerVal = new double[rows];
+
+		fd.jacobianBounds(lo, hi, jacMin, jacMax);
+		fd.linearizationErrorBounds(lo, hi, center, errMin, errMax);
+		fd.jacobian(center, jacCenter);
+
+		for (int row = 0; row < rows; ++row)
+			centerVal[row] = fd.gradient(row, center, new double[2]);
+
+		// x^3 over [-1, 2] has derivative 3x^2 in [0, 12]
+		Assert.assertEquals(0, jacMin[3][0], 1e-12);
+		Assert.assertEquals(12, jacMax[3][0], 1e-12);
+
+		int samples = 20;
+
+		for (int a = 0; a <= samples; ++a)
+		{
+			for (int b = 0; b <= samples; ++b)
+			{
+				double[] pt = { lo[0] + (hi[0] - lo[0]) * a / samples,
+						lo[1] + (hi[1] - lo[1]) * b / samples };
+
+				fd.jacobian(pt, jac);
+
+				for (int row = 0; row < rows; ++row)
+				{
+					for (int col = 0; col < 2; ++col)
+						Assert.assertTrue("jacobian within bounds for " + values[row],
+								jac[row][col] >= jacMin[row][col] - 1e-12
+										&& jac[row][col] <= jacMax[row][col] + 1e-12);
+
+					double value = fd.gradient(row, pt, new double[2]);
+					double linear = centerVal[row] + jacCenter[row][0] * (pt[0] - center[0])
+							+ jacCenter[row][1] * (pt[1] - center[1]);
+					double err = value - linear;
+
+					Assert.assertTrue("linearization error within bounds for " + values[row],
+							err >= errMin[row] - 1e-12 && err <= errMax[row] + 1e-12);
+				}
+			}
+		}
+
+		try
+		{
+			ArrayList<Expression> bad = new ArrayList<Expression>();
+			bad.add(FormulaParser.parseValue("1 / x"));
+			new ForwardDiff(bad, vars).jacobianBounds(lo, hi, jacMin, jacMax);
+			Assert.fail("expected exception for division by interval containing zero");
+		}
+		catch (AutomatonExportException e)
+		{
+			// expected
+		}
+	}
+
+	/**
+	 * Interval evaluation of the nonlinear functions
+	 */
+	@Test
+	public void testIntervalEvaluateFunctions()
+	{
+		HashMap<String, Interval> ranges = new HashMap<String, Interval>();
+		ranges.put("x", new Interval(1, 4));
+		ranges.put("t", new Interval(0, Math.PI));
+		ranges.put("s", new Interval(-0.5, 0.5));
+		double TOL = 1e-12;
+
+		Interval i = Interval.intervalEvaluate(FormulaParser.parseValue("sqrt(x)"), ranges);
+		Assert.assertEquals(1, i.min, TOL);
+		Assert.assertEquals(2, i.max, TOL);
+
+		i = Interval.intervalEvaluate(FormulaParser.parseValue("exp(s)"), ranges);
+		Assert.assertEquals(Math.exp(-0.5), i.min, TOL);
+		Assert.assertEquals(Math.exp(0.5), i.max, TOL);
+
+		i = Interval.intervalEvaluate(FormulaParser.parseValue("sin(t)"), ranges);
+		Assert.assertEquals(0, i.min, TOL);
+		Assert.assertEquals(1, i.max, TOL);
+
+		i = Interval.intervalEvaluate(FormulaParser.parseValue("cos(t)"), ranges);
+		Assert.assertEquals(-1, i.min, TOL);
+		Assert.assertEquals(1, i.max, TOL);
+
+		i = Interval.intervalEvaluate(FormulaParser.parseValue("tan(s)"), ranges);
+		Assert.assertEquals(Math.tan(-0.5), i.min, TOL);
+		Assert.assertEquals(Math.tan(0.5), i.max, TOL);
+
+		try
+		{
+			Interval.intervalEvaluate(FormulaParser.parseValue("tan(t)"), ranges);
+			Assert.fail("expected exception for tan over an asymptote");
+		}
+		catch (AutomatonExportException e)
+		{
+			// expected
+		}
+	}
+
+	/**
+	 * Horner form rewriting should produce an equivalent expression
+	 */
+	@Test
+	public void testHornerForm()
+	{
+		Expression e = FormulaParser.parseValue("x^3 + 2 * x^2 + x");
+		Expression h = IntervalOptimizer.toHornerForm(e);
+
+		Assert.assertEquals("x * (1.0 + x * (2.0 + x))", h.toDefaultString());
+
+		String[] values = { "x^3 + 2 * x^2 + x", "3 * y * x + y - 7.5 * x - 5.5 * y",
+				"(x - y)^2 - x^2 / 4", "sin(x^2 + 2 * x) + y^4 * x", "x^2", "5" };
+		ArrayList<String> vars = new ArrayList<String>(Arrays.asList("x", "y"));
+		double[][] points = { { 0, 0 }, { 1, 2 }, { -1.5, 0.5 }, { 3.3, -7.1 } };
+
+		for (String v : values)
+		{
+			e = FormulaParser.parseValue(v);
+			h = IntervalOptimizer.toHornerForm(e);
+			CompiledExpression ce = CompiledExpression.compile(e, vars);
+			CompiledExpression ch = CompiledExpression.compile(h, vars);
+
+			for (double[] pt : points)
+			{
+				double expected = ce.evaluate(pt);
+
+				Assert.assertEquals("horner form of " + v + " is " + h.toDefaultString(), expected,
+						ch.evaluate(pt), 1e-9 * Math.max(1, Math.abs(expected)));
+			}
+		}
+
+		// even powers should stay as powers, since x * x is a worse interval bound than x^2
+		Assert.assertEquals("x ^ 2.0", IntervalOptimizer
+				.toHornerForm(FormulaParser.parseValue("x^2")).toDefaultString());
+	}
+
+	/**
+	 * The java interval optimizer should produce sound bounds within the requested error, both
+	 * sequentially and in parallel
+	 */
+	@Test
+	public void testIntervalOptimizer()
+	{
+		// expression, x range, y range, true min, true max
+		String[] exps = { "x^3 + 2 * x^2 + x", "x^2 - 2*x", "3 * y * x - 7.5 * x - 4.5 * y",
+				"sin(x) * y - y^2" };
+		double[][] domains = { { -1, 1, 0, 0 }, { 0, 2, 0, 0 }, { 1, 2, 2, 3 },
+				{ 0, 1, -1, 1 } };
+		double[][] expected = { { -4.0 / 27, 4 }, { -1, 0 }, { -12, -10.5 },
+				{ -1 - Math.sin(1), Math.sin(1) * Math.sin(1) / 4 } };
+
+		ArrayList<Expression> expList = new ArrayList<Expression>();
+		ArrayList<HashMap<String, Interval>> boundsList = new ArrayList<HashMap<String, Interval>>();
+
+		for (int i = 0; i < exps.length; ++i)
+		{
+			expList.add(FormulaParser.parseValue(exps[i]));
+
+			HashMap<String, Interval> bounds = new HashMap<String, Interval>();
+			bounds.put("x", new Interval(domains[i][0], domains[i][1]));
+			bounds.put("y", new Interval(domains[i][2], domains[i][3]));
+			boundsList.add(bounds);
+		}
+
+		int originalThreads = IntervalOptimizer.getNumThreads();
+		double maxError = 0.01;
+
+		try
+		{
+			for (int threads : new int[] { 1, 4 })
+			{
+				IntervalOptimizer.setNumThreads(threads);
+				List<Interval> result = IntervalOptimizer.optimize(expList, boundsList, maxError);
+
+				for (int i = 0; i < exps.length; ++i)
+				{
+					Interval r = result.get(i);
+					String msg = exps[i] + " with " + threads + " threads: " + r;
+
+					Assert.assertTrue("sound lower bound for " + msg,
+							r.min <= expected[i][0] + 1e-9);
+					Assert.assertTrue("sound upper bound for " + msg,
+							r.max >= expected[i][1] - 1e-9);
+					Assert.assertTrue("lower bound within error for " + msg,
+							r.min >= expected[i][0] - maxError - 1e-9);
+					Assert.assertTrue("upper bound within error for " + msg,
+							r.max <= expected[i][1] + maxError + 1e-9);
+				}
+
+				// without an error bound, it's a single (sound) interval evaluation
+				Interval r = IntervalOptimizer.optimize(expList, boundsList, 0).get(1);
+				Assert.assertTrue(r.min <= -1 && r.max >= 0);
+			}
+		}
+		finally
+		{
+			IntervalOptimizer.setNumThreads(originalThreads);
+		}
+	}
+
+	/**
+	 * The javainterval optimization type should work without python
+	 */
+	@Test
+	public void testAffineOptimizeJavaInterval()
+	{
+		LinkedHashMap<String, ExpressionInterval> dy = new LinkedHashMap<String, ExpressionInterval>();
+		dy.put("x", new ExpressionInterval(FormulaParser.parseValue("2 * x + y")));
+		dy.put("y", new ExpressionInterval(FormulaParser.parseValue("3 * y * x + y")));
+
+		HashMap<String, Interval> bounds = new HashMap<String, Interval>();
+		bounds.put("x", new Interval(1, 2));
+		bounds.put("y", new Interval(2, 3));
+
+		List<OptimizationParams> params = new ArrayList<OptimizationParams>();
+		OptimizationParams op = new OptimizationParams();
+		op.newDynamics = AffineOptimize.affineApprox(dy, bounds);
+		OptimizationModeParams modeParams = new OptimizationModeParams();
+		modeParams.origDynamics = dy;
+		modeParams.bounds = bounds;
+		op.origModes.add(modeParams);
+		params.add(op);
+
+		AffineOptimize.optimizeDynamics("javainterval0.001", params);
+
+		// y' == 7.5*x + 5.5*y - 11.25 + [-0.75, 0.75]
+		ExpressionInterval yEi = params.get(0).result.get("y");
+		Interval i = yEi.getInterval();
+		Assert.assertEquals(-0.75, i.min, 0.002);
+		Assert.assertEquals(0.75, i.max, 0.002);
+		Assert.assertTrue("interval is sound", i.min <= -0.75 && i.max >= 0.75);
+
+		double val = AutomatonUtil.evaluateExpression(yEi.getExpression(),
+				new HyperPoint(1, 2), Arrays.asList("x", "y"));
+		Assert.assertEquals(7.5 + 11 - 11.25, val, 1e-9);
+
+		// the x dynamics are linear, so the interval is removed
+		Assert.assertNull(params.get(0).result.get("x").getInterval());
+	}
+
+	/**
+	 * Interning structurally-equal expressions should return the same shared, immutable object
+	 */
+	@Test
+	public void testInternSharesSubexpressions()
+	{
+		ExpressionInterner interner = new ExpressionInterner();
+
+		Expression a = interner.intern(FormulaParser.parseGuard("x + 2 * y >= 5 & t <= 1"));
+		Expression b = interner.intern(FormulaParser.parseGuard("x + 2 * y >= 5 & t <= 1"));
+		Expression c = interner.intern(FormulaParser.parseValue("x + 2 * y"));
+
+		Assert.assertTrue("equal expressions are shared", a == b);
+		Assert.assertTrue("equal subexpressions are shared",
+				a.asOperation().getLeft().asOperation().getLeft() == c);
+		Assert.assertTrue("interned expressions are immutable", c.isImmutable());
+		Assert.assertEquals("x + 2.0 * y >= 5.0 & t <= 1.0", a.toDefaultString());
+		Assert.assertTrue("second interning was all hits", interner.getHits() >= 11);
+
+		try
+		{
+			c.asOperation().children.set(0, new Constant(1));
+			Assert.fail("interned operation children should not be modifiable");
+		}
+		catch (UnsupportedOperationException e)
+		{
+			// expected
+		}
+
+		// copies are regular mutable trees
+		Expression copy = c.copy();
+		Assert.assertFalse(copy.isImmutable());
+		copy.asOperation().children.set(0, new Constant(1));
+		Assert.assertEquals("1.0 + 2.0 * y", copy.toDefaultString());
+		Assert.assertEquals("x + 2.0 * y", c.toDefaultString());
+	}
+
+	/**
+	 * Simplification and substitution should not modify shared (interned) expressions
+	 */
+	@Test
+	public void testInternCopyOnWrite()
+	{
+		ExpressionInterner interner = new ExpressionInterner();
+		Expression e = interner.intern(FormulaParser.parseValue("x + 0 * (y + z)"));
+
+		Expression simple = SimplifyExpressionsPass.simplifyExpression(e);
+		Assert.assertEquals("x", simple.toDefaultString());
+		Assert.assertEquals("x + 0.0 * (y + z)", e.toDefaultString());
+
+		Map<String, Expression> subs = new TreeMap<String, Expression>();
+		subs.put("y", new Constant(3));
+		Expression substituted = new ValueSubstituter(subs).substitute(e);
+
+		Assert.assertEquals("x + 0.0 * (3.0 + z)", substituted.toDefaultString());
+		Assert.assertEquals("x + 0.0 * (y + z)", e.toDefaultString());
+
+		// a changed result is mutable throughout, so later passes can edit it in place
+		Operation right = substituted.asOperation().getRight().asOperation();
+		right.children.set(0, new Constant(1));
+		substituted.asOperation().children.set(0, new Variable("w"));
+		Assert.assertEquals("w + 1.0 * (3.0 + z)", substituted.toDefaultString());
+		Assert.assertEquals("x + 0.0 * (y + z)", e.toDefaultString());
+
+		Expression partlySimple = SimplifyExpressionsPass
+				.simplifyExpression(interner.intern(FormulaParser.parseValue("x * y + 2 * 3")));
+		partlySimple.asOperation().getLeft().asOperation().children.set(0, new Variable("z"));
+		Assert.assertEquals("z * y + 6.0", partlySimple.toDefaultString());
+
+		// nothing to substitute returns the original expression
+		subs.clear();
+		subs.put("w", new Constant(1));
+		Assert.assertTrue(new ValueSubstituter(subs).substitute(e) == e);
+	}
+
+	/**
+	 * Validation should only recheck elements which changed, unless full validation is enabled
+	 */
+	@Test
+	public void testIncrementalValidation()
+	{
+		String[][] dynamics1 = { { "x", "x + 1" }, { "t", "1" } };
+		String[][] dynamics2 = { { "x", "-1" }, { "t", "1" } };
+		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics1, "x <= 2", "x >= 2",
+				dynamics2);
+		BaseComponent ha = (BaseComponent) c.root;
+		AutomatonMode mode1 = ha.modes.get("mode1");
+
+		// incremental validation is disabled by default
+		Assert.assertTrue(Configuration.isFullValidation());
+		Configuration.setFullValidation(false);
+		c.validate();
+		ValidationCache.resetCounters();
+		c.validate();
+		Assert.assertEquals(1, ValidationCache.componentsSkipped.get());
+		Assert.assertEquals(2, ValidationCache.modesSkipped.get());
+		Assert.assertEquals(1, ValidationCache.transitionsSkipped.get());
+		Assert.assertEquals(0, ValidationCache.modesChecked.get());
+
+		// replacing a flow marks only that mode as changed
+		ValidationCache.resetCounters();
+		mode1.flowDynamics.put("x", new ExpressionInterval("x + t"));
+		c.validate();
+		Assert.assertEquals(1, ValidationCache.modesChecked.get());
+		Assert.assertEquals(1, ValidationCache.modesSkipped.get());
+
+		mode1.flowDynamics.put("x", new ExpressionInterval("x + q"));
+
+		try
+		{
+			c.validate();
+			Assert.fail("undefined variable in flow was not detected");
+		}
+		catch (AutomatonValidationException e)
+		{
+			// expected
+		}
+
+		// in-place modifications of expressions are only detected after invalidating, or by full
+		// validation
+		Operation flow = new Operation(Operator.ADD, new Variable("x"), new Constant(1));
+		mode1.flowDynamics.put("x", new ExpressionInterval(flow));
+		c.validate();
+		flow.children.set(1, new Variable("q"));
+		c.validate();
+
+		try
+		{
+			c.invalidateValidation();
+			c.validate();
+			Assert.fail("invalidated validation did not detect in-place modification");
+		}
+		catch (AutomatonValidationException e)
+		{
+			// expected
+		}
+
+		try
+		{
+			Configuration.setFullValidation(true);
+			c.validate();
+			Assert.fail("full validation did not detect in-place modification");
+		}
+		catch (AutomatonValidationException e)
+		{
+			// expected
+		}
+	}
+
+	/**
+	 * Test the compact (struct-of-arrays) representation of a flat automaton
+	 */
+	@Test
+	public void testCompactAutomaton()
+	{
+		String[][] dynamics1 = { { "x", "2 * x - y + 1" }, { "y", "x * x" } };
+		String[][] dynamics2 = { { "x", "-y + x * 2 + 1" }, { "y", "x" } };
+		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics1,
+				"x <= 5 & 1 <= y & x + y <= 10", "x >= 5", dynamics2);
+		BaseComponent ha = (BaseComponent) c.root;
+		AutomatonMode mode2 = ha.modes.get("mode2");
+		mode2.flowDynamics.get("y").setInterval(new Interval(-0.5, 0.5));
+
+		AutomatonTransition at = ha.transitions.get(0);
+		at.label = "go";
+		at.reset.put("y", new ExpressionInterval("3 * x"));
+		ha.labels.add("go");
+
+		CompactAutomaton ca = new CompactAutomaton(ha);
+
+		Assert.assertEquals(2, ca.numModes());
+		Assert.assertEquals(1, ca.getModeIndex("mode2"));
+		Assert.assertEquals(-1, ca.getModeIndex("go"));
+		Assert.assertEquals(-1, ca.getModeIndex("mode3"));
+
+		int x = ca.getVariableId("x");
+		int y = ca.getVariableId("y");
+
+		// the x flows are written differently, but they are the same row
+		int row = ca.getFlowRow(0, x);
+		Assert.assertEquals(row, ca.getFlowRow(1, x));
+		Assert.assertTrue(ca.isAffineRow(row));
+		Assert.assertEquals(2, ca.getRowLength(row));
+		Assert.assertEquals(1.0, ca.getRowConstant(row), 1e-9);
+
+		double[] coefficients = new double[ca.numVariables()];
+		ca.getRowCoefficients(row, coefficients);
+		Assert.assertEquals(2.0, coefficients[x], 1e-9);
+		Assert.assertEquals(-1.0, coefficients[y], 1e-9);
+
+		// nonlinear flows are residual rows, and intervals are kept
+		Assert.assertFalse(ca.isAffineRow(ca.getFlowRow(0, y)));
+		Assert.assertEquals("x * x", ca.getRowExpression(ca.getFlowRow(0, y)).toDefaultString());
+		Assert.assertEquals(new Interval(-0.5, 0.5), ca.getRowInterval(ca.getFlowRow(1, y)));
+
+		// invariants are split into box constraints and a residual
+		Assert.assertEquals(5.0, ca.getInvariantUpper(0, x), 1e-9);
+		Assert.assertEquals(1.0, ca.getInvariantLower(0, y), 1e-9);
+		Assert.assertEquals(Double.NEGATIVE_INFINITY, ca.getInvariantLower(0, x), 1e-9);
+		Assert.assertEquals("x + y <= 10.0", ca.getInvariantResidual(0).toDefaultString());
+		Assert.assertNull(ca.getInvariantResidual(1));
+		Assert.assertEquals(Constant.TRUE, ca.getInvariant(1));
+
+		// transitions
+		Assert.assertEquals(1, ca.numTransitions());
+		Assert.assertEquals(0, ca.getTransitionFrom(0));
+		Assert.assertEquals(1, ca.getTransitionTo(0));
+		Assert.assertEquals("go", ca.getTransitionLabel(0));
+		Assert.assertEquals(1, ca.numResets(0));
+		Assert.assertEquals(y, ca.getResetVariable(0, 0));
+		int resetRow = ca.getResetRow(0, 0);
+		ca.getRowCoefficients(resetRow, coefficients);
+		Assert.assertEquals(3.0, coefficients[x], 1e-9);
+
+		// round trip
+		BaseComponent converted = ca.toBaseComponent();
+		converted.validate();
+
+		Assert.assertEquals(2, converted.modes.size());
+		Assert.assertEquals("x <= 5.0 & y >= 1.0 & x + y <= 10.0",
+				converted.modes.get("mode1").invariant.toDefaultString());
+		Assert.assertEquals("go", converted.transitions.get(0).label);
+		Assert.assertEquals(new Interval(-0.5, 0.5),
+				converted.modes.get("mode2").flowDynamics.get("y").getInterval());
+	}
+
+	/**
+	 * Test forward / backward discrete reachability and the strongly connected components
+	 */
+	@Test
+	public void testDiscreteAnalysisPass()
+	{
+		String[][] dynamics = { { "x", "1" } };
+		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics);
+		BaseComponent ha = (BaseComponent) c.root;
+		AutomatonMode on = ha.modes.get("on");
+
+		// on -> a <-> b (forbidden), on -> deadEnd, unreachable -> a
+		AutomatonMode a = on.copy(ha, "a");
+		AutomatonMode b = on.copy(ha, "b");
+		AutomatonMode deadEnd = on.copy(ha, "deadEnd");
+		AutomatonMode unreachable = on.copy(ha, "unreachable");
+
+		ha.createTransition(on, a).guard = Constant.TRUE;
+		ha.createTransition(a, b).guard = Constant.TRUE;
+		ha.createTransition(b, a).guard = Constant.TRUE;
+		ha.createTransition(on, deadEnd).guard = Constant.TRUE;
+		ha.createTransition(unreachable, a).guard = Constant.TRUE;
+		c.forbidden.put("b", Constant.TRUE);
+		c.validate();
+
+		ModeGraph graph = new ModeGraph(ha);
+		List<List<String>> components = graph.getComponents(null);
+		Assert.assertEquals(4, components.size());
+
+		// reverse topological order: a and b come before on and unreachable
+		int cycle = graph.findComponents(null)[graph.getModeIndex("a")];
+		Assert.assertEquals(Arrays.asList("a", "b"), components.get(cycle));
+		Assert.assertTrue(cycle < graph.findComponents(null)[graph.getModeIndex("on")]);
+
+		Configuration forward = c.copy();
+		new DiscreteAnalysisPass().runTransformationPass(forward, "-forward_only");
+		Assert.assertEquals(4, ((BaseComponent) forward.root).modes.size());
+		Assert.assertEquals(4, ((BaseComponent) forward.root).transitions.size());
+
+		// if the forbidden modes can't be reached, only forward pruning is done
+		Configuration safe = c.copy();
+		safe.forbidden.clear();
+		safe.forbidden.put("unreachable", Constant.TRUE);
+		new DiscreteAnalysisPass().runTransformationPass(safe, "");
+		Assert.assertEquals(4, ((BaseComponent) safe.root).modes.size());
+		Assert.assertTrue(safe.forbidden.isEmpty());
+
+		new DiscreteAnalysisPass().runTransformationPass(c, "");
+		Assert.assertEquals(Arrays.asList("on", "a", "b"),
+				new ArrayList<String>(ha.modes.keySet()));
+		Assert.assertEquals(3, ha.transitions.size());
+		Assert.assertEquals(1, ha.getOutgoingTransitions(on).size());
+		Assert.assertTrue(c.forbidden.containsKey("b"));
+	}
+
+	/**
+	 * Run conversion jobs with inline model files through a Hyst server
+	 */
+	@Test
+	public void testHystServer() throws Exception
+	{
+		final HystServer server = new HystServer(0);
+		Thread t = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				server.run();
+			}
+		});
+
+		t.start();
+
+		int port = server.getPort();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+		try
+		{
+			String path = PassTests.UNIT_BASEDIR + "loc_init/";
+			Map<String, String> files = new HashMap<String, String>();
+			files.put("model.xml",
+					new String(Files.readAllBytes(Paths.get(path + "model.xml")), "UTF-8"));
+			files.put("model.cfg",
+					new String(Files.readAllBytes(Paths.get(path + "one_init.cfg")), "UTF-8"));
+
+			List<String> args = Arrays.asList("-i", "model.xml", "model.cfg", "-tool", "spaceex",
+					"", "-v");
+			int code = HystServer.runRemoteJob(port, args, files, out, err);
+
+			Assert.assertEquals(err.toString("UTF-8"), Hyst.ExitCode.SUCCESS.ordinal(), code);
+			Assert.assertTrue("model was streamed back",
+					out.toString("UTF-8").contains("<location"));
+			Assert.assertTrue("log was streamed back",
+					err.toString("UTF-8").contains("Finished converting"));
+
+			// the job's settings are reset afterwards
+			Assert.assertFalse(Hyst.isVerboseMode());
+
+			out.reset();
+			err.reset();
+			args = Arrays.asList("-i", "model.xml", "model.cfg", "-tool", "nosuchtool", "");
+			code = HystServer.runRemoteJob(port, args, files, out, err);
+
+			Assert.assertEquals(Hyst.ExitCode.ARG_PARSE_ERROR.ordinal(), code);
+			Assert.assertTrue(err.toString("UTF-8").contains("nosuchtool"));
+			Assert.assertEquals(0, out.size());
+
+			// only the user can read the token, and jobs without it are rejected
+			File tokenFile = HystServer.getTokenFile(port);
+
+			if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix"))
+				Assert.assertEquals("rw-------", PosixFilePermissions
+						.toString(Files.getPosixFilePermissions(tokenFile.toPath())));
+
+			Socket s = new Socket(InetAddress.getLoopbackAddress(), port);
+
+			try
+			{
+				DataOutputStream dos = new DataOutputStream(s.getOutputStream());
+				HystServer.writeString(dos, "wrong token");
+				dos.writeInt(1);
+				HystServer.writeString(dos, HystServer.FLAG_SHUTDOWN);
+				dos.writeInt(0);
+				dos.flush();
+
+				DataInputStream dis = new DataInputStream(s.getInputStream());
+				Assert.assertEquals(HystServer.MESSAGE_STDERR, dis.readByte());
+				Assert.assertTrue(HystServer.readString(dis).contains("token"));
+				Assert.assertEquals(HystServer.MESSAGE_EXIT, dis.readByte());
+				Assert.assertEquals(Hyst.ExitCode.ARG_PARSE_ERROR.ordinal(), dis.readInt());
+			}
+			finally
+			{
+				s.close();
+			}
+
+			Assert.assertTrue("server is still running", t.isAlive());
+		}
+		finally
+		{
+			HystServer.runRemoteJob(port, Arrays.asList(HystServer.FLAG_SHUTDOWN),
+					new HashMap<String, String>(), out, err);
+			t.join(10000);
+		}
+
+		Assert.assertFalse("server stopped", t.isAlive());
+		Assert.assertFalse("token file was deleted", HystServer.getTokenFile(port).exists());
+	}
+
+	/**
+	 * Convert the example models with several printers, first one at a time and then concurrently
+	 * on a thread pool (each conversion in its own ConversionContext), and check that the exit
+	 * codes and printed models are identical. Some jobs use flags which change the output, so a
+	 * setting leaking between concurrent jobs would be detected.
+	 */
+	@Test
+	public void testConcurrentConversions() throws Exception
+	{
+		// tool, then extra flags
+		String[][] tools = { { "spaceex" }, { "flowstar" },
+				{ "dreach", "-java_sim", "-sim_threads", "1" }, { "pysim" },
+				{ "pysim", "-flat_view" } };
+		List<String[]> jobs = new ArrayList<String[]>();
+		File[] dirs = new File("../examples").listFiles();
+		Arrays.sort(dirs);
+
+		for (File dir : dirs)
+		{
+			File[] files = dir.listFiles();
+
+			if (files == null)
+				continue;
+
+			Arrays.sort(files);
+
+			for (File xml : files)
+			{
+				String path = xml.getPath();
+
+				if (!path.endsWith(".xml") || !new File(path.replace(".xml", ".cfg")).exists())
+					continue;
+
+				for (String[] tool : tools)
+				{
+					List<String> args = new ArrayList<String>(Arrays.asList("-i", path,
+							path.replace(".xml", ".cfg"), "-tool", tool[0], ""));
+
+					args.addAll(Arrays.asList(tool).subList(1, tool.length));
+					jobs.add(args.toArray(new String[args.size()]));
+				}
+			}
+		}
+
+		Assert.assertTrue("found example models", jobs.size() > 20);
+
+		List<String> expected = new ArrayList<String>();
+
+		for (String[] args : jobs)
+			expected.add(runInNewContext(args));
+
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+
+		try
+		{
+			List<Future<String>> futures = new ArrayList<Future<String>>();
+
+			for (final String[] args : jobs)
+			{
+				futures.add(pool.submit(new Callable<String>()
+				{
+					@Override
+					public String call() throws Exception
+					{
+						return runInNewContext(args);
+					}
+				}));
+			}
+
+			for (int i = 0; i < jobs.size(); ++i)
+				Assert.assertEquals("concurrent result of " + Arrays.toString(jobs.get(i)),
+						expected.get(i), futures.get(i).get());
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * A batch manifest should convert each model x pass chain x tool, write a summary, and print
+	 * the same models as single conversions
+	 */
+	@Test
+	public void testBatchConversion() throws Exception
+	{
+		File dir = Files.createTempDirectory("hyst_batch").toFile();
+		File manifest = new File(dir, "manifest.txt");
+		String examples = new File("../examples").getAbsolutePath();
+
+		// toy is matched twice (converted once), and flowstar is listed with two sets of params
+		String text = "# test manifest\n" + "model " + examples + "/toy/toy.xml\n" + "model "
+				+ examples + "/heaterLygeros/*.xml\n" + "model " + examples + "/toy/*.xml\n"
+				+ "tool spaceex \"\"\n" + "tool flowstar \"\"\n"
+				+ "tool flowstar \"-time 2\"\n" + "passes\n" + "passes sub_constants \"\"\n"
+				+ "output out\n";
+		Files.write(manifest.toPath(), text.getBytes("UTF-8"));
+
+		ConversionContext context = new ConversionContext();
+		context.err = new PrintStream(new ByteArrayOutputStream(), true, "UTF-8");
+		HystBatch batch;
+
+		ConversionContext previous = context.enter();
+
+		try
+		{
+			batch = new HystBatch(manifest, 4);
+			Assert.assertEquals(ExitCode.SUCCESS, batch.run());
+		}
+		finally
+		{
+			ConversionContext.exit(previous);
+		}
+
+		List<HystBatch.Job> jobs = batch.getJobs();
+		Assert.assertEquals(12, jobs.size());
+
+		List<String> csv = Files.readAllLines(
+				new File(batch.getOutputDir(), HystBatch.SUMMARY_CSV).toPath(),
+				StandardCharsets.UTF_8);
+		Assert.assertEquals(13, csv.size());
+		Assert.assertEquals("summary rows are unique", 13, new HashSet<String>(csv).size());
+		Assert.assertTrue(new File(batch.getOutputDir(), HystBatch.SUMMARY_JSON).exists());
+
+		HashSet<File> outputs = new HashSet<File>();
+
+		for (HystBatch.Job j : jobs)
+		{
+			Assert.assertTrue("output file is unique: " + j.outputFile, outputs.add(j.outputFile));
+			Assert.assertEquals(ExitCode.SUCCESS, j.exitCode);
+			Assert.assertTrue("output written for " + j.outputFile, j.outputBytes > 0);
+
+			// a single conversion with the job's arguments prints the same model
+			File single = new File(dir, "single" + j.outputFile.getName());
+			String[] args = j.args.clone();
+			args[args.length - 1] = single.getPath();
+
+			Assert.assertEquals(0, Hyst.runWithArguments(args, context.createChild()));
+			Assert.assertEquals(withoutArguments(j.outputFile), withoutArguments(single));
+		}
+
+		// a repeated tool entry is an error
+		Files.write(manifest.toPath(),
+				(text + "tool spaceex \"\"\n").getBytes(StandardCharsets.UTF_8));
+
+		try
+		{
+			new HystBatch(manifest, 1);
+			Assert.fail("duplicate tool entry was accepted");
+		}
+		catch (CmdLineRuntimeException e)
+		{
+			Assert.assertTrue(e.getMessage().contains("duplicate tool"));
+		}
+	}
+
+	/**
+	 * Several -tool flags should print the model for each tool, the same as separate conversions
+	 */
+	@Test
+	public void testMultiplePrinters() throws Exception
+	{
+		File dir = Files.createTempDirectory("hyst_multi").toFile();
+		String[] tools = { "flowstar", "spaceex", "dreach", "pysim" };
+		String xml = "../examples/heaterLygeros/heaterLygeros.xml";
+		List<String> args = new ArrayList<String>(Arrays.asList("-i", xml, "-passes",
+				"sub_constants", ""));
+
+		for (String tool : tools)
+			args.addAll(Arrays.asList("-tool", tool, ""));
+
+		for (String tool : tools)
+			args.addAll(Arrays.asList("-o", new File(dir, tool + ".txt").getPath()));
+
+		Assert.assertEquals(0, Hyst.runWithArguments(args.toArray(new String[args.size()]),
+				new ConversionContext()));
+
+		for (String tool : tools)
+		{
+			File single = new File(dir, "single_" + tool + ".txt");
+
+			Assert.assertEquals(0, Hyst.runWithArguments(new String[] { "-i", xml, "-passes",
+					"sub_constants", "", "-tool", tool, "", "-o", single.getPath() },
+					new ConversionContext()));
+			Assert.assertEquals("output of " + tool, withoutArguments(single),
+					withoutArguments(new File(dir, tool + ".txt")));
+		}
+
+		// a single -o is used as a base name, and without any -o several tools are an error
+		String base = new File(dir, "heater").getPath();
+		Assert.assertEquals(0, Hyst.runWithArguments(new String[] { "-i", xml, "-tool",
+				"flowstar", "", "-tool", "dreach", "", "-o", base }, new ConversionContext()));
+		Assert.assertTrue(new File(base + "_flowstar.flowstar").exists());
+		Assert.assertTrue(new File(base + "_dreach.drh").exists());
+
+		ConversionContext quiet = new ConversionContext();
+		quiet.err = new PrintStream(new ByteArrayOutputStream(), true, "UTF-8");
+		Assert.assertEquals(ExitCode.ARG_PARSE_ERROR.ordinal(), Hyst.runWithArguments(
+				new String[] { "-i", xml, "-tool", "flowstar", "", "-tool", "dreach", "" },
+				quiet));
+	}
+
+	/**
+	 * Pass results should be reused from -cache_dir, resuming from the longest cached prefix of the
+	 * pass chain, and the least recently used entries should be evicted
+	 */
+	@Test
+	public void testPassCache() throws Exception
+	{
+		File dir = Files.createTempDirectory("hyst_cache").toFile();
+		File cacheDir = new File(dir, "cache");
+		String xml = "../examples/heaterLygeros/heaterLygeros.xml";
+
+		File first = new File(dir, "first.txt");
+		String log = runWithCache(new String[] { "-i", xml, "-passes", "sub_constants", "",
+				"simplify", "", "-tool", "flowstar", "", "-o", first.getPath(), "-cache_dir",
+				cacheDir.getPath() });
+		Assert.assertTrue(log.contains("Pass cache miss"));
+		Assert.assertEquals(2, cacheDir.listFiles().length);
+
+		File second = new File(dir, "second.txt");
+		log = runWithCache(new String[] { "-i", xml, "-passes", "sub_constants", "", "simplify",
+				"", "-tool", "flowstar", "", "-o", second.getPath(), "-cache_dir",
+				cacheDir.getPath() });
+		Assert.assertTrue(log.contains("loaded result of first 2 of 2 passes"));
+		Assert.assertEquals(withoutArguments(first), withoutArguments(second));
+
+		// a longer chain resumes after the cached passes
+		log = runWithCache(new String[] { "-i", xml, "-passes", "sub_constants", "", "simplify",
+				"", "sub_constants", "", "-tool", "flowstar", "", "-o",
+				new File(dir, "third.txt").getPath(), "-cache_dir", cacheDir.getPath() });
+		Assert.assertTrue(log.contains("loaded result of first 2 of 3 passes"));
+
+		// a different second pass only reuses the first one
+		log = runWithCache(new String[] { "-i", xml, "-passes", "sub_constants", "",
+				"sub_constants", "", "-tool", "flowstar", "", "-o",
+				new File(dir, "fourth.txt").getPath(), "-cache_dir", cacheDir.getPath() });
+		Assert.assertTrue(log.contains("loaded result of first 1 of 2 passes"));
+
+		// with room for one entry, storing a new one evicts the least recently used
+		File[] entries = cacheDir.listFiles();
+		String key = entries[0].getName().replace(PassCache.EXTENSION, "");
+		PassCache tiny = new PassCache(cacheDir, entries[0].length() + 1);
+		Configuration c = tiny.load(key);
+		Assert.assertNotNull(c);
+		Assert.assertEquals(1, tiny.getHits());
+
+		for (File f : entries)
+			f.setLastModified(System.currentTimeMillis() - 60000);
+
+		tiny.store("newest", c);
+		Assert.assertArrayEquals(new String[] { "newest" + PassCache.EXTENSION },
+				cacheDir.list());
+		Assert.assertNull(tiny.load(key));
+	}
+
+	/**
+	 * Pass cache keys should depend on the model's contents (with exact constants) and on the
+	 * context's settings, but not on how the model's objects were created
+	 */
+	@Test
+	public void testPassCacheKeys() throws Exception
+	{
+		File dir = Files.createTempDirectory("hyst_cache").toFile();
+		final PassCache cache = new PassCache(dir, PassCache.DEFAULT_MAX_MB * 1024 * 1024);
+		String[][] dynamics = { { "x", "1.0000001" }, { "y", "x" } };
+		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics);
+		final String key = cache.getModelKey(c);
+
+		Assert.assertEquals(key, cache.getModelKey(c.copy()));
+
+		// a difference which DefaultExpressionPrinter would round away
+		String[][] close = { { "x", "1.0000002" }, { "y", "x" } };
+		Assert.assertNotEquals(key,
+				cache.getModelKey(AutomatonUtil.makeDebugConfiguration(close)));
+
+		ConversionContext context = new ConversionContext();
+		String passKey = context.call(new Callable<String>()
+		{
+			@Override
+			public String call()
+			{
+				return cache.getPassKey(key, "flatten", "");
+			}
+		});
+
+		context.flattenPlanMerges = !context.flattenPlanMerges;
+		String plannedKey = context.call(new Callable<String>()
+		{
+			@Override
+			public String call()
+			{
+				return cache.getPassKey(key, "flatten", "");
+			}
+		});
+
+		Assert.assertNotEquals(passKey, plannedKey);
+	}
+
+	/**
+	 * Run a conversion in a new verbose context, returning its log
+	 */
+	private static String runWithCache(String[] args) throws Exception
+	{
+		ConversionContext context = new ConversionContext();
+		ByteArrayOutputStream err = new ByteArrayOutputStream();
+		context.err = new PrintStream(err, true, "UTF-8");
+
+		try
+		{
+			Assert.assertEquals(0, Hyst.runWithArguments(args, context));
+
+			return err.toString("UTF-8");
+		}
+		finally
+		{
+			context.close();
+		}
+	}
+
+	/**
+	 * Read a printed model, except for the line with the command-line arguments
+	 */
+	private static String withoutArguments(File f) throws IOException
+	{
+		StringBuilder sb = new StringBuilder();
+
+		for (String line : Files.readAllLines(f.toPath(), StandardCharsets.UTF_8))
+		{
+			if (!line.contains("Command Line arguments"))
+				sb.append(line).append("\n");
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Run a conversion in a new context, capturing its output
+	 *
+	 * @return the exit code followed by the printed model
+	 */
+	private static String runInNewContext(String[] args) throws Exception
+	{
+		ConversionContext context = new ConversionContext();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		context.out = new PrintStream(out, true, "UTF-8");
+		context.err = new PrintStream(new ByteArrayOutputStream(), true, "UTF-8");
+
+		try
+		{
+			int code = Hyst.runWithArguments(args, context);
+			context.out.flush();
+
+			return code + "\n" + out.toString("UTF-8");
+		}
+		finally
+		{
+			context.close();
+		}
+	}
+
+	/**
+	 * Repeated parses should be answered from the parse cache, and return independent copies
+	 */
+	@Test
+	public void testParseCache()
+	{
+		FormulaParser.clearCache();
+
+		Expression a = FormulaParser.parseGuard("x >= 5 & y <= 2 * x");
+		Expression b = FormulaParser.parseGuard("x >= 5 & y <= 2 * x");
+
+		Assert.assertEquals(1, FormulaParser.getCacheMisses());
+		Assert.assertEquals(1, FormulaParser.getCacheHits());
+		Assert.assertTrue("cached parses are copies", a != b);
+
+		// modifying a returned expression doesn't change the cached one
+		a.asOperation().children.set(0, Constant.TRUE);
+		Expression c = FormulaParser.parseGuard("x >= 5 & y <= 2 * x");
+		Assert.assertEquals(b.toDefaultString(), c.toDefaultString());
+
+		// the same text parsed as a different part is a different cache entry
+		FormulaParser.parseInvariant("x >= 5 & y <= 2 * x");
+		Assert.assertEquals(2, FormulaParser.getCacheMisses());
+
+		try
+		{
+			FormulaParser.parseGuard("x >= >= 5");
+			Assert.fail("expected parse error");
+		}
+		catch (AutomatonExportException e)
+		{
+			// the syntax error is in the message (rather than printed to stderr)
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("line 1:"));
+		}
+
+		// invalid characters are skipped, with a warning in the log
+		ConversionContext context = new ConversionContext();
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		context.err = new PrintStream(log, true);
+		ConversionContext previous = context.enter();
+
+		try
+		{
+			Expression e = FormulaParser.parseGuard("x >= $5");
+			Assert.assertEquals(FormulaParser.parseGuard("x >= 5").toDefaultString(), e.toDefaultString());
+		}
+		finally
+		{
+			ConversionContext.exit(previous);
+		}
+
+		Assert.assertTrue(log.toString(), log.toString().contains("token recognition error"));
+
+		// empty text parses to null, also when it is parsed again
+		Assert.assertNull(FormulaParser.parseInvariant(""));
+		Assert.assertNull(FormulaParser.parseInvariant(""));
+	}
+
+	/**
+	 * The parsing, evaluation and optimization modes are settings of a conversion's context, which
+	 * are copied to child contexts and don't change other conversions
+	 */
+	@Test
+	public void testContextEvaluationSettings() throws Exception
+	{
+		final ConversionContext context = new ConversionContext();
+		context.fastParsing = false;
+		context.useCompiledEvaluation = false;
+		context.optimizerThreads = 1;
+
+		String flow = context.call(new Callable<String>()
+		{
+			@Override
+			public String call()
+			{
+				Assert.assertFalse(FormulaParser.isFastParsing());
+				Assert.assertFalse(AutomatonUtil.isCompiledEvaluationEnabled());
+				Assert.assertEquals(1, IntervalOptimizer.getNumThreads());
+
+				return FormulaParser.parseFlow("x' == 2 * x").toDefaultString();
+			}
+		});
+
+		Assert.assertEquals(FormulaParser.parseFlow("x' == 2 * x").toDefaultString(), flow);
+		Assert.assertTrue(FormulaParser.isFastParsing());
+		Assert.assertTrue(AutomatonUtil.isCompiledEvaluationEnabled());
+
+		ConversionContext child = context.createChild();
+		Assert.assertFalse(child.fastParsing);
+		Assert.assertFalse(child.useCompiledEvaluation);
+		Assert.assertEquals(1, child.optimizerThreads);
+	}
+
+	/**
+	 * The fast (SLL with LL fallback) parsing mode should produce the same expressions as the
+	 * regular mode
+	 */
+	@Test
+	public void testFastParsingEquivalence()
+	{
+		String[] flows = { "x' == 2 * x + y & y' == -y", "x' == sin(x)^2 - ln(y) & y' == 0" };
+		String[] guards = { "x >= 5 & y <= 2 * x | t == 1", "!(x < 1) & y != 3" };
+		String[] resets = { "x := x + 1 & y := 0", "x' == [1, 2]" };
+
+		boolean original = FormulaParser.isFastParsing();
+
+		try
+		{
+			for (int i = 0; i < 2; ++i)
+			{
+				FormulaParser.setFastParsing(false);
+				String slowFlow = FormulaParser.parseFlow(flows[i]).toDefaultString();
+				String slowGuard = FormulaParser.parseGuard(guards[i]).toDefaultString();
+				String slowReset = FormulaParser.parseReset(resets[i]).toDefaultString();
+
+				FormulaParser.setFastParsing(true);
+				Assert.assertEquals(slowFlow, FormulaParser.parseFlow(flows[i]).toDefaultString());
+				Assert.assertEquals(slowGuard,
+						FormulaParser.parseGuard(guards[i]).toDefaultString());
+				Assert.assertEquals(slowReset,
+						FormulaParser.parseReset(resets[i]).toDefaultString());
+			}
+		}
+		finally
+		{
+			FormulaParser.setFastParsing(original);
+		}
+	}
+
 	@Test
 	/**
 	 * Ensure a bind cannot have multiple parameters added with the same names (SpaceEx will not
@@ -1007,6 +2524,199 @@ public class SmallTest
 		}
 	}
 
+	/**
+	 * Test the accuracy of the Dormand-Prince integrator on a harmonic oscillator
+	 */
+	@Test
+	public void testDormandPrince()
+	{
+		DormandPrince dp = new DormandPrince(new DormandPrince.Derivative()
+		{
+			@Override
+			public void eval(double t, double[] x, double[] dx)
+			{
+				dx[0] = x[1];
+				dx[1] = -x[0];
+			}
+		}, 2);
+
+		dp.setInitialValue(new double[] { 1, 0 }, 0);
+		dp.integrate(2 * Math.PI);
+
+		double[] y = dp.getState();
+		double TOL = 1e-6;
+
+		Assert.assertEquals(2 * Math.PI, dp.getTime(), 0);
+		Assert.assertEquals(1.0, y[0], TOL);
+		Assert.assertEquals(0.0, y[1], TOL);
+
+		// single steps don't go past the max time, and respect the max step
+		dp.setMaxStep(0.01);
+		dp.setInitialValue(new double[] { 1, 0 }, 0);
+		dp.step(1.0);
+
+		Assert.assertTrue(dp.getTime() <= 0.01);
+	}
+
+	/**
+	 * Test the java simulator's guard crossing detection and compiled resets
+	 */
+	@Test
+	public void testJavaSimulatorGuardReset()
+	{
+		// mode1: x' == 1, t' == 1, guard x >= 2 with reset x := x - 2 * t
+		String[][] dynamics1 = { { "x", "1" }, { "t", "1" } };
+		String[][] dynamics2 = { { "x", "-1" }, { "t", "1" } };
+		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics1, "x <= 2", "x >= 2",
+				dynamics2);
+		BaseComponent ha = (BaseComponent) c.root;
+		ha.transitions.get(0).reset.put("x", new ExpressionInterval("x - 2 * t"));
+
+		HybridSimulator sim = new HybridSimulator(c);
+		SymbolicStatePoint start = new SymbolicStatePoint("mode1", new HyperPoint(0, 0));
+		HybridSimulator.SimulationResult res = sim.simulateOne(start, 3.0, 0, true);
+
+		Assert.assertEquals(2, res.traces.size());
+		Assert.assertNull(res.error);
+
+		// the jump occurs at t = 2 (x = 2), and x is reset to 2 - 4 = -2
+		HybridSimulator.ModeSim mode2 = res.traces.get(1);
+		double TOL = 1e-6;
+
+		Assert.assertEquals("mode2", mode2.modeName);
+		Assert.assertEquals(2.0, mode2.times.get(0), TOL);
+		Assert.assertEquals(-2.0, mode2.points.get(0)[0], TOL);
+		Assert.assertEquals(2.0, mode2.points.get(0)[1], TOL);
+
+		SymbolicStatePoint last = res.getLastState();
+		Assert.assertEquals(-3.0, last.hp.dims[0], TOL);
+		Assert.assertEquals(3.0, last.hp.dims[1], TOL);
+	}
+
+	/**
+	 * Test the java simulator's max jump limit, and urgent modes
+	 */
+	@Test
+	public void testJavaSimulatorJumpsUrgent()
+	{
+		String[][] dynamics = { { "x", "1" } };
+		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics, "true", "x >= 1",
+				dynamics);
+		BaseComponent ha = (BaseComponent) c.root;
+
+		// mode2 jumps back to mode1 immediately (zeno)
+		AutomatonTransition back = ha.createTransition(ha.modes.get("mode2"),
+				ha.modes.get("mode1"));
+		back.guard = Constant.TRUE;
+
+		HybridSimulator sim = new HybridSimulator(c);
+		sim.setMaxJumps(10);
+		SymbolicStatePoint start = new SymbolicStatePoint("mode1", new HyperPoint(0.0));
+
+		// errors don't propagate, and the trajectory is truncated
+		HybridSimulator.SimulationResult res = sim.simulateOne(start, 5.0, 0, false);
+		Assert.assertEquals("Max jumps (10) reached", res.error);
+		Assert.assertEquals(12, res.traces.size());
+
+		try
+		{
+			sim.simulateOneTime(start, 5.0);
+			Assert.fail("expected max jumps exception");
+		}
+		catch (SimulationException e)
+		{
+			// expected
+		}
+
+		// an urgent mode which immediately goes to mode2
+		AutomatonMode init = ha.createMode("init");
+		init.flowDynamics = null;
+		init.invariant = Constant.TRUE;
+		init.urgent = true;
+
+		AutomatonTransition at = ha.createTransition(init, ha.modes.get("mode2"));
+		at.guard = FormulaParser.parseGuard("x >= 5");
+		at.reset.put("x", new ExpressionInterval("x + 1"));
+		ha.transitions.remove(back);
+
+		sim = new HybridSimulator(c);
+		SymbolicStatePoint end = sim.simulateOneTime(
+				new SymbolicStatePoint("init", new HyperPoint(5.0)), 1.0);
+
+		Assert.assertEquals("mode2", end.modeName);
+		Assert.assertEquals(7.0, end.hp.dims[0], 1e-6);
+
+		// no transitions are enabled from the urgent mode
+		HybridSimulator.SimulationResult stuck = sim.simulateOne(
+				new SymbolicStatePoint("init", new HyperPoint(0.0)), 1.0, 0, false);
+
+		Assert.assertNotNull(stuck.error);
+	}
+
+	/**
+	 * Test that parallel simulation gives the same results, in the same order, as sequential
+	 * simulation
+	 */
+	@Test
+	public void testParallelSimulator()
+	{
+		String[][] dynamics1 = { { "x", "y" }, { "y", "(1-x*x)*y-x" } };
+		String[][] dynamics2 = { { "x", "0" }, { "y", "-1" } };
+		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics1, "true", "x >= 1.5",
+				dynamics2);
+		HybridSimulator sim = new HybridSimulator(c);
+
+		ArrayList<SymbolicStatePoint> starts = new ArrayList<SymbolicStatePoint>();
+
+		for (int i = 0; i < 25; ++i)
+			starts.add(new SymbolicStatePoint("mode1", new HyperPoint(i * 0.1, 1 - i * 0.05)));
+
+		ArrayList<ArrayList<SymbolicStatePoint>> expected = sim.simulateMultiTrajectoryTime(starts,
+				3.0);
+
+		ParallelSimulator ps = new ParallelSimulator(sim, 4, 3);
+		final ArrayList<Integer> progress = new ArrayList<Integer>();
+
+		ps.setProgressListener(new ParallelSimulator.ProgressListener()
+		{
+			@Override
+			public void progress(int completed, int total)
+			{
+				progress.add(completed);
+			}
+		});
+
+		ArrayList<ArrayList<SymbolicStatePoint>> result = ps.simulateMultiTrajectoryTime(starts,
+				3.0);
+
+		Assert.assertEquals(starts.size(), result.size());
+		Assert.assertEquals(starts.size(), ps.getNumCompleted());
+		Assert.assertEquals(starts.size(), progress.size());
+
+		for (int i = 0; i < starts.size(); ++i)
+		{
+			ArrayList<SymbolicStatePoint> e = expected.get(i);
+			ArrayList<SymbolicStatePoint> r = result.get(i);
+
+			Assert.assertEquals(e.size(), r.size());
+
+			for (int p = 0; p < e.size(); ++p)
+			{
+				Assert.assertEquals(e.get(p).modeName, r.get(p).modeName);
+				Assert.assertArrayEquals(e.get(p).hp.dims, r.get(p).hp.dims, 0);
+			}
+		}
+
+		ArrayList<SymbolicStatePoint> last = ps.simulateSetTime(starts, 3.0);
+
+		for (int i = 0; i < starts.size(); ++i)
+		{
+			ArrayList<SymbolicStatePoint> e = expected.get(i);
+
+			Assert.assertArrayEquals(e.get(e.size() - 1).hp.dims, last.get(i).hp.dims, 0);
+		}
+	}
+
 	@Test
 	public void testParseDoubleNegative()
 	{
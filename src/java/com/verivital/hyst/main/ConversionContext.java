@@ -0,0 +1,311 @@
+package com.verivital.hyst.main;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+import com.verivital.hyst.grammar.formula.ExpressionPrinter;
+import com.verivital.hyst.passes.complex.ConvertLutFlowsPass;
+import com.verivital.hyst.python.PythonBridge;
+import com.verivital.hyst.python.PythonBridgePool;
+
+/**
+ * The settings and per-conversion state of a single model conversion (import, passes, printing),
+ * like the expression printer, the verbose / debug flags and the python process. These used to be
+ * static fields, which prevented running several conversions in one JVM at the same time.
+ *
+ * Each thread has a current context (see get()). Threads which have not entered a context use the
+ * default context, so single-threaded code, unit tests and the GUI behave as before. To run a
+ * conversion on another thread, create a new context and enter() it on that thread (or use call()).
+ * Work that a conversion hands to a thread pool should be wrapped with wrap(), so the pool's
+ * threads use the conversion's context while they run it.
+ *
+ * TransformationPass, ToolPrinter and ModelGenerator keep the context they were run in, in their
+ * context field.
+ */
+public class ConversionContext
+{
+	private static final ConversionContext DEFAULT = new ConversionContext();
+	private static final ThreadLocal<ConversionContext> current = new ThreadLocal<ConversionContext>();
+
+	// this printer should be assigned as-needed by printers or passes (see Expression.toString())
+	public ExpressionPrinter expressionPrinter = null;
+
+	public boolean verboseMode = false;
+	public boolean debugMode = false;
+
+	// all program arguments as a single string
+	public String programArguments = null;
+
+	public boolean doValidation = true;
+	public boolean fullValidation = true;
+
+	// should Component.validate() check constants (disabled while automata are being built)
+	public boolean validateConsts = true;
+
+	// how ConvertLutFlowsPass simplifies expressions
+	public int lutSimplifyMode = ConvertLutFlowsPass.SIMPLIFY_PYTHON;
+
+	// the on-disk cache of pass results (set with -cache_dir), or null
+	public PassCache passCache = null;
+
+	// should independent python calls be run in parallel on the PythonBridgePool (-python_pool)
+	public boolean usePythonPool = false;
+
+	// should the simulation-based passes use HybridSimulator rather than python's pysim (-java_sim)
+	public boolean useJavaSimulator = false;
+
+	// number of ParallelSimulator threads (1 = simulate sequentially on the calling thread)
+	public int simThreads = Runtime.getRuntime().availableProcessors();
+
+	// should networks be printed through a FlatView, where supported (-flat_view)
+	public boolean useFlatView = false;
+
+	// should FlattenAutomatonPass.flattenAndOptimize only construct reachable product locations
+	public boolean flattenOnTheFly = true;
+
+	// should FlattenAutomatonPass plan the grouping of merges (false = merge left to right)
+	public boolean flattenPlanMerges = false;
+
+	// number of threads FlattenAutomatonPass uses for independent subtrees (1 = sequential)
+	public int flattenThreads = Runtime.getRuntime().availableProcessors();
+
+	// number of IntervalOptimizer threads (1 = optimize sequentially on the calling thread)
+	public int optimizerThreads = Runtime.getRuntime().availableProcessors();
+
+	// should AutomatonUtil's numeric evaluation use CompiledExpression
+	public boolean useCompiledEvaluation = true;
+
+	// should FormulaParser use its fast mode (SLL prediction, reused parsers and the parse cache)
+	public boolean fastParsing = true;
+
+	// names used when printing HyperRectangles
+	public final ArrayList<String> dimensionNames = new ArrayList<String>(
+			Arrays.asList("X", "Y", "Z"));
+
+	// where printers write STDOUT output and the log goes; null means System.out / System.err
+	public PrintStream out = null;
+	public PrintStream err = null;
+
+	// if set, the context's python process is leased from this pool and returned to it by close(),
+	// so that conversions reuse running processes rather than each starting its own
+	public PythonBridgePool pythonBridgePool = null;
+
+	// the context's own python process (the default context uses the PythonBridge singleton), and
+	// the pool it was leased from (null if it was started for this context)
+	private PythonBridge pythonBridge = null;
+	private PythonBridgePool pythonBridgeLender = null;
+
+	/**
+	 * Get the current thread's context
+	 *
+	 * @return the context entered on this thread, or the default context
+	 */
+	public static ConversionContext get()
+	{
+		ConversionContext rv = current.get();
+
+		return rv == null ? DEFAULT : rv;
+	}
+
+	public static ConversionContext getDefault()
+	{
+		return DEFAULT;
+	}
+
+	/**
+	 * Create a new context with this context's settings (flags, validation, simplification,
+	 * simulation, printing, flattening, optimization, evaluation and parsing modes, dimension names), but its own expression printer,
+	 * streams and python process (leased from the same pythonBridgePool, if one is set)
+	 *
+	 * @return the new context
+	 */
+	public ConversionContext createChild()
+	{
+		ConversionContext rv = new ConversionContext();
+
+		rv.verboseMode = verboseMode;
+		rv.debugMode = debugMode;
+		rv.programArguments = programArguments;
+		rv.doValidation = doValidation;
+		rv.fullValidation = fullValidation;
+		rv.validateConsts = validateConsts;
+		rv.lutSimplifyMode = lutSimplifyMode;
+		rv.passCache = passCache;
+		rv.usePythonPool = usePythonPool;
+		rv.useJavaSimulator = useJavaSimulator;
+		rv.simThreads = simThreads;
+		rv.useFlatView = useFlatView;
+		rv.flattenOnTheFly = flattenOnTheFly;
+		rv.flattenPlanMerges = flattenPlanMerges;
+		rv.flattenThreads = flattenThreads;
+		rv.optimizerThreads = optimizerThreads;
+		rv.useCompiledEvaluation = useCompiledEvaluation;
+		rv.fastParsing = fastParsing;
+		rv.pythonBridgePool = pythonBridgePool;
+		rv.dimensionNames.clear();
+		rv.dimensionNames.addAll(dimensionNames);
+
+		return rv;
+	}
+
+	/**
+	 * Get the settings which can change the result of a transformation pass, as text. This is part
+	 * of PassCache's keys, so settings added to createChild() which passes depend on should also be
+	 * added here.
+	 *
+	 * @return the settings, one per line
+	 */
+	public String getPassSettings()
+	{
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("validation=").append(doValidation).append("\n");
+		sb.append("full_validation=").append(fullValidation).append("\n");
+		sb.append("validate_consts=").append(validateConsts).append("\n");
+		sb.append("lut_simplify=").append(lutSimplifyMode).append("\n");
+		sb.append("python_pool=").append(usePythonPool).append("\n");
+		sb.append("java_sim=").append(useJavaSimulator).append("\n");
+		sb.append("sim_threads=").append(simThreads).append("\n");
+		sb.append("flatten_on_the_fly=").append(flattenOnTheFly).append("\n");
+		sb.append("flatten_plan_merges=").append(flattenPlanMerges).append("\n");
+		sb.append("flatten_threads=").append(flattenThreads).append("\n");
+		sb.append("dimension_names=").append(dimensionNames).append("\n");
+
+		return sb.toString();
+	}
+
+	public boolean isDefault()
+	{
+		return this == DEFAULT;
+	}
+
+	/**
+	 * Make this the current thread's context
+	 *
+	 * @return the previous context, to pass to exit()
+	 */
+	public ConversionContext enter()
+	{
+		ConversionContext rv = current.get();
+		current.set(this);
+
+		return rv;
+	}
+
+	/**
+	 * Restore the current thread's context from before enter()
+	 *
+	 * @param previous
+	 *            the value returned by enter()
+	 */
+	public static void exit(ConversionContext previous)
+	{
+		if (previous == null)
+			current.remove();
+		else
+			current.set(previous);
+	}
+
+	/**
+	 * Run a task on the current thread in this context
+	 */
+	public <T> T call(Callable<T> task) throws Exception
+	{
+		ConversionContext previous = enter();
+
+		try
+		{
+			return task.call();
+		}
+		finally
+		{
+			exit(previous);
+		}
+	}
+
+	/**
+	 * Wrap a task so that it runs in this context, on whichever thread runs it
+	 */
+	public Runnable wrap(final Runnable task)
+	{
+		return new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				ConversionContext previous = enter();
+
+				try
+				{
+					task.run();
+				}
+				finally
+				{
+					exit(previous);
+				}
+			}
+		};
+	}
+
+	public PrintStream getOut()
+	{
+		return out == null ? System.out : out;
+	}
+
+	public PrintStream getErr()
+	{
+		return err == null ? System.err : err;
+	}
+
+	/**
+	 * Get the python process started for this context (see PythonBridge.getInstance()). The
+	 * default context uses the PythonBridge singleton instead; other contexts get their own
+	 * process, so conversions on different threads don't interleave their python commands.
+	 *
+	 * @return the bridge, or null if none was started
+	 */
+	public synchronized PythonBridge getPythonBridge()
+	{
+		return pythonBridge;
+	}
+
+	/**
+	 * Set the python process of this context, releasing the previous one
+	 *
+	 * @param bridge
+	 *            the python process
+	 * @param lender
+	 *            the pool it was leased from, or null if it was started for this context
+	 */
+	public synchronized void setPythonBridge(PythonBridge bridge, PythonBridgePool lender)
+	{
+		releasePythonBridge();
+
+		pythonBridge = bridge;
+		pythonBridgeLender = lender;
+	}
+
+	/**
+	 * Release the context's resources (its python process, which is closed or returned to its pool)
+	 */
+	public synchronized void close()
+	{
+		releasePythonBridge();
+	}
+
+	private void releasePythonBridge()
+	{
+		if (pythonBridge != null)
+		{
+			if (pythonBridgeLender != null)
+				pythonBridgeLender.release(pythonBridge);
+			else
+				pythonBridge.close();
+
+			pythonBridge = null;
+			pythonBridgeLender = null;
+		}
+	}
+}
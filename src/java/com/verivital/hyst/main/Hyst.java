@@ -1,6 +1,7 @@
 package com.verivital.hyst.main;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.lang.reflect.Constructor;
@@ -9,6 +10,10 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.swing.SwingUtilities;
 import javax.swing.UIManager;
@@ -25,17 +30,21 @@ import com.verivital.hyst.generators.ModelGenerator;
 import com.verivital.hyst.generators.NamedNavigationGenerator;
 import com.verivital.hyst.generators.NavigationGenerator;
 import com.verivital.hyst.generators.SwitchedOscillatorGenerator;
+import com.verivital.hyst.grammar.formula.DefaultExpressionPrinter;
 import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.FormulaParser;
 import com.verivital.hyst.importer.ConfigurationMaker;
 import com.verivital.hyst.importer.SpaceExImporter;
 import com.verivital.hyst.importer.TemplateImporter;
 import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.ir.Component;
 import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.ir.ValidationCache;
 import com.verivital.hyst.passes.TransformationPass;
 import com.verivital.hyst.passes.basic.AddIdentityResetPass;
 import com.verivital.hyst.passes.basic.ConvertHavocFlows;
 import com.verivital.hyst.passes.basic.CopyInstancePass;
+import com.verivital.hyst.passes.basic.DiscreteAnalysisPass;
 import com.verivital.hyst.passes.basic.RemoveSimpleUnsatInvariantsPass;
 import com.verivital.hyst.passes.basic.ShortenModeNamesPass;
 import com.verivital.hyst.passes.basic.SimplifyExpressionsPass;
@@ -62,6 +71,9 @@ import com.verivital.hyst.printers.SpaceExPrinter;
 import com.verivital.hyst.printers.ToolPrinter;
 import com.verivital.hyst.printers.hycreate2.HyCreate2Printer;
 import com.verivital.hyst.python.PythonBridge;
+import com.verivital.hyst.python.PythonBridgePool;
+import com.verivital.hyst.simulation.HybridSimulator;
+import com.verivital.hyst.simulation.ParallelSimulator;
 import com.verivital.hyst.util.CmdLineRuntimeException;
 import com.verivital.hyst.util.PairStringOptionHandler;
 import com.verivital.hyst.util.Preconditions.PreconditionsFailedException;
@@ -91,7 +103,7 @@ public class Hyst
 			new RemoveSimpleUnsatInvariantsPass(), new ShortenModeNamesPass(),
 			new ContinuizationPass(), new HybridizeMixedTriggeredPass(), new HybridizeMTRawPass(),
 			new FlattenAutomatonPass(), new OrderReductionPass(), new ConvertLutFlowsPass(),
-			new CopyInstancePass(), new ConvertHavocFlows() };
+			new CopyInstancePass(), new ConvertHavocFlows(), new DiscreteAnalysisPass() };
 
 	// list of supported model generators (add new ones here)
 	private final ModelGenerator[] generators = { new IntegralChainGenerator(),
@@ -100,19 +112,12 @@ public class Hyst
 
 	public static String TOOL_NAME = "Hyst v1.6";
 
-	// all program arguments as a single string
-	public static String programArguments;
-
 	// should usage printing be omitted (for unit testing)
 	public static boolean IS_UNIT_TEST = false;
 
 	// non-null if gui mode enabled, used for logging
 	private static HystFrame guiFrame = null;
 
-	// these should be statically accessible
-	public static boolean verboseMode = false;
-	public static boolean debugMode = false;
-
 	// localizable object for use in args error reporting
 	public static Localizable hystLocalizable = new Localizable()
 	{
@@ -163,24 +168,33 @@ public class Hyst
 
 	public static final String FLAG_OUTPUT = "-output";
 
-	@Option(name = FLAG_OUTPUT, aliases = { "-o" }, usage = "output filename", metaVar = "FILENAME")
-	String outputFilename = null;
+	// output filenames, one per tool printer, or a single base name for several printers
+	ArrayList<String> outputFilenames = new ArrayList<String>();
+
+	@Option(name = FLAG_OUTPUT, aliases = {
+			"-o" }, usage = "output filename (with several -tool flags, give one -o per tool, or a "
+					+ "single -o which is used as the base name)", metaVar = "FILENAME")
+	public void setOutput(String filename)
+	{
+		outputFilenames.add(filename);
+	}
 
-	// the chosen tool printer (dynamic parameter)
-	ToolPrinter toolPrinter = null;
-	String toolParamsString = null;
+	// the chosen tool printers and their params (dynamic parameters, -tool can be repeated)
+	ArrayList<ToolPrinter> toolPrinters = new ArrayList<ToolPrinter>();
+	ArrayList<String> toolParams = new ArrayList<String>();
 
 	public static final String FLAG_TOOL = "-tool";
 
 	@Option(name = FLAG_TOOL, aliases = {
-			"-t" }, usage = "target tool and tool params", metaVar = "TOOLNAME TOOLPARAMS", handler = PairStringOptionHandler.class)
+			"-t" }, usage = "target tool and tool params (can be given several times, to print "
+					+ "the model for each tool)", metaVar = "TOOLNAME TOOLPARAMS", handler = PairStringOptionHandler.class)
 	public void setTool(String[] params) throws CmdLineException
 	{
 		if (params.length != 2)
 			throw new CmdLineException(parser, hystLocalizable,
 					"-tool expected exactly two follow-on arguments: TOOL_NAME TOOL_PARAMS (params can be explicit empty string). See -help_printers.");
 
-		toolParamsString = params[1];
+		ToolPrinter toolPrinter = null;
 
 		// look through all the model generators for the right one
 		for (ToolPrinter tp : printers)
@@ -193,7 +207,9 @@ public class Hyst
 
 			if (flag.equalsIgnoreCase(params[0]))
 			{
-				toolPrinter = tp;
+				// create new instances here since we may use the same printer
+				// multiple times with different parameters
+				toolPrinter = toolPrinters.contains(tp) ? newInstance(tp) : tp;
 				break;
 			}
 		}
@@ -201,6 +217,9 @@ public class Hyst
 		if (toolPrinter == null)
 			throw new CmdLineException(parser, hystLocalizable,
 					"-tool parameter '" + params[0] + "' was invalid.");
+
+		toolPrinters.add(toolPrinter);
+		toolParams.add(params[1]);
 	}
 
 	ModelGenerator modelGenerator = null;
@@ -257,11 +276,61 @@ public class Hyst
 	@Option(name = FLAG_DEBUG, aliases = { "-d" }, usage = "print debug (and verbose) output")
 	public boolean debugFlag = false;
 
+	@Option(name = "-python_pool", usage = "run independent python calls in parallel on a pool of N "
+			+ "python processes (0 = number of cores)", metaVar = "N")
+	public int pythonPoolSize = -1;
+
+	@Option(name = "-java_sim", usage = "simulate in java rather than with python's pysim, in "
+			+ "simulation-based passes (hybridizemt, pi_sim, pi_init, continuization)")
+	public boolean javaSimFlag = false;
+
+	@Option(name = "-sim_threads", usage = "number of threads for parallel java simulations "
+			+ "(0 = number of cores, 1 = sequential)", metaVar = "N")
+	public int simThreads = 0;
+
+	@Option(name = "-flat_view", usage = "print network models through a lazy flat view rather "
+			+ "than flattening them first, with printers which support it (pysim, flowstar)")
+	public boolean flatViewFlag = false;
+
+	@Option(name = "-flatten_plan_merges", usage = "when flattening networks, plan the grouping "
+			+ "of the merges to keep intermediate products small (transitions may be listed in a "
+			+ "different order)")
+	public boolean flattenPlanMergesFlag = false;
+
+	@Option(name = "-checkpoint_passes", usage = "keep a copy of the model before each pass, "
+			+ "and print the model from before a failing pass")
+	public boolean checkpointPassesFlag = false;
+
+	@Option(name = "-server", usage = "stay running and accept conversion jobs on a local TCP port "
+			+ "(0 = any free port), see HystServer", metaVar = "PORT")
+	public int serverPort = -1;
+
+	@Option(name = "-batch", usage = "convert every model x tool x pass chain in a manifest file "
+			+ "in parallel, see HystBatch", metaVar = "MANIFEST")
+	public String batchManifest = null;
+
+	@Option(name = "-batch_threads", usage = "number of threads for -batch conversions "
+			+ "(0 = number of cores)", metaVar = "N")
+	public int batchThreads = 0;
+
+	@Option(name = "-cache_dir", usage = "cache the results of passes in a directory, and reuse "
+			+ "them when the same passes are run on the same model, see PassCache", metaVar = "DIR")
+	public String cacheDir = null;
+
+	@Option(name = "-cache_max_mb", usage = "maximum size of the -cache_dir cache; the least "
+			+ "recently used results are deleted (default 1024)", metaVar = "N")
+	public long cacheMaxMb = PassCache.DEFAULT_MAX_MB;
+
 	///////// hidden options ///////////////
 
 	@Option(name = "-novalidate", hidden = true, usage = "disable model validation")
 	public boolean noValidateFlag = false;
 
+	@Option(name = "-incremental_validation", hidden = true, usage = "on each validation, only "
+			+ "recheck the parts of the model changed since the last one (in-place expression "
+			+ "edits are not detected)")
+	public boolean incrementalValidateFlag = false;
+
 	@Option(name = "-testpython", hidden = true, usage = "test if python exists on system")
 	boolean doTestPython = false;
 
@@ -313,9 +382,51 @@ public class Hyst
 
 	public static int runWithArguments(String[] args)
 	{
-		programArguments = makeSingleArgument(args);
+		return runWithArguments(args, ConversionContext.get());
+	}
 
-		return new Hyst().run(args).ordinal();
+	/**
+	 * Run Hyst in the given context. Conversions with different contexts can run concurrently, on
+	 * different threads.
+	 * 
+	 * @param args
+	 *            the command-line arguments
+	 * @param context
+	 *            the context to run in, which gets the settings from the arguments
+	 * @return the exit code
+	 */
+	public static int runWithArguments(String[] args, ConversionContext context)
+	{
+		ConversionContext previous = context.enter();
+
+		try
+		{
+			context.programArguments = makeSingleArgument(args);
+
+			return new Hyst().run(args).ordinal();
+		}
+		finally
+		{
+			ConversionContext.exit(previous);
+		}
+	}
+
+	/**
+	 * Get all the program arguments of the current conversion, as a single string
+	 */
+	public static String getProgramArguments()
+	{
+		return ConversionContext.get().programArguments;
+	}
+
+	public static boolean isVerboseMode()
+	{
+		return ConversionContext.get().verboseMode;
+	}
+
+	public static boolean isDebugMode()
+	{
+		return ConversionContext.get().debugMode;
 	}
 
 	private void parseInput() throws CmdLineException
@@ -370,7 +481,7 @@ public class Hyst
 				{
 					// create new instances here since we may use the same pass
 					// multiple times with different parmeters
-					TransformationPass instance = newTransformationPassInstance(tp);
+					TransformationPass instance = newInstance(tp);
 					requestedPasses.add(new RequestedTransformationPass(instance, passParam));
 					found = true;
 					break;
@@ -411,10 +522,24 @@ public class Hyst
 						"Cannot both use model generation and provide input cfg/xml files.");
 		}
 
-		if (toolPrinter == null)
+		if (toolPrinters.isEmpty())
 			throw new CmdLineException(parser, hystLocalizable,
 					"Tool printer must be set using '" + FLAG_TOOL + "' flag.");
 
+		if (toolPrinters.size() == 1 && outputFilenames.size() > 1)
+			throw new CmdLineException(parser, hystLocalizable,
+					"Only one output filename can be given for a single tool printer.");
+
+		if (toolPrinters.size() > 1 && outputFilenames.isEmpty())
+			throw new CmdLineException(parser, hystLocalizable, "With several '" + FLAG_TOOL
+					+ "' flags, the output filenames must be set using '" + FLAG_OUTPUT + "'.");
+
+		if (outputFilenames.size() > 1 && outputFilenames.size() != toolPrinters.size())
+			throw new CmdLineException(parser, hystLocalizable,
+					"Expected one output filename for each tool printer (or a single base name), got "
+							+ outputFilenames.size() + " for " + toolPrinters.size()
+							+ " printers.");
+
 		for (String xmlFilename : xmlFilenames)
 			if (xmlFilename != null && !new File(xmlFilename).exists())
 				throw new CmdLineException(parser, hystLocalizable,
@@ -424,6 +549,10 @@ public class Hyst
 			throw new CmdLineException(parser, hystLocalizable,
 					"Input .cfg file not found: '" + cfgFilename + "'.");
 
+		if (simThreads < 0)
+			throw new CmdLineException(parser, hystLocalizable,
+					"-sim_threads must be nonnegative: " + simThreads);
+
 	}
 
 	private Hyst()
@@ -458,10 +587,31 @@ public class Hyst
 
 			if (doTestPython)
 				rv = doTestPython();
+			else if (serverPort >= 0)
+				rv = runServer();
+			else if (batchManifest != null)
+			{
+				if (batchThreads < 0)
+					throw new CmdLineException(parser, hystLocalizable,
+							"-batch_threads must be nonnegative: " + batchThreads);
+
+				processOutputFlags();
+				processPythonFlags();
+				processSimulationFlags();
+				processFlattenFlags();
+				processPrinterFlags();
+				processCacheFlags();
+				rv = runBatch();
+			}
 			else if (!doHelp && !doHelpTools && !doHelpPasses && !doHelpGenerators)
 			{
 				checkArguments(); // extra checks
 				processOutputFlags();
+				processPythonFlags();
+				processSimulationFlags();
+				processFlattenFlags();
+				processPrinterFlags();
+				processCacheFlags();
 				rv = runCommandLine();
 			}
 		}
@@ -477,27 +627,99 @@ public class Hyst
 
 	private void processOutputFlags()
 	{
+		ConversionContext context = ConversionContext.get();
+
 		if (debugFlag)
 		{
-			Hyst.debugMode = Hyst.verboseMode = true;
+			context.debugMode = context.verboseMode = true;
 			log("Debug mode (even more verbose) printing enabled.\n");
 		}
 		else if (verboseFlag)
 		{
-			Hyst.debugMode = false;
-			Hyst.verboseMode = true;
+			context.debugMode = false;
+			context.verboseMode = true;
 			log("Verbose mode printing enabled.\n");
 		}
 		else
-			Hyst.debugMode = Hyst.verboseMode = false;
+			context.debugMode = context.verboseMode = false;
 
 		if (noValidateFlag)
 		{
-			Configuration.DO_VALIDATION = false;
+			context.doValidation = false;
 			Hyst.log("Internal model validatation disabled.");
 		}
 		else
-			Configuration.DO_VALIDATION = true;
+			context.doValidation = true;
+
+		context.fullValidation = !incrementalValidateFlag;
+	}
+
+	private void processPythonFlags()
+	{
+		if (pythonPoolSize >= 0)
+		{
+			PythonBridgePool.setPoolSize(pythonPoolSize);
+			PythonBridgePool.setEnabled(true);
+			Hyst.log("Python worker pool enabled with "
+					+ PythonBridgePool.getInstance().getSize() + " processes.");
+		}
+		else
+			PythonBridgePool.setEnabled(false);
+	}
+
+	private void processSimulationFlags()
+	{
+		if (javaSimFlag)
+		{
+			HybridSimulator.setJavaSimulatorEnabled(true);
+			Hyst.log("Using java simulator for simulation-based passes.");
+		}
+		else
+			HybridSimulator.setJavaSimulatorEnabled(false);
+
+		ParallelSimulator.setNumThreads(
+				simThreads == 0 ? Runtime.getRuntime().availableProcessors() : simThreads);
+	}
+
+	private void processFlattenFlags()
+	{
+		FlattenAutomatonPass.setPlanMerges(flattenPlanMergesFlag);
+
+		if (flattenPlanMergesFlag)
+			Hyst.log("Planning the grouping of merges when flattening.");
+	}
+
+	private void processPrinterFlags()
+	{
+		ToolPrinter.setFlatViewEnabled(flatViewFlag);
+
+		if (flatViewFlag)
+			Hyst.log("Printing network models through a flat view, where supported.");
+	}
+
+	private void processCacheFlags() throws CmdLineException
+	{
+		ConversionContext context = ConversionContext.get();
+
+		if (cacheDir != null)
+		{
+			if (cacheMaxMb <= 0)
+				throw new CmdLineException(parser, hystLocalizable,
+						"-cache_max_mb must be positive: " + cacheMaxMb);
+
+			try
+			{
+				context.passCache = new PassCache(new File(cacheDir), cacheMaxMb * 1024 * 1024);
+			}
+			catch (IOException e)
+			{
+				throw new CmdLineException(parser, hystLocalizable, e.getMessage());
+			}
+
+			Hyst.log("Caching pass results in " + cacheDir);
+		}
+		else
+			context.passCache = null;
 	}
 
 	private ExitCode doTestPython()
@@ -518,6 +740,48 @@ public class Hyst
 		return rv;
 	}
 
+	private ExitCode runServer()
+	{
+		ExitCode rv = ExitCode.SUCCESS;
+
+		try
+		{
+			new HystServer(serverPort).run();
+		}
+		catch (IOException e)
+		{
+			logError("Error starting Hyst server: " + e);
+			rv = ExitCode.EXPORT_EXCEPTION;
+		}
+
+		return rv;
+	}
+
+	private ExitCode runBatch()
+	{
+		ExitCode rv;
+
+		try
+		{
+			int threads = batchThreads == 0 ? Runtime.getRuntime().availableProcessors()
+					: batchThreads;
+
+			rv = new HystBatch(new File(batchManifest), threads).run();
+		}
+		catch (IOException e)
+		{
+			logError("Error running batch manifest: " + e);
+			rv = ExitCode.EXPORT_EXCEPTION;
+		}
+		catch (CmdLineRuntimeException e)
+		{
+			logError("Error in batch manifest: " + e.getMessage());
+			rv = ExitCode.ARG_PARSE_ERROR;
+		}
+
+		return rv;
+	}
+
 	private void showHelp()
 	{
 		if (!IS_UNIT_TEST)
@@ -590,120 +854,385 @@ public class Hyst
 	private ExitCode runCommandLine()
 	{
 		ExitCode rv = ExitCode.SUCCESS;
-		Exception ex = null;
 
 		try
 		{
 			long startMs = System.currentTimeMillis();
-			Configuration config = null;
-
-			if (modelGenerator != null)
-			{
-				Expression.expressionPrinter = null; // should be assigned in
-														// geneartor
-				config = modelGenerator.generate(modelGenParam);
-			}
-			else
-			{
-				// 1. import the SpaceExDocument
-				SpaceExDocument spaceExDoc = SpaceExImporter.importModels(cfgFilename,
-						xmlFilenames.toArray(new String[xmlFilenames.size()]));
-
-				// 2. convert the SpaceEx data structures to template automata
-				Map<String, Component> componentTemplates = TemplateImporter
-						.createComponentTemplates(spaceExDoc);
 
-				// 3. run any component template passes here (future)
-
-				// 4. instantiate the component templates into a networked
-				// configuration
-				config = ConfigurationMaker.fromSpaceEx(spaceExDoc, componentTemplates);
-			}
+			// 1-4. import or generate the model
+			Configuration config = importConfiguration();
 
 			// 5. run passes
-			runPasses(config);
+			config = runPasses(config);
 
-			// 6. run printer
-			runPrinter(toolPrinter, config);
+			// 6. run printers
+			rv = runPrinters(config);
 
 			long difMs = System.currentTimeMillis() - startMs;
 
-			toolPrinter.flush();
 			Hyst.log("\nFinished converting in " + difMs + " ms");
 		}
-		catch (AutomatonExportException e)
+		catch (Exception e)
+		{
+			rv = reportException(e);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Create a Hyst for a single conversion (used by HystBatch to run the stages of a conversion
+	 * separately)
+	 * 
+	 * @param args
+	 *            the conversion's command-line arguments
+	 * @return the Hyst, with checked arguments
+	 */
+	static Hyst forConversion(String[] args) throws CmdLineException
+	{
+		Hyst rv = new Hyst();
+
+		rv.parser.parseArgument(args);
+		rv.checkArguments();
+
+		return rv;
+	}
+
+	/**
+	 * Generate the model, or import it from the input files
+	 * 
+	 * @return the networked configuration
+	 */
+	Configuration importConfiguration()
+	{
+		Configuration config = null;
+
+		if (modelGenerator != null)
+		{
+			Expression.setExpressionPrinter(null); // should be assigned in
+													// generator
+			config = modelGenerator.generate(modelGenParam);
+		}
+		else
+		{
+			// 1. import the SpaceExDocument
+			SpaceExDocument spaceExDoc = SpaceExImporter.importModels(cfgFilename,
+					xmlFilenames.toArray(new String[xmlFilenames.size()]));
+
+			// 2. convert the SpaceEx data structures to template automata
+			Map<String, Component> componentTemplates = TemplateImporter
+					.createComponentTemplates(spaceExDoc);
+
+			// 3. run any component template passes here (future)
+
+			// 4. instantiate the component templates into a networked
+			// configuration
+			config = ConfigurationMaker.fromSpaceEx(spaceExDoc, componentTemplates);
+
+			Hyst.log("Expression parse cache after import: " + FormulaParser.getCacheHits()
+					+ " hits, " + FormulaParser.getCacheMisses() + " misses");
+		}
+
+		return config;
+	}
+
+	/**
+	 * Log an exception from a conversion, and get the matching exit code
+	 * 
+	 * @param e
+	 *            the exception
+	 * @return the exit code
+	 */
+	static ExitCode reportException(Exception e)
+	{
+		ExitCode rv;
+
+		if (e instanceof AutomatonExportException)
 		{
 			logError("\nHyst error while exporting - " + e.toString() + "\n");
-			ex = e;
 			rv = ExitCode.EXPORT_AUTOMATON_EXCEPTION;
 		}
-		catch (PreconditionsFailedException e)
+		else if (e instanceof PreconditionsFailedException)
 		{
 			logError("Preconditions not met for exporting.");
-			ex = e;
 			rv = ExitCode.PRECONDITIONS_EXCEPTION;
 		}
-		catch (CmdLineRuntimeException e)
+		else if (e instanceof CmdLineRuntimeException)
 		{
 			logError(e.getMessage());
-			ex = e;
 			rv = ExitCode.ARG_PARSE_ERROR;
 		}
-		catch (Exception e)
+		else
 		{
 			logError("Exception in Hyst while exporting.");
-			ex = e;
 			rv = ExitCode.EXPORT_EXCEPTION;
 		}
 
-		if (ex != null)
+		if (isVerboseMode())
 		{
-			if (verboseMode)
+			String message = e.getLocalizedMessage() != null ? e.getLocalizedMessage()
+					: e.toString();
+
+			log(message);
+			log("Stack trace from exception:");
+
+			StringWriter sw = new StringWriter();
+			PrintWriter pw = new PrintWriter(sw);
+			e.printStackTrace(pw);
+			log(sw.toString());
+		}
+		else
+			logError("For more information about the error, use the -verbose or -debug flag.");
+
+		return rv;
+	}
+
+	/**
+	 * Run every tool printer. With several printers, passes have only been run once, and each
+	 * printer gets its own copy of the resulting configuration (printers can modify it, for example
+	 * in their preconditions), and they run concurrently, each in a new ConversionContext.
+	 * 
+	 * @param config
+	 *            the configuration, after passes
+	 * @return the exit code of the first printer which failed, or SUCCESS
+	 */
+	private ExitCode runPrinters(Configuration config) throws Exception
+	{
+		ExitCode rv = ExitCode.SUCCESS;
+		int numPrinters = toolPrinters.size();
+
+		if (numPrinters == 1)
+		{
+			runPrinter(0, config);
+			toolPrinters.get(0).flush();
+		}
+		else
+		{
+			// copy before starting, since printers modify their configuration
+			final List<Configuration> copies = new ArrayList<Configuration>();
+
+			for (int i = 0; i < numPrinters; ++i)
+				copies.add(i == numPrinters - 1 ? config : config.copy());
+
+			final ConversionContext parent = ConversionContext.get();
+			int numThreads = Math.min(numPrinters, Runtime.getRuntime().availableProcessors());
+			ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+
+			try
 			{
-				String message = ex.getLocalizedMessage() != null ? ex.getLocalizedMessage()
-						: ex.toString();
+				List<Future<ExitCode>> results = new ArrayList<Future<ExitCode>>();
 
-				log(message);
-				log("Stack trace from exception:");
+				for (int i = 0; i < numPrinters; ++i)
+				{
+					final int index = i;
+
+					results.add(pool.submit(new Callable<ExitCode>()
+					{
+						@Override
+						public ExitCode call() throws Exception
+						{
+							return runPrinterInNewContext(parent, index, copies.get(index));
+						}
+					}));
+				}
+
+				for (Future<ExitCode> f : results)
+				{
+					ExitCode code = f.get();
 
-				StringWriter sw = new StringWriter();
-				PrintWriter pw = new PrintWriter(sw);
-				ex.printStackTrace(pw);
-				log(sw.toString());
+					if (rv == ExitCode.SUCCESS)
+						rv = code;
+				}
+			}
+			finally
+			{
+				pool.shutdown();
 			}
-			else
-				logError("For more information about the error, use the -verbose or -debug flag.");
 		}
 
 		return rv;
 	}
 
-	private void runPrinter(ToolPrinter printer, Configuration config)
+	private ExitCode runPrinterInNewContext(ConversionContext parent, final int index,
+			final Configuration config) throws Exception
 	{
-		Expression.expressionPrinter = null; // should be assigned in printer
+		ConversionContext context = parent.createChild();
+		context.out = parent.out;
+		context.err = parent.err;
 
+		try
+		{
+			return context.call(new Callable<ExitCode>()
+			{
+				@Override
+				public ExitCode call()
+				{
+					ExitCode rv = ExitCode.SUCCESS;
+					ToolPrinter printer = toolPrinters.get(index);
+					long startMs = System.currentTimeMillis();
+
+					try
+					{
+						runPrinter(index, config);
+						printer.flush();
+
+						Hyst.log("Printed " + printer.getToolName() + " model to "
+								+ getOutputFilename(index) + " in "
+								+ (System.currentTimeMillis() - startMs) + " ms");
+					}
+					catch (Exception e)
+					{
+						Hyst.logError("Error while printing " + printer.getToolName() + " model:");
+						rv = reportException(e);
+					}
+
+					return rv;
+				}
+			});
+		}
+		finally
+		{
+			context.close();
+		}
+	}
+
+	/**
+	 * Get the output filename of a tool printer
+	 * 
+	 * @param index
+	 *            the index of the printer, in the order of the -tool flags
+	 * @return the filename, or null to print to stdout (or the gui)
+	 */
+	String getOutputFilename(int index)
+	{
+		String rv = null;
+
+		if (outputFilenames.size() == 1 && toolPrinters.size() > 1)
+		{
+			// a single base name for several printers
+			ToolPrinter tp = toolPrinters.get(index);
+			String ext = tp.getExtension();
+			rv = outputFilenames.get(0) + "_" + tp.getCommandLineFlag();
+
+			// the same printer may be used more than once
+			for (int i = 0; i < toolPrinters.size(); ++i)
+			{
+				if (i != index && toolPrinters.get(i).getClass() == tp.getClass())
+				{
+					rv += "_" + index;
+					break;
+				}
+			}
+
+			rv += ext == null ? ".txt" : ext;
+		}
+		else if (outputFilenames.size() > index)
+			rv = outputFilenames.get(index);
+
+		return rv;
+	}
+
+	void runPrinter(int index, Configuration config)
+	{
+		Expression.setExpressionPrinter(null); // should be assigned in printer
+
+		ToolPrinter printer = toolPrinters.get(index);
 		String originalFilename = StringOperations.join(" ", xmlFilenames.toArray(new String[] {}));
+		String outputFilename = getOutputFilename(index);
 
 		if (outputFilename != null)
 			printer.setOutputFile(outputFilename);
 		else if (guiFrame != null)
 			printer.setOutputGui(guiFrame);
 
-		printer.print(config, toolParamsString, originalFilename);
+		printer.print(config, toolParams.get(index), originalFilename);
 	}
 
-	private void runPasses(Configuration config)
+	/**
+	 * Run the requested passes. With -cache_dir, the passes are resumed from the longest cached
+	 * prefix of the pass chain, and the result of each pass which is run is stored in the cache.
+	 * 
+	 * @param config
+	 *            the configuration, which is modified in place if no cached result is used
+	 * @return the configuration after the passes (a new one, if it was loaded from the cache)
+	 */
+	Configuration runPasses(Configuration config)
 	{
-		for (RequestedTransformationPass rp : requestedPasses)
+		PassCache cache = ConversionContext.get().passCache;
+		String[] keys = null;
+		int start = 0;
+
+		if (cache != null && requestedPasses.size() > 0)
 		{
+			// keys[i] is the key of the configuration after the first i passes
+			keys = new String[requestedPasses.size() + 1];
+			keys[0] = cache.getModelKey(config);
+
+			for (int i = 0; i < requestedPasses.size(); ++i)
+			{
+				RequestedTransformationPass rp = requestedPasses.get(i);
+				keys[i + 1] = cache.getPassKey(keys[i], rp.tp.getCommandLineFlag(), rp.params);
+			}
+
+			for (int i = requestedPasses.size(); i > 0; --i)
+			{
+				Configuration cached = cache.load(keys[i]);
+
+				if (cached != null)
+				{
+					config = cached;
+					start = i;
+					break;
+				}
+			}
+
+			if (start > 0)
+				Hyst.logInfo("Pass cache hit: loaded result of first " + start + " of "
+						+ requestedPasses.size() + " passes from " + cache.getDir());
+			else
+				Hyst.logInfo("Pass cache miss");
+		}
+
+		// with -checkpoint_passes, the model from before the running pass (only the last one is
+		// needed, so earlier checkpoints are not kept)
+		Configuration checkpoint = null;
+
+		for (int i = start; i < requestedPasses.size(); ++i)
+		{
+			RequestedTransformationPass rp = requestedPasses.get(i);
 			Hyst.log("Running pass " + rp.tp.getName() + " with params " + rp.params);
 
-			Expression.expressionPrinter = null; // should be assigned in pass
-			rp.tp.runTransformationPass(config, rp.params);
+			if (checkpointPassesFlag)
+				checkpoint = config.copy();
+
+			Expression.setExpressionPrinter(null); // should be assigned in pass
+
+			try
+			{
+				rp.tp.runTransformationPass(config, rp.params);
+			}
+			catch (RuntimeException e)
+			{
+				if (checkpoint != null)
+				{
+					Expression.setExpressionPrinter(DefaultExpressionPrinter.instance);
+					Hyst.logError("\n----------Pass " + rp.tp.getName()
+							+ " failed. Before running it, configuration was:\n" + checkpoint);
+				}
+
+				throw e;
+			}
 
 			Hyst.logDebug("\n----------After running pass " + rp.tp.getName()
 					+ ", configuration is:\n" + config);
+
+			if (keys != null)
+				cache.store(keys[i + 1], config);
 		}
+
+		Hyst.logDebug("Incremental " + ValidationCache.getCounterString());
+
+		return config;
 	}
 
 	private static void fixLookAndFeel()
@@ -738,13 +1267,15 @@ public class Hyst
 		return rv;
 	}
 
-	private static TransformationPass newTransformationPassInstance(TransformationPass tp)
+	@SuppressWarnings("unchecked")
+	private static <T> T newInstance(T prototype)
 	{
-		// create a new instance of the transformation pass to give it fresh
+		// create a new instance of the pass or printer to give it fresh
 		// state
-		Class<? extends TransformationPass> cl = tp.getClass();
-		Constructor<? extends TransformationPass> ctor;
-		TransformationPass instance = null;
+		Class<? extends T> cl = (Class<? extends T>) prototype.getClass();
+		String desc = "Error instantiating " + cl.getSimpleName();
+		Constructor<? extends T> ctor;
+		T instance = null;
 
 		try
 		{
@@ -753,23 +1284,23 @@ public class Hyst
 		}
 		catch (NoSuchMethodException e)
 		{
-			throw new AutomatonExportException("Error instantiating TransformationPass", e);
+			throw new AutomatonExportException(desc, e);
 		}
 		catch (InstantiationException e2)
 		{
-			throw new AutomatonExportException("Error instantiating TransformationPass", e2);
+			throw new AutomatonExportException(desc, e2);
 		}
 		catch (IllegalArgumentException e3)
 		{
-			throw new AutomatonExportException("Error instantiating TransformationPass", e3);
+			throw new AutomatonExportException(desc, e3);
 		}
 		catch (IllegalAccessException e4)
 		{
-			throw new AutomatonExportException("Error instantiating TransformationPass", e4);
+			throw new AutomatonExportException(desc, e4);
 		}
 		catch (InvocationTargetException e5)
 		{
-			throw new AutomatonExportException("Error instantiating TransformationPass", e5);
+			throw new AutomatonExportException(desc, e5);
 		}
 
 		return instance;
@@ -783,12 +1314,14 @@ public class Hyst
 	 */
 	public static void log(String message)
 	{
-		if (verboseMode || debugMode)
+		ConversionContext context = ConversionContext.get();
+
+		if (context.verboseMode || context.debugMode)
 		{
 			if (guiFrame != null)
 				guiFrame.addOutput(message);
 
-			System.err.println(message);
+			context.getErr().println(message);
 		}
 	}
 
@@ -803,7 +1336,7 @@ public class Hyst
 		if (guiFrame != null)
 			guiFrame.addOutput(message);
 		else
-			System.err.println(message);
+			ConversionContext.get().getErr().println(message);
 	}
 
 	/**
@@ -815,12 +1348,14 @@ public class Hyst
 	 */
 	public static void logDebug(String message)
 	{
-		if (debugMode)
+		ConversionContext context = ConversionContext.get();
+
+		if (context.debugMode)
 		{
 			if (guiFrame != null)
 				guiFrame.addOutput(message);
 
-			System.err.println(message);
+			context.getErr().println(message);
 		}
 	}
 
@@ -835,6 +1370,6 @@ public class Hyst
 		if (guiFrame != null)
 			guiFrame.addOutput(message);
 
-		System.err.println(message);
+		ConversionContext.get().getErr().println(message);
 	}
 }
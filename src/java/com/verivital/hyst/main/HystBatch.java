@@ -0,0 +1,866 @@
+package com.verivital.hyst.main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.kohsuke.args4j.CmdLineException;
+
+import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.main.Hyst.ExitCode;
+import com.verivital.hyst.python.PythonBridgePool;
+import com.verivital.hyst.util.CmdLineRuntimeException;
+
+/**
+ * Converts every combination of models, tools and pass chains listed in a manifest file, in
+ * parallel in one process (started with "-batch MANIFEST"). Each model is imported once, and each
+ * pass chain is run once per model; the resulting configuration is copied for each tool printer.
+ * The conversions are scheduled on a work-stealing (fork/join) pool, each stage in its own
+ * ConversionContext.
+ *
+ * The manifest is a text file with one entry per line (blank lines and lines starting with '#' are
+ * ignored). Arguments are separated by spaces, and can be double-quoted to include spaces or to be
+ * empty (""). Paths are relative to the manifest's directory.
+ *
+ * <pre>
+ * model PATTERN [CFG]        .xml files to convert; PATTERN can be a glob like models/&#42;&#42;/&#42;.xml
+ * tool NAME [PARAMS]         a tool printer and its params
+ * passes [PASS PARAMS ...]   a pass chain (if no passes lines are given, no passes are run)
+ * output DIR                 where the models and summary are written (default: batch_output)
+ * </pre>
+ *
+ * Repeated models are converted once, and repeated tool or passes entries are an error. The output
+ * file for each job is named after the model, tool and pass chain (numbered when a tool is listed
+ * more than once with different params, or when model names are ambiguous). A summary with each
+ * job's exit code, times and output size is written to summary.csv and summary.json in the output
+ * directory.
+ */
+public class HystBatch
+{
+	public static final String SUMMARY_CSV = "summary.csv";
+	public static final String SUMMARY_JSON = "summary.json";
+	public static final String DEFAULT_OUTPUT_DIR = "batch_output";
+
+	private final File manifestDir;
+	private final int numThreads;
+
+	// entries from the manifest
+	private final List<String[]> models = new ArrayList<String[]>(); // input files for -i
+	private final List<String[]> tools = new ArrayList<String[]>(); // name, params
+	private final List<String[]> passChains = new ArrayList<String[]>(); // pass, params, ...
+	private File outputDir;
+
+	// the context the batch was started in, whose settings are used for each job
+	private final ConversionContext batchContext = ConversionContext.get();
+
+	// python processes shared by the stages, one per thread (stages lease one when they first use
+	// python, and return it when they finish)
+	private PythonBridgePool pythonBridges = null;
+
+	private final List<Job> jobs = new ArrayList<Job>();
+
+	/**
+	 * A single conversion (model x pass chain x tool), and its result
+	 */
+	public static class Job
+	{
+		public final String[] args; // the equivalent single-conversion command line
+		public final String model;
+		public final String tool;
+		public final String passes;
+		public final File outputFile;
+
+		public ExitCode exitCode = ExitCode.SUCCESS;
+		public long importMs = 0, passesMs = 0, printMs = 0;
+		public long outputBytes = 0;
+		public String log = "";
+
+		private Hyst hyst = null; // null if the arguments were invalid
+
+		Job(String[] args, String model, String tool, String passes, File outputFile)
+		{
+			this.args = args;
+			this.model = model;
+			this.tool = tool;
+			this.passes = passes;
+			this.outputFile = outputFile;
+		}
+
+		public long getTotalMs()
+		{
+			return importMs + passesMs + printMs;
+		}
+	}
+
+	/**
+	 * Load a batch manifest
+	 *
+	 * @param manifest
+	 *            the manifest file
+	 * @param numThreads
+	 *            the number of threads to convert on
+	 */
+	public HystBatch(File manifest, int numThreads) throws IOException
+	{
+		this.manifestDir = manifest.getAbsoluteFile().getParentFile();
+		this.numThreads = numThreads;
+		this.outputDir = new File(manifestDir, DEFAULT_OUTPUT_DIR);
+
+		List<String> lines = Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8);
+
+		for (int i = 0; i < lines.size(); ++i)
+			parseLine(i + 1, lines.get(i).trim());
+
+		if (passChains.isEmpty())
+			passChains.add(new String[0]);
+
+		if (models.isEmpty())
+			throw new CmdLineRuntimeException("no models matched in manifest " + manifest);
+
+		if (tools.isEmpty())
+			throw new CmdLineRuntimeException("no tools were given in manifest " + manifest);
+	}
+
+	private void parseLine(int lineNum, String line) throws IOException
+	{
+		if (line.isEmpty() || line.startsWith("#"))
+			return;
+
+		List<String> tokens = tokenize(line);
+		String key = tokens.remove(0);
+
+		if (key.equals("model"))
+		{
+			if (tokens.size() < 1 || tokens.size() > 2)
+				throw new CmdLineRuntimeException(
+						"line " + lineNum + ": expected 'model PATTERN [CFG]': " + line);
+
+			String pattern = tokens.get(0);
+
+			if (isGlob(pattern))
+			{
+				if (tokens.size() > 1)
+					throw new CmdLineRuntimeException("line " + lineNum
+							+ ": a .cfg file cannot be given with a glob pattern: " + line);
+
+				for (File f : glob(pattern))
+					addModel(new String[] { f.getPath() });
+			}
+			else
+			{
+				String[] files = new String[tokens.size()];
+
+				for (int i = 0; i < files.length; ++i)
+					files[i] = resolve(tokens.get(i)).getPath();
+
+				addModel(files);
+			}
+		}
+		else if (key.equals("tool"))
+		{
+			if (tokens.size() < 1 || tokens.size() > 2)
+				throw new CmdLineRuntimeException(
+						"line " + lineNum + ": expected 'tool NAME [PARAMS]': " + line);
+
+			String[] tool = { tokens.get(0), tokens.size() > 1 ? tokens.get(1) : "" };
+
+			if (containsEntry(tools, tool))
+				throw new CmdLineRuntimeException(
+						"line " + lineNum + ": duplicate tool entry: " + line);
+
+			tools.add(tool);
+		}
+		else if (key.equals("passes"))
+		{
+			if (tokens.size() % 2 != 0)
+				throw new CmdLineRuntimeException("line " + lineNum
+						+ ": expected 'passes [PASS PARAMS ...]' (params can be \"\"): " + line);
+
+			String[] chain = tokens.toArray(new String[tokens.size()]);
+
+			if (containsEntry(passChains, chain))
+				throw new CmdLineRuntimeException(
+						"line " + lineNum + ": duplicate passes entry: " + line);
+
+			passChains.add(chain);
+		}
+		else if (key.equals("output"))
+		{
+			if (tokens.size() != 1)
+				throw new CmdLineRuntimeException(
+						"line " + lineNum + ": expected 'output DIR': " + line);
+
+			outputDir = resolve(tokens.get(0));
+		}
+		else
+			throw new CmdLineRuntimeException(
+					"line " + lineNum + ": unknown manifest entry '" + key + "'");
+	}
+
+	/**
+	 * Add a model, unless it was already added (for example, by overlapping glob patterns)
+	 */
+	private void addModel(String[] files)
+	{
+		if (!containsEntry(models, files))
+			models.add(files);
+	}
+
+	private static boolean containsEntry(List<String[]> entries, String[] entry)
+	{
+		for (String[] e : entries)
+		{
+			if (Arrays.equals(e, entry))
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Split a line into space-separated tokens. Double-quoted tokens can contain spaces, or be
+	 * empty.
+	 */
+	static List<String> tokenize(String line)
+	{
+		List<String> rv = new ArrayList<String>();
+		int i = 0;
+
+		while (i < line.length())
+		{
+			char c = line.charAt(i);
+
+			if (Character.isWhitespace(c))
+				++i;
+			else if (c == '"')
+			{
+				int end = line.indexOf('"', i + 1);
+
+				if (end == -1)
+					throw new CmdLineRuntimeException("unterminated quote in manifest line: " + line);
+
+				rv.add(line.substring(i + 1, end));
+				i = end + 1;
+			}
+			else
+			{
+				int end = i;
+
+				while (end < line.length() && !Character.isWhitespace(line.charAt(end)))
+					++end;
+
+				rv.add(line.substring(i, end));
+				i = end;
+			}
+		}
+
+		return rv;
+	}
+
+	private File resolve(String path)
+	{
+		File f = new File(path);
+
+		return f.isAbsolute() ? f : new File(manifestDir, path);
+	}
+
+	private static boolean isGlob(String pattern)
+	{
+		for (char c : "*?[{".toCharArray())
+			if (pattern.indexOf(c) != -1)
+				return true;
+
+		return false;
+	}
+
+	/**
+	 * Find the files matching a glob pattern, like "models/&#42;&#42;/&#42;.xml"
+	 *
+	 * @return the sorted list of files
+	 */
+	private List<File> glob(String pattern) throws IOException
+	{
+		// walk from the directory before the first segment with a wildcard
+		String[] parts = pattern.replace('\\', '/').split("/");
+		File base = null;
+		int first = 0;
+
+		for (; first < parts.length && !isGlob(parts[first]); ++first)
+		{
+			if (base == null)
+				base = parts[first].isEmpty() ? new File("/") : resolve(parts[first]);
+			else
+				base = new File(base, parts[first]);
+		}
+
+		if (base == null)
+			base = manifestDir;
+
+		StringBuilder rest = new StringBuilder();
+
+		for (int i = first; i < parts.length; ++i)
+			rest.append(i == first ? "" : "/").append(parts[i]);
+
+		final Path basePath = base.toPath();
+		final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + rest);
+		final List<File> rv = new ArrayList<File>();
+
+		if (base.isDirectory())
+		{
+			Files.walkFileTree(basePath, new SimpleFileVisitor<Path>()
+			{
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+				{
+					if (matcher.matches(basePath.relativize(file)))
+						rv.add(file.toFile());
+
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+
+		Collections.sort(rv);
+
+		return rv;
+	}
+
+	/**
+	 * Create the jobs for every model x pass chain x tool. Each job gets a different output file.
+	 */
+	private void planJobs()
+	{
+		// models with the same file name get their directory name as a prefix
+		List<String> modelNames = new ArrayList<String>();
+
+		for (String[] m : models)
+			modelNames.add(modelName(m[0], false));
+
+		for (int i = 0; i < models.size(); ++i)
+		{
+			if (Collections.frequency(modelNames, modelNames.get(i)) > 1)
+				modelNames.set(i, modelName(models.get(i)[0], true));
+		}
+
+		// names which still repeat (same directory name, or the same model with different .cfg
+		// files), and tools listed several times with different params, are numbered
+		modelNames = numberRepeats(modelNames);
+		List<String> toolNames = new ArrayList<String>();
+
+		for (String[] tool : tools)
+			toolNames.add(tool[0]);
+
+		toolNames = numberRepeats(toolNames);
+
+		for (int m = 0; m < models.size(); ++m)
+		{
+			for (int p = 0; p < passChains.size(); ++p)
+			{
+				for (int t = 0; t < tools.size(); ++t)
+				{
+					String base = modelNames.get(m) + "_" + toolNames.get(t);
+
+					if (passChains.size() > 1)
+						base += "_passes" + p;
+
+					jobs.add(makeJob(models.get(m), passChains.get(p), tools.get(t), base));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Append a number to the names which occur more than once, like "flowstar1" and "flowstar2"
+	 */
+	private static List<String> numberRepeats(List<String> names)
+	{
+		List<String> rv = new ArrayList<String>();
+		Map<String, Integer> seen = new HashMap<String, Integer>();
+
+		for (String name : names)
+		{
+			if (Collections.frequency(names, name) > 1)
+			{
+				Integer count = seen.get(name);
+				count = count == null ? 1 : count + 1;
+				seen.put(name, count);
+
+				rv.add(name + count);
+			}
+			else
+				rv.add(name);
+		}
+
+		return rv;
+	}
+
+	private static String modelName(String path, boolean withDir)
+	{
+		File f = new File(path);
+		String name = f.getName();
+
+		if (name.endsWith(".xml"))
+			name = name.substring(0, name.length() - 4);
+
+		if (withDir && f.getAbsoluteFile().getParentFile() != null)
+			name = f.getAbsoluteFile().getParentFile().getName() + "_" + name;
+
+		return name;
+	}
+
+	private Job makeJob(String[] model, String[] passes, String[] tool, String baseName)
+	{
+		List<String> args = new ArrayList<String>();
+
+		args.add(Hyst.FLAG_INPUT);
+		args.addAll(Arrays.asList(model));
+
+		if (passes.length > 0)
+		{
+			args.add(Hyst.FLAG_PASSES);
+			args.addAll(Arrays.asList(passes));
+		}
+
+		args.add(Hyst.FLAG_TOOL);
+		args.add(tool[0]);
+		args.add(tool[1]);
+
+		String[] partial = args.toArray(new String[args.size()]);
+		Hyst hyst = null;
+		String error = null;
+
+		try
+		{
+			hyst = Hyst.forConversion(partial);
+		}
+		catch (CmdLineException e)
+		{
+			error = e.getMessage();
+		}
+
+		String ext = hyst == null ? null : hyst.toolPrinters.get(0).getExtension();
+		File out = new File(outputDir, baseName + (ext == null ? ".txt" : ext));
+
+		args.add(Hyst.FLAG_OUTPUT);
+		args.add(out.getPath());
+
+		Job rv = new Job(args.toArray(new String[args.size()]), model[0], tool[0],
+				Hyst.makeSingleArgument(passes), out);
+
+		if (hyst != null)
+		{
+			hyst.outputFilenames.add(out.getPath());
+			rv.hyst = hyst;
+		}
+		else
+		{
+			rv.exitCode = ExitCode.ARG_PARSE_ERROR;
+			rv.log = "Error in job arguments: " + error + "\n";
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Run all the jobs, and write the summary
+	 *
+	 * @return SUCCESS if every job succeeded, otherwise EXPORT_EXCEPTION
+	 */
+	public ExitCode run() throws IOException
+	{
+		if (!outputDir.isDirectory() && !outputDir.mkdirs())
+			throw new IOException("could not create output directory: " + outputDir);
+
+		planJobs();
+
+		Hyst.log("Batch: " + jobs.size() + " jobs (" + models.size() + " models x "
+				+ passChains.size() + " pass chains x " + tools.size() + " tools) on " + numThreads
+				+ " threads");
+
+		long startMs = System.currentTimeMillis();
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+		pythonBridges = new PythonBridgePool(numThreads);
+
+		try
+		{
+			List<ModelTask> tasks = new ArrayList<ModelTask>();
+			int jobsPerModel = passChains.size() * tools.size();
+
+			for (int i = 0; i < jobs.size(); i += jobsPerModel)
+				tasks.add(new ModelTask(jobs.subList(i, i + jobsPerModel)));
+
+			for (ModelTask t : tasks)
+				pool.execute(t);
+
+			for (ModelTask t : tasks)
+				t.join();
+		}
+		finally
+		{
+			pool.shutdown();
+			pythonBridges.shutdown();
+		}
+
+		int failed = 0;
+
+		for (Job j : jobs)
+		{
+			if (j.exitCode != ExitCode.SUCCESS)
+				++failed;
+		}
+
+		writeCsv(new File(outputDir, SUMMARY_CSV));
+		writeJson(new File(outputDir, SUMMARY_JSON));
+
+		Hyst.logInfo("Batch finished in " + (System.currentTimeMillis() - startMs) + " ms: "
+				+ (jobs.size() - failed) + " succeeded, " + failed + " failed. Summary written to "
+				+ new File(outputDir, SUMMARY_CSV).getPath());
+
+		return failed == 0 ? ExitCode.SUCCESS : ExitCode.EXPORT_EXCEPTION;
+	}
+
+	public List<Job> getJobs()
+	{
+		return jobs;
+	}
+
+	public File getOutputDir()
+	{
+		return outputDir;
+	}
+
+	/**
+	 * A stage of a conversion, run on the pool in a new context whose log is captured
+	 */
+	private abstract class StageTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		protected final List<Job> group; // the jobs which depend on this stage
+		protected String stageLog = "";
+		protected ExitCode stageCode = ExitCode.SUCCESS;
+
+		StageTask(List<Job> group)
+		{
+			this.group = group;
+		}
+
+		/**
+		 * Run the stage (in its context)
+		 */
+		protected abstract void runStage();
+
+		/**
+		 * Run the dependent stages (outside of this stage's context)
+		 */
+		protected abstract void runChildren();
+
+		@Override
+		protected void compute()
+		{
+			ConversionContext context = batchContext.createChild();
+			context.pythonBridgePool = pythonBridges;
+			ByteArrayOutputStream log = new ByteArrayOutputStream();
+			ConversionContext previous = null;
+
+			try
+			{
+				context.err = new PrintStream(log, true, "UTF-8");
+				context.programArguments = Hyst.makeSingleArgument(group.get(0).args);
+				previous = context.enter();
+
+				try
+				{
+					runStage();
+				}
+				catch (Exception e)
+				{
+					stageCode = Hyst.reportException(e);
+				}
+			}
+			catch (UnsupportedEncodingException e)
+			{
+				throw new RuntimeException(e);
+			}
+			finally
+			{
+				ConversionContext.exit(previous);
+				context.close();
+			}
+
+			try
+			{
+				stageLog = log.toString("UTF-8");
+			}
+			catch (UnsupportedEncodingException e)
+			{
+				throw new RuntimeException(e);
+			}
+
+			if (stageCode != ExitCode.SUCCESS)
+			{
+				for (Job j : group)
+				{
+					j.exitCode = stageCode;
+					j.log += stageLog;
+					finished(j);
+				}
+			}
+			else
+			{
+				for (Job j : group)
+					j.log += stageLog;
+
+				runChildren();
+			}
+		}
+	}
+
+	/**
+	 * Get the Hyst of the first job in a group with valid arguments
+	 */
+	private static Hyst firstValid(List<Job> group)
+	{
+		for (Job j : group)
+		{
+			if (j.hyst != null)
+				return j.hyst;
+		}
+
+		throw new CmdLineRuntimeException("no job had valid arguments");
+	}
+
+	/**
+	 * Import a model once, and run each of its pass chains on a copy
+	 */
+	private class ModelTask extends StageTask
+	{
+		private static final long serialVersionUID = 1L;
+
+		private Configuration config = null;
+
+		ModelTask(List<Job> modelJobs)
+		{
+			super(modelJobs);
+		}
+
+		@Override
+		protected void runStage()
+		{
+			long start = System.currentTimeMillis();
+
+			config = firstValid(group).importConfiguration();
+
+			long ms = System.currentTimeMillis() - start;
+
+			for (Job j : group)
+				j.importMs = ms;
+		}
+
+		@Override
+		protected void runChildren()
+		{
+			int perChain = tools.size();
+			List<ChainTask> chains = new ArrayList<ChainTask>();
+
+			for (int i = 0; i < group.size(); i += perChain)
+			{
+				// copy before forking, so no chain modifies the model while another copies it
+				boolean last = i + perChain >= group.size();
+				Configuration c = last ? config : config.copy();
+
+				chains.add(new ChainTask(group.subList(i, i + perChain), c));
+			}
+
+			config = null;
+			invokeAll(chains);
+		}
+	}
+
+	/**
+	 * Run a pass chain once, and print the result with each tool on a copy
+	 */
+	private class ChainTask extends StageTask
+	{
+		private static final long serialVersionUID = 1L;
+
+		private Configuration config;
+
+		ChainTask(List<Job> chainJobs, Configuration config)
+		{
+			super(chainJobs);
+			this.config = config;
+		}
+
+		@Override
+		protected void runStage()
+		{
+			long start = System.currentTimeMillis();
+
+			// with -cache_dir, this may be a different configuration loaded from the cache
+			config = firstValid(group).runPasses(config);
+
+			long ms = System.currentTimeMillis() - start;
+
+			for (Job j : group)
+				j.passesMs = ms;
+		}
+
+		@Override
+		protected void runChildren()
+		{
+			List<PrintTask> prints = new ArrayList<PrintTask>();
+
+			for (int i = 0; i < group.size(); ++i)
+			{
+				boolean last = i == group.size() - 1;
+				Configuration c = last ? config : config.copy();
+
+				prints.add(new PrintTask(group.get(i), c));
+			}
+
+			invokeAll(prints);
+		}
+	}
+
+	/**
+	 * Print one job's model
+	 */
+	private class PrintTask extends StageTask
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final Job job;
+		private final Configuration config;
+
+		PrintTask(Job job, Configuration config)
+		{
+			super(Collections.singletonList(job));
+			this.job = job;
+			this.config = config;
+		}
+
+		@Override
+		protected void runStage()
+		{
+			long start = System.currentTimeMillis();
+
+			if (job.hyst == null)
+				throw new CmdLineRuntimeException("invalid job arguments");
+
+			job.hyst.runPrinter(0, config);
+			job.hyst.toolPrinters.get(0).flush();
+
+			job.printMs = System.currentTimeMillis() - start;
+		}
+
+		@Override
+		protected void runChildren()
+		{
+			finished(job);
+		}
+	}
+
+	/**
+	 * Called when a job has finished (successfully or not)
+	 */
+	private void finished(Job j)
+	{
+		j.outputBytes = j.outputFile.exists() ? j.outputFile.length() : 0;
+
+		if (j.exitCode != ExitCode.SUCCESS)
+			batchContext.getErr().print("Batch job failed (exit code " + j.exitCode.ordinal()
+					+ "): " + Hyst.makeSingleArgument(j.args) + "\n" + j.log);
+		else if (batchContext.verboseMode)
+			batchContext.getErr().print("Batch job finished in " + j.getTotalMs() + " ms: "
+					+ Hyst.makeSingleArgument(j.args) + "\n" + j.log);
+	}
+
+	private void writeCsv(File f) throws IOException
+	{
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("model,tool,passes,output,exit_code,time_ms,import_ms,passes_ms,print_ms,"
+				+ "output_bytes\n");
+
+		for (Job j : jobs)
+		{
+			sb.append(csv(j.model) + "," + csv(j.tool) + "," + csv(j.passes) + ","
+					+ csv(j.outputFile.getPath()) + "," + j.exitCode.ordinal() + ","
+					+ j.getTotalMs() + "," + j.importMs + "," + j.passesMs + "," + j.printMs + ","
+					+ j.outputBytes + "\n");
+		}
+
+		Files.write(f.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void writeJson(File f) throws IOException
+	{
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("[\n");
+
+		for (int i = 0; i < jobs.size(); ++i)
+		{
+			Job j = jobs.get(i);
+
+			sb.append("  {\"model\": " + json(j.model) + ", \"tool\": " + json(j.tool)
+					+ ", \"passes\": " + json(j.passes) + ", \"output\": "
+					+ json(j.outputFile.getPath()) + ", \"exit_code\": " + j.exitCode.ordinal()
+					+ ", \"time_ms\": " + j.getTotalMs() + ", \"import_ms\": " + j.importMs
+					+ ", \"passes_ms\": " + j.passesMs + ", \"print_ms\": " + j.printMs
+					+ ", \"output_bytes\": " + j.outputBytes + "}");
+
+			sb.append(i + 1 < jobs.size() ? ",\n" : "\n");
+		}
+
+		sb.append("]\n");
+
+		Files.write(f.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String csv(String s)
+	{
+		if (s.contains(",") || s.contains("\"") || s.contains("\n"))
+			s = "\"" + s.replace("\"", "\"\"") + "\"";
+
+		return s;
+	}
+
+	private static String json(String s)
+	{
+		StringBuilder sb = new StringBuilder("\"");
+
+		for (char c : s.toCharArray())
+		{
+			if (c == '"' || c == '\\')
+				sb.append('\\').append(c);
+			else if (c == '\n')
+				sb.append("\\n");
+			else if (c < 0x20)
+				sb.append(String.format("\\u%04x", (int) c));
+			else
+				sb.append(c);
+		}
+
+		return sb.append('"').toString();
+	}
+}
@@ -0,0 +1,650 @@
+package com.verivital.hyst.main;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.verivital.hyst.geometry.HyperPoint;
+import com.verivital.hyst.ir.ValidationCache;
+import com.verivital.hyst.ir.network.NetworkComponent;
+import com.verivital.hyst.main.Hyst.ExitCode;
+import com.verivital.hyst.python.PythonBridgePool;
+
+/**
+ * A long-running Hyst process which accepts conversion jobs on a local TCP port (started with
+ * "-server PORT"). This avoids the JVM startup, class loading and parser warm-up of running a new
+ * Hyst for each conversion, and keeps the expression caches and python processes between jobs.
+ *
+ * A job is a list of Hyst command-line arguments (like "-i model.xml -tool flowstar ''"), plus
+ * optional inline files. Inline files are written to a temporary directory for the job, and any
+ * argument equal to an inline file's name is replaced by its path. The job's stdout (the printed
+ * model, unless -o is used) and stderr (the log) are streamed back while it runs, followed by the
+ * exit code.
+ *
+ * Since other users on the machine can connect to the port, jobs must authenticate. When it starts,
+ * the server writes a random token to a file which only the user can read
+ * (~/.hyst/server_PORT.token, see getTokenFile()), and deletes it on shutdown. Clients read the
+ * token from this file and send it first; connections with a wrong token are rejected.
+ *
+ * Protocol (all integers are 4-byte big-endian, and strings are an integer byte length followed by
+ * UTF-8 bytes): the client sends the token, the number of arguments, the arguments, the number of
+ * inline files, and a (name, contents) pair for each file. Relative paths in the arguments are
+ * resolved in the server's working directory, so clients should send absolute paths. The server replies with messages made of a type
+ * byte and a payload: 'O' + string (stdout), 'E' + string (stderr), and finally 'X' + integer (the
+ * ExitCode ordinal), after which the connection is closed. A job with the single argument
+ * "-shutdown" stops the server.
+ *
+ * Each job runs in a new ConversionContext, which holds its flags (verbose / debug, validation,
+ * simulation, printing and flattening settings), expression printer and python process. Some
+ * settings are still global (for example NetworkComponent.PRINT_RECURSIVE), so jobs run one at a
+ * time, and these are reset to their values from when the server started before and after each
+ * job. The python process is leased from the server's pool and returned after the job, so it is
+ * only started once rather than for every job.
+ */
+public class HystServer
+{
+	public static final String FLAG_SHUTDOWN = "-shutdown";
+
+	public static final byte MESSAGE_STDOUT = 'O';
+	public static final byte MESSAGE_STDERR = 'E';
+	public static final byte MESSAGE_EXIT = 'X';
+
+	private static final int MAX_STRING_BYTES = 1 << 30;
+	private static final int MAX_TOKEN_BYTES = 1024;
+	private static final int TOKEN_BYTES = 32;
+
+	private final ServerSocket serverSocket;
+	private final File tokenFile;
+	private final byte[] token;
+	private final GlobalSettings defaults = new GlobalSettings();
+	private final Object jobLock = new Object();
+
+	// running python processes which jobs lease (jobs run one at a time, so one is enough)
+	private final PythonBridgePool pythonBridges = new PythonBridgePool(1);
+
+	// the server's own streams (System.out and System.err are redirected while jobs run)
+	private final PrintStream serverOut = System.out;
+	private final PrintStream serverErr = System.err;
+
+	/**
+	 * Create a server listening on the loopback interface, and write its token file
+	 *
+	 * @param port
+	 *            the TCP port, or 0 for any free port (see getPort())
+	 */
+	public HystServer(int port) throws IOException
+	{
+		serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+
+		byte[] random = new byte[TOKEN_BYTES];
+		new SecureRandom().nextBytes(random);
+		StringBuilder sb = new StringBuilder();
+
+		for (byte b : random)
+			sb.append(String.format("%02x", b & 0xff));
+
+		token = sb.toString().getBytes(StandardCharsets.UTF_8);
+		tokenFile = getTokenFile(getPort());
+
+		try
+		{
+			writeTokenFile(tokenFile, token);
+		}
+		catch (IOException e)
+		{
+			serverSocket.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Get the file with the token of the server on a port. Only the user can read it.
+	 *
+	 * @param port
+	 *            the server's port
+	 * @return the token file
+	 */
+	public static File getTokenFile(int port)
+	{
+		File dir = new File(System.getProperty("user.home"), ".hyst");
+
+		return new File(dir, "server_" + port + ".token");
+	}
+
+	/**
+	 * Write the token to a new file which is only accessible by the user, replacing any old file
+	 */
+	private static void writeTokenFile(File f, byte[] token) throws IOException
+	{
+		File dir = f.getParentFile();
+		boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+
+		if (!dir.isDirectory())
+		{
+			if (posix)
+				Files.createDirectories(dir.toPath(), PosixFilePermissions
+						.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+			else if (!dir.mkdirs())
+				throw new IOException("could not create directory: " + dir);
+		}
+
+		// the permissions are set before the token is written
+		Path temp;
+
+		if (posix)
+			temp = Files.createTempFile(dir.toPath(), "server", ".tmp", PosixFilePermissions
+					.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		else
+		{
+			temp = Files.createTempFile(dir.toPath(), "server", ".tmp");
+			File t = temp.toFile();
+			t.setReadable(false, false);
+			t.setWritable(false, false);
+			t.setReadable(true, true);
+			t.setWritable(true, true);
+		}
+
+		try
+		{
+			Files.write(temp, token);
+			Files.move(temp, f.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally
+		{
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Read the token of the server on a port (see getTokenFile())
+	 *
+	 * @param port
+	 *            the server's port
+	 * @return the token
+	 */
+	public static String readToken(int port) throws IOException
+	{
+		File f = getTokenFile(port);
+
+		if (!f.exists())
+			throw new IOException("no Hyst server token file (is the server running?): " + f);
+
+		return new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8).trim();
+	}
+
+	public int getPort()
+	{
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Accept jobs until a shutdown job is received. Each connection is handled in its own thread,
+	 * but the jobs themselves run one at a time.
+	 */
+	public void run()
+	{
+		serverOut.println("Hyst server listening on port " + getPort());
+		serverOut.flush();
+
+		while (!serverSocket.isClosed())
+		{
+			final Socket s;
+
+			try
+			{
+				s = serverSocket.accept();
+			}
+			catch (IOException e)
+			{
+				if (!serverSocket.isClosed())
+					serverErr.println("Hyst server error while accepting connection: " + e);
+
+				continue;
+			}
+
+			Thread t = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					handleConnection(s);
+				}
+			}, "Hyst job " + s.getPort());
+
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/**
+	 * Stop accepting jobs. A job which is running is completed, and then the python processes are
+	 * closed.
+	 */
+	public void shutdown()
+	{
+		tokenFile.delete();
+
+		try
+		{
+			serverSocket.close();
+		}
+		catch (IOException e)
+		{
+			serverErr.println("Hyst server error while closing: " + e);
+		}
+
+		synchronized (jobLock)
+		{
+			pythonBridges.shutdown();
+		}
+	}
+
+	private void handleConnection(Socket s)
+	{
+		try
+		{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(s.getOutputStream()));
+
+			if (!readTokenMatches(in))
+			{
+				synchronized (out)
+				{
+					out.writeByte(MESSAGE_STDERR);
+					writeString(out, "Invalid Hyst server token.\n");
+					out.writeByte(MESSAGE_EXIT);
+					out.writeInt(ExitCode.ARG_PARSE_ERROR.ordinal());
+					out.flush();
+				}
+
+				return;
+			}
+
+			ArrayList<String> args = new ArrayList<String>();
+			LinkedHashMap<String, String> files = new LinkedHashMap<String, String>();
+
+			for (int i = readCount(in); i > 0; --i)
+				args.add(readString(in));
+
+			for (int i = readCount(in); i > 0; --i)
+				files.put(readString(in), readString(in));
+
+			int code;
+
+			if (args.size() == 1 && args.get(0).equals(FLAG_SHUTDOWN) && files.isEmpty())
+			{
+				shutdown();
+				code = ExitCode.SUCCESS.ordinal();
+			}
+			else
+			{
+				MessageOutputStream jobOut = new MessageOutputStream(out, MESSAGE_STDOUT);
+				MessageOutputStream jobErr = new MessageOutputStream(out, MESSAGE_STDERR);
+
+				code = runJob(args, files, jobOut, jobErr);
+			}
+
+			synchronized (out)
+			{
+				out.writeByte(MESSAGE_EXIT);
+				out.writeInt(code);
+				out.flush();
+			}
+		}
+		catch (IOException e)
+		{
+			serverErr.println("Hyst server error while handling job: " + e);
+		}
+		finally
+		{
+			try
+			{
+				s.close();
+			}
+			catch (IOException e)
+			{
+			}
+		}
+	}
+
+	/**
+	 * Read the token sent by a client, and check it against the server's token
+	 */
+	private boolean readTokenMatches(DataInputStream in) throws IOException
+	{
+		int len = in.readInt();
+
+		if (len < 0 || len > MAX_TOKEN_BYTES)
+			return false;
+
+		byte[] bytes = new byte[len];
+		in.readFully(bytes);
+
+		// constant time, so the token can't be guessed from the response time
+		return MessageDigest.isEqual(bytes, token);
+	}
+
+	/**
+	 * Run a single job in this process, waiting for any running job to finish first
+	 *
+	 * @param args
+	 *            the Hyst command-line arguments
+	 * @param inlineFiles
+	 *            map of file name (without a directory) to contents, may be empty
+	 * @param out
+	 *            where the job's stdout is written
+	 * @param err
+	 *            where the job's stderr is written
+	 * @return the ExitCode ordinal
+	 */
+	public int runJob(List<String> args, Map<String, String> inlineFiles, OutputStream out,
+			OutputStream err)
+	{
+		synchronized (jobLock)
+		{
+			int rv;
+			File dir = null;
+			PrintStream jobOut = null, jobErr = null;
+			ConversionContext context = new ConversionContext();
+			context.pythonBridgePool = pythonBridges;
+
+			defaults.restore();
+
+			try
+			{
+				jobOut = new PrintStream(new BufferedOutputStream(out), true, "UTF-8");
+				jobErr = new PrintStream(new BufferedOutputStream(err), true, "UTF-8");
+				System.setOut(jobOut);
+				System.setErr(jobErr);
+				context.out = jobOut;
+				context.err = jobErr;
+
+				String[] jobArgs = args.toArray(new String[args.size()]);
+
+				if (!inlineFiles.isEmpty())
+				{
+					dir = Files.createTempDirectory("hyst_job").toFile();
+					writeInlineFiles(dir, inlineFiles, jobArgs);
+				}
+
+				rv = Hyst.runWithArguments(jobArgs, context);
+			}
+			catch (JobException e)
+			{
+				System.err.println(e.getMessage());
+				rv = ExitCode.ARG_PARSE_ERROR.ordinal();
+			}
+			catch (Throwable e)
+			{
+				System.err.println("Exception in Hyst server job: " + e);
+				e.printStackTrace();
+				rv = ExitCode.EXPORT_EXCEPTION.ordinal();
+			}
+			finally
+			{
+				if (jobOut != null)
+					jobOut.flush();
+
+				if (jobErr != null)
+					jobErr.flush();
+
+				System.setOut(serverOut);
+				System.setErr(serverErr);
+
+				if (dir != null)
+					deleteRecursive(dir);
+
+				context.close();
+				defaults.restore();
+			}
+
+			return rv;
+		}
+	}
+
+	/**
+	 * Write the inline files to the job's directory, and replace arguments which refer to them
+	 */
+	private static void writeInlineFiles(File dir, Map<String, String> inlineFiles,
+			String[] args) throws IOException
+	{
+		for (Entry<String, String> e : inlineFiles.entrySet())
+		{
+			String name = e.getKey();
+
+			if (name.isEmpty() || name.equals(".") || name.equals("..")
+					|| !new File(name).getName().equals(name))
+				throw new JobException("Inline file name must not contain a directory: '" + name
+						+ "'");
+
+			File f = new File(dir, name);
+			FileOutputStream fos = new FileOutputStream(f);
+
+			try
+			{
+				fos.write(e.getValue().getBytes("UTF-8"));
+			}
+			finally
+			{
+				fos.close();
+			}
+
+			for (int i = 0; i < args.length; ++i)
+			{
+				if (args[i].equals(name))
+					args[i] = f.getPath();
+			}
+		}
+	}
+
+	private static void deleteRecursive(File f)
+	{
+		File[] children = f.listFiles();
+
+		if (children != null)
+		{
+			for (File child : children)
+				deleteRecursive(child);
+		}
+
+		f.delete();
+	}
+
+	private static int readCount(DataInputStream in) throws IOException
+	{
+		int rv = in.readInt();
+
+		if (rv < 0)
+			throw new IOException("negative count in Hyst job: " + rv);
+
+		return rv;
+	}
+
+	public static String readString(DataInputStream in) throws IOException
+	{
+		int len = in.readInt();
+
+		if (len < 0 || len > MAX_STRING_BYTES)
+			throw new IOException("invalid string length in Hyst job: " + len);
+
+		byte[] bytes = new byte[len];
+		in.readFully(bytes);
+
+		return new String(bytes, "UTF-8");
+	}
+
+	public static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		byte[] bytes = s.getBytes("UTF-8");
+
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Run a job on a server (the client side of the protocol). The token is read from the server's
+	 * token file.
+	 *
+	 * @param port
+	 *            the server's port on the loopback interface
+	 * @param args
+	 *            the Hyst command-line arguments
+	 * @param inlineFiles
+	 *            map of file name to contents, may be empty
+	 * @param out
+	 *            where the job's stdout is written
+	 * @param err
+	 *            where the job's stderr is written
+	 * @return the ExitCode ordinal
+	 */
+	public static int runRemoteJob(int port, List<String> args, Map<String, String> inlineFiles,
+			OutputStream out, OutputStream err) throws IOException
+	{
+		String token = readToken(port);
+		Socket s = new Socket(InetAddress.getLoopbackAddress(), port);
+
+		try
+		{
+			DataOutputStream dos = new DataOutputStream(
+					new BufferedOutputStream(s.getOutputStream()));
+
+			writeString(dos, token);
+			dos.writeInt(args.size());
+
+			for (String arg : args)
+				writeString(dos, arg);
+
+			dos.writeInt(inlineFiles.size());
+
+			for (Entry<String, String> e : inlineFiles.entrySet())
+			{
+				writeString(dos, e.getKey());
+				writeString(dos, e.getValue());
+			}
+
+			dos.flush();
+
+			DataInputStream dis = new DataInputStream(
+					new BufferedInputStream(s.getInputStream()));
+
+			while (true)
+			{
+				byte type = dis.readByte();
+
+				if (type == MESSAGE_EXIT)
+					return dis.readInt();
+				else if (type == MESSAGE_STDOUT)
+					out.write(readString(dis).getBytes("UTF-8"));
+				else if (type == MESSAGE_STDERR)
+					err.write(readString(dis).getBytes("UTF-8"));
+				else
+					throw new IOException("unknown message type from Hyst server: " + type);
+			}
+		}
+		finally
+		{
+			s.close();
+		}
+	}
+
+	/**
+	 * Sends everything written to it as messages of one type. If the client disconnects, the rest
+	 * of the job's output is discarded.
+	 */
+	private static class MessageOutputStream extends OutputStream
+	{
+		private final DataOutputStream out;
+		private final byte type;
+		private boolean broken = false;
+
+		public MessageOutputStream(DataOutputStream out, byte type)
+		{
+			this.out = out;
+			this.type = type;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			if (len == 0)
+				return;
+
+			// stdout and stderr messages share the connection
+			synchronized (out)
+			{
+				if (broken)
+					return;
+
+				try
+				{
+					out.writeByte(type);
+					out.writeInt(len);
+					out.write(b, off, len);
+					out.flush();
+				}
+				catch (IOException e)
+				{
+					broken = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * An invalid job (reported to the client as an argument error)
+	 */
+	@SuppressWarnings("serial")
+	private static class JobException extends RuntimeException
+	{
+		public JobException(String message)
+		{
+			super(message);
+		}
+	}
+
+	/**
+	 * The global (static) settings which a job can change, recorded when the server starts
+	 */
+	private static class GlobalSettings
+	{
+		private final boolean printRecursive = NetworkComponent.PRINT_RECURSIVE;
+		private final boolean prettyPrint = HyperPoint.prettyPrint;
+
+		public void restore()
+		{
+			NetworkComponent.PRINT_RECURSIVE = printRecursive;
+			HyperPoint.prettyPrint = prettyPrint;
+			ValidationCache.resetCounters();
+		}
+	}
+}
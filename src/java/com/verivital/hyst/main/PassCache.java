@@ -0,0 +1,642 @@
+package com.verivital.hyst.main;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.verivital.hyst.geometry.Interval;
+import com.verivital.hyst.grammar.formula.Constant;
+import com.verivital.hyst.grammar.formula.DefaultExpressionPrinter;
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.ExpressionPrinter;
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.Component;
+import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.ir.base.AutomatonMode;
+import com.verivital.hyst.ir.base.AutomatonTransition;
+import com.verivital.hyst.ir.base.BaseComponent;
+import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.ir.network.ComponentInstance;
+import com.verivital.hyst.ir.network.ComponentMapping;
+import com.verivital.hyst.ir.network.NetworkComponent;
+
+import de.uni_freiburg.informatik.swt.sxhybridautomaton.SpaceExConfigValues;
+
+/**
+ * A content-addressed on-disk cache of transformation pass results (enabled with "-cache_dir DIR").
+ * Passes like hybridizemt, pi_sim or convertluts can take minutes, and are often rerun with
+ * identical inputs when only printer params change.
+ *
+ * Each entry is a serialized Configuration, stored under a key which identifies how it was made:
+ * the key of the imported model is the SHA-256 hash of a canonical text form of the model (see
+ * getCanonicalText()), and the key after a pass is the hash of the previous key, the pass name and
+ * params, a hash of the Hyst code, and the ConversionContext settings that passes depend on (see
+ * ConversionContext.getPassSettings()). Hyst.runPasses() resumes from the longest prefix of the
+ * pass chain which is in the cache, and stores the result of each pass it runs.
+ *
+ * The cache is bounded by size: when it gets too large, the least recently used entries are
+ * deleted. Entries are written to a temporary file and then renamed, so several Hyst processes can
+ * share a cache directory. Entries are only deserialized into the model classes (see
+ * ConfigurationInputStream); anything else is treated as a damaged entry.
+ */
+public class PassCache
+{
+	public static final long DEFAULT_MAX_MB = 1024;
+	public static final String EXTENSION = ".hystcache";
+
+	private final File dir;
+	private final long maxBytes;
+	private final String version = getCodeVersion();
+
+	// the hash of the Hyst classes, computed once
+	private static String codeVersion = null;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Create (or open) a cache directory
+	 *
+	 * @param dir
+	 *            the directory, created if it doesn't exist
+	 * @param maxBytes
+	 *            the maximum total size of the entries
+	 */
+	public PassCache(File dir, long maxBytes) throws IOException
+	{
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("could not create cache directory: " + dir);
+
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+	}
+
+	public File getDir()
+	{
+		return dir;
+	}
+
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * Get the key of a model, before any passes are run
+	 *
+	 * @param c
+	 *            the imported (or generated) configuration
+	 * @return the key
+	 */
+	public String getModelKey(Configuration c)
+	{
+		return sha256(getCanonicalText(c).getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Get the key of the result of running a pass
+	 *
+	 * @param previousKey
+	 *            the key of the configuration the pass is run on
+	 * @param passName
+	 *            the pass's command-line flag
+	 * @param params
+	 *            the pass's params
+	 * @return the key
+	 */
+	public String getPassKey(String previousKey, String passName, String params)
+	{
+		String s = previousKey + "\n" + passName + "\n" + params + "\n" + version + "\n"
+				+ ConversionContext.get().getPassSettings();
+
+		return sha256(s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Load a cached configuration, and mark it as recently used
+	 *
+	 * @param key
+	 *            the entry's key
+	 * @return the configuration, or null if it's not in the cache (or can't be read)
+	 */
+	public Configuration load(String key)
+	{
+		Configuration rv = null;
+		File f = getFile(key);
+
+		if (f.exists())
+		{
+			try
+			{
+				rv = deserialize(Files.readAllBytes(f.toPath()));
+				f.setLastModified(System.currentTimeMillis());
+			}
+			catch (IOException e)
+			{
+				// an old or damaged entry (for example, from a different version of Hyst)
+				Hyst.logDebug("Could not read pass cache entry " + f + ": " + e);
+				f.delete();
+			}
+		}
+
+		if (rv != null)
+			hits.incrementAndGet();
+		else
+			misses.incrementAndGet();
+
+		return rv;
+	}
+
+	/**
+	 * Store a configuration, then evict entries if the cache is too large. The configuration is
+	 * not modified. Errors are logged, since the cache is only an optimization.
+	 *
+	 * @param key
+	 *            the entry's key
+	 * @param c
+	 *            the configuration to store
+	 */
+	public void store(String key, Configuration c)
+	{
+		File f = getFile(key);
+		File temp = null;
+
+		try
+		{
+			byte[] data = serialize(c);
+
+			temp = File.createTempFile(key, ".tmp", dir);
+			Files.write(temp.toPath(), data);
+			Files.move(temp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			temp = null;
+
+			Hyst.logDebug("Stored pass cache entry " + f + " (" + data.length + " bytes)");
+		}
+		catch (IOException e)
+		{
+			Hyst.log("Could not write pass cache entry " + f + ": " + e);
+		}
+		finally
+		{
+			if (temp != null)
+				temp.delete();
+		}
+
+		evict();
+	}
+
+	/**
+	 * Delete the least recently used entries until the cache is within its size bound
+	 */
+	private synchronized void evict()
+	{
+		File[] files = dir.listFiles();
+
+		if (files == null)
+			return;
+
+		List<File> entries = new ArrayList<File>();
+		long total = 0;
+
+		for (File f : files)
+		{
+			if (f.getName().endsWith(EXTENSION))
+			{
+				entries.add(f);
+				total += f.length();
+			}
+		}
+
+		if (total <= maxBytes)
+			return;
+
+		// the last modification time is updated when an entry is used
+		final Map<File, Long> times = new HashMap<File, Long>();
+
+		for (File f : entries)
+			times.put(f, f.lastModified());
+
+		Collections.sort(entries, new Comparator<File>()
+		{
+			@Override
+			public int compare(File a, File b)
+			{
+				return Long.compare(times.get(a), times.get(b));
+			}
+		});
+
+		for (int i = 0; i < entries.size() && total > maxBytes; ++i)
+		{
+			File f = entries.get(i);
+			long size = f.length();
+
+			if (f.delete())
+			{
+				total -= size;
+				Hyst.logDebug("Evicted pass cache entry " + f);
+			}
+		}
+	}
+
+	private File getFile(String key)
+	{
+		return new File(dir, key + EXTENSION);
+	}
+
+	/**
+	 * The Hyst version: the SHA-256 hash of Hyst.jar, or of the .class files in the class directory
+	 * when not running from the jar. This is computed once, on first use.
+	 */
+	static synchronized String getCodeVersion()
+	{
+		if (codeVersion == null)
+		{
+			MessageDigest md = newDigest();
+			md.update(Hyst.TOOL_NAME.getBytes(StandardCharsets.UTF_8));
+
+			try
+			{
+				File f = new File(
+						Hyst.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+
+				if (f.isFile())
+					md.update(Files.readAllBytes(f.toPath()));
+				else
+					hashClasses(md, f, "");
+			}
+			catch (Exception e)
+			{
+				// no code source; use the tool name only
+				Hyst.logDebug("Could not hash the Hyst code for the pass cache: " + e);
+			}
+
+			codeVersion = toHex(md.digest());
+		}
+
+		return codeVersion;
+	}
+
+	/**
+	 * Add the names and contents of the .class files in a directory (in name order) to a hash
+	 */
+	private static void hashClasses(MessageDigest md, File f, String path) throws IOException
+	{
+		if (f.isDirectory())
+		{
+			File[] children = f.listFiles();
+
+			if (children == null)
+				return;
+
+			Arrays.sort(children);
+
+			for (File child : children)
+				hashClasses(md, child, path + "/" + child.getName());
+		}
+		else if (path.endsWith(".class"))
+		{
+			md.update(path.getBytes(StandardCharsets.UTF_8));
+			md.update(Files.readAllBytes(f.toPath()));
+		}
+	}
+
+	private static String sha256(byte[] data)
+	{
+		return toHex(newDigest().digest(data));
+	}
+
+	private static MessageDigest newDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new AutomatonExportException("SHA-256 is not available", e);
+		}
+	}
+
+	private static String toHex(byte[] digest)
+	{
+		StringBuilder sb = new StringBuilder();
+
+		for (byte b : digest)
+			sb.append(String.format("%02x", b & 0xff));
+
+		return sb.toString();
+	}
+
+	/**
+	 * Get a canonical text form of a configuration, which is used as its cache key. Everything a
+	 * pass or printer can see is included (in the order it would be seen), with exact constants,
+	 * but not the cached indexes, validation state or object identities which serialization
+	 * would also write. Shared template components are written once and then referenced by number.
+	 */
+	static String getCanonicalText(Configuration c)
+	{
+		StringBuilder sb = new StringBuilder();
+		Map<Component, Integer> written = new IdentityHashMap<Component, Integer>();
+		SpaceExConfigValues sx = c.settings.spaceExConfig;
+
+		sb.append("plot ").append(Arrays.toString(c.settings.plotVariableNames)).append("\n");
+		sb.append("spaceex ").append(sx.outputVars).append(" ").append(sx.timeHorizon)
+				.append(" ").append(sx.maxIterations).append(" ").append(sx.samplingTime)
+				.append(" ").append(sx.systemID).append(" ").append(sx.outputFormat).append(" ")
+				.append(sx.scenario).append(" ").append(sx.directions).append(" ")
+				.append(sx.aggregation).append(" ").append(sx.flowpipeTol).append(" ")
+				.append(sx.forbidden).append(" ").append(sx.timeTriggered).append("\n");
+
+		appendExpressions(sb, "init", c.init);
+		appendExpressions(sb, "forbidden", c.forbidden);
+		appendComponent(sb, c.root, written);
+
+		return sb.toString();
+	}
+
+	private static void appendExpressions(StringBuilder sb, String name,
+			Map<String, Expression> map)
+	{
+		for (Entry<String, Expression> e : map.entrySet())
+			sb.append(name).append(" ").append(e.getKey()).append(": ")
+					.append(CANONICAL_PRINTER.print(e.getValue())).append("\n");
+	}
+
+	private static void appendComponent(StringBuilder sb, Component c,
+			Map<Component, Integer> written)
+	{
+		if (c == null)
+		{
+			sb.append("null\n");
+			return;
+		}
+
+		Integer id = written.get(c);
+
+		if (id != null)
+		{
+			sb.append("component #").append(id).append("\n");
+			return;
+		}
+
+		id = written.size();
+		written.put(c, id);
+
+		sb.append("component #").append(id).append(" ").append(c.getClass().getSimpleName())
+				.append(" ").append(c.instanceName).append("\n");
+		sb.append("variables ").append(c.variables).append("\n");
+		sb.append("labels ").append(c.labels).append("\n");
+
+		for (Entry<String, Interval> e : c.constants.entrySet())
+			sb.append("constant ").append(e.getKey()).append(" = ")
+					.append(printInterval(e.getValue())).append("\n");
+
+		if (c instanceof BaseComponent)
+		{
+			BaseComponent ha = (BaseComponent) c;
+
+			for (AutomatonMode am : ha.modes.values())
+			{
+				sb.append("mode ").append(am.name).append(am.urgent ? " urgent" : "").append(": ")
+						.append(CANONICAL_PRINTER.print(am.invariant)).append("\n");
+				appendDynamics(sb, "flow", am.flowDynamics);
+			}
+
+			for (AutomatonTransition at : ha.transitions)
+			{
+				sb.append("transition ").append(at.from == null ? null : at.from.name)
+						.append(" -> ").append(at.to == null ? null : at.to.name).append(" ")
+						.append(at.label).append(": ")
+						.append(CANONICAL_PRINTER.print(at.guard)).append("\n");
+				appendDynamics(sb, "reset", at.reset);
+			}
+		}
+		else if (c instanceof NetworkComponent)
+		{
+			for (Entry<String, ComponentInstance> e : ((NetworkComponent) c).children
+					.entrySet())
+			{
+				ComponentInstance ci = e.getValue();
+
+				sb.append("child ").append(e.getKey()).append("\n");
+				appendMappings(sb, "var", ci.varMapping);
+				appendMappings(sb, "label", ci.labelMapping);
+				appendMappings(sb, "const", ci.constMapping);
+				appendComponent(sb, ci.child, written);
+			}
+		}
+
+		sb.append("template ");
+		appendComponent(sb, c.template, written);
+	}
+
+	private static void appendDynamics(StringBuilder sb, String name,
+			Map<String, ExpressionInterval> map)
+	{
+		if (map == null)
+		{
+			sb.append(name).append(" null\n");
+			return;
+		}
+
+		for (Entry<String, ExpressionInterval> e : map.entrySet())
+		{
+			ExpressionInterval ei = e.getValue();
+
+			sb.append(name).append(" ").append(e.getKey()).append(" = ");
+
+			if (ei == null)
+				sb.append("null");
+			else
+				sb.append(CANONICAL_PRINTER.print(ei.getExpression())).append(" + ")
+						.append(printInterval(ei.getInterval()));
+
+			sb.append("\n");
+		}
+	}
+
+	private static void appendMappings(StringBuilder sb, String name, List<ComponentMapping> list)
+	{
+		for (ComponentMapping m : list)
+			sb.append(name).append(" ").append(m.childParam).append(" -> ")
+					.append(m.parentParam).append("\n");
+	}
+
+	private static String printInterval(Interval i)
+	{
+		return i == null ? "null" : "[" + i.min + ", " + i.max + "]";
+	}
+
+	/**
+	 * Prints constants exactly, rather than with DefaultExpressionPrinter's rounding
+	 */
+	private static final ExpressionPrinter CANONICAL_PRINTER = new DefaultExpressionPrinter()
+	{
+		@Override
+		protected String printConstantValue(double d)
+		{
+			return Double.toString(d);
+		}
+	};
+
+	/**
+	 * Serialize a configuration, for storing in an entry
+	 */
+	static byte[] serialize(Configuration c)
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		try
+		{
+			ConfigurationOutputStream out = new ConfigurationOutputStream(bytes);
+			out.writeObject(c);
+			out.close();
+		}
+		catch (IOException e)
+		{
+			throw new AutomatonExportException("Error serializing configuration", e);
+		}
+
+		return bytes.toByteArray();
+	}
+
+	static Configuration deserialize(byte[] data) throws IOException
+	{
+		ConfigurationInputStream in = new ConfigurationInputStream(new ByteArrayInputStream(data));
+
+		try
+		{
+			return (Configuration) in.readObject();
+		}
+		catch (ClassNotFoundException e)
+		{
+			throw new IOException("Unknown class in pass cache entry", e);
+		}
+		catch (ClassCastException e)
+		{
+			throw new IOException("Pass cache entry was not a configuration", e);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Constants which are compared by reference (like Constant.TRUE), and must stay shared
+	 */
+	private enum SharedConstant
+	{
+		TRUE, FALSE
+	}
+
+	private static class ConfigurationOutputStream extends ObjectOutputStream
+	{
+		ConfigurationOutputStream(OutputStream out) throws IOException
+		{
+			super(out);
+			enableReplaceObject(true);
+		}
+
+		@Override
+		protected Object replaceObject(Object obj)
+		{
+			if (obj == Constant.TRUE)
+				return SharedConstant.TRUE;
+			else if (obj == Constant.FALSE)
+				return SharedConstant.FALSE;
+
+			return obj;
+		}
+	}
+
+	private static class ConfigurationInputStream extends ObjectInputStream
+	{
+		// the packages of the model classes
+		private static final List<String> MODEL_PACKAGES = Arrays.asList(
+				"com.verivital.hyst.ir.", "com.verivital.hyst.grammar.formula.",
+				"com.verivital.hyst.geometry.");
+
+		// the other classes which are part of a model
+		private static final List<String> MODEL_CLASSES = Arrays.asList(
+				SpaceExConfigValues.class.getName(), SharedConstant.class.getName(),
+				"java.lang.String", "java.lang.Enum", "java.lang.Number", "java.lang.Boolean",
+				"java.lang.Double", "java.lang.Integer", "java.util.ArrayList", "java.util.HashMap",
+				"java.util.LinkedHashMap");
+
+		ConfigurationInputStream(InputStream in) throws IOException
+		{
+			super(in);
+			enableResolveObject(true);
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc)
+				throws IOException, ClassNotFoundException
+		{
+			// only model classes (and arrays of them, or of primitives) can be in an entry
+			String name = desc.getName().replaceFirst("^\\[+", "");
+
+			if (!name.equals(desc.getName()))
+			{
+				if (name.startsWith("L") && name.endsWith(";"))
+					name = name.substring(1, name.length() - 1);
+				else if (name.length() == 1)
+					return super.resolveClass(desc);
+			}
+
+			if (!isModelClass(name))
+				throw new IOException("Unexpected class in pass cache entry: " + desc.getName());
+
+			return super.resolveClass(desc);
+		}
+
+		private static boolean isModelClass(String name)
+		{
+			boolean rv = MODEL_CLASSES.contains(name);
+
+			for (String prefix : MODEL_PACKAGES)
+				rv |= name.startsWith(prefix);
+
+			return rv;
+		}
+
+		@Override
+		protected Object resolveObject(Object obj)
+		{
+			if (obj == SharedConstant.TRUE)
+				return Constant.TRUE;
+			else if (obj == SharedConstant.FALSE)
+				return Constant.FALSE;
+
+			return obj;
+		}
+	}
+}
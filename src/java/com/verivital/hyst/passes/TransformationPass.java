@@ -8,6 +8,7 @@ import org.kohsuke.args4j.CmdLineParser;
 import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.ir.AutomatonValidationException;
 import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.main.ConversionContext;
 import com.verivital.hyst.util.AutomatonUtil;
 import com.verivital.hyst.util.CmdLineRuntimeException;
 import com.verivital.hyst.util.Preconditions;
@@ -29,6 +30,10 @@ public abstract class TransformationPass
 	protected Preconditions preconditions = new Preconditions(false);
 	protected Configuration config = null; // is assigned before runPass is
 											// called
+
+	// the context of the conversion running the pass (assigned before runPass is called); work
+	// handed to other threads should be wrapped with context.wrap()
+	protected ConversionContext context = ConversionContext.getDefault();
 	private CmdLineParser parser = new CmdLineParser(this);
 
 	public TransformationPass()
@@ -98,6 +103,7 @@ public abstract class TransformationPass
 	public void runVanillaPass(Configuration c, String params)
 	{
 		config = c;
+		context = ConversionContext.get();
 		runPass(params);
 
 		// validate modified configuration
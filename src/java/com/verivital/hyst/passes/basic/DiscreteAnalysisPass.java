@@ -0,0 +1,169 @@
+package com.verivital.hyst.passes.basic;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.kohsuke.args4j.Option;
+
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.ir.base.AutomatonMode;
+import com.verivital.hyst.ir.base.AutomatonTransition;
+import com.verivital.hyst.ir.base.BaseComponent;
+import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.passes.TransformationPass;
+import com.verivital.hyst.util.ModeGraph;
+import com.verivital.hyst.util.Preconditions;
+import com.verivital.hyst.util.PreconditionsFlag;
+
+/**
+ * This pass performs forward discrete reachability from the initial modes and backward discrete
+ * reachability from the forbidden modes, and removes the modes (and their transitions) which are
+ * not on any path from an initial mode to a forbidden mode. Unlike RemoveDiscreteUnreachablePass,
+ * this also removes reachable modes from which the forbidden states can't be reached. If there are
+ * no forbidden modes, or no initial mode can reach one, only forward pruning is done.
+ *
+ * The strongly connected components of the remaining modes are logged, since modes on discrete
+ * cycles are often the expensive part of the analysis.
+ */
+public class DiscreteAnalysisPass extends TransformationPass
+{
+	@Option(name = "-forward_only", usage = "only remove modes which are unreachable from the initial states")
+	private boolean forwardOnly = false;
+
+	public DiscreteAnalysisPass()
+	{
+		// skip all checks
+		preconditions = new Preconditions(true);
+
+		// except require that it's flat
+		preconditions.skip[PreconditionsFlag.CONVERT_TO_FLAT_AUTOMATON.ordinal()] = false;
+	}
+
+	@Override
+	public String getCommandLineFlag()
+	{
+		return "discrete_analysis";
+	}
+
+	@Override
+	public String getName()
+	{
+		return "Discrete Reachability Analysis Pass";
+	}
+
+	@Override
+	protected void runPass()
+	{
+		BaseComponent ha = (BaseComponent) config.root;
+		ModeGraph graph = new ModeGraph(ha);
+
+		boolean[] keep = graph.search(graph.getModeIndices(config.init.keySet()), true);
+
+		if (!forwardOnly)
+			keep = removeUseless(graph, keep);
+
+		logComponents(graph, keep);
+
+		int numModes = ha.modes.size();
+		int numTransitions = ha.transitions.size();
+
+		// remove modes
+		int m = 0;
+
+		for (Iterator<AutomatonMode> i = ha.modes.values().iterator(); i.hasNext(); ++m)
+		{
+			i.next();
+
+			if (!keep[m])
+				i.remove();
+		}
+
+		// remove transitions (rebuild the list, since removing one at a time is quadratic)
+		ArrayList<AutomatonTransition> transitions = new ArrayList<AutomatonTransition>(
+				ha.transitions.size());
+
+		for (AutomatonTransition at : ha.transitions)
+		{
+			if (keep[graph.getModeIndex(at.from.name)] && keep[graph.getModeIndex(at.to.name)])
+				transitions.add(at);
+		}
+
+		ha.transitions.clear();
+		ha.transitions.addAll(transitions);
+
+		removeInitForbidden(graph, keep, config.init.entrySet().iterator());
+		removeInitForbidden(graph, keep, config.forbidden.entrySet().iterator());
+
+		Hyst.log("Discrete analysis removed " + (numModes - ha.modes.size()) + " of " + numModes
+				+ " modes and " + (numTransitions - ha.transitions.size()) + " of "
+				+ numTransitions + " transitions");
+	}
+
+	/**
+	 * Restrict the forward-reachable modes to the ones which can reach a forbidden mode
+	 *
+	 * @return the modes to keep
+	 */
+	private boolean[] removeUseless(ModeGraph graph, boolean[] reachable)
+	{
+		boolean[] rv = reachable;
+		int[] forbidden = graph.getModeIndices(config.forbidden.keySet());
+
+		if (forbidden.length == 0)
+			Hyst.log("Discrete analysis: no forbidden modes, doing forward pruning only");
+		else
+		{
+			boolean[] canReachForbidden = graph.search(forbidden, false);
+			boolean[] both = new boolean[reachable.length];
+			boolean initKept = false;
+
+			for (int m = 0; m < both.length; ++m)
+				both[m] = reachable[m] && canReachForbidden[m];
+
+			for (int m : graph.getModeIndices(config.init.keySet()))
+				initKept = initKept || both[m];
+
+			if (initKept)
+				rv = both;
+			else
+				Hyst.log("Discrete analysis: forbidden modes are not discretely reachable, "
+						+ "doing forward pruning only");
+		}
+
+		return rv;
+	}
+
+	private void logComponents(ModeGraph graph, boolean[] keep)
+	{
+		List<List<String>> components = graph.getComponents(keep);
+		int cyclicModes = 0, cyclicComponents = 0;
+
+		for (List<String> c : components)
+		{
+			if (c.size() > 1 || graph.hasSelfLoop(graph.getModeIndex(c.get(0))))
+			{
+				++cyclicComponents;
+				cyclicModes += c.size();
+
+				Hyst.logDebug("Discrete cycle through " + c.size() + " mode(s): " + c);
+			}
+		}
+
+		Hyst.log("Discrete analysis: " + components.size() + " strongly connected components, "
+				+ cyclicModes + " modes in " + cyclicComponents + " discrete cycles");
+	}
+
+	private static void removeInitForbidden(ModeGraph graph, boolean[] keep,
+			Iterator<Entry<String, Expression>> i)
+	{
+		while (i.hasNext())
+		{
+			int m = graph.getModeIndex(i.next().getKey());
+
+			if (m == -1 || !keep[m])
+				i.remove();
+		}
+	}
+}
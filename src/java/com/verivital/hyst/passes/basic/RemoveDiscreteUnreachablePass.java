@@ -1,5 +1,6 @@
 package com.verivital.hyst.passes.basic;
 
+import java.util.ArrayDeque;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map.Entry;
@@ -77,60 +78,38 @@ public class RemoveDiscreteUnreachablePass extends TransformationPass
 		}
 	}
 
+	/**
+	 * Find the names of the reachable modes, using a breadth-first search over the outgoing
+	 * transitions of each mode (linear in the number of modes and transitions)
+	 */
 	private Set<String> constructReacahbleStates(BaseComponent ha)
 	{
 		HashSet<String> reachable = new HashSet<String>();
-		HashSet<String> next = new HashSet<String>();
+		ArrayDeque<AutomatonMode> next = new ArrayDeque<AutomatonMode>();
 
 		for (String s : config.init.keySet())
 		{
 			reachable.add(s);
+			AutomatonMode am = ha.modes.get(s);
 
-			for (String successor : successorsOf(s, ha))
-			{
-				if (!reachable.contains(successor))
-					next.add(successor);
-			}
+			if (am != null)
+				next.add(am);
 		}
 
 		while (!next.isEmpty())
 		{
-			String s = next.iterator().next();
+			AutomatonMode am = next.poll();
 
-			reachable.add(s);
-
-			for (String successor : successorsOf(s, ha))
+			for (AutomatonTransition t : ha.getOutgoingTransitions(am))
 			{
-				if (!reachable.contains(successor))
-					next.add(successor);
+				if (reachable.add(t.to.name))
+					next.add(t.to);
 			}
-
-			next.remove(s);
 		}
 
 		return reachable;
 	}
 
-	/**
-	 * Get the successor states of s in ha
-	 * 
-	 * @param s
-	 * @param ha
-	 * @return the set of sucessors
-	 */
-	private Set<String> successorsOf(String s, BaseComponent ha)
-	{
-		HashSet<String> rv = new HashSet<String>();
-
-		for (AutomatonTransition t : ha.transitions)
-		{
-			if (t.from.name.equals(s))
-				rv.add(t.to.name);
-		}
-
-		return rv;
-	}
-
 	@Override
 	public String getCommandLineFlag()
 	{
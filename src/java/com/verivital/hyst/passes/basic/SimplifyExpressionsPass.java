@@ -1,5 +1,7 @@
 package com.verivital.hyst.passes.basic;
 
+import java.util.ArrayList;
+
 import org.kohsuke.args4j.Option;
 
 import com.verivital.hyst.grammar.formula.Constant;
@@ -117,11 +119,20 @@ public class SimplifyExpressionsPass extends TransformationPass
 			Operation o = (Operation) e;
 			Operator op = o.op;
 
-			for (int i = 0; i < o.children.size(); ++i)
+			if (o.isImmutable())
+			{
+				// copy-on-write: shared (interned) operations are never modified in place
+				o = simplifyChildrenCopy(o);
+				rv = o;
+			}
+			else
 			{
-				Expression child = o.children.get(i);
+				for (int i = 0; i < o.children.size(); ++i)
+				{
+					Expression child = o.children.get(i);
 
-				o.children.set(i, simplifyExpressionRec(child));
+					o.children.set(i, simplifyExpressionRec(child));
+				}
 			}
 
 			if (op == Operator.AND && o.getLeft() instanceof Constant)
@@ -265,6 +276,47 @@ public class SimplifyExpressionsPass extends TransformationPass
 		return rv;
 	}
 
+	/**
+	 * Simplify the children of an immutable operation. If any child changes, a new, fully mutable
+	 * operation is returned, otherwise the original (immutable) operation is returned.
+	 * 
+	 * @param o
+	 *            the (immutable) operation
+	 * @return an operation with simplified children
+	 */
+	private static Operation simplifyChildrenCopy(Operation o)
+	{
+		Operation rv = o;
+		ArrayList<Expression> newChildren = null;
+
+		for (int i = 0; i < o.children.size(); ++i)
+		{
+			Expression child = o.children.get(i);
+			Expression simplified = simplifyExpressionRec(child);
+
+			if (simplified != child && newChildren == null)
+				newChildren = new ArrayList<Expression>(o.children);
+
+			if (newChildren != null)
+				newChildren.set(i, simplified);
+		}
+
+		if (newChildren != null)
+		{
+			// the new operation is mutable, so passes may edit it in place; the unchanged
+			// (immutable) children are copied so the whole result can be edited
+			for (int i = 0; i < newChildren.size(); ++i)
+			{
+				if (newChildren.get(i).isImmutable())
+					newChildren.set(i, newChildren.get(i).copy());
+			}
+
+			rv = new Operation(o.op, newChildren);
+		}
+
+		return rv;
+	}
+
 	@Override
 	public String getCommandLineFlag()
 	{
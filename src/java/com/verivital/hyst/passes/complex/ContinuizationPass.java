@@ -26,8 +26,9 @@ import com.verivital.hyst.ir.base.ExpressionInterval;
 import com.verivital.hyst.main.Hyst;
 import com.verivital.hyst.passes.TransformationPass;
 import com.verivital.hyst.passes.basic.SimplifyExpressionsPass;
-import com.verivital.hyst.printers.PySimPrinter;
+import com.verivital.hyst.python.PySimAutomatonCache;
 import com.verivital.hyst.python.PythonBridge;
+import com.verivital.hyst.simulation.HybridSimulator;
 import com.verivital.hyst.util.AutomatonUtil;
 import com.verivital.hyst.util.DoubleArrayOptionHandler;
 import com.verivital.hyst.util.Preconditions.PreconditionsFailedException;
@@ -631,7 +632,7 @@ public class ContinuizationPass extends TransformationPass
 			simTimes.add(new Interval(d.startTime, d.endTime));
 
 		SymbolicStatePoint start = new SymbolicStatePoint(initMode, initPt);
-		List<Interval> ranges = pythonSimulateDerivativeRange(config, varName, start, simTimes);
+		List<Interval> ranges = simulateDerivativeRange(config, varName, start, simTimes);
 
 		if (ranges.size() != domains.size())
 			throw new AutomatonExportException(
@@ -754,7 +755,43 @@ public class ContinuizationPass extends TransformationPass
 	}
 
 	/**
-	 * Simulate the automaton, getting the range of the derivative of a variable
+	 * Simulate the automaton, getting the range of the derivative of a variable. This uses the java
+	 * simulator if it is enabled (see HybridSimulator.isJavaSimulatorEnabled()), otherwise python's
+	 * pysim.
+	 * 
+	 * @param automaton
+	 * @param derVarName
+	 *            the variable name whose derative we want the range of
+	 * @param start
+	 *            the start state
+	 * @param timeIntervals
+	 *            the times where to return the ranges
+	 * @return the range of the derivative of derVarName
+	 */
+	public static ArrayList<Interval> simulateDerivativeRange(Configuration automaton,
+			String derVarName, SymbolicStatePoint start, List<Interval> timeIntervals)
+	{
+		ArrayList<Interval> rv;
+
+		if (HybridSimulator.isJavaSimulatorEnabled())
+		{
+			int derVarIndex = automaton.root.variables.indexOf(derVarName);
+
+			if (derVarIndex == -1)
+				throw new AutomatonExportException(
+						"Derivative variable '" + derVarName + "' not found in automaton.");
+
+			rv = new HybridSimulator(automaton).simulateDerRange(derVarIndex, start,
+					timeIntervals);
+		}
+		else
+			rv = pythonSimulateDerivativeRange(automaton, derVarName, start, timeIntervals);
+
+		return rv;
+	}
+
+	/**
+	 * Simulate the automaton using python, getting the range of the derivative of a variable
 	 * 
 	 * @param automaton
 	 * @param derVarName
@@ -781,11 +818,9 @@ public class ContinuizationPass extends TransformationPass
 					"Derivative variable '" + derVarName + "' not found in automaton.");
 
 		PythonBridge pb = PythonBridge.getInstance();
+		String ha = PySimAutomatonCache.load(pb, automaton);
 		pb.send("from pythonbridge.pysim_utils import simulate_der_range");
 
-		StringBuilder s = new StringBuilder();
-		s.append(PySimPrinter.automatonToString(automaton));
-
 		String point = "[" + StringOperations.join(",", start.hp.dims) + "]";
 		ArrayList<String> intervalStrs = new ArrayList<String>();
 
@@ -795,10 +830,8 @@ public class ContinuizationPass extends TransformationPass
 		String timesStr = "[" + StringOperations.join(",", intervalStrs.toArray(new String[0]))
 				+ "]";
 
-		s.append("print simulate_der_range(define_ha(), " + derVarIndex + ", '" + start.modeName
-				+ "', " + point + ", " + timesStr + ")");
-
-		String result = pb.send(s.toString());
+		String result = pb.send("print simulate_der_range(" + ha + ", " + derVarIndex + ", '"
+				+ start.modeName + "', " + point + ", " + timesStr + ")");
 
 		// result is semi-colon separated hyperrectangles
 		// each hyperrectangle is a comma-separated list of size 2*N (N = number
@@ -834,6 +867,8 @@ public class ContinuizationPass extends TransformationPass
 	 */
 	public static class IntervalTerm extends Expression
 	{
+		private static final long serialVersionUID = 1L;
+
 		Interval i;
 
 		public IntervalTerm(Interval i)
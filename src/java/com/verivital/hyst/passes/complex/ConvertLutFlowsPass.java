@@ -25,6 +25,7 @@ import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.ir.base.ExpressionInterval;
 import com.verivital.hyst.ir.network.ComponentInstance;
 import com.verivital.hyst.ir.network.NetworkComponent;
+import com.verivital.hyst.main.ConversionContext;
 import com.verivital.hyst.main.Hyst;
 import com.verivital.hyst.passes.TransformationPass;
 import com.verivital.hyst.passes.basic.SimplifyExpressionsPass;
@@ -67,11 +68,23 @@ public class ConvertLutFlowsPass extends TransformationPass
 		convertLuts(config.root);
 	}
 
-	public static int SIMPLIFY_PYTHON = 0;
-	public static int SIMPLIFY_INTERNAL = 1;
-	public static int SIMPLIFY_NONE = 2;
+	public static final int SIMPLIFY_PYTHON = 0;
+	public static final int SIMPLIFY_INTERNAL = 1;
+	public static final int SIMPLIFY_NONE = 2;
 
-	public static int simplifyMode = SIMPLIFY_PYTHON;
+	/**
+	 * Get how interpolated expressions are simplified (one of the SIMPLIFY_* constants). This is a
+	 * setting of the current ConversionContext.
+	 */
+	public static int getSimplifyMode()
+	{
+		return ConversionContext.get().lutSimplifyMode;
+	}
+
+	public static void setSimplifyMode(int mode)
+	{
+		ConversionContext.get().lutSimplifyMode = mode;
+	}
 
 	public ConvertLutFlowsPass()
 	{
@@ -85,7 +98,7 @@ public class ConvertLutFlowsPass extends TransformationPass
 		// urgent modes are supported
 		preconditions.skip(PreconditionsFlag.NO_URGENT);
 
-		simplifyMode = PythonBridge.hasPython() ? SIMPLIFY_PYTHON : SIMPLIFY_INTERNAL;
+		setSimplifyMode(PythonBridge.hasPython() ? SIMPLIFY_PYTHON : SIMPLIFY_INTERNAL);
 	}
 
 	private void convertLuts(Component c)
@@ -267,23 +280,17 @@ public class ConvertLutFlowsPass extends TransformationPass
 	private void fixOutgoingTransitions(AutomatonMode am, Collection<AutomatonMode> newModes)
 	{
 		BaseComponent ha = am.automaton;
-		ArrayList<AutomatonTransition> outgoing = new ArrayList<AutomatonTransition>();
+		ArrayList<AutomatonTransition> outgoing = new ArrayList<AutomatonTransition>(
+				ha.getOutgoingTransitions(am));
 
-		for (AutomatonTransition at : ha.transitions)
-		{
-			if (at.from.name.equals(am.name))
-				outgoing.add(at);
-		}
-
-		ha.transitions.removeAll(outgoing);
+		ha.removeTransitions(outgoing);
 
 		for (AutomatonTransition at : outgoing)
 		{
 			for (AutomatonMode mode : newModes)
 			{
-				// copy transition at
-				AutomatonTransition newAt = at.copy(ha);
-				newAt.from = mode; // change where the transition is coming from
+				// copy transition at, changing where the transition is coming from
+				at.copy(ha, mode, at.to);
 			}
 		}
 	}
@@ -584,6 +591,8 @@ public class ConvertLutFlowsPass extends TransformationPass
 
 		double CHOP_TOL = 1e-8;
 
+		int simplifyMode = getSimplifyMode();
+
 		if (simplifyMode == SIMPLIFY_PYTHON)
 			e = PythonUtil.pythonSimplifyExpressionChop(e, CHOP_TOL);
 		else if (simplifyMode == SIMPLIFY_INTERNAL)
@@ -0,0 +1,506 @@
+package com.verivital.hyst.passes.complex;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.Component;
+import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.ir.base.AutomatonMode;
+import com.verivital.hyst.ir.base.AutomatonTransition;
+import com.verivital.hyst.ir.base.BaseComponent;
+import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.ir.network.ComponentInstance;
+import com.verivital.hyst.ir.network.NetworkComponent;
+import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.passes.complex.FlattenAutomatonPass.CompositionNode;
+import com.verivital.hyst.passes.complex.FlattenAutomatonPass.TupleKey;
+import com.verivital.hyst.util.FlattenRenameUtils;
+
+/**
+ * A lazy view of the flattened version of a networked automaton. Rather than constructing every
+ * product mode like FlattenAutomatonPass, the product modes and transitions are created one at a
+ * time while iterating, and their merged invariants, flows, guards and resets are computed on each
+ * visit. This is meant for printers which make a single pass over the modes and transitions, so the
+ * memory needed does not grow with the size of the product.
+ *
+ * The view has the same mode names, flows, invariants and transitions as FlattenAutomatonPass
+ * (with -reachable, if reachableOnly is set). Modes are visited in the order of the flattened
+ * automaton, and transitions are grouped by their source mode. Unlike flattenAndOptimize, modes
+ * with unsatisfiable invariants are not removed, and havoc flows are not converted.
+ *
+ * The visited modes and transitions are transient: they are not part of any automaton's modes or
+ * transitions, and should not be kept after the iteration step.
+ */
+public class FlatView
+{
+	private final Configuration config;
+	private final BaseComponent header;
+	private final BaseComponent scratch = new BaseComponent();
+
+	private final CompositionNode tree;
+	private final ArrayList<CompositionNode> leaves = new ArrayList<CompositionNode>();
+	private final ArrayList<ArrayList<AutomatonMode>> leafModes = new ArrayList<ArrayList<AutomatonMode>>();
+
+	// the reachable product locations, in flattened order, or null for the full product
+	private ArrayList<int[]> tuples = null;
+	private double numProduct = 1;
+
+	/**
+	 * Create a flat view of a configuration. The passed-in configuration is not modified.
+	 *
+	 * @param c
+	 *            the configuration, usually with a NetworkComponent root
+	 * @param reachableOnly
+	 *            only visit the product locations which are discretely reachable from the initial
+	 *            locations (like FlattenAutomatonPass -reachable)
+	 */
+	public FlatView(Configuration c, boolean reachableOnly)
+	{
+		config = c.copy();
+		FlattenRenameUtils.convertToFullyQualifiedParams(config.root);
+
+		tree = new CompositionNode(config.root, 0);
+		tree.getLeaves(leaves);
+
+		for (CompositionNode leaf : leaves)
+		{
+			leafModes.add(new ArrayList<AutomatonMode>(leaf.base.modes.values()));
+			numProduct *= leaf.modeNames.size();
+		}
+
+		if (reachableOnly)
+		{
+			HashSet<TupleKey> reachable = FlattenAutomatonPass.exploreReachable(tree,
+					config.init.keySet());
+
+			if (reachable != null)
+			{
+				tuples = new ArrayList<int[]>(reachable.size());
+
+				for (TupleKey k : reachable)
+					tuples.add(k.tuple);
+
+				Collections.sort(tuples, new TupleComparator());
+
+				// like FlattenAutomatonPass, remove unreachable forbidden states
+				for (Iterator<String> i = config.forbidden.keySet().iterator(); i.hasNext();)
+				{
+					int[] tuple = getTuple(i.next());
+
+					if (tuple == null || !reachable.contains(new TupleKey(tuple)))
+						i.remove();
+				}
+
+				Hyst.log("Flat view has " + tuples.size() + " reachable of "
+						+ String.format("%.0f", numProduct) + " product locations");
+			}
+		}
+
+		header = createHeader(config.root);
+		scratch.instanceName = header.instanceName;
+		scratch.variables = header.variables;
+		scratch.constants = header.constants;
+		scratch.labels = header.labels;
+
+		// the header has the first product mode, for code which inspects a representative mode
+		Iterator<int[]> first = tupleIterator();
+
+		if (first.hasNext())
+			createMode(header, first.next());
+
+		config.root = header;
+		FlattenRenameUtils.convertSettingsSeparator(config);
+	}
+
+	/**
+	 * Get the configuration of the flattened automaton. Its root is the header component (see
+	 * getHeader()), and the initial and forbidden states use the flattened mode names.
+	 *
+	 * @return the flattened configuration
+	 */
+	public Configuration getConfiguration()
+	{
+		return config;
+	}
+
+	/**
+	 * Get the header component of the flattened automaton. This has the variables, constants and
+	 * labels of the flattened automaton, but only its first mode and no transitions.
+	 *
+	 * @return the header component
+	 */
+	public BaseComponent getHeader()
+	{
+		return header;
+	}
+
+	/**
+	 * Get the number of modes in the view. This is a double since the full product may be very
+	 * large.
+	 *
+	 * @return the number of modes which will be visited by modes()
+	 */
+	public double getNumModes()
+	{
+		return tuples == null ? numProduct : tuples.size();
+	}
+
+	/**
+	 * Get the modes of the flattened automaton, which are created as they are iterated
+	 *
+	 * @return the product modes
+	 */
+	public Iterable<AutomatonMode> modes()
+	{
+		return new Iterable<AutomatonMode>()
+		{
+			@Override
+			public Iterator<AutomatonMode> iterator()
+			{
+				final Iterator<int[]> it = tupleIterator();
+
+				return new ReadOnlyIterator<AutomatonMode>()
+				{
+					@Override
+					public boolean hasNext()
+					{
+						return it.hasNext();
+					}
+
+					@Override
+					public AutomatonMode next()
+					{
+						return createMode(scratch, it.next());
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Get the transitions of the flattened automaton, which are created as they are iterated. The
+	 * transitions are grouped by their source mode, with the source modes in the order of modes().
+	 *
+	 * @return the product transitions
+	 */
+	public Iterable<AutomatonTransition> transitions()
+	{
+		return new Iterable<AutomatonTransition>()
+		{
+			@Override
+			public Iterator<AutomatonTransition> iterator()
+			{
+				final Iterator<int[]> it = tupleIterator();
+
+				return new ReadOnlyIterator<AutomatonTransition>()
+				{
+					private ArrayList<AutomatonTransition> pending = new ArrayList<AutomatonTransition>();
+					private int index = 0;
+
+					@Override
+					public boolean hasNext()
+					{
+						while (index == pending.size() && it.hasNext())
+						{
+							pending = createTransitions(it.next());
+							index = 0;
+						}
+
+						return index < pending.size();
+					}
+
+					@Override
+					public AutomatonTransition next()
+					{
+						if (!hasNext())
+							throw new NoSuchElementException();
+
+						AutomatonTransition rv = pending.get(index);
+						pending.set(index++, null);
+
+						return rv;
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Create the outgoing transitions of a product location
+	 */
+	private ArrayList<AutomatonTransition> createTransitions(int[] state)
+	{
+		ArrayList<String> labels = new ArrayList<String>();
+		ArrayList<int[][]> moves = tree.moves(state, labels);
+		ArrayList<AutomatonTransition> rv = new ArrayList<AutomatonTransition>(moves.size());
+
+		if (moves.isEmpty())
+			return rv;
+
+		AutomatonMode from = createMode(scratch, state);
+
+		for (int m = 0; m < moves.size(); ++m)
+		{
+			int[][] move = moves.get(m);
+			int[] next = state.clone();
+
+			for (int[] change : move)
+				next[change[0]] = change[1];
+
+			AutomatonTransition at = scratch.createTransition(from, createMode(scratch, next));
+			scratch.transitions.clear();
+			at.label = labels.get(m);
+
+			if (move.length == 1)
+			{
+				AutomatonTransition t = getTransition(state, move[0]);
+
+				at.guard = t.guard.copy();
+				at.reset = FlattenAutomatonPass.copyMap(t.reset);
+			}
+			else
+			{
+				at.reset = new LinkedHashMap<String, ExpressionInterval>();
+
+				for (int[] change : move)
+				{
+					AutomatonTransition t = getTransition(state, change);
+
+					at.guard = FlattenAutomatonPass.andExpressions(at.guard, t.guard.copy());
+
+					try
+					{
+						at.reset = FlattenAutomatonPass.mergeExpressionMap(at.reset,
+								FlattenAutomatonPass.copyMap(t.reset));
+					}
+					catch (AutomatonExportException e)
+					{
+						throw new AutomatonExportException(
+								"Conflicting reset (multiple drivers) detected while "
+										+ "flattening automaton",
+								e);
+					}
+				}
+			}
+
+			rv.add(at);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Get the leaf transition of a move change {leaf index, target mode index, outgoing index}
+	 */
+	private AutomatonTransition getTransition(int[] state, int[] change)
+	{
+		int leaf = change[0];
+
+		return leaves.get(leaf).outgoing.get(state[leaf]).get(change[2]);
+	}
+
+	/**
+	 * Create the product mode for a tuple of leaf mode indices
+	 *
+	 * @param ha
+	 *            the automaton to create the mode in (if this is the scratch automaton, the mode is
+	 *            not kept in its modes)
+	 * @param tuple
+	 *            the leaf mode indices
+	 * @return the created mode
+	 */
+	private AutomatonMode createMode(BaseComponent ha, int[] tuple)
+	{
+		StringBuilder name = new StringBuilder();
+		Expression invariant = null;
+		boolean urgent = false;
+		LinkedHashMap<String, ExpressionInterval> flows = new LinkedHashMap<String, ExpressionInterval>();
+
+		for (int i = 0; i < tuple.length; ++i)
+		{
+			AutomatonMode am = leafModes.get(i).get(tuple[i]);
+
+			if (i > 0)
+				name.append(FlattenAutomatonPass.SEPARATOR);
+
+			name.append(am.name);
+			invariant = FlattenAutomatonPass.andExpressions(invariant,
+					am.invariant == null ? null : am.invariant.copy());
+
+			if (am.urgent)
+				urgent = true;
+			else if (!urgent)
+			{
+				try
+				{
+					flows = FlattenAutomatonPass.mergeExpressionMap(flows, am.flowDynamics);
+				}
+				catch (AutomatonExportException e)
+				{
+					throw new AutomatonExportException(
+							"Conflicting dynamics (multiple drivers) detected while "
+									+ "flattening automaton",
+							e);
+				}
+			}
+		}
+
+		AutomatonMode rv = ha.createMode(name.toString());
+
+		if (ha == scratch)
+			scratch.modes.clear();
+
+		rv.invariant = invariant;
+		rv.urgent = urgent;
+		rv.flowDynamics = null;
+
+		if (!urgent)
+		{
+			rv.flowDynamics = new LinkedHashMap<String, ExpressionInterval>();
+
+			for (Entry<String, ExpressionInterval> e : flows.entrySet())
+			{
+				ExpressionInterval ei = e.getValue();
+				rv.flowDynamics.put(e.getKey(), ei == null ? null : ei.copy());
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Get the leaf mode index tuple for a dotted mode name, or null if it doesn't match the leaves
+	 */
+	private int[] getTuple(String dottedName)
+	{
+		String[] parts = dottedName.split("\\.", -1);
+
+		if (parts.length != leaves.size())
+			return null;
+
+		int[] rv = new int[parts.length];
+
+		for (int i = 0; i < parts.length; ++i)
+		{
+			Integer index = leaves.get(i).modeIndices.get(parts[i]);
+
+			if (index == null)
+				return null;
+
+			rv[i] = index;
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Iterate over the product locations of the view, in flattened order
+	 */
+	private Iterator<int[]> tupleIterator()
+	{
+		if (tuples != null)
+			return tuples.iterator();
+
+		final int[] sizes = new int[leaves.size()];
+
+		for (int i = 0; i < sizes.length; ++i)
+			sizes[i] = leaves.get(i).modeNames.size();
+
+		return new ReadOnlyIterator<int[]>()
+		{
+			private int[] cur = numProduct == 0 ? null : new int[sizes.length];
+
+			@Override
+			public boolean hasNext()
+			{
+				return cur != null;
+			}
+
+			@Override
+			public int[] next()
+			{
+				if (cur == null)
+					throw new NoSuchElementException();
+
+				int[] rv = cur.clone();
+
+				// advance the last leaf fastest, like the left-to-right cross product
+				int i = sizes.length - 1;
+
+				for (; i >= 0; --i)
+				{
+					if (++cur[i] < sizes[i])
+						break;
+
+					cur[i] = 0;
+				}
+
+				if (i < 0)
+					cur = null;
+
+				return rv;
+			}
+		};
+	}
+
+	/**
+	 * Create the header component: the variables, constants and labels of the flattened component,
+	 * merged in the same order as FlattenAutomatonPass
+	 */
+	private static BaseComponent createHeader(Component c)
+	{
+		BaseComponent rv = new BaseComponent();
+
+		if (c instanceof BaseComponent)
+			FlattenAutomatonPass.mergeParams(rv, c);
+		else
+		{
+			NetworkComponent nc = (NetworkComponent) c;
+
+			for (ComponentInstance ci : nc.children.values())
+				FlattenAutomatonPass.mergeParams(rv, createHeader(ci.child));
+
+			FlattenAutomatonPass.mergeParams(rv, nc);
+			FlattenAutomatonPass.fixVariableOrder(rv, nc);
+		}
+
+		rv.instanceName = c.instanceName;
+
+		return rv;
+	}
+
+	/**
+	 * Lexicographic order of leaf mode index tuples, which is the order of the flattened modes
+	 */
+	private static class TupleComparator implements Comparator<int[]>
+	{
+		@Override
+		public int compare(int[] a, int[] b)
+		{
+			for (int i = 0; i < a.length; ++i)
+			{
+				if (a[i] != b[i])
+					return a[i] < b[i] ? -1 : 1;
+			}
+
+			return 0;
+		}
+	}
+
+	private static abstract class ReadOnlyIterator<T> implements Iterator<T>
+	{
+		@Override
+		public void remove()
+		{
+			throw new UnsupportedOperationException("flat view is read-only");
+		}
+	}
+}
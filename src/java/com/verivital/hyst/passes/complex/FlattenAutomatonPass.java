@@ -1,21 +1,37 @@
 package com.verivital.hyst.passes.complex;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import org.kohsuke.args4j.Option;
 
 import com.verivital.hyst.geometry.Interval;
 import com.verivital.hyst.grammar.formula.Expression;
 import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.ir.Component;
 import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.ir.SymbolTable;
 import com.verivital.hyst.ir.base.AutomatonMode;
 import com.verivital.hyst.ir.base.AutomatonTransition;
 import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.ir.base.ExpressionInterval;
 import com.verivital.hyst.ir.network.ComponentInstance;
 import com.verivital.hyst.ir.network.NetworkComponent;
+import com.verivital.hyst.main.ConversionContext;
 import com.verivital.hyst.main.Hyst;
 import com.verivital.hyst.passes.TransformationPass;
 import com.verivital.hyst.passes.basic.RemoveDiscreteUnreachablePass;
@@ -30,18 +46,88 @@ import com.verivital.hyst.util.Preconditions;
  * product of the subcomponents), and havoc dynamics may not be resolved.
  * 
  * Modes get renamed based on the modes in each base component, separated by SEPARATOR('_'). This
- * can lead to ambiguous names if modes already have underscores in them; this isn't handled
- * currently.
+ * can lead to ambiguous names if modes already have underscores in them; transitions are created
+ * using the component mode indices, so they are correct as long as the combined names are unique.
+ * 
+ * With the -reachable flag, the discrete state space is explored during composition, starting
+ * from the initial locations, and only product locations which are reachable through local and
+ * shared-label transitions are constructed. The result is the same as flattening and then running
+ * RemoveDiscreteUnreachablePass, but the full cross product is never built.
+ * 
+ * The children of each network are merged in their original order, left to right. With
+ * setPlanMerges(true) (the -flatten_plan_merges flag), the grouping of the pairwise merges is
+ * instead planned to keep the intermediate products small (see planMerges); this gives the same
+ * modes and transitions, but the transitions may be in a different order. Independent subtrees are
+ * flattened in parallel on a shared ForkJoinPool. The mode names and order do not depend on the
+ * grouping or the number of threads.
  */
 public class FlattenAutomatonPass extends TransformationPass
 {
 	public static final String SEPARATOR = "_";
 
+	@Option(name = "-reachable", usage = "only construct product locations which are discretely "
+			+ "reachable from the initial locations")
+	boolean reachableOnly = false;
+
+	// parallelism -> shared pool
+	private static final Map<Integer, ForkJoinPool> pools = new HashMap<Integer, ForkJoinPool>();
+
+	// the leaf-mode indices of each product mode, when only reachable modes are constructed
+	private ConcurrentHashMap<AutomatonMode, int[]> modeTuples = null;
+	private HashSet<TupleKey> reachableTuples = null;
+	private ArrayList<int[]> reachableList = null;
+	private int numExplored = 0;
+	private double numProduct = 0;
+
 	public FlattenAutomatonPass()
 	{
 		preconditions = new Preconditions(true); // skip all checks
 	}
 
+	/**
+	 * Should flattenAndOptimize only construct the discretely-reachable product locations? This is
+	 * a setting of the current ConversionContext.
+	 */
+	public static boolean isOnTheFly()
+	{
+		return ConversionContext.get().flattenOnTheFly;
+	}
+
+	public static void setOnTheFly(boolean onTheFly)
+	{
+		ConversionContext.get().flattenOnTheFly = onTheFly;
+	}
+
+	/**
+	 * Should the grouping of merges in each network be planned (false = merge left to right)? This
+	 * changes the order of the transitions in networks of three or more components. This is a
+	 * setting of the current ConversionContext, which is disabled unless the -flatten_plan_merges
+	 * flag is used.
+	 */
+	public static boolean isPlanMerges()
+	{
+		return ConversionContext.get().flattenPlanMerges;
+	}
+
+	public static void setPlanMerges(boolean planMerges)
+	{
+		ConversionContext.get().flattenPlanMerges = planMerges;
+	}
+
+	/**
+	 * Get the number of threads used to flatten independent subtrees (1 = sequential). This is a
+	 * setting of the current ConversionContext.
+	 */
+	public static int getNumThreads()
+	{
+		return ConversionContext.get().flattenThreads;
+	}
+
+	public static void setNumThreads(int numThreads)
+	{
+		ConversionContext.get().flattenThreads = numThreads;
+	}
+
 	/**
 	 * Perform automaton flattening, as well as removing (discrete) unreachable states. This
 	 * guarantees that:
@@ -55,7 +141,7 @@ public class FlattenAutomatonPass extends TransformationPass
 	public static void flattenAndOptimize(Configuration c)
 	{
 		// 1. do flatteneing
-		new FlattenAutomatonPass().runVanillaPass(c, "");
+		new FlattenAutomatonPass().runVanillaPass(c, isOnTheFly() ? "-reachable" : "");
 		BaseComponent ha = (BaseComponent) c.root;
 		Hyst.log("\nFlattened Automaton (" + ha.modes.size() + " locations and "
 				+ ha.transitions.size() + " transitions)");
@@ -101,15 +187,76 @@ public class FlattenAutomatonPass extends TransformationPass
 	{
 		FlattenRenameUtils.convertToFullyQualifiedParams(config.root);
 
-		config.root = flatten(config.root);
+		CompositionNode tree = null;
+
+		if (reachableOnly)
+		{
+			tree = new CompositionNode(config.root, 0);
+
+			if (exploreReachable(tree))
+				modeTuples = new ConcurrentHashMap<AutomatonMode, int[]>();
+			else
+				tree = null;
+		}
+
+		int numThreads = getNumThreads();
+
+		if (numThreads > 1)
+			config.root = getPool(numThreads).invoke(new FlattenTask(config.root, tree));
+		else
+			config.root = flatten(config.root, tree);
+
+		// if the root wasn't produced by a merge (for example, a single base component), it may
+		// still have unreachable modes
+		if (tree != null)
+			removeDisallowed((BaseComponent) config.root, reachableTuples);
 
 		if (!(config.root instanceof BaseComponent))
 			throw new AutomatonExportException("Flatten failed (root is not BaseComponent)");
 
 		FlattenRenameUtils.convertSettingsSeparator(config);
+
+		if (tree != null)
+		{
+			BaseComponent ha = (BaseComponent) config.root;
+
+			// like RemoveDiscreteUnreachablePass, remove unreachable forbidden states
+			for (Iterator<String> i = config.forbidden.keySet().iterator(); i.hasNext();)
+			{
+				if (!ha.modes.containsKey(i.next()))
+					i.remove();
+			}
+
+			Hyst.log("Reachable flattening explored " + numExplored + " of "
+					+ String.format("%.0f", numProduct) + " product locations (skipped "
+					+ String.format("%.0f", getNumSkipped()) + ")");
+		}
+	}
+
+	/**
+	 * Get the number of product locations which were explored (reachable), when flattening with
+	 * -reachable
+	 * 
+	 * @return the number of explored locations
+	 */
+	public int getNumExplored()
+	{
+		return numExplored;
 	}
 
-	private BaseComponent flatten(Component c)
+	/**
+	 * Get the number of product locations which were never constructed because they were
+	 * unreachable, when flattening with -reachable. This is a double since the full product may be
+	 * very large.
+	 * 
+	 * @return the number of skipped locations
+	 */
+	public double getNumSkipped()
+	{
+		return numProduct - numExplored;
+	}
+
+	private BaseComponent flatten(Component c, CompositionNode node)
 	{
 		BaseComponent rv = null;
 
@@ -122,6 +269,14 @@ public class FlattenAutomatonPass extends TransformationPass
 
 			Hyst.log("Flatten called on '" + name + "' which is already a BaseComponent");
 			rv = (BaseComponent) c.copy();
+
+			if (node != null)
+			{
+				int index = 0;
+
+				for (AutomatonMode am : rv.modes.values())
+					modeTuples.put(am, new int[] { index++ });
+			}
 		}
 		else
 		{
@@ -136,26 +291,28 @@ public class FlattenAutomatonPass extends TransformationPass
 
 			Hyst.logDebug(nc.toString() + "\n-------------");
 
-			for (Entry<String, ComponentInstance> e : nc.children.entrySet())
-			{
-				ComponentInstance ci = e.getValue();
-				// instantiate merge each component into rv
+			// flatten the children (in parallel, if running in the pool)
+			int numChildren = nc.children.size();
+			ArrayList<FlattenTask> tasks = new ArrayList<FlattenTask>(numChildren);
+			int childIndex = 0;
 
-				BaseComponent bc = flatten(ci.child);
-				Hyst.logDebug("flattened child: " + bc.toString() + "\n-------------");
+			for (ComponentInstance ci : nc.children.values())
+			{
+				CompositionNode childNode = node == null ? null : node.children.get(childIndex++);
+				tasks.add(new FlattenTask(ci.child, childNode));
+			}
 
-				if (rv == null)
-					rv = bc;
-				else
-				{
-					Hyst.log("Merging " + rv.instanceName + " and " + bc.instanceName);
-					rv = mergeComponents(rv, bc);
+			BaseComponent[] flat = runAll(tasks);
 
-					Hyst.logDebug(rv.toString() + "\n-------------");
-					Hyst.logDebug("Merged");
-				}
+			if (Hyst.isDebugMode())
+			{
+				for (BaseComponent bc : flat)
+					Hyst.logDebug("flattened child: " + bc.toString() + "\n-------------");
 			}
 
+			int[][] split = planMerges(flat, node);
+			rv = mergeRange(flat, split, 0, numChildren, node);
+
 			// copy some parts from parent network component
 			rv.instanceName = c.instanceName;
 			mergeParams(rv, nc);
@@ -165,6 +322,329 @@ public class FlattenAutomatonPass extends TransformationPass
 		return rv;
 	}
 
+	/**
+	 * Get the shared pool with the given parallelism, creating it if needed. Pools are never shut
+	 * down, since concurrent conversions may be using them (their idle threads exit on their own).
+	 */
+	private static synchronized ForkJoinPool getPool(int parallelism)
+	{
+		ForkJoinPool rv = pools.get(parallelism);
+
+		if (rv == null)
+		{
+			rv = new ForkJoinPool(parallelism);
+			pools.put(parallelism, rv);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Run several independent tasks, in parallel if the current thread is in a ForkJoinPool
+	 */
+	private static BaseComponent[] runAll(List<? extends RecursiveTask<BaseComponent>> tasks)
+	{
+		BaseComponent[] rv = new BaseComponent[tasks.size()];
+
+		if (ForkJoinTask.inForkJoinPool() && tasks.size() > 1)
+			ForkJoinTask.invokeAll(tasks);
+		else
+		{
+			for (RecursiveTask<BaseComponent> t : tasks)
+				t.invoke();
+		}
+
+		for (int i = 0; i < rv.length; ++i)
+			rv[i] = tasks.get(i).join();
+
+		return rv;
+	}
+
+	/**
+	 * Merge a contiguous range of flattened children, using the planned split points
+	 * 
+	 * @param flat
+	 *            the flattened children of a network
+	 * @param split
+	 *            split[i][j] is where the range [i, j) gets divided
+	 * @param lo
+	 *            the first child (inclusive)
+	 * @param hi
+	 *            the last child (exclusive)
+	 * @param node
+	 *            the composition node of the network, or null if constructing the full product
+	 * @return the merged component
+	 */
+	private BaseComponent mergeRange(BaseComponent[] flat, int[][] split, int lo, int hi,
+			CompositionNode node)
+	{
+		BaseComponent rv = null;
+
+		if (hi - lo == 1)
+			rv = flat[lo];
+		else
+		{
+			int mid = split[lo][hi];
+			ArrayList<MergeTask> tasks = new ArrayList<MergeTask>(2);
+			tasks.add(new MergeTask(flat, split, lo, mid, node));
+			tasks.add(new MergeTask(flat, split, mid, hi, node));
+
+			BaseComponent[] parts = runAll(tasks);
+			HashSet<TupleKey> allowed = null;
+
+			if (node != null)
+				allowed = projectReachable(node.children.get(lo).start,
+						node.children.get(hi - 1).end);
+
+			Hyst.log("Merging " + parts[0].instanceName + " and " + parts[1].instanceName);
+			rv = mergeComponents(parts[0], parts[1], allowed);
+
+			if (Hyst.isDebugMode())
+			{
+				Hyst.logDebug(rv.toString() + "\n-------------");
+				Hyst.logDebug("Merged");
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Plan the grouping of the pairwise merges of a network's children. The children stay in
+	 * order (so the product mode names and order are unchanged), but the parenthesization is
+	 * chosen with dynamic programming to minimize the total work, which is estimated as the sum
+	 * over all merges of the number of mode pairs considered (|left| * |right|).
+	 * 
+	 * The size of an intermediate product is the product of the mode counts or, when only
+	 * reachable locations are constructed, the number of distinct reachable projections onto its
+	 * base components. The latter accounts for the shared-label connectivity between the
+	 * children, since synchronized components usually have far fewer reachable combinations.
+	 * 
+	 * Ties are broken in favor of the left-to-right order.
+	 * 
+	 * @param flat
+	 *            the flattened children
+	 * @param node
+	 *            the composition node of the network, or null
+	 * @return split[i][j], the split point for merging children [i, j)
+	 */
+	private int[][] planMerges(BaseComponent[] flat, CompositionNode node)
+	{
+		int k = flat.length;
+		int[][] split = new int[k + 1][k + 1];
+
+		for (int i = 0; i + 1 < k; ++i)
+			for (int j = i + 2; j <= k; ++j)
+				split[i][j] = j - 1; // left to right
+
+		if (isPlanMerges() && k > 2)
+		{
+			double[][] size = rangeSizes(flat, node);
+			double[][] cost = new double[k + 1][k + 1];
+
+			for (int len = 2; len <= k; ++len)
+			{
+				for (int i = 0; i + len <= k; ++i)
+				{
+					int j = i + len;
+					double best = Double.MAX_VALUE;
+
+					for (int m = j - 1; m > i; --m)
+					{
+						double c = cost[i][m] + cost[m][j] + size[i][m] * size[m][j];
+
+						if (c < best * (1 - 1e-9))
+						{
+							best = c;
+							split[i][j] = m;
+						}
+					}
+
+					cost[i][j] = best;
+				}
+			}
+
+			Hyst.logDebug("Planned merge cost: " + cost[0][k] + " (left to right: "
+					+ leftToRightCost(size, k) + ")");
+		}
+
+		return split;
+	}
+
+	private static double leftToRightCost(double[][] size, int k)
+	{
+		double rv = 0;
+
+		for (int j = 2; j <= k; ++j)
+			rv += size[0][j - 1] * size[j - 1][j];
+
+		return rv;
+	}
+
+	/**
+	 * Get the estimated number of modes after merging each range of children. Single children
+	 * use their actual mode count.
+	 * 
+	 * @return size[i][j] for the range [i, j)
+	 */
+	private double[][] rangeSizes(BaseComponent[] flat, CompositionNode node)
+	{
+		int k = flat.length;
+		double[][] rv = new double[k + 1][k + 1];
+
+		for (int i = 0; i < k; ++i)
+		{
+			rv[i][i + 1] = flat[i].modes.size();
+
+			for (int j = i + 2; j <= k; ++j)
+				rv[i][j] = rv[i][j - 1] * flat[j - 1].modes.size();
+		}
+
+		if (node != null)
+		{
+			// count the distinct reachable projections onto each range, by numbering the
+			// projections onto each child and then combining the numbers
+			int numReachable = reachableList.size();
+			int[][] childIds = new int[k][];
+
+			for (int c = 0; c < k; ++c)
+			{
+				CompositionNode child = node.children.get(c);
+				HashMap<TupleKey, Integer> ids = new HashMap<TupleKey, Integer>();
+				childIds[c] = new int[numReachable];
+
+				for (int r = 0; r < numReachable; ++r)
+				{
+					TupleKey key = new TupleKey(
+							Arrays.copyOfRange(reachableList.get(r), child.start, child.end));
+					Integer id = ids.get(key);
+
+					if (id == null)
+					{
+						id = ids.size();
+						ids.put(key, id);
+					}
+
+					childIds[c][r] = id;
+				}
+			}
+
+			for (int i = 0; i < k; ++i)
+			{
+				int[] cur = childIds[i].clone();
+
+				for (int j = i + 1; j < k; ++j)
+				{
+					HashMap<Long, Integer> ids = new HashMap<Long, Integer>();
+
+					for (int r = 0; r < numReachable; ++r)
+					{
+						Long key = (long) cur[r] * numReachable + childIds[j][r];
+						Integer id = ids.get(key);
+
+						if (id == null)
+						{
+							id = ids.size();
+							ids.put(key, id);
+						}
+
+						cur[r] = id;
+					}
+
+					rv[i][j + 1] = ids.size();
+				}
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Get the projections of the reachable product locations onto a range of base components
+	 * 
+	 * @param start
+	 *            the first leaf index (inclusive)
+	 * @param end
+	 *            the last leaf index (exclusive)
+	 * @return the set of projected tuples
+	 */
+	private HashSet<TupleKey> projectReachable(int start, int end)
+	{
+		HashSet<TupleKey> rv = new HashSet<TupleKey>();
+
+		for (int[] tuple : reachableList)
+			rv.add(new TupleKey(Arrays.copyOfRange(tuple, start, end)));
+
+		return rv;
+	}
+
+	/**
+	 * Flattens a component
+	 */
+	@SuppressWarnings("serial")
+	private class FlattenTask extends RecursiveTask<BaseComponent>
+	{
+		private final Component c;
+		private final CompositionNode node;
+
+		FlattenTask(Component c, CompositionNode node)
+		{
+			this.c = c;
+			this.node = node;
+		}
+
+		@Override
+		protected BaseComponent compute()
+		{
+			ConversionContext previous = context.enter();
+
+			try
+			{
+				return flatten(c, node);
+			}
+			finally
+			{
+				ConversionContext.exit(previous);
+			}
+		}
+	}
+
+	/**
+	 * Merges a range of flattened children of a network
+	 */
+	@SuppressWarnings("serial")
+	private class MergeTask extends RecursiveTask<BaseComponent>
+	{
+		private final BaseComponent[] flat;
+		private final int[][] split;
+		private final int lo, hi;
+		private final CompositionNode node;
+
+		MergeTask(BaseComponent[] flat, int[][] split, int lo, int hi, CompositionNode node)
+		{
+			this.flat = flat;
+			this.split = split;
+			this.lo = lo;
+			this.hi = hi;
+			this.node = node;
+		}
+
+		@Override
+		protected BaseComponent compute()
+		{
+			ConversionContext previous = context.enter();
+
+			try
+			{
+				return mergeRange(flat, split, lo, hi, node);
+			}
+			finally
+			{
+				ConversionContext.exit(previous);
+			}
+		}
+	}
+
 	/**
 	 * The variable ordering may have gotten messed up since when merging they get adding in the
 	 * order they are used in each base component. This function modifies rv's variable order to
@@ -173,9 +653,9 @@ public class FlattenAutomatonPass extends TransformationPass
 	 * @param rv
 	 * @param nc
 	 */
-	private void fixVariableOrder(BaseComponent rv, NetworkComponent nc)
+	static void fixVariableOrder(BaseComponent rv, NetworkComponent nc)
 	{
-		ArrayList<String> ordered = new ArrayList<String>();
+		ArrayList<String> ordered = new SymbolTable.SymbolList();
 
 		// add all the variables that exist in nc's order
 		for (String var : nc.variables)
@@ -222,7 +702,7 @@ public class FlattenAutomatonPass extends TransformationPass
 	 * @param from
 	 *            the place to take them from
 	 */
-	private static void mergeParams(Component rv, Component from)
+	static void mergeParams(Component rv, Component from)
 	{
 		mergeList(rv.variables, from.variables);
 		mergeList(rv.labels, from.labels);
@@ -259,7 +739,7 @@ public class FlattenAutomatonPass extends TransformationPass
 	/**
 	 * And's two expressions, which maybe null
 	 */
-	private static Expression andExpressions(Expression a, Expression b)
+	static Expression andExpressions(Expression a, Expression b)
 	{
 		Expression rv = null;
 
@@ -273,12 +753,33 @@ public class FlattenAutomatonPass extends TransformationPass
 		return rv;
 	}
 
-	private static void mergeLocations(BaseComponent left, BaseComponent right, BaseComponent rv)
+	private void mergeLocations(BaseComponent left, BaseComponent right, BaseComponent rv,
+			HashSet<TupleKey> allowed, ProductIndex product)
 	{
+		int i = 0;
+
 		for (AutomatonMode locI : left.modes.values())
 		{
+			int j = 0;
+
 			for (AutomatonMode locJ : right.modes.values())
 			{
+				int[] tuple = null;
+
+				if (allowed != null)
+				{
+					int[] tupleI = modeTuples.get(locI);
+					int[] tupleJ = modeTuples.get(locJ);
+					tuple = Arrays.copyOf(tupleI, tupleI.length + tupleJ.length);
+					System.arraycopy(tupleJ, 0, tuple, tupleI.length, tupleJ.length);
+
+					if (!allowed.contains(new TupleKey(tuple)))
+					{
+						++j;
+						continue;
+					}
+				}
+
 				String combinedName = locI.name + SEPARATOR + locJ.name; // dots
 																			// will
 																			// be
@@ -286,6 +787,12 @@ public class FlattenAutomatonPass extends TransformationPass
 																			// later
 
 				AutomatonMode merged = rv.createMode(combinedName);
+
+				product.put(i, j++, merged);
+
+				if (tuple != null)
+					modeTuples.put(merged, tuple);
+
 				merged.invariant = andExpressions(locI.invariant, locJ.invariant);
 
 				if (locI.urgent || locJ.urgent)
@@ -309,10 +816,12 @@ public class FlattenAutomatonPass extends TransformationPass
 					}
 				}
 			}
+
+			++i;
 		}
 	}
 
-	private static LinkedHashMap<String, ExpressionInterval> mergeExpressionMap(
+	static LinkedHashMap<String, ExpressionInterval> mergeExpressionMap(
 			LinkedHashMap<String, ExpressionInterval> a,
 			LinkedHashMap<String, ExpressionInterval> b)
 	{
@@ -343,7 +852,9 @@ public class FlattenAutomatonPass extends TransformationPass
 	}
 
 	/**
-	 * Add transitions from the left base component that don't have a shared label
+	 * Add transitions from one of the merged components that don't have a shared label. The
+	 * product locations are looked up by mode index, so this is linear in the number of added
+	 * transitions (mode names are not parsed, so underscores in names are fine).
 	 * 
 	 * @param rv
 	 *            where the add transitions to
@@ -353,65 +864,42 @@ public class FlattenAutomatonPass extends TransformationPass
 	 *            is this component left-composed in the location names?
 	 * @param sharedLabels
 	 *            the list of shared labels (transitions with these labels are skipped)
+	 * @param product
+	 *            the product locations of rv
 	 */
 	private static void addNonSharedTransitions(BaseComponent rv, BaseComponent comp,
-			boolean isLeft, Collection<String> sharedLabels)
+			boolean isLeft, Collection<String> sharedLabels, ProductIndex product)
 	{
 		for (AutomatonTransition originalT : comp.transitions)
 		{
-			AutomatonMode fromLoc = originalT.from;
-			String fromName = fromLoc.name;
-			AutomatonMode toLoc = originalT.to;
-			String toName = toLoc.name;
-
 			if (sharedLabels.contains(originalT.label))
 				continue;
 
-			for (AutomatonMode locRv : rv.modes.values())
-			{
-				String locName = locRv.name;
-				boolean matchedSource = false;
-
-				if (isLeft)
-					matchedSource = locName.startsWith(fromName + SEPARATOR);
-				else
-					matchedSource = locName.endsWith(SEPARATOR + fromName);
+			int from = product.indexOf(originalT.from, isLeft);
+			int to = product.indexOf(originalT.to, isLeft);
 
-				if (matchedSource)
-				{
-					String targetName = null;
-
-					if (isLeft)
-						targetName = toName + SEPARATOR + locName.substring(fromName.length() + 1);
-					else
-					{
-						int restStringLength = locName.length() - (fromName.length() + 1);
-						targetName = locName.substring(0, restStringLength) + SEPARATOR + toName;
-					}
+			// the other component's modes, in the same order as rv's modes
+			for (int other : product.partners(from, isLeft))
+			{
+				AutomatonMode locRv = isLeft ? product.get(from, other) : product.get(other, from);
+				AutomatonMode locRv2 = isLeft ? product.get(to, other) : product.get(other, to);
 
-					for (AutomatonMode locRv2 : rv.modes.values())
-					{
-						String locName2 = locRv2.name;
+				if (locRv2 == null)
+					continue;
 
-						if (locName2.equals(targetName))
-						{
-							Hyst.logDebug(
-									"Adding transition '" + locName + "' -> '" + locName2 + "'");
+				Hyst.logDebug("Adding transition '" + locRv.name + "' -> '" + locRv2.name + "'");
 
-							// add transition between locRv and locRv2
-							AutomatonTransition at = rv.createTransition(locRv, locRv2);
+				// add transition between locRv and locRv2
+				AutomatonTransition at = rv.createTransition(locRv, locRv2);
 
-							at.guard = originalT.guard.copy();
-							at.reset = copyMap(originalT.reset);
-							at.label = originalT.label;
-						}
-					}
-				}
+				at.guard = originalT.guard.copy();
+				at.reset = copyMap(originalT.reset);
+				at.label = originalT.label;
 			}
 		}
 	}
 
-	private static LinkedHashMap<String, ExpressionInterval> copyMap(
+	static LinkedHashMap<String, ExpressionInterval> copyMap(
 			LinkedHashMap<String, ExpressionInterval> from)
 	{
 		LinkedHashMap<String, ExpressionInterval> rv = new LinkedHashMap<String, ExpressionInterval>();
@@ -433,10 +921,36 @@ public class FlattenAutomatonPass extends TransformationPass
 	 *            the right-composed component
 	 * @param sharedLabels
 	 *            the labels shared between components
+	 * @param product
+	 *            the product locations of rv
+	 * @param onlyReachable
+	 *            were only the reachable product locations constructed
 	 */
 	private static void addSharedTransitions(BaseComponent rv, BaseComponent left,
-			BaseComponent right, Collection<String> sharedLabels)
+			BaseComponent right, Collection<String> sharedLabels, ProductIndex product,
+			boolean onlyReachable)
 	{
+		// index the right transitions by label
+		HashMap<String, ArrayList<AutomatonTransition>> rightByLabel = new HashMap<String, ArrayList<AutomatonTransition>>();
+
+		for (AutomatonTransition rightT : right.transitions)
+		{
+			String label = rightT.label;
+
+			if (label == null || !sharedLabels.contains(label))
+				continue;
+
+			ArrayList<AutomatonTransition> list = rightByLabel.get(label);
+
+			if (list == null)
+			{
+				list = new ArrayList<AutomatonTransition>();
+				rightByLabel.put(label, list);
+			}
+
+			list.add(rightT);
+		}
+
 		for (AutomatonTransition leftT : left.transitions)
 		{
 			String label = leftT.label;
@@ -444,38 +958,32 @@ public class FlattenAutomatonPass extends TransformationPass
 			if (label == null || !sharedLabels.contains(label))
 				continue;
 
-			AutomatonMode fromLeftLoc = leftT.from;
-			String fromLeftName = fromLeftLoc.name;
-			AutomatonMode toLeftLoc = leftT.to;
-			String toLeftName = toLeftLoc.name;
+			ArrayList<AutomatonTransition> matching = rightByLabel.get(label);
 
-			// find all matching right transitions
-			for (AutomatonTransition rightT : right.transitions)
-			{
-				if (!label.equals(rightT.label))
-					continue;
+			if (matching == null)
+				continue;
 
-				// at this point labels match and we can determine the full
-				// source and target names
-				AutomatonMode fromRightLoc = rightT.from;
-				String fromRightName = fromRightLoc.name;
-				AutomatonMode toRightLoc = rightT.to;
-				String toRightName = toRightLoc.name;
+			int fromLeft = product.indexOf(leftT.from, true);
+			int toLeft = product.indexOf(leftT.to, true);
 
-				String sourceName = fromLeftName + SEPARATOR + fromRightName;
-				String targetName = toLeftName + SEPARATOR + toRightName;
+			// all matching right transitions
+			for (AutomatonTransition rightT : matching)
+			{
+				AutomatonMode sourceMode = product.get(fromLeft,
+						product.indexOf(rightT.from, false));
+				AutomatonMode targetMode = product.get(toLeft, product.indexOf(rightT.to, false));
 
-				AutomatonMode sourceMode = rv.modes.get(sourceName);
+				// unreachable product locations were never constructed
+				if (onlyReachable && (sourceMode == null || targetMode == null))
+					continue;
 
 				if (sourceMode == null)
-					throw new AutomatonExportException(
-							"source name not found in modes: " + sourceName);
-
-				AutomatonMode targetMode = rv.modes.get(targetName);
+					throw new AutomatonExportException("source name not found in modes: "
+							+ leftT.from.name + SEPARATOR + rightT.from.name);
 
 				if (targetMode == null)
-					throw new AutomatonExportException(
-							"target name not found in modes: " + targetName);
+					throw new AutomatonExportException("target name not found in modes: "
+							+ leftT.to.name + SEPARATOR + rightT.to.name);
 
 				AutomatonTransition at = rv.createTransition(sourceMode, targetMode);
 				at.guard = andExpressions(leftT.guard, rightT.guard);
@@ -503,9 +1011,12 @@ public class FlattenAutomatonPass extends TransformationPass
 	 *            the first component
 	 * @param right
 	 *            the second component
+	 * @param allowed
+	 *            the product locations to construct (as leaf-mode index tuples), or null for all
 	 * @return the merged component
 	 */
-	private static BaseComponent mergeComponents(BaseComponent left, BaseComponent right)
+	private BaseComponent mergeComponents(BaseComponent left, BaseComponent right,
+			HashSet<TupleKey> allowed)
 	{
 		BaseComponent rv = new BaseComponent();
 
@@ -517,19 +1028,20 @@ public class FlattenAutomatonPass extends TransformationPass
 		// merge the automata by first constructing the cross product of the
 		// mode names
 		Hyst.logDebug("Merging Locations, shared labels: " + sharedLabels);
-		mergeLocations(left, right, rv);
+		ProductIndex product = new ProductIndex(left, right);
+		mergeLocations(left, right, rv, allowed, product);
 
 		// add every transition in left base component without a label
 		Hyst.logDebug("Adding Non-shared Transitions Left");
-		addNonSharedTransitions(rv, left, true, sharedLabels);
+		addNonSharedTransitions(rv, left, true, sharedLabels, product);
 
 		// add every transition in right base component without a label
 		Hyst.logDebug("Adding Non-shared Transitions Right");
-		addNonSharedTransitions(rv, right, false, sharedLabels);
+		addNonSharedTransitions(rv, right, false, sharedLabels, product);
 
 		// add labeled transitions
 		Hyst.logDebug("Adding Labeled Transitions");
-		addSharedTransitions(rv, left, right, sharedLabels);
+		addSharedTransitions(rv, left, right, sharedLabels, product, allowed != null);
 
 		// merge the id using a '_' as the separator
 		Hyst.logDebug("Setting Id");
@@ -537,4 +1049,405 @@ public class FlattenAutomatonPass extends TransformationPass
 
 		return rv;
 	}
+
+	/**
+	 * Remove the modes of a base component which are not allowed, along with their transitions
+	 */
+	private void removeDisallowed(BaseComponent ha, HashSet<TupleKey> allowed)
+	{
+		ArrayList<AutomatonMode> toRemove = new ArrayList<AutomatonMode>();
+
+		for (AutomatonMode am : ha.modes.values())
+		{
+			if (!allowed.contains(new TupleKey(modeTuples.get(am))))
+				toRemove.add(am);
+		}
+
+		ha.removeModes(toRemove);
+	}
+
+	/**
+	 * Explore the discretely-reachable product locations
+	 * 
+	 * @param tree
+	 *            the composition tree for the root component
+	 * @return true if successful, false if the initial locations couldn't be mapped to leaf modes
+	 *         (then the full product should be constructed)
+	 */
+	private boolean exploreReachable(CompositionNode tree)
+	{
+		ArrayList<CompositionNode> leaves = new ArrayList<CompositionNode>();
+		tree.getLeaves(leaves);
+		numProduct = 1;
+
+		for (CompositionNode leaf : leaves)
+			numProduct *= leaf.modeNames.size();
+
+		HashSet<TupleKey> reachable = exploreReachable(tree, config.init.keySet());
+
+		if (reachable == null)
+			return false;
+
+		reachableTuples = reachable;
+		reachableList = new ArrayList<int[]>(reachable.size());
+		numExplored = reachable.size();
+
+		for (TupleKey k : reachable)
+			reachableList.add(k.tuple);
+
+		return true;
+	}
+
+	/**
+	 * Explore the discretely-reachable product locations from the given initial locations
+	 * 
+	 * @param tree
+	 *            the composition tree for the root component
+	 * @param initNames
+	 *            the initial locations, with dotted names (one mode for each leaf component)
+	 * @return the reachable leaf-mode index tuples, or null if the initial locations couldn't be
+	 *         mapped to leaf modes
+	 */
+	static HashSet<TupleKey> exploreReachable(CompositionNode tree, Collection<String> initNames)
+	{
+		ArrayList<CompositionNode> leaves = new ArrayList<CompositionNode>();
+		tree.getLeaves(leaves);
+
+		ArrayDeque<int[]> worklist = new ArrayDeque<int[]>();
+		HashSet<TupleKey> reachable = new HashSet<TupleKey>();
+
+		for (String initName : initNames)
+		{
+			String[] parts = initName.split("\\.", -1);
+
+			if (parts.length != leaves.size())
+			{
+				Hyst.log("Initial mode '" + initName + "' doesn't have one mode for each of the "
+						+ leaves.size() + " base components; constructing full product instead.");
+				return null;
+			}
+
+			int[] tuple = new int[parts.length];
+
+			for (int i = 0; i < parts.length; ++i)
+			{
+				Integer index = leaves.get(i).modeIndices.get(parts[i]);
+
+				if (index == null)
+				{
+					Hyst.log("Initial mode '" + initName + "' refers to unknown mode '" + parts[i]
+							+ "'; constructing full product instead.");
+					return null;
+				}
+
+				tuple[i] = index;
+			}
+
+			if (reachable.add(new TupleKey(tuple)))
+				worklist.add(tuple);
+		}
+
+		while (!worklist.isEmpty())
+		{
+			int[] state = worklist.poll();
+
+			for (int[][] move : tree.moves(state))
+			{
+				int[] next = state.clone();
+
+				for (int[] change : move)
+					next[change[0]] = change[1];
+
+				if (reachable.add(new TupleKey(next)))
+					worklist.add(next);
+			}
+		}
+
+		return reachable;
+	}
+
+	/**
+	 * The product locations of a merge, keyed by the (left, right) pair of component mode indices.
+	 * Only constructed product locations are stored.
+	 */
+	private static class ProductIndex
+	{
+		final IdentityHashMap<AutomatonMode, Integer> leftIndices = new IdentityHashMap<AutomatonMode, Integer>();
+		final IdentityHashMap<AutomatonMode, Integer> rightIndices = new IdentityHashMap<AutomatonMode, Integer>();
+		final HashMap<Long, AutomatonMode> modes = new HashMap<Long, AutomatonMode>();
+
+		// for each left mode, the right modes it was paired with (and vice versa), in creation order
+		final ArrayList<ArrayList<Integer>> rightPartners = new ArrayList<ArrayList<Integer>>();
+		final ArrayList<ArrayList<Integer>> leftPartners = new ArrayList<ArrayList<Integer>>();
+		final int numRight;
+
+		ProductIndex(BaseComponent left, BaseComponent right)
+		{
+			for (AutomatonMode am : left.modes.values())
+			{
+				leftIndices.put(am, leftIndices.size());
+				rightPartners.add(new ArrayList<Integer>());
+			}
+
+			for (AutomatonMode am : right.modes.values())
+			{
+				rightIndices.put(am, rightIndices.size());
+				leftPartners.add(new ArrayList<Integer>());
+			}
+
+			numRight = rightIndices.size();
+		}
+
+		void put(int left, int right, AutomatonMode am)
+		{
+			modes.put((long) left * numRight + right, am);
+			rightPartners.get(left).add(right);
+			leftPartners.get(right).add(left);
+		}
+
+		AutomatonMode get(int left, int right)
+		{
+			return modes.get((long) left * numRight + right);
+		}
+
+		int indexOf(AutomatonMode am, boolean isLeft)
+		{
+			Integer rv = isLeft ? leftIndices.get(am) : rightIndices.get(am);
+
+			if (rv == null)
+				throw new AutomatonExportException(
+						"transition refers to mode not in its component: " + am.name);
+
+			return rv;
+		}
+
+		/**
+		 * Get the indices of the modes in the other component which were paired with a mode
+		 */
+		ArrayList<Integer> partners(int index, boolean isLeft)
+		{
+			return isLeft ? rightPartners.get(index) : leftPartners.get(index);
+		}
+	}
+
+	/**
+	 * An array of leaf-mode indices, usable as a hash key
+	 */
+	static class TupleKey
+	{
+		final int[] tuple;
+		private final int hash;
+
+		TupleKey(int[] tuple)
+		{
+			this.tuple = tuple;
+			this.hash = Arrays.hashCode(tuple);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			return o instanceof TupleKey && Arrays.equals(tuple, ((TupleKey) o).tuple);
+		}
+	}
+
+	/**
+	 * The structure of the composition done by flatten(), used to explore the product without
+	 * constructing it. Leaves are base components, and network nodes merge their children from left
+	 * to right, with the same shared labels as mergeComponents. Since composition is associative,
+	 * the moves are the same for any grouping chosen by planMerges.
+	 */
+	static class CompositionNode
+	{
+		final int start, end; // range of leaf indices
+
+		// for leaves
+		BaseComponent base = null;
+		final ArrayList<String> modeNames = new ArrayList<String>();
+		final HashMap<String, Integer> modeIndices = new HashMap<String, Integer>();
+		ArrayList<ArrayList<AutomatonTransition>> outgoing = null;
+
+		// for networks
+		final ArrayList<CompositionNode> children = new ArrayList<CompositionNode>();
+		final ArrayList<Collection<String>> shared = new ArrayList<Collection<String>>();
+
+		// the labels of the flattened component, as computed by mergeParams
+		final ArrayList<String> labels = new ArrayList<String>();
+
+		CompositionNode(Component c, int start)
+		{
+			this.start = start;
+
+			if (c instanceof BaseComponent)
+			{
+				BaseComponent bc = (BaseComponent) c;
+				base = bc;
+
+				for (String name : bc.modes.keySet())
+				{
+					modeIndices.put(name, modeNames.size());
+					modeNames.add(name);
+				}
+
+				outgoing = new ArrayList<ArrayList<AutomatonTransition>>(modeNames.size());
+
+				for (int i = 0; i < modeNames.size(); ++i)
+					outgoing.add(new ArrayList<AutomatonTransition>());
+
+				for (AutomatonTransition t : bc.transitions)
+					outgoing.get(modeIndices.get(t.from.name)).add(t);
+
+				labels.addAll(bc.labels);
+				end = start + 1;
+			}
+			else
+			{
+				NetworkComponent nc = (NetworkComponent) c;
+				int leafIndex = start;
+
+				for (ComponentInstance ci : nc.children.values())
+				{
+					CompositionNode child = new CompositionNode(ci.child, leafIndex);
+					leafIndex = child.end;
+
+					if (children.size() == 0)
+						labels.addAll(child.labels);
+					else
+					{
+						ArrayList<String> sharedLabels = new ArrayList<String>();
+
+						for (String label : labels)
+						{
+							if (child.labels.contains(label))
+								sharedLabels.add(label);
+						}
+
+						shared.add(sharedLabels);
+						mergeList(labels, child.labels);
+					}
+
+					children.add(child);
+				}
+
+				mergeList(labels, nc.labels);
+				end = leafIndex;
+			}
+		}
+
+		void getLeaves(ArrayList<CompositionNode> rv)
+		{
+			if (outgoing != null)
+				rv.add(this);
+
+			for (CompositionNode child : children)
+				child.getLeaves(rv);
+		}
+
+		/**
+		 * Get the discrete moves from a product location. Each move is a list of {leaf index,
+		 * target mode index, index in the leaf mode's outgoing list} changes, in leaf order.
+		 */
+		ArrayList<int[][]> moves(int[] state)
+		{
+			return moves(state, new ArrayList<String>());
+		}
+
+		/**
+		 * Get the discrete moves from a product location, storing the label of each move in the
+		 * parallel list moveLabels
+		 */
+		ArrayList<int[][]> moves(int[] state, ArrayList<String> moveLabels)
+		{
+			ArrayList<int[][]> rv = new ArrayList<int[][]>();
+
+			if (outgoing != null)
+			{
+				ArrayList<AutomatonTransition> out = outgoing.get(state[start]);
+
+				for (int k = 0; k < out.size(); ++k)
+				{
+					AutomatonTransition t = out.get(k);
+					rv.add(new int[][] { { start, modeIndices.get(t.to.name), k } });
+					moveLabels.add(t.label);
+				}
+			}
+			else
+			{
+				moves(children.get(0), state, rv, moveLabels);
+
+				for (int i = 1; i < children.size(); ++i)
+				{
+					Collection<String> sharedLabels = shared.get(i - 1);
+					ArrayList<int[][]> right = new ArrayList<int[][]>();
+					ArrayList<String> rightLabels = new ArrayList<String>();
+					moves(children.get(i), state, right, rightLabels);
+
+					ArrayList<int[][]> merged = new ArrayList<int[][]>();
+					ArrayList<String> mergedLabels = new ArrayList<String>();
+
+					// non-shared moves of either side
+					addNonShared(rv, moveLabels, sharedLabels, merged, mergedLabels);
+					addNonShared(right, rightLabels, sharedLabels, merged, mergedLabels);
+
+					// synchronized moves
+					for (int l = 0; l < rv.size(); ++l)
+					{
+						String label = moveLabels.get(l);
+
+						if (label == null || !sharedLabels.contains(label))
+							continue;
+
+						for (int r = 0; r < right.size(); ++r)
+						{
+							if (!label.equals(rightLabels.get(r)))
+								continue;
+
+							int[][] a = rv.get(l);
+							int[][] b = right.get(r);
+							int[][] both = Arrays.copyOf(a, a.length + b.length);
+							System.arraycopy(b, 0, both, a.length, b.length);
+
+							merged.add(both);
+							mergedLabels.add(label);
+						}
+					}
+
+					rv = merged;
+					moveLabels.clear();
+					moveLabels.addAll(mergedLabels);
+				}
+			}
+
+			return rv;
+		}
+
+		private static void moves(CompositionNode child, int[] state, ArrayList<int[][]> rv,
+				ArrayList<String> labels)
+		{
+			ArrayList<String> childLabels = new ArrayList<String>();
+			rv.addAll(child.moves(state, childLabels));
+			labels.addAll(childLabels);
+		}
+
+		private static void addNonShared(ArrayList<int[][]> moves, ArrayList<String> labels,
+				Collection<String> sharedLabels, ArrayList<int[][]> rv, ArrayList<String> rvLabels)
+		{
+			for (int i = 0; i < moves.size(); ++i)
+			{
+				String label = labels.get(i);
+
+				if (!sharedLabels.contains(label))
+				{
+					rv.add(moves.get(i));
+					rvLabels.add(label);
+				}
+			}
+		}
+	}
 }
@@ -6,6 +6,7 @@ import org.kohsuke.args4j.Option;
 
 import com.verivital.hyst.grammar.formula.FormulaParser;
 import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.Configuration;
 import com.verivital.hyst.ir.base.AutomatonMode;
 import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.main.Hyst;
@@ -47,10 +48,10 @@ public class OrderReductionPass extends TransformationPass
 		BaseComponent ha = (BaseComponent) config.root;
 
 		Classification cf = new Classification();
-		cf.ha = ha;
 		cf.setVarID(ha);
 		SimulinkStateflowPrinter sp = new SimulinkStateflowPrinter();
 		sp.ha = ha;
+		sp.cls = cf;
 		sp.setConfig(config);
 		// sp.setVarID(ha);
 		MatlabProxy proxy;
@@ -163,7 +164,7 @@ public class OrderReductionPass extends TransformationPass
 				config.init.clear();
 				config.init.put(e.getKey(), FormulaParser.parseInitialForbidden(initialCondition));
 				config.settings.plotVariableNames = plotVars;
-				config.DO_VALIDATION = false;
+				Configuration.setValidationEnabled(false);
 			}
 		}
 		catch (Exception e)
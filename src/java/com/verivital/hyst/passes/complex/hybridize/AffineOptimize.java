@@ -17,13 +17,19 @@ import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.ir.base.ExpressionInterval;
 import com.verivital.hyst.main.Hyst;
 import com.verivital.hyst.python.PythonBridge;
+import com.verivital.hyst.python.PythonBridgePool;
 import com.verivital.hyst.python.PythonUtil;
 import com.verivital.hyst.util.AutomatonUtil;
+import com.verivital.hyst.util.IntervalOptimizer;
 import com.verivital.hyst.util.KodiakUtil;
 import com.verivital.hyst.util.StringOperations;
 
 public class AffineOptimize
 {
+	// should affineApprox use the exact Jacobian at the center of the box (automatic
+	// differentiation), rather than the sampling-based estimate over the box
+	public static final boolean USE_AUTODIFF_JACOBIAN = true;
+
 	public static class OptimizationParams
 	{
 		// set these two as input (newdynamics, descriptions of modes)
@@ -66,11 +72,14 @@ public class AffineOptimize
 
 	/**
 	 * Perform an optimization in order to find out the differences in dynamics, for example,
-	 * between a nonlinear derivative and its linear approximation.
+	 * between a nonlinear derivative and its linear approximation. The interval optimizations are
+	 * split across the PythonBridgePool, if it's enabled.
 	 * 
 	 * @param optimizationType
-	 *            one of {"basinhopping", "kodiak", "interval", "intervalXXX" where XXX is a real
-	 *            number describing the maximum overapproximation error
+	 *            one of {"basinhopping", "kodiak", "interval", "intervalXXX", "javainterval",
+	 *            "javaintervalXXX"} where XXX is a real number describing the maximum
+	 *            overapproximation error. The java versions use IntervalOptimizer rather than
+	 *            python.
 	 * @param params
 	 *            [in/out] the list of OptimizationParams to optimize. Result is stored here
 	 */
@@ -80,7 +89,16 @@ public class AffineOptimize
 			throw new AutomatonExportException(
 					"createAffineDynamics was called with params list of length 0");
 
-		PythonBridge.getInstance(PythonBridge.NO_TIMEOUT); // turn off timeout
+		boolean usePython = optimizationType.equals("basinhopping")
+				|| optimizationType.startsWith("interval");
+
+		if (usePython)
+		{
+			PythonBridge.getInstance(PythonBridge.NO_TIMEOUT); // turn off timeout
+
+			if (PythonBridgePool.isEnabled())
+				PythonBridgePool.getInstance().setTimeout(PythonBridge.NO_TIMEOUT);
+		}
 
 		ArrayList<Expression> expList = new ArrayList<Expression>();
 		ArrayList<HashMap<String, Interval>> boundsList = new ArrayList<HashMap<String, Interval>>();
@@ -101,23 +119,17 @@ public class AffineOptimize
 			optimizationResult = PythonUtil.intervalOptimize(expList, boundsList);
 		else if (optimizationType.startsWith("interval"))
 		{
-			String num = optimizationType.substring("interval".length());
-
-			try
-			{
-				double accuracy = Double.parseDouble(num);
+			double accuracy = parseAccuracy(optimizationType.substring("interval".length()));
 
-				if (accuracy <= 0)
-					throw new AutomatonExportException(
-							"malformed interval optimization param: " + accuracy);
+			optimizationResult = PythonUtil.intervalOptimizeBounded(expList, boundsList, accuracy);
+		}
+		else if (optimizationType.equals("javainterval"))
+			optimizationResult = IntervalOptimizer.optimize(expList, boundsList, 0);
+		else if (optimizationType.startsWith("javainterval"))
+		{
+			double accuracy = parseAccuracy(optimizationType.substring("javainterval".length()));
 
-				optimizationResult = PythonUtil.intervalOptimizeBounded(expList, boundsList,
-						accuracy);
-			}
-			catch (NumberFormatException e)
-			{
-				throw new AutomatonExportException("invalid interval optimization param", e);
-			}
+			optimizationResult = IntervalOptimizer.optimize(expList, boundsList, accuracy);
 		}
 		else
 			throw new AutomatonExportException(
@@ -127,6 +139,33 @@ public class AffineOptimize
 		createOptimizationResult(params, optimizationResult);
 	}
 
+	/**
+	 * Parse the maximum error suffix of an interval optimization type, like the 0.1 in
+	 * "interval0.1"
+	 * 
+	 * @param num
+	 *            the suffix
+	 * @return the (positive) maximum error
+	 */
+	private static double parseAccuracy(String num)
+	{
+		double rv;
+
+		try
+		{
+			rv = Double.parseDouble(num);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new AutomatonExportException("invalid interval optimization param", e);
+		}
+
+		if (rv <= 0)
+			throw new AutomatonExportException("malformed interval optimization param: " + rv);
+
+		return rv;
+	}
+
 	/**
 	 * Populate the result data structures after the optimization was performed
 	 * 
@@ -252,7 +291,8 @@ public class AffineOptimize
 	}
 
 	/**
-	 * Create an affine approximation based on sampling the given dynamics
+	 * Create an affine approximation of the given dynamics, using the Jacobian at the center of the
+	 * bounds (or a sampling-based estimate, if USE_AUTODIFF_JACOBIAN is false)
 	 * 
 	 * @param nonlinear
 	 *            the input dynamics
@@ -266,7 +306,8 @@ public class AffineOptimize
 		double TOL = 1e-9;
 		LinkedHashMap<String, ExpressionInterval> rv = new LinkedHashMap<String, ExpressionInterval>();
 		int numVars = nonlinear.size();
-		double[][] jac = AutomatonUtil.estimateJacobian(nonlinear, bounds);
+		double[][] jac = USE_AUTODIFF_JACOBIAN ? AutomatonUtil.jacobianAtCenter(nonlinear, bounds)
+				: AutomatonUtil.estimateJacobian(nonlinear, bounds);
 		ArrayList<String> orderedVariables = new ArrayList<String>(); // same
 																		// ordering
 																		// as
@@ -68,8 +68,9 @@ import com.verivital.hyst.util.StringOperations;
  * 
  * In addition to these parameters from the paper, the optimization method can be chosen:
  * 
- * opt the optimization method, one of {basinhopping, interval, intervalXYZ} where XYZ is the
- * maximum overapproximation error (low values in high dimensions may take longer)
+ * opt the optimization method, one of {basinhopping, interval, intervalXYZ, javainterval,
+ * javaintervalXYZ} where XYZ is the maximum overapproximation error (low values in high dimensions
+ * may take longer). The javainterval methods don't need python.
  * 
  * Additionally, the user can (optionally) specify a trigger mode which indicates the transformation
  * should begin; otherwise it begins at time 0.
@@ -108,7 +109,7 @@ public class HybridizeMTRawPass extends TransformationPass
 	// O or optimization
 	@Option(name = "-O", aliases = {
 			"-opt" }, usage = "the optimization method, one of {basinhopping, kodiak, interval, interval#, "
-					+ "where # is the max error, like 0.1}", metaVar = "METHOD")
+					+ "javainterval, javainterval#, where # is the max error, like 0.1}", metaVar = "METHOD")
 	String opt = "basinhopping";
 
 	@Option(name = "-T", aliases = {
@@ -253,16 +254,7 @@ public class HybridizeMTRawPass extends TransformationPass
 		errorMode = ConvertToStandardForm.getErrorMode(ha);
 
 		ha.modes.remove(errorMode.name);
-
-		ArrayList<AutomatonTransition> toRemove = new ArrayList<AutomatonTransition>();
-
-		for (AutomatonTransition at : ha.transitions)
-		{
-			if (at.to == errorMode)
-				toRemove.add(at);
-		}
-
-		ha.transitions.removeAll(toRemove);
+		ha.removeTransitions(ha.getIncomingTransitions(errorMode));
 
 		config.forbidden.remove(errorMode.name);
 		config.init.remove(errorMode.name);
@@ -630,34 +622,30 @@ public class HybridizeMTRawPass extends TransformationPass
 	{
 		AutomatonMode firstMode = modeChain.get(0);
 		HyperRectangle firstBox = modeChainInvariants.get(0);
-		ArrayList<AutomatonTransition> originalTransitions = new ArrayList<AutomatonTransition>();
-		originalTransitions.addAll(ha.transitions);
 
 		if (triggerMode == null)
 		{
 			// redirect outgoing transitions from _init to firstMode
-			for (AutomatonTransition at : originalTransitions)
+			for (AutomatonTransition at : new ArrayList<AutomatonTransition>(
+					ha.getOutgoingTransitions(initMode)))
 			{
-				if (at.from == initMode)
-				{
-					at.to = firstMode;
-					addErrorTransitionsAtGuard(at.from, at.guard, firstBox);
+				ha.redirectTransition(at, at.from, firstMode);
+				addErrorTransitionsAtGuard(at.from, at.guard, firstBox);
 
-					// add the initial reset
-					SplittingElement e = splitElements.get(0);
-
-					if (e instanceof TimeSplittingElement)
-					{
-						TimeSplittingElement tse = (TimeSplittingElement) e;
-						Operation op = new Operation(TT_VARIABLE, Operator.EQUAL, tse.time);
-						at.guard = Expression.and(at.guard, op);
-					}
-					else
-					{
-						// space triggered
-						Operation op = new Operation(TT_VARIABLE, Operator.EQUAL, 0);
-						at.guard = Expression.and(at.guard, op);
-					}
+				// add the initial reset
+				SplittingElement e = splitElements.get(0);
+
+				if (e instanceof TimeSplittingElement)
+				{
+					TimeSplittingElement tse = (TimeSplittingElement) e;
+					Operation op = new Operation(TT_VARIABLE, Operator.EQUAL, tse.time);
+					at.guard = Expression.and(at.guard, op);
+				}
+				else
+				{
+					// space triggered
+					Operation op = new Operation(TT_VARIABLE, Operator.EQUAL, 0);
+					at.guard = Expression.and(at.guard, op);
 				}
 			}
 		}
@@ -667,11 +655,16 @@ public class HybridizeMTRawPass extends TransformationPass
 			// transitions and
 			// redirect them to firstMode.
 
-			for (AutomatonTransition at : originalTransitions)
+			AutomatonMode trigger = ha.modes.get(triggerMode);
+			List<AutomatonTransition> incoming = trigger == null
+					? new ArrayList<AutomatonTransition>()
+					: new ArrayList<AutomatonTransition>(ha.getIncomingTransitions(trigger));
+
+			for (AutomatonTransition at : incoming)
 			{
 				if (at.to.name == triggerMode)
 				{
-					at.to = firstMode;
+					ha.redirectTransition(at, at.from, firstMode);
 
 					addErrorTransitionsAtGuard(at.from, at.guard, firstBox);
 				}
@@ -972,7 +965,8 @@ public class HybridizeMTRawPass extends TransformationPass
 		if (domains.size() == 0)
 			throw new AutomatonExportException("expected at least one domain");
 
-		if (!opt.equals("basinhopping") && !opt.equals("kodiak") && !opt.startsWith("interval"))
+		if (!opt.equals("basinhopping") && !opt.equals("kodiak") && !opt.startsWith("interval")
+				&& !opt.startsWith("javainterval"))
 			throw new AutomatonExportException("unknown optimization method: " + opt);
 
 		int numDims = config.root.variables.size();
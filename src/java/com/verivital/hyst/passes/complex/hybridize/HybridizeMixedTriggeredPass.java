@@ -6,6 +6,7 @@ import java.util.List;
 import java.util.Map.Entry;
 import java.util.Random;
 import java.util.TreeMap;
+import java.util.concurrent.Future;
 
 import org.kohsuke.args4j.Option;
 
@@ -25,7 +26,11 @@ import com.verivital.hyst.passes.complex.hybridize.HybridizeMTRawPass.SpaceSplit
 import com.verivital.hyst.passes.complex.hybridize.HybridizeMTRawPass.SplittingElement;
 import com.verivital.hyst.passes.complex.hybridize.HybridizeMTRawPass.TimeSplittingElement;
 import com.verivital.hyst.printers.PySimPrinter;
+import com.verivital.hyst.python.PySimAutomatonCache;
 import com.verivital.hyst.python.PythonBridge;
+import com.verivital.hyst.python.PythonBridgePool;
+import com.verivital.hyst.simulation.HybridSimulator;
+import com.verivital.hyst.simulation.ParallelSimulator;
 import com.verivital.hyst.util.AutomatonUtil;
 import com.verivital.hyst.util.Preconditions.PreconditionsFailedException;
 import com.verivital.hyst.util.RangeExtractor;
@@ -87,7 +92,7 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 	// O or optimization
 	@Option(name = "-O", aliases = {
 			"-opt" }, usage = "the optimization method, one of {basinhopping, kodiak, interval, interval#, "
-					+ "where # is the max error, like 0.1}", metaVar = "METHOD")
+					+ "javainterval, javainterval#, where # is the max error, like 0.1}", metaVar = "METHOD")
 	String opt = "basinhopping";
 
 	// no error
@@ -145,7 +150,8 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 	{
 		super.checkPreconditons(c, name);
 
-		if (!PythonBridge.hasPython())
+		// with the java simulator, python is only needed for some optimization methods
+		if (!HybridSimulator.isJavaSimulatorEnabled() && !PythonBridge.hasPython())
 			throw new PreconditionsFailedException(
 					"Python (and required libraries) needed to run Hybridize Mixed Triggered pass.");
 	}
@@ -190,6 +196,11 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 			throw new AutomatonExportException(
 					"Unknown simulation type parameter: " + simTypeString);
 
+		if (!opt.equals("kodiak") && !opt.startsWith("javainterval")
+				&& !PythonBridge.hasPython())
+			throw new AutomatonExportException("Python (and required libraries) needed for the '"
+					+ opt + "' optimization method.");
+
 		if (piMaxTime <= 0)
 		{
 			piMaxTime = 4 * timeStep;
@@ -370,7 +381,13 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 
 		Hyst.log("Initial simulation points (" + simPoints.size() + "): " + simPoints);
 
-		PythonBridge.getInstance().setTimeout(-1);
+		if (!HybridSimulator.isJavaSimulatorEnabled())
+		{
+			PythonBridge.getInstance().setTimeout(-1);
+
+			if (PythonBridgePool.isEnabled())
+				PythonBridgePool.getInstance().setTimeout(-1);
+		}
 
 		// run simulation with the given params
 		runSimulation(simPoints);
@@ -741,7 +758,9 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 	}
 
 	/**
-	 * Do a simulation of the passed-in point list
+	 * Do a simulation of the passed-in point list. If the java simulator is enabled, it is used,
+	 * and the points are simulated in parallel with a ParallelSimulator. Otherwise, pysim is used
+	 * and, if the PythonBridgePool is enabled, the points are split up and simulated in parallel.
 	 * 
 	 * @param c
 	 *            the configuration
@@ -761,39 +780,97 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 						+ " dimensions; expected " + config.root.variables.size());
 		}
 
-		PythonBridge pb = PythonBridge.getInstance();
-		pb.send("from pythonbridge.pysim_utils import simulate_set_time");
+		ArrayList<SymbolicStatePoint> rv;
 
-		StringBuilder s = new StringBuilder();
-		s.append(PySimPrinter.automatonToString(config));
+		if (HybridSimulator.isJavaSimulatorEnabled())
+			rv = new ParallelSimulator(new HybridSimulator(config)).simulateSetTime(simPoints,
+					time);
+		else
+			rv = pythonSimAllPoints(config, simPoints, time);
 
-		String points = makePointsString(simPoints);
-		String modes = makeModeString(simPoints);
+		return rv;
+	}
 
-		s.append("print simulate_set_time(define_ha(), " + modes + ", " + points + ", " + time
-				+ ")");
+	private static ArrayList<SymbolicStatePoint> pythonSimAllPoints(Configuration config,
+			ArrayList<SymbolicStatePoint> simPoints, double time)
+	{
+		final String IMPORT = "from pythonbridge.pysim_utils import simulate_set_time";
+		final String automaton = PySimPrinter.automatonToString(config);
+		ArrayList<String> results = new ArrayList<String>();
 
-		String result = pb.send(s.toString());
+		if (simPoints.size() > 1 && PythonBridgePool.isEnabled())
+		{
+			PythonBridgePool pool = PythonBridgePool.getInstance();
+			ArrayList<Future<String>> futures = new ArrayList<Future<String>>();
+
+			for (List<SymbolicStatePoint> chunk : pool.split(simPoints))
+			{
+				ArrayList<SymbolicStatePoint> chunkPoints = new ArrayList<SymbolicStatePoint>(chunk);
+				final String modes = makeModeString(chunkPoints);
+				final String points = makePointsString(chunkPoints);
+				final double simTime = time;
+
+				futures.add(pool.submit(new PythonBridgePool.PythonTask<String>()
+				{
+					@Override
+					public String run(PythonBridge pb)
+					{
+						String ha = PySimAutomatonCache.load(pb, automaton);
+						pb.send(IMPORT);
+
+						return pb.send(makeSimSetTimeCommand(ha, modes, points, simTime));
+					}
+				}));
+			}
+
+			for (Future<String> f : futures)
+				results.add(PythonBridgePool.getResult(f));
+		}
+		else
+		{
+			PythonBridge pb = PythonBridge.getInstance();
+			String ha = PySimAutomatonCache.load(pb, automaton);
+			pb.send(IMPORT);
+
+			results.add(pb.send(makeSimSetTimeCommand(ha, makeModeString(simPoints),
+					makePointsString(simPoints), time)));
+		}
 
 		// parse result into SymbolicState objects
 		// result is semi-colon separated lists, first is the mode name, rest is
 		// the point
 		ArrayList<SymbolicStatePoint> rv = new ArrayList<SymbolicStatePoint>();
 
-		for (String part : result.split(";"))
+		for (String result : results)
 		{
-			String[] comma_parts = part.split(",");
+			for (String part : result.split(";"))
+				rv.add(parseSymbolicStatePoint(part));
+		}
 
-			String mode = comma_parts[0]; // first one is the mode
-			HyperPoint pt = new HyperPoint(comma_parts.length - 1);
+		return rv;
+	}
 
-			for (int i = 1; i < comma_parts.length; ++i)
-				pt.dims[i - 1] = Double.parseDouble(comma_parts[i]);
+	private static String makeSimSetTimeCommand(String ha, String modes, String points,
+			double time)
+	{
+		return "print simulate_set_time(" + ha + ", " + modes + ", " + points + ", " + time + ")";
+	}
 
-			rv.add(new SymbolicStatePoint(mode, pt));
-		}
+	/**
+	 * Parse a simulation result for a single point: the mode name, followed by the point's
+	 * coordinates, separated by commas
+	 */
+	private static SymbolicStatePoint parseSymbolicStatePoint(String part)
+	{
+		String[] comma_parts = part.split(",");
 
-		return rv;
+		String mode = comma_parts[0]; // first one is the mode
+		HyperPoint pt = new HyperPoint(comma_parts.length - 1);
+
+		for (int i = 1; i < comma_parts.length; ++i)
+			pt.dims[i - 1] = Double.parseDouble(comma_parts[i]);
+
+		return new SymbolicStatePoint(mode, pt);
 	}
 
 	private static String makeModeString(ArrayList<SymbolicStatePoint> simPoints)
@@ -900,7 +977,8 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 	}
 
 	/**
-	 * Simulate from multiple points, returning the trajectories
+	 * Simulate from multiple points, returning the trajectories. This uses the java simulator if
+	 * it is enabled (see HybridSimulator.isJavaSimulatorEnabled()), otherwise python's pysim.
 	 * 
 	 * @param config
 	 *            the automaton
@@ -912,20 +990,30 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 	 */
 	public static ArrayList<ArrayList<SymbolicStatePoint>> simMultiGetTrajectory(
 			Configuration config, ArrayList<SymbolicStatePoint> startPoints, double time)
+	{
+		ArrayList<ArrayList<SymbolicStatePoint>> rv;
+
+		if (HybridSimulator.isJavaSimulatorEnabled())
+			rv = new ParallelSimulator(new HybridSimulator(config))
+					.simulateMultiTrajectoryTime(startPoints, time);
+		else
+			rv = pythonSimMultiGetTrajectory(config, startPoints, time);
+
+		return rv;
+	}
+
+	private static ArrayList<ArrayList<SymbolicStatePoint>> pythonSimMultiGetTrajectory(
+			Configuration config, ArrayList<SymbolicStatePoint> startPoints, double time)
 	{
 		PythonBridge pb = PythonBridge.getInstance();
+		String ha = PySimAutomatonCache.load(pb, config);
 		pb.send("from pythonbridge.pysim_utils import simulate_multi_trajectory_time");
 
-		StringBuilder s = new StringBuilder();
-		s.append(PySimPrinter.automatonToString(config));
-
 		String modes = makeModeString(startPoints);
 		String points = makePointsString(startPoints);
 
-		s.append("print simulate_multi_trajectory_time(define_ha(), " + modes + ", " + points + ", "
-				+ time + ")");
-
-		String result = pb.send(s.toString());
+		String result = pb.send("print simulate_multi_trajectory_time(" + ha + ", " + modes + ", "
+				+ points + ", " + time + ")");
 
 		// parse result into SymbolicState objects
 		// result is semi-colon separated lists, first is the mode name, rest is
@@ -937,17 +1025,7 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 			ArrayList<SymbolicStatePoint> trajStates = new ArrayList<SymbolicStatePoint>();
 
 			for (String part : traj.split(";"))
-			{
-				String[] comma_parts = part.split(",");
-
-				String mode = comma_parts[0]; // first one is the mode
-				HyperPoint pt = new HyperPoint(comma_parts.length - 1);
-
-				for (int i = 1; i < comma_parts.length; ++i)
-					pt.dims[i - 1] = Double.parseDouble(comma_parts[i]);
-
-				trajStates.add(new SymbolicStatePoint(mode, pt));
-			}
+				trajStates.add(parseSymbolicStatePoint(part));
 
 			rv.add(trajStates);
 		}
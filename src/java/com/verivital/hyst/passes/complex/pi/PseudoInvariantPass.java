@@ -204,7 +204,7 @@ public class PseudoInvariantPass extends TransformationPass
 						toRemove.add(at);
 				}
 
-				ha.transitions.removeAll(toRemove);
+				ha.removeTransitions(toRemove);
 			}
 
 			config.init.clear();
@@ -227,11 +227,8 @@ public class PseudoInvariantPass extends TransformationPass
 
 		// incoming transitions to afterMode should have an extra condition (the
 		// pi guard)
-		for (AutomatonTransition at : ha.transitions)
-		{
-			if (at.to == afterMode)
-				at.guard = Expression.and(at.guard, piGuard);
-		}
+		for (AutomatonTransition at : ha.getIncomingTransitions(afterMode))
+			at.guard = Expression.and(at.guard, piGuard);
 
 		// beforeMode should have an extra invariant (the pseudo-invariant)
 		beforeMode.invariant = Expression.and(beforeMode.invariant, piInv);
@@ -14,8 +14,9 @@ import com.verivital.hyst.ir.base.AutomatonMode;
 import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.main.Hyst;
 import com.verivital.hyst.passes.TransformationPass;
-import com.verivital.hyst.printers.PySimPrinter;
+import com.verivital.hyst.python.PySimAutomatonCache;
 import com.verivital.hyst.python.PythonBridge;
+import com.verivital.hyst.simulation.HybridSimulator;
 import com.verivital.hyst.util.AutomatonUtil;
 import com.verivital.hyst.util.DoubleArrayOptionHandler;
 import com.verivital.hyst.util.StringOperations;
@@ -61,7 +62,7 @@ public class PseudoInvariantSimulatePass extends TransformationPass
 		SymbolicStatePoint init = new SymbolicStatePoint();
 		init.modeName = config.init.entrySet().iterator().next().getKey();
 		init.hp = AutomatonUtil.getInitialPoint(ha, config);
-		List<SymbolicStatePoint> states = pythonSimulate(config, init, times);
+		List<SymbolicStatePoint> states = simulate(config, init, times);
 
 		List<String> modes = new ArrayList<String>(times.size());
 		List<HyperPoint> points = new ArrayList<HyperPoint>(times.size());
@@ -85,7 +86,31 @@ public class PseudoInvariantSimulatePass extends TransformationPass
 	}
 
 	/**
-	 * Simulate the automaton, getting the state at a series of times
+	 * Simulate the automaton, getting the state at a series of times. This uses the java simulator
+	 * if it is enabled (see HybridSimulator.isJavaSimulatorEnabled()), otherwise python's pysim.
+	 * 
+	 * @param automaton
+	 * @param start
+	 *            the start state
+	 * @param times
+	 *            the times where to return the state
+	 * @return the state at each of the times
+	 */
+	public static List<SymbolicStatePoint> simulate(Configuration automaton,
+			SymbolicStatePoint start, List<Double> times)
+	{
+		List<SymbolicStatePoint> rv;
+
+		if (HybridSimulator.isJavaSimulatorEnabled())
+			rv = new HybridSimulator(automaton).simulateTimes(start, times);
+		else
+			rv = pythonSimulate(automaton, start, times);
+
+		return rv;
+	}
+
+	/**
+	 * Simulate the automaton using python, getting the state at a series of times
 	 * 
 	 * @param automaton
 	 * @param start
@@ -102,18 +127,14 @@ public class PseudoInvariantSimulatePass extends TransformationPass
 					+ " dimensions; expected " + automaton.root.variables.size());
 
 		PythonBridge pb = PythonBridge.getInstance();
+		String ha = PySimAutomatonCache.load(pb, automaton);
 		pb.send("from pythonbridge.pysim_utils import simulate_times");
 
-		StringBuilder s = new StringBuilder();
-		s.append(PySimPrinter.automatonToString(automaton));
-
 		String point = "[" + StringOperations.join(",", start.hp.dims) + "]";
 		String timesStr = "[" + StringOperations.join(",", times.toArray(new Double[0])) + "]";
 
-		s.append("print simulate_times(define_ha(), '" + start.modeName + "', " + point + ", "
-				+ timesStr + ")");
-
-		String result = pb.send(s.toString());
+		String result = pb.send("print simulate_times(" + ha + ", '" + start.modeName + "', "
+				+ point + ", " + timesStr + ")");
 
 		// parse result into SymbolicState objects
 		// result is semi-colon separated lists, first is the mode name, rest is
@@ -24,11 +24,14 @@ import com.verivital.hyst.grammar.formula.Operator;
 import com.verivital.hyst.grammar.formula.Variable;
 import com.verivital.hyst.internalpasses.ConvertToStandardForm;
 import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.Component;
 import com.verivital.hyst.ir.Configuration;
 import com.verivital.hyst.ir.base.AutomatonMode;
 import com.verivital.hyst.ir.base.AutomatonTransition;
 import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.ir.network.ComponentInstance;
+import com.verivital.hyst.ir.network.NetworkComponent;
 import com.verivital.hyst.main.Hyst;
 import com.verivital.hyst.passes.basic.SubstituteConstantsPass;
 import com.verivital.hyst.util.AutomatonUtil;
@@ -162,14 +165,14 @@ public class FlowstarPrinter extends ToolPrinter
 	{
 		this.isContinuous = false;
 
-		if (ha.modes.values().size() == 1)
+		if (getNumModes() == 1)
 		{
 			AutomatonMode mode = ha.modes.values().iterator().next();
 			Expression inv = simplifyExpression(mode.invariant);
 
 			if (inv.equals(Constant.TRUE))
 			{
-				if (ha.transitions.size() == 0)
+				if (!getTransitions().iterator().hasNext())
 					this.isContinuous = true;
 			}
 		}
@@ -208,7 +211,7 @@ public class FlowstarPrinter extends ToolPrinter
 		{
 			BaseComponent base = (BaseComponent) this.config.root;
 
-			if (base.modes.size() != 1)
+			if (getNumModes() != 1)
 				throw new AutomatonExportException(
 						"Expected single automaton mode with explicit unsafe condition.");
 
@@ -472,9 +475,11 @@ public class FlowstarPrinter extends ToolPrinter
 		// modename
 		boolean first = true;
 
-		for (Entry<String, AutomatonMode> e : ha.modes.entrySet())
+		for (AutomatonMode mode : getModes())
 		{
-			AutomatonMode mode = e.getValue();
+			// the flat view's modes are only created here
+			if (flatView != null)
+				checkModeName(mode.name);
 
 			// removed this
 			if (flowstarExpressionPrinter.inputVariables.size() > 0)
@@ -487,7 +492,7 @@ public class FlowstarPrinter extends ToolPrinter
 
 			if (!this.isContinuous)
 			{
-				String locName = e.getKey();
+				String locName = mode.name;
 				printLine(locName);
 				printLine("{");
 			}
@@ -651,7 +656,7 @@ public class FlowstarPrinter extends ToolPrinter
 
 			boolean first = true;
 
-			for (AutomatonTransition t : ha.transitions)
+			for (AutomatonTransition t : getTransitions())
 			{
 				Expression guard = simplifyExpression(t.guard);
 
@@ -878,24 +883,29 @@ public class FlowstarPrinter extends ToolPrinter
 	{
 		this.ha = (BaseComponent) config.root;
 		flowstarExpressionPrinter = new FlowstarExpressionPrinter();
-		Expression.expressionPrinter = flowstarExpressionPrinter;
+		Expression.setExpressionPrinter(flowstarExpressionPrinter);
 
-		if (ha.modes.containsKey("init"))
-			throw new AutomatonExportException("mode named 'init' is not allowed in Flow* printer");
-
-		if (ha.modes.containsKey("start"))
-			throw new AutomatonExportException(
-					"mode named 'start' is not allowed in Flow* printer");
+		for (String name : ha.modes.keySet())
+			checkModeName(name);
 
 		if (taylorInit == null)
 		{
 			if (!areIntervalInitialStates(config))
+			{
+				// supportsFlatView() checks this for networks
+				if (flatView != null)
+					throw new AutomatonExportException(
+							"Flat view initial states are not intervals");
+
 				convertInitialStatesToUrgent(config);
+			}
 
 			removeUnboundedInitialStates(config);
 		}
 
-		AutomatonUtil.convertUrgentTransitions(ha, config);
+		// a flat view has no urgent modes (see supportsFlatView())
+		if (flatView == null)
+			AutomatonUtil.convertUrgentTransitions(ha, config);
 
 		printDocument(originalFilename);
 	}
@@ -1087,11 +1097,11 @@ public class FlowstarPrinter extends ToolPrinter
 	private static boolean areIntervalInitialStates(Configuration config)
 	{
 		boolean rv = true;
-		BaseComponent ha = (BaseComponent) config.root;
 
 		for (Entry<String, Expression> e : config.init.entrySet())
 		{
-			if (!isIntervalRangeCondition(removeConstants(e.getValue(), ha.constants.keySet())))
+			if (!isIntervalRangeCondition(
+					removeConstants(e.getValue(), config.root.constants.keySet())))
 			{
 				rv = false;
 				break;
@@ -1101,6 +1111,76 @@ public class FlowstarPrinter extends ToolPrinter
 		return rv;
 	}
 
+	private static void checkModeName(String name)
+	{
+		if (name.equals("init") || name.equals("start"))
+			throw new AutomatonExportException(
+					"mode named '" + name + "' is not allowed in Flow* printer");
+	}
+
+	/**
+	 * The modes to print, from the flat view if one is used
+	 */
+	private Iterable<AutomatonMode> getModes()
+	{
+		return flatView == null ? ha.modes.values() : flatView.modes();
+	}
+
+	/**
+	 * The transitions to print, from the flat view if one is used
+	 */
+	private Iterable<AutomatonTransition> getTransitions()
+	{
+		return flatView == null ? ha.transitions : flatView.transitions();
+	}
+
+	private double getNumModes()
+	{
+		return flatView == null ? ha.modes.size() : flatView.getNumModes();
+	}
+
+	/**
+	 * Networks are printed through a FlatView, unless printing would need to add modes or
+	 * transitions to the flat automaton: for urgent modes, for initial states which are not
+	 * intervals, or for disjunctive initial or forbidden states (split by the preconditions)
+	 */
+	@Override
+	protected boolean supportsFlatView(Configuration c)
+	{
+		boolean rv = !hasUrgentMode(c.root) && !hasDisjunction(c.init.values())
+				&& !hasDisjunction(c.forbidden.values());
+
+		if (rv && taylorInit == null)
+			rv = areIntervalInitialStates(c);
+
+		return rv;
+	}
+
+	private static boolean hasUrgentMode(Component c)
+	{
+		boolean rv = false;
+
+		if (c instanceof BaseComponent)
+			rv = AutomatonUtil.hasUrgentMode((BaseComponent) c);
+		else
+		{
+			for (ComponentInstance ci : ((NetworkComponent) c).children.values())
+				rv |= hasUrgentMode(ci.child);
+		}
+
+		return rv;
+	}
+
+	private static boolean hasDisjunction(Collection<Expression> exps)
+	{
+		byte classification = 0;
+
+		for (Expression e : exps)
+			classification |= AutomatonUtil.classifyExpressionOps(e);
+
+		return (classification & AutomatonUtil.OPS_DISJUNCTION) != 0;
+	}
+
 	@Override
 	public String getToolName()
 	{
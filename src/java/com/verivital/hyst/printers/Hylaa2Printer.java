@@ -19,6 +19,7 @@ import com.verivital.hyst.grammar.formula.Operator;
 import com.verivital.hyst.internalpasses.ConvertToStandardForm;
 import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.ir.SymbolTable;
 import com.verivital.hyst.ir.base.AutomatonMode;
 import com.verivital.hyst.ir.base.AutomatonTransition;
 import com.verivital.hyst.ir.base.BaseComponent;
@@ -292,9 +293,9 @@ public class Hylaa2Printer extends ToolPrinter
 
 				for (ArrayList<Double> bounds : minkowskiBounds)
 				{
-					String max = Expression.expressionPrinter
+					String max = Expression.getExpressionPrinter()
 							.print(new Constant(bounds.get(1).doubleValue()));
-					String negMin = Expression.expressionPrinter
+					String negMin = Expression.getExpressionPrinter()
 							.print(new Constant(-1 * bounds.get(0).doubleValue()));
 
 					line.append(max + ", ");
@@ -424,14 +425,7 @@ public class Hylaa2Printer extends ToolPrinter
 
 			if (nonInputVars.size() != ha.variables.size())
 			{
-
-				ArrayList<String> inputVars = new ArrayList<String>();
-
-				for (String var : ha.variables)
-				{
-					if (!nonInputVars.contains(var))
-						inputVars.add(var);
-				}
+				ArrayList<String> inputVars = DynamicsUtil.getInputVariables(someMode);
 
 				rv.add("# input variable order: " + inputVars);
 			}
@@ -443,8 +437,8 @@ public class Hylaa2Printer extends ToolPrinter
 				BaseComponent ha, ArrayList<Operation> parts)
 		{
 			AutomatonMode someMode = ha.modes.values().iterator().next();
-			ArrayList<String> nonInputVars = DynamicsUtil.getNonInputVariables(someMode,
-					ha.variables);
+			SymbolTable symbols = ha.getSymbolTable();
+			ExpressionInterval[] someFlows = someMode.getFlowArray();
 
 			Expression nonInputInvariant = null;
 
@@ -455,7 +449,7 @@ public class Hylaa2Printer extends ToolPrinter
 
 				for (String var : AutomatonUtil.getVariablesInExpression(o))
 				{
-					if (!nonInputVars.contains(var))
+					if (!DynamicsUtil.isNonInputVariable(symbols, someFlows, var))
 					{
 						containsInputVariables = true;
 						break;
@@ -490,16 +484,11 @@ public class Hylaa2Printer extends ToolPrinter
 				ArrayList<Operation> parts)
 		{
 			AutomatonMode someMode = ha.modes.values().iterator().next();
+			SymbolTable symbols = ha.getSymbolTable();
+			ExpressionInterval[] someFlows = someMode.getFlowArray();
 			ArrayList<String> nonInputVars = DynamicsUtil.getNonInputVariables(someMode,
 					ha.variables);
-
-			ArrayList<String> inputVars = new ArrayList<String>();
-
-			for (String var : am.automaton.variables)
-			{
-				if (!nonInputVars.contains(var))
-					inputVars.add(var);
-			}
+			ArrayList<String> inputVars = DynamicsUtil.getInputVariables(someMode);
 
 			// for every input variable, we need to extract the B matrix, as well
 			// as the constraints from the invariant
@@ -517,7 +506,7 @@ public class Hylaa2Printer extends ToolPrinter
 
 				for (String var : AutomatonUtil.getVariablesInExpression(o))
 				{
-					if (!nonInputVars.contains(var))
+					if (!DynamicsUtil.isNonInputVariable(symbols, someFlows, var))
 					{
 						containsInputVariables = true;
 						break;
@@ -908,23 +897,22 @@ public class Hylaa2Printer extends ToolPrinter
 	private int getVariableIndex(String name)
 	{
 		// get the variable's index (omits inputs)
-		int rv = -1;
-		int index = 0;
-		Map<String, ExpressionInterval> flows = ((BaseComponent) config.root).modes.values()
-				.iterator().next().flowDynamics;
+		BaseComponent ha = (BaseComponent) config.root;
+		ExpressionInterval[] flows = ha.modes.values().iterator().next().getFlowArray();
+		int id = ha.getSymbolTable().getVariableId(name);
 
-		for (String var : config.root.variables)
-		{
-			if (flows.get(var) == null)
-				continue;
+		if (id == -1 || flows == null)
+			return id;
 
-			if (var.equals(name))
-			{
-				rv = index;
-				break;
-			}
+		if (flows[id] == null)
+			return -1;
+
+		int rv = 0;
 
-			++index;
+		for (int i = 0; i < id; ++i)
+		{
+			if (flows[i] != null)
+				++rv;
 		}
 
 		return rv;
@@ -24,6 +24,7 @@ import com.verivital.hyst.ir.base.AutomatonMode;
 import com.verivital.hyst.ir.base.AutomatonTransition;
 import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.passes.complex.FlatView;
 import com.verivital.hyst.util.DynamicsUtil;
 import com.verivital.hyst.util.PreconditionsFlag;
 import com.verivital.hyst.util.RangeExtractor;
@@ -69,7 +70,6 @@ public class PySimPrinter extends ToolPrinter
 	@Option(name = "-ydim", usage = "plot y dim", metaVar = "DIM_INDEX")
 	int plotYDim = -1;
 
-	private static PySimExpressionPrinter pySimExpressionPrinter = new PySimExpressionPrinter();
 
 	private static final String COMMENT_CHAR = "#";
 	public BaseComponent ha;
@@ -109,10 +109,10 @@ public class PySimPrinter extends ToolPrinter
 		return "'''\n" + text + "\n'''";
 	}
 
-	private static void appendModes(StringBuilder rv, BaseComponent ha,
+	private static void appendModes(StringBuilder rv, Iterable<AutomatonMode> modes,
 			PythonPrinterCustomization custom)
 	{
-		for (AutomatonMode am : ha.modes.values())
+		for (AutomatonMode am : modes)
 		{
 			appendNewline(rv);
 
@@ -200,7 +200,7 @@ public class PySimPrinter extends ToolPrinter
 		return rv.toString();
 	}
 
-	private static void appendJumps(StringBuilder rv, BaseComponent ha,
+	private static void appendJumps(StringBuilder rv, Iterable<AutomatonTransition> transitions,
 			PythonPrinterCustomization custom)
 	{
 		/*
@@ -208,7 +208,7 @@ public class PySimPrinter extends ToolPrinter
 		 * + 1, x[1])
 		 */
 
-		for (AutomatonTransition at : ha.transitions)
+		for (AutomatonTransition at : transitions)
 		{
 			appendNewline(rv);
 
@@ -234,7 +234,7 @@ public class PySimPrinter extends ToolPrinter
 		if (plotYDim >= 0)
 			config.settings.plotVariableNames[1] = ha.variables.get(plotYDim);
 
-		printLine(automatonToString(config));
+		printLine(automatonToString(config, flatView, new PythonPrinterCustomization()));
 
 		printLine("def define_settings():");
 		increaseIndentation();
@@ -457,9 +457,29 @@ public class PySimPrinter extends ToolPrinter
 	 */
 	public static String automatonToString(Configuration config, PythonPrinterCustomization custom)
 	{
-		ExpressionPrinter savedPrinter = Expression.expressionPrinter;
+		return automatonToString(config, null, custom);
+	}
+
+	/**
+	 * Converts the given hybrid automaton to a python-parsable String, taking the modes and
+	 * transitions from a FlatView, if one is given
+	 * 
+	 * @param config
+	 *            the (flat) configuration, or the view's configuration
+	 * @param view
+	 *            the flat view to print, or null to print config.root
+	 * @param custom
+	 *            the printer customization
+	 * @return the string representation of the python automaton
+	 */
+	public static String automatonToString(Configuration config, FlatView view,
+			PythonPrinterCustomization custom)
+	{
+		ExpressionPrinter savedPrinter = Expression.getExpressionPrinter();
 
-		Expression.expressionPrinter = pySimExpressionPrinter;
+		// a new printer each time, since printers for different automata can run concurrently
+		PySimExpressionPrinter pySimExpressionPrinter = new PySimExpressionPrinter();
+		Expression.setExpressionPrinter(pySimExpressionPrinter);
 		pySimExpressionPrinter.ha = (BaseComponent) config.root;
 
 		StringBuilder rv = new StringBuilder();
@@ -485,8 +505,16 @@ public class PySimPrinter extends ToolPrinter
 		for (String line : custom.getExtraDeclarationPrintLines(ha))
 			appendIndentedLine(rv, line);
 
-		appendModes(rv, ha, custom);
-		appendJumps(rv, ha, custom);
+		if (view == null)
+		{
+			appendModes(rv, ha.modes.values(), custom);
+			appendJumps(rv, ha.transitions, custom);
+		}
+		else
+		{
+			appendModes(rv, view.modes(), custom);
+			appendJumps(rv, view.transitions(), custom);
+		}
 		appendNewline(rv);
 		appendIndentedLine(rv, "return ha");
 		appendNewline(rv);
@@ -499,7 +527,7 @@ public class PySimPrinter extends ToolPrinter
 		appendNewline(rv);
 
 		// restore expressionPrinter
-		Expression.expressionPrinter = savedPrinter;
+		Expression.setExpressionPrinter(savedPrinter);
 
 		return rv.toString();
 	}
@@ -607,7 +635,8 @@ public class PySimPrinter extends ToolPrinter
 	protected void printAutomaton()
 	{
 		this.ha = (BaseComponent) config.root;
-		Expression.expressionPrinter = pySimExpressionPrinter;
+		PySimExpressionPrinter pySimExpressionPrinter = new PySimExpressionPrinter();
+		Expression.setExpressionPrinter(pySimExpressionPrinter);
 		pySimExpressionPrinter.ha = ha;
 
 		printDocument(originalFilename);
@@ -655,7 +684,7 @@ public class PySimPrinter extends ToolPrinter
 			String rv = null;
 			String name = v.name;
 
-			int index = ha.variables.indexOf(name);
+			int index = ha.getSymbolTable().getVariableId(name);
 
 			if (index == -1)
 			{
@@ -669,6 +698,12 @@ public class PySimPrinter extends ToolPrinter
 		}
 	}
 
+	@Override
+	protected boolean supportsFlatView(Configuration c)
+	{
+		return true;
+	}
+
 	@Override
 	public String getToolName()
 	{
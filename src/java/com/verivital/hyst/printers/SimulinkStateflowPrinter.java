@@ -157,10 +157,10 @@ public class SimulinkStateflowPrinter extends ToolPrinter
 
 		printCommentBlock(Hyst.TOOL_NAME + "\n" + "Hybrid Automaton in " + Hyst.TOOL_NAME + "\n"
 				+ "Converted from file: " + originalFilename + "\n" + "Command Line arguments: "
-				+ Hyst.programArguments);
+				+ Hyst.getProgramArguments());
 
-		Expression.expressionPrinter = new SimulinkStateflowPrinter.SimulinkStateflowExpressionPrinter(
-				0); // TODO:
+		Expression.setExpressionPrinter(new SimulinkStateflowPrinter.SimulinkStateflowExpressionPrinter(
+				0)); // TODO:
 		// move
 		// to
 		// constructor?
@@ -1041,7 +1041,7 @@ public class SimulinkStateflowPrinter extends ToolPrinter
 	{
 		this.m_printer = new SimulinkStateflowExpressionPrinter(0);
 		this.m_randoms = 0;
-		Expression.expressionPrinter = m_printer;
+		Expression.setExpressionPrinter(m_printer);
 		this.IS_ADD_EPS = false;
 		STATE_IN_PART = null;
 		TRANS_DWELL2LEAVE_STRING = null;
@@ -1072,7 +1072,7 @@ public class SimulinkStateflowPrinter extends ToolPrinter
 	{
 		this.m_printer = new SimulinkStateflowExpressionPrinter(prettyPrintThreshold);
 		this.m_randoms = 0;
-		Expression.expressionPrinter = m_printer;
+		Expression.setExpressionPrinter(m_printer);
 		this.IS_ADD_EPS = isAddEpsilon;
 
 		StringBuilder builder;
@@ -1250,7 +1250,7 @@ public class SimulinkStateflowPrinter extends ToolPrinter
 	protected void printAutomaton()
 	{
 		this.ha = (BaseComponent) config.root;
-		Expression.expressionPrinter = new SimulinkStateflowExpressionPrinter(0);
+		Expression.setExpressionPrinter(new SimulinkStateflowExpressionPrinter(0));
 
 		// remove this after proper support for multiple initial modes is added
 		// if (ha.init.size() != 1)
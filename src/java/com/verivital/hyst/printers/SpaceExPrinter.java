@@ -155,7 +155,7 @@ public class SpaceExPrinter extends ToolPrinter
 
 		String note = this.getCommentHeader();
 
-		Expression.expressionPrinter = new SpaceExExpressionPrinter();
+		Expression.setExpressionPrinter(new SpaceExExpressionPrinter());
 
 		SpaceExDocument doc = null;
 
@@ -17,9 +17,18 @@ import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 
 import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.Component;
 import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.ir.base.AutomatonMode;
+import com.verivital.hyst.ir.base.BaseComponent;
+import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.ir.network.ComponentInstance;
+import com.verivital.hyst.ir.network.NetworkComponent;
+import com.verivital.hyst.main.ConversionContext;
 import com.verivital.hyst.main.Hyst;
 import com.verivital.hyst.main.HystFrame;
+import com.verivital.hyst.passes.complex.FlatView;
+import com.verivital.hyst.passes.complex.FlattenAutomatonPass;
 import com.verivital.hyst.util.AutomatonUtil;
 import com.verivital.hyst.util.CmdLineRuntimeException;
 import com.verivital.hyst.util.Preconditions;
@@ -35,6 +44,9 @@ public abstract class ToolPrinter
 	// configuration being printer
 	protected Configuration config;
 
+	// the context of the conversion being printed (assigned in print)
+	protected ConversionContext context = ConversionContext.getDefault();
+
 	// parameters
 	protected String originalFilename = null; // assigned in setParameters
 	protected String baseName = null; // assigned in setParameters from
@@ -51,6 +63,9 @@ public abstract class ToolPrinter
 	// ToolPrinter constructor to omit checks)
 	protected Preconditions preconditions = new Preconditions(false);
 
+	// the flat view being printed, or null if config is printed directly
+	protected FlatView flatView = null;
+
 	// command line parser for tools
 	private CmdLineParser parser = new CmdLineParser(this);
 
@@ -82,8 +97,18 @@ public abstract class ToolPrinter
 	private HystFrame outputFrame; // used if printType = GUI
 	public StringBuffer outputString; // used if printType = STRING
 
-	// static
-	private static DecimalFormat df;
+	// DecimalFormat is not thread-safe, so each thread gets its own
+	private static final ThreadLocal<DecimalFormat> df = new ThreadLocal<DecimalFormat>()
+	{
+		@Override
+		protected DecimalFormat initialValue()
+		{
+			DecimalFormat rv = new DecimalFormat("0.#", new DecimalFormatSymbols(Locale.ENGLISH));
+			rv.setMaximumFractionDigits(50);
+
+			return rv;
+		}
+	};
 
 	public void setOutputFile(String filename)
 	{
@@ -117,6 +142,7 @@ public abstract class ToolPrinter
 	public void print(Configuration c, String argument, String originalFilename)
 	{
 		this.originalFilename = originalFilename;
+		this.context = ConversionContext.get();
 
 		boolean shouldCloseStream = false;
 
@@ -144,7 +170,7 @@ public abstract class ToolPrinter
 
 			if (outputType == OutputType.STDOUT)
 			{
-				outputStream = System.out;
+				outputStream = context.getOut();
 			}
 			else if (outputType == OutputType.FILE)
 			{
@@ -156,8 +182,28 @@ public abstract class ToolPrinter
 				outputString = new StringBuffer();
 
 			this.config = c;
+			this.flatView = null;
+
+			if (useFlatView(c))
+			{
+				// check the other preconditions on the network, and print the flat view instead
+				preconditions.skip(PreconditionsFlag.CONVERT_TO_FLAT_AUTOMATON);
+
+				try
+				{
+					preconditions.check(c, getToolName());
+				}
+				finally
+				{
+					preconditions.unskip(PreconditionsFlag.CONVERT_TO_FLAT_AUTOMATON);
+				}
+
+				flatView = new FlatView(c, FlattenAutomatonPass.isOnTheFly());
+				this.config = flatView.getConfiguration();
+			}
+			else
+				preconditions.check(c, getToolName());
 
-			preconditions.check(c, getToolName());
 			printAutomaton();
 		}
 		catch (PreconditionsFailedException e)
@@ -180,6 +226,73 @@ public abstract class ToolPrinter
 		}
 	}
 
+	/**
+	 * Should networked automata be printed through a lazy FlatView, rather than being flattened by
+	 * the preconditions (only for printers where supportsFlatView() is true)? This is a setting of
+	 * the current ConversionContext, which is enabled with the -flat_view flag.
+	 */
+	public static boolean isFlatViewEnabled()
+	{
+		return ConversionContext.get().useFlatView;
+	}
+
+	public static void setFlatViewEnabled(boolean enabled)
+	{
+		ConversionContext.get().useFlatView = enabled;
+	}
+
+	/**
+	 * Should the given configuration be printed through a FlatView? Look-up tables are converted by
+	 * the preconditions (with ConvertLutFlowsPass), which needs a flat automaton.
+	 */
+	private boolean useFlatView(Configuration c)
+	{
+		return isFlatViewEnabled() && c.root instanceof NetworkComponent
+				&& !preconditions.skip[PreconditionsFlag.CONVERT_TO_FLAT_AUTOMATON.ordinal()]
+				&& (preconditions.skip[PreconditionsFlag.CONVERT_BASIC_OPERATORS.ordinal()]
+						|| !hasLutFlows(c.root))
+				&& supportsFlatView(c);
+	}
+
+	private static boolean hasLutFlows(Component c)
+	{
+		boolean rv = false;
+
+		if (c instanceof BaseComponent)
+		{
+			for (AutomatonMode am : ((BaseComponent) c).modes.values())
+			{
+				if (am.flowDynamics == null)
+					continue;
+
+				for (ExpressionInterval ei : am.flowDynamics.values())
+					rv |= (AutomatonUtil.classifyExpressionOps(ei.getExpression())
+							& AutomatonUtil.OPS_LUT) != 0;
+			}
+		}
+		else
+		{
+			for (ComponentInstance ci : ((NetworkComponent) c).children.values())
+				rv |= hasLutFlows(ci.child);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Can this printer print a FlatView of a network, rather than a flat automaton? If so, when the
+	 * flat view is enabled, config.root is the view's header component in printAutomaton(), and the
+	 * modes and transitions should be taken from flatView.
+	 * 
+	 * @param c
+	 *            the network configuration, before the preconditions are checked
+	 * @return true if FlatView printing is supported
+	 */
+	protected boolean supportsFlatView(Configuration c)
+	{
+		return false;
+	}
+
 	protected void setBaseName(String originalFilename)
 	{
 		if (originalFilename == null || originalFilename.length() == 0)
@@ -268,7 +381,7 @@ public abstract class ToolPrinter
 	{
 		return "Created by " + Hyst.TOOL_NAME + "\n" + "Hybrid Automaton in " + this.getToolName()
 				+ "\n" + "Converted from file: " + originalFilename + "\n"
-				+ "Command Line arguments: " + Hyst.programArguments;
+				+ "Command Line arguments: " + Hyst.getProgramArguments();
 	}
 
 	/**
@@ -360,18 +473,12 @@ public abstract class ToolPrinter
 
 	public static void initDecimalPrinter()
 	{
-		df = new DecimalFormat("0.#", new DecimalFormatSymbols(Locale.ENGLISH));
-		df.setMaximumFractionDigits(50);
-	}
-
-	static
-	{
-		initDecimalPrinter();
+		df.remove();
 	}
 
 	public static String doubleToString(double n)
 	{
-		return df.format(n);
+		return df.get().format(n);
 	}
 
 	public void flush()
@@ -84,7 +84,7 @@ public class HyCreate2Printer extends ToolPrinter
 		// add comment to global section
 		data.setGlobalText(
 				"// Made using " + Hyst.TOOL_NAME + " from model file " + originalFilename + "\n"
-						+ "// Command line arguments were: " + Hyst.programArguments);
+						+ "// Command line arguments were: " + Hyst.getProgramArguments());
 
 		String version = "File Version 3";
 
@@ -613,7 +613,7 @@ public class HyCreate2Printer extends ToolPrinter
 	{
 		this.ha = (BaseComponent) config.root;
 
-		Expression.expressionPrinter = new HyCreateExpressionPrinter();
+		Expression.setExpressionPrinter(new HyCreateExpressionPrinter());
 
 		// convert urgent transitions
 		AutomatonUtil.convertUrgentTransitions(ha, config);
@@ -0,0 +1,246 @@
+package com.verivital.hyst.python;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.printers.PySimPrinter;
+
+/**
+ * Caches pysim automaton definitions inside python processes, so that repeated simulation calls
+ * don't need to resend and re-execute the automaton source.
+ *
+ * An automaton is registered in a python process once (pysim_utils.register_automaton), under a
+ * handle which is a content hash of its source from PySimPrinter.automatonToString. Later calls
+ * only pass the handle, using the python expression returned by load(), for example
+ * "cached_ha('ha_...')". Since the handle is derived from the printed source, a Configuration which
+ * changes gets a new handle, and stale definitions are never used. At most MAX_AUTOMATA definitions
+ * are kept in each python process; the least-recently used one is removed after that.
+ *
+ * The registered handles are tracked separately for each PythonBridge (the singleton and the
+ * PythonBridgePool workers are separate processes). This class is thread-safe, although each bridge
+ * must only be used by one thread at a time.
+ */
+public class PySimAutomatonCache
+{
+	// cache automata in python? If false, the source is sent with every call.
+	public static final boolean USE_CACHE = true;
+
+	// maximum number of automata registered in each python process
+	public static final int MAX_AUTOMATA = 8;
+
+	private static final String IMPORT = "from pythonbridge.pysim_utils import register_automaton, "
+			+ "unregister_automaton, cached_ha";
+
+	// bridge -> registered handles, in least-recently-used order
+	private static final Map<PythonBridge, LinkedHashSet<String>> registered = new WeakHashMap<PythonBridge, LinkedHashSet<String>>();
+
+	private static long hits = 0;
+	private static long misses = 0;
+
+	/**
+	 * Make sure an automaton is defined in the python process, and get the python expression which
+	 * constructs it.
+	 *
+	 * @param pb
+	 *            the python bridge
+	 * @param config
+	 *            the (flat) configuration
+	 * @return a python expression which evaluates to a new HybridAutomaton object
+	 */
+	public static String load(PythonBridge pb, Configuration config)
+	{
+		return load(pb, PySimPrinter.automatonToString(config));
+	}
+
+	/**
+	 * Make sure an automaton is defined in the python process, and get the python expression which
+	 * constructs it. Printing the automaton is not thread-safe, so use this version if the bridge is
+	 * used from a different thread.
+	 *
+	 * @param pb
+	 *            the python bridge
+	 * @param source
+	 *            the automaton's source from PySimPrinter.automatonToString
+	 * @return a python expression which evaluates to a new HybridAutomaton object
+	 */
+	public static String load(PythonBridge pb, String source)
+	{
+		String rv;
+
+		if (!USE_CACHE)
+		{
+			pb.send(source);
+			rv = "define_ha()";
+		}
+		else
+		{
+			String handle = getHandle(source);
+			String evicted = null;
+			boolean isRegistered;
+
+			synchronized (registered)
+			{
+				LinkedHashSet<String> handles = registered.get(pb);
+
+				if (handles == null)
+				{
+					handles = new LinkedHashSet<String>();
+					registered.put(pb, handles);
+				}
+
+				// move to the end (most recently used)
+				isRegistered = handles.remove(handle);
+
+				if (isRegistered)
+					++hits;
+				else
+				{
+					++misses;
+
+					if (handles.size() >= MAX_AUTOMATA)
+					{
+						evicted = handles.iterator().next();
+						handles.remove(evicted);
+					}
+				}
+			}
+
+			if (!isRegistered)
+			{
+				Hyst.logDebug("Registering pysim automaton " + handle + " in python.");
+				pb.send(IMPORT);
+
+				if (evicted != null)
+					pb.send("unregister_automaton('" + evicted + "')");
+
+				pb.send("register_automaton('" + handle + "', " + toPythonString(source) + ")");
+			}
+
+			// only record the handle once it's registered, in case python raised an error
+			synchronized (registered)
+			{
+				LinkedHashSet<String> handles = registered.get(pb);
+
+				if (handles != null) // null if clear() was called in the meantime
+					handles.add(handle);
+			}
+
+			rv = "cached_ha('" + handle + "')";
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Forget all registered automata. The next call to load() will reregister them. This is useful
+	 * if the state of the python processes was reset externally.
+	 */
+	public static void clear()
+	{
+		synchronized (registered)
+		{
+			registered.clear();
+			hits = misses = 0;
+		}
+	}
+
+	/**
+	 * Get the number of load() calls where the automaton was already registered
+	 *
+	 * @return the hit count
+	 */
+	public static long getHits()
+	{
+		synchronized (registered)
+		{
+			return hits;
+		}
+	}
+
+	/**
+	 * Get the number of load() calls where the automaton needed to be registered
+	 *
+	 * @return the miss count
+	 */
+	public static long getMisses()
+	{
+		synchronized (registered)
+		{
+			return misses;
+		}
+	}
+
+	/**
+	 * Get the handle for an automaton's source, which is based on a hash of the source
+	 *
+	 * @param source
+	 *            the automaton source
+	 * @return the handle, like 'ha_0123abcd...'
+	 */
+	public static String getHandle(String source)
+	{
+		StringBuilder rv = new StringBuilder("ha_");
+
+		try
+		{
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			byte[] digest = md.digest(source.getBytes("UTF-8"));
+
+			// the first 128 bits are plenty
+			for (int i = 0; i < 16; ++i)
+				rv.append(String.format("%02x", digest[i]));
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new AutomatonExportException("Error hashing automaton source", e);
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new AutomatonExportException("Error hashing automaton source", e);
+		}
+
+		return rv.toString();
+	}
+
+	/**
+	 * Convert a string to a single-quoted python string literal
+	 *
+	 * @param s
+	 *            the string
+	 * @return the python literal
+	 */
+	public static String toPythonString(String s)
+	{
+		StringBuilder rv = new StringBuilder(s.length() + 16);
+		rv.append('\'');
+
+		for (int i = 0; i < s.length(); ++i)
+		{
+			char c = s.charAt(i);
+
+			if (c == '\\')
+				rv.append("\\\\");
+			else if (c == '\'')
+				rv.append("\\'");
+			else if (c == '\n')
+				rv.append("\\n");
+			else if (c == '\r')
+				rv.append("\\r");
+			else if (c == '\t')
+				rv.append("\\t");
+			else
+				rv.append(c);
+		}
+
+		rv.append('\'');
+
+		return rv.toString();
+	}
+}
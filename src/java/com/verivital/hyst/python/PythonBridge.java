@@ -1,6 +1,11 @@
 package com.verivital.hyst.python;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -9,19 +14,29 @@ import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.net.URLDecoder;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.main.ConversionContext;
 import com.verivital.hyst.main.Hyst;
 import com.verivital.hyst.util.FileOperations;
 
 /**
- * This class is java <-> python interface using stdin / stdout and python interactive mode
+ * This class is java <-> python interface using stdin / stdout. There are two modes:
+ * 
+ * In framed mode (the default, see USE_FRAMED_PROTOCOL), python runs the request loop in
+ * pythonbridge/request_loop.py. Commands and results are sent as length-prefixed frames, a dedicated
+ * thread blocks reading stdout, and stderr is drained asynchronously, so no cpu is used while waiting
+ * for python. If the request loop can't be started, interactive mode is used instead.
+ * 
+ * In interactive mode, python is run with '-i' and the output is scanned for the '>>> ' prompt.
  * 
  * It is a singleton, use getInstance() to get an instance of the bridge. The bridge is reused for
  * any passes or printers which use it, so don't put it into an inconsistent state.
  * 
  * Overhead: In performance tests, I measured around 15000 function calls per second using this
- * bridge In native python, I measured 5.5 million function calls per second
+ * bridge in interactive mode. In native python, I measured 5.5 million function calls per second
  * 
  * You can reduce overhead by passing all of your data to python at once (or as much as is
  * possible), and then having python do an extended computation (even in parallel) and only then
@@ -37,15 +52,34 @@ public class PythonBridge
 
 	// if hasPython() gives false, this gets set
 	public static String getInstanceErrorString = "No Error";
-	private static final int DEFAULT_TIMEOUT = 10000; // 10 seconds
+	static final int DEFAULT_TIMEOUT = 10000; // 10 seconds
 	public static final int NO_TIMEOUT = -1;
 
+	// use the framed request loop protocol, rather than python's interactive mode
+	public static final boolean USE_FRAMED_PROTOCOL = true;
+	private static final String REQUEST_LOOP_MODULE = "pythonbridge.request_loop";
+	private static final int MAX_STDERR_LOG = 8192; // characters of stray stderr kept for errors
+
 	private int timeoutMs;
+	private boolean crashed = false; // did the process end unexpectedly?
 	private Process process = null;
 	private BufferedReader stdout = null;
 	private BufferedReader stderr = null;
 	private Writer stdin = null;
 
+	// framed mode
+	private boolean framed = false;
+	private DataOutputStream frameOut = null;
+	private LinkedBlockingQueue<Object> frames = null; // frame Strings, or END_OF_STREAM
+	private StringBuffer stderrLog = null; // stderr output not attributed to a command
+	private Thread frameReader = null;
+	private Thread stderrReader = null;
+
+	// closes the process when the JVM exits, removed by close()
+	private Thread shutdownHook = null;
+
+	private static final Object END_OF_STREAM = new Object();
+
 	private enum Status
 	{
 		FALSE, TRUE, UNKNOWN
@@ -96,7 +130,10 @@ public class PythonBridge
 
 	public static PythonBridge getInstance()
 	{
-		int timeout = instance == null ? DEFAULT_TIMEOUT : instance.timeoutMs;
+		ConversionContext context = ConversionContext.get();
+		PythonBridge current = context.isDefault() ? instance : context.getPythonBridge();
+
+		int timeout = current == null ? DEFAULT_TIMEOUT : current.timeoutMs;
 		return getInstance(timeout);
 	}
 
@@ -114,6 +151,35 @@ public class PythonBridge
 					"PythonBridge.getInstance() was called, but blockPython was set to true.");
 		}
 
+		ConversionContext context = ConversionContext.get();
+
+		if (!context.isDefault())
+		{
+			// conversions running in their own context get their own process, which is leased from
+			// the context's pool if it has one
+			PythonBridge rv = context.getPythonBridge();
+
+			if (rv == null || !rv.isOpen())
+			{
+				PythonBridgePool pool = context.pythonBridgePool;
+
+				if (pool != null)
+				{
+					rv = pool.lease();
+					rv.setTimeout(timeoutMs);
+				}
+				else
+					rv = new PythonBridge(timeoutMs, false);
+
+				context.setPythonBridge(rv, pool);
+				pythonStatus = Status.TRUE;
+			}
+			else
+				rv.setTimeout(timeoutMs);
+
+			return rv;
+		}
+
 		if (instance == null)
 			instance = new PythonBridge(timeoutMs);
 		else
@@ -128,25 +194,76 @@ public class PythonBridge
 	 * @param timeoutMs
 	 */
 	public PythonBridge(int timeoutMs)
+	{
+		this(timeoutMs, true);
+	}
+
+	/**
+	 * Create a bridge, which is either the singleton or a worker in a PythonBridgePool
+	 * 
+	 * @param timeoutMs
+	 *            the timeout in milliseconds, use NO_TIMEOUT for no timeout
+	 * @param singleton
+	 *            is this the singleton instance?
+	 */
+	PythonBridge(int timeoutMs, boolean singleton)
 	{
 		this.timeoutMs = timeoutMs;
 
-		if (instance != null)
+		if (singleton && instance != null)
 			throw new RuntimeException("Multiple instances of PythonBridge were created.");
 
 		open();
 
 		final PythonBridge bridge = this;
 
-		Runtime.getRuntime().addShutdownHook(new Thread()
+		shutdownHook = new Thread()
 		{
 			public void run()
 			{
 				bridge.close();
 			}
-		});
+		};
+
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
 
-		pythonStatus = Status.TRUE;
+		if (singleton)
+			pythonStatus = Status.TRUE;
+	}
+
+	/**
+	 * Is the python process running? The process is closed after errors (including timeouts), in
+	 * which case a new PythonBridge is needed.
+	 * 
+	 * @return true if the process is open and has not exited
+	 */
+	public boolean isOpen()
+	{
+		boolean rv = false;
+
+		if (process != null)
+		{
+			try
+			{
+				process.exitValue();
+			}
+			catch (IllegalThreadStateException e)
+			{
+				rv = true; // not exited yet
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Did the python process end unexpectedly (rather than being closed after an error)?
+	 * 
+	 * @return true if the end of the output stream was reached
+	 */
+	public boolean hasCrashed()
+	{
+		return crashed;
 	}
 
 	/**
@@ -162,11 +279,34 @@ public class PythonBridge
 
 	private void open()
 	{
-		log("Opening Python process in interactive mode.");
-		openProcess();
+		String preamble = null;
 
-		log("Reading Python preamble");
-		String preamble = readPreamble(timeoutMs);
+		if (USE_FRAMED_PROTOCOL)
+		{
+			try
+			{
+				log("Opening Python process with framed request loop.");
+				openProcess(true);
+
+				log("Reading Python preamble");
+				preamble = readFramedPreamble(timeoutMs);
+			}
+			catch (AutomatonExportException e)
+			{
+				log("Python request loop could not be started (" + e.getLocalizedMessage()
+						+ "), using interactive mode instead.");
+				preamble = null;
+			}
+		}
+
+		if (preamble == null)
+		{
+			log("Opening Python process in interactive mode.");
+			openProcess(false);
+
+			log("Reading Python preamble");
+			preamble = readPreamble(timeoutMs);
+		}
 
 		if (!preamble.startsWith("Python 2.7"))
 			warn("Python 2.7 was not detected in python interpreter preamble. "
@@ -174,10 +314,12 @@ public class PythonBridge
 
 		log("Python process opened successfully. Preamble: \n" + preamble);
 
+		send("import sys");
+
 		// remove the continuation prompt on multi-line commands in interactive
 		// mode "... "
-		send("import sys");
-		send("sys.ps2 = ''");
+		if (!framed)
+			send("sys.ps2 = ''");
 
 		for (String pack : REQUIRED_PACKAGES)
 		{
@@ -239,7 +381,7 @@ public class PythonBridge
 		System.err.println("Warning: " + description);
 	}
 
-	private void close()
+	public void close()
 	{
 		if (process != null)
 		{
@@ -266,10 +408,42 @@ public class PythonBridge
 			stdout = null;
 			stdin = null;
 			stderr = null;
+			frameOut = null;
+			framed = false;
+
+			// the reader threads exit once the streams are closed
+			if (frameReader != null)
+				frameReader.interrupt();
+
+			if (stderrReader != null)
+				stderrReader.interrupt();
+
+			frameReader = null;
+			stderrReader = null;
+		}
+
+		// the hook can't be removed while it's running (or once the JVM is exiting)
+		if (shutdownHook != null && Thread.currentThread() != shutdownHook)
+		{
+			try
+			{
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			}
+			catch (IllegalStateException e)
+			{
+			}
 		}
+
+		shutdownHook = null;
 	}
 
-	private void openProcess()
+	/**
+	 * Start the python process
+	 * 
+	 * @param useRequestLoop
+	 *            if true, run the framed request loop, otherwise run python in interactive mode
+	 */
+	private void openProcess(boolean useRequestLoop)
 	{
 		if (process != null)
 			error("openProcess called but process is already open.");
@@ -296,7 +470,13 @@ public class PythonBridge
 			error("Error starting python process. Is 'python2.7' or 'python' on your PATH or "
 					+ ENV_VAR + "?");
 
-		ProcessBuilder pb = new ProcessBuilder(loc, "-i");
+		ProcessBuilder pb;
+
+		if (useRequestLoop)
+			pb = new ProcessBuilder(loc, "-u", "-m", REQUEST_LOOP_MODULE);
+		else
+			pb = new ProcessBuilder(loc, "-i");
+
 		String workingDir = getJarBaseDirectory();
 		pb.directory(new File(workingDir));
 
@@ -309,9 +489,179 @@ public class PythonBridge
 			error("Exception while starting python process: " + e.toString());
 		}
 
-		stdout = new BufferedReader(new InputStreamReader(process.getInputStream()));
-		stderr = new BufferedReader(new InputStreamReader(process.getErrorStream()));
-		stdin = new OutputStreamWriter(process.getOutputStream());
+		framed = useRequestLoop;
+
+		if (framed)
+			startFramedReaders();
+		else
+		{
+			stdout = new BufferedReader(new InputStreamReader(process.getInputStream()));
+			stderr = new BufferedReader(new InputStreamReader(process.getErrorStream()));
+			stdin = new OutputStreamWriter(process.getOutputStream());
+		}
+	}
+
+	/**
+	 * Start the threads which read frames from stdout, and drain stderr, for the framed protocol
+	 */
+	private void startFramedReaders()
+	{
+		final DataInputStream in = new DataInputStream(
+				new BufferedInputStream(process.getInputStream()));
+		final BufferedReader err = new BufferedReader(
+				new InputStreamReader(process.getErrorStream()));
+		final LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+		final StringBuffer log = new StringBuffer();
+
+		frameOut = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+		frames = queue;
+		stderrLog = log;
+
+		frameReader = new Thread("PythonBridge stdout reader")
+		{
+			public void run()
+			{
+				try
+				{
+					while (true)
+					{
+						int len = in.readInt();
+						byte[] data = new byte[len];
+						in.readFully(data);
+
+						queue.put(new String(data, "UTF-8"));
+					}
+				}
+				catch (EOFException e)
+				{
+				}
+				catch (IOException e)
+				{
+				}
+				catch (InterruptedException e)
+				{
+				}
+
+				queue.offer(END_OF_STREAM);
+			}
+		};
+
+		stderrReader = new Thread("PythonBridge stderr reader")
+		{
+			public void run()
+			{
+				try
+				{
+					String line;
+
+					while ((line = err.readLine()) != null)
+					{
+						logDebug("Python stderr: " + line);
+
+						synchronized (log)
+						{
+							log.append(line).append('\n');
+
+							if (log.length() > MAX_STDERR_LOG)
+								log.delete(0, log.length() - MAX_STDERR_LOG);
+						}
+					}
+				}
+				catch (IOException e)
+				{
+				}
+			}
+		};
+
+		frameReader.setDaemon(true);
+		stderrReader.setDaemon(true);
+		frameReader.start();
+		stderrReader.start();
+	}
+
+	/**
+	 * Wait for the next frame from the python process
+	 * 
+	 * @param deadline
+	 *            the time (from System.currentTimeMillis()) to give up, or -1 for no timeout
+	 * @param description
+	 *            what is being read, for error messages
+	 * @return the frame contents
+	 */
+	private String readFrame(long deadline, String description)
+	{
+		Object frame = null;
+
+		try
+		{
+			if (deadline < 0)
+				frame = frames.take();
+			else
+			{
+				long remaining = Math.max(0, deadline - System.currentTimeMillis());
+				frame = frames.poll(remaining, TimeUnit.MILLISECONDS);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			error("Interrupted while " + description + ".", e);
+		}
+
+		if (frame == null)
+			error("Timeout (" + timeoutMs + " ms) reached while " + description + "."
+					+ getStderrLog());
+		else if (frame == END_OF_STREAM)
+		{
+			crashed = true;
+			error("End of output stream was reached while " + description + "."
+					+ getStderrLog());
+		}
+
+		return (String) frame;
+	}
+
+	/**
+	 * Get (and clear) the stray stderr output of the python process, for error messages
+	 * 
+	 * @return the text to append to an error message (may be empty)
+	 */
+	private String getStderrLog()
+	{
+		String rv = "";
+
+		if (stderrLog != null)
+		{
+			// give the stderr thread a moment, in case the process just died
+			try
+			{
+				Thread.sleep(50);
+			}
+			catch (InterruptedException e)
+			{
+			}
+
+			synchronized (stderrLog)
+			{
+				if (stderrLog.length() > 0)
+					rv = "\nStderr was: '" + stderrLog.toString() + "'";
+
+				stderrLog.setLength(0);
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Read the python version, which is the first frame sent by the request loop
+	 * 
+	 * @return the preamble (python version string)
+	 */
+	private String readFramedPreamble(int timeoutMs)
+	{
+		long deadline = timeoutMs >= 0 ? System.currentTimeMillis() + timeoutMs : -1;
+
+		return readFrame(deadline, "reading python preamble");
 	}
 
 	public static String getJarBaseDirectory()
@@ -373,7 +723,10 @@ public class PythonBridge
 				int readInt = stderr.read();
 
 				if (readInt == -1) // end of stream
+				{
+					crashed = true;
 					error("End of output stream was reached while looking for python prompt.");
+				}
 
 				char c = (char) readInt;
 
@@ -557,6 +910,54 @@ public class PythonBridge
 		return sb.toString();
 	}
 
+	/**
+	 * Send a command as a frame to the python request loop and wait for the stdout and stderr
+	 * frames of the response
+	 * 
+	 * @param s
+	 *            the command to send
+	 * @return the output from stdout. May be the empty string, but never null.
+	 */
+	private String sendAndWaitFramed(String s)
+	{
+		String result = null;
+
+		if (!frames.isEmpty())
+			error("python sent stale output before the send command: '" + frames.peek() + "'");
+
+		try
+		{
+			logDebug("Sending to python: " + s);
+			byte[] data = s.getBytes("UTF-8");
+			frameOut.writeInt(data.length);
+			frameOut.write(data);
+			frameOut.flush();
+		}
+		catch (IOException e)
+		{
+			error("Error while interacting with python during send()" + getStderrLog(), e);
+		}
+
+		logDebug("Reading from python with timeout " + timeoutMs + " ms");
+		long deadline = timeoutMs >= 0 ? System.currentTimeMillis() + timeoutMs : -1;
+		StringBuilder out = new StringBuilder(readFrame(deadline, "waiting for a python response"));
+		String err = readFrame(deadline, "waiting for a python response");
+
+		// trim off \n if it's at the end (as in interactive mode)
+		trimSuffix(out, '\n');
+		trimSuffix(out, '\r');
+
+		// if anything was printed to stderr, it's an error
+		if (err.length() > 0)
+			error("Python produced output on stderr:\n'" + err + "'"
+					+ (out.length() > 0 ? "\n\nstdout was:\n" + out.toString() : ""));
+
+		result = out.toString();
+		logDebug("Read result from python: " + result);
+
+		return result;
+	}
+
 	/**
 	 * Send a string over stdin to the python interpreter and get the result printed from stdout
 	 * 
@@ -612,7 +1013,8 @@ public class PythonBridge
 	 */
 	public String send(String s)
 	{
-		if (s.contains("\n"))
+		// the request loop parses the whole command at once, so multiline commands need no changes
+		if (!framed && s.contains("\n"))
 		{
 			// multiline command: get rid of newline within functions
 			// if there are one or more new lines, followed by a line that
@@ -662,7 +1064,10 @@ public class PythonBridge
 					+ "cause issues with PythonBridge's prompt detection.\nIf you want to end "
 					+ "the command with a \\n, for example to declare a function, use sendWithTrailingNewline().");
 
-		result = sendAndWait(s);
+		if (framed)
+			result = sendAndWaitFramed(s);
+		else
+			result = sendAndWait(s);
 
 		return result;
 	}
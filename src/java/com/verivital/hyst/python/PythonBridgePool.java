@@ -0,0 +1,464 @@
+package com.verivital.hyst.python;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.main.ConversionContext;
+import com.verivital.hyst.main.Hyst;
+
+/**
+ * A pool of python processes, for making independent python calls in parallel. The PythonBridge
+ * singleton has a single interpreter, so all calls through it are serialized.
+ *
+ * Each worker is a separate PythonBridge (not the singleton), which is opened the same way, so the
+ * REQUIRED_PACKAGES and hybridpy are preloaded. Workers are started lazily, up to the pool size.
+ *
+ * Callers can either lease() a worker (and release() it when done), or submit() a PythonTask and
+ * get a Future for the result. sendAll() is a shortcut for sending a list of independent commands.
+ * Since workers don't share state, any definitions a command needs must be sent to the same worker.
+ *
+ * If a worker is closed (for example, after a timeout, a python error, or if the process died), it
+ * is discarded when it is released and a new worker is started when one is next needed. Tasks which
+ * fail because the python process died are retried once on a new worker.
+ *
+ * Fanning out python calls is optional and is a setting of the ConversionContext (see isEnabled()
+ * and setEnabled()). It's used by
+ * PythonUtil.pythonSimplifyRecursively, PythonUtil.intervalOptimizeBounded (and so
+ * AffineOptimize.optimizeDynamics), and HybridizeMixedTriggeredPass.simAllPoints.
+ */
+public class PythonBridgePool
+{
+	// default number of python processes (the number of cores)
+	public static final int DEFAULT_SIZE = Runtime.getRuntime().availableProcessors();
+
+	private static PythonBridgePool instance = null;
+	private static int instanceSize = DEFAULT_SIZE;
+
+	private final int size;
+	private int timeoutMs = PythonBridge.DEFAULT_TIMEOUT;
+	private final ArrayDeque<PythonBridge> idle = new ArrayDeque<PythonBridge>();
+	private final ExecutorService executor;
+	private int numWorkers = 0; // started and not discarded
+	private int numRestarts = 0; // discarded workers
+	private boolean shutdown = false;
+
+	/**
+	 * A unit of work which is run on a leased python worker
+	 */
+	public interface PythonTask<T>
+	{
+		public T run(PythonBridge pb);
+	}
+
+	/**
+	 * Should python calls be fanned out across the pool? This is true if the pool is enabled in the
+	 * current ConversionContext and python is available.
+	 *
+	 * @return true if the pool should be used
+	 */
+	public static boolean isEnabled()
+	{
+		return ConversionContext.get().usePythonPool && PythonBridge.hasPython();
+	}
+
+	/**
+	 * Set whether independent python calls are run in parallel on the pool. This is a setting of
+	 * the current ConversionContext.
+	 */
+	public static void setEnabled(boolean enabled)
+	{
+		ConversionContext.get().usePythonPool = enabled;
+	}
+
+	/**
+	 * Get the shared pool
+	 *
+	 * @return the pool instance
+	 */
+	public static synchronized PythonBridgePool getInstance()
+	{
+		if (instance == null)
+			instance = new PythonBridgePool(instanceSize);
+
+		return instance;
+	}
+
+	/**
+	 * Set the number of workers used by the shared pool. If the shared pool exists with a different
+	 * size, it is shut down and a new one is created on the next call to getInstance().
+	 *
+	 * @param size
+	 *            the number of python processes, or 0 for DEFAULT_SIZE
+	 */
+	public static synchronized void setPoolSize(int size)
+	{
+		if (size < 0)
+			throw new AutomatonExportException("python pool size must be nonnegative: " + size);
+
+		if (size == 0)
+			size = DEFAULT_SIZE;
+
+		if (instance != null && instance.size != size)
+		{
+			instance.shutdown();
+			instance = null;
+		}
+
+		instanceSize = size;
+	}
+
+	/**
+	 * Create a pool
+	 *
+	 * @param size
+	 *            the maximum number of python processes
+	 */
+	public PythonBridgePool(int size)
+	{
+		if (size < 1)
+			throw new AutomatonExportException("python pool size must be positive: " + size);
+
+		this.size = size;
+
+		executor = Executors.newFixedThreadPool(size, new ThreadFactory()
+		{
+			private int count = 0;
+
+			@Override
+			public synchronized Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "PythonBridgePool worker " + (++count));
+				t.setDaemon(true);
+
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Get the maximum number of python processes in this pool
+	 *
+	 * @return the pool size
+	 */
+	public int getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * Get the number of workers which were discarded because they were closed (and so were
+	 * restarted)
+	 *
+	 * @return the number of restarts
+	 */
+	public synchronized int getRestartCount()
+	{
+		return numRestarts;
+	}
+
+	/**
+	 * Set the timeout, in milliseconds, used by the workers. Use PythonBridge.NO_TIMEOUT for no
+	 * timeout.
+	 *
+	 * @param timeoutMs
+	 *            the timeout
+	 */
+	public synchronized void setTimeout(int timeoutMs)
+	{
+		this.timeoutMs = timeoutMs;
+	}
+
+	/**
+	 * Get a worker for exclusive use, starting one if needed. This blocks if all the workers are in
+	 * use. The worker must be returned with release().
+	 *
+	 * @return the leased python worker
+	 */
+	public PythonBridge lease()
+	{
+		PythonBridge rv = null;
+		int timeout;
+
+		synchronized (this)
+		{
+			while (rv == null)
+			{
+				if (shutdown)
+					throw new AutomatonExportException("lease() called on shut down python pool");
+
+				if (!idle.isEmpty())
+					rv = idle.pop();
+				else if (numWorkers < size)
+				{
+					++numWorkers;
+					break;
+				}
+				else
+				{
+					try
+					{
+						wait();
+					}
+					catch (InterruptedException e)
+					{
+						throw new AutomatonExportException("Interrupted while leasing python worker",
+								e);
+					}
+				}
+			}
+
+			timeout = timeoutMs;
+		}
+
+		if (rv == null)
+		{
+			// start a new worker (outside of the lock, since this is slow)
+			try
+			{
+				Hyst.logDebug("Starting python pool worker.");
+				rv = new PythonBridge(timeout, false);
+			}
+			catch (RuntimeException e)
+			{
+				synchronized (this)
+				{
+					--numWorkers;
+					notifyAll();
+				}
+
+				throw e;
+			}
+		}
+		else
+			rv.setTimeout(timeout);
+
+		return rv;
+	}
+
+	/**
+	 * Return a leased worker to the pool. Closed workers are discarded.
+	 *
+	 * @param pb
+	 *            the worker from lease()
+	 */
+	public void release(PythonBridge pb)
+	{
+		boolean open = pb.isOpen();
+
+		if (!open)
+			pb.close();
+
+		synchronized (this)
+		{
+			if (open && !shutdown)
+				idle.push(pb);
+			else
+			{
+				--numWorkers;
+
+				if (!open)
+				{
+					++numRestarts;
+					Hyst.logDebug("Discarded closed python pool worker.");
+				}
+				else
+					pb.close();
+			}
+
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Run a task on a python worker in the background
+	 *
+	 * @param task
+	 *            the task to run
+	 * @return a Future for the task's result
+	 */
+	public <T> Future<T> submit(final PythonTask<T> task)
+	{
+		// run the task in the submitting conversion's context
+		final ConversionContext context = ConversionContext.get();
+
+		return executor.submit(new Callable<T>()
+		{
+			@Override
+			public T call()
+			{
+				ConversionContext previous = context.enter();
+
+				try
+				{
+					return runLeased(task);
+				}
+				finally
+				{
+					ConversionContext.exit(previous);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Run a task on a leased worker, retrying once on a new worker if the process died
+	 */
+	private <T> T runLeased(PythonTask<T> task)
+	{
+		T rv;
+		PythonBridge pb = lease();
+
+		try
+		{
+			rv = task.run(pb);
+		}
+		catch (AutomatonExportException e)
+		{
+			if (!pb.hasCrashed())
+				throw e;
+
+			// the process died, retry once with a new worker
+			Hyst.log("Python pool worker died; retrying task on a new worker.");
+			release(pb);
+			pb = null;
+			pb = lease();
+
+			rv = task.run(pb);
+		}
+		finally
+		{
+			if (pb != null)
+				release(pb);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Send several independent commands to the pool, and wait for all the results
+	 *
+	 * @param setup
+	 *            a command to send to the worker before each command (for example, an import), or
+	 *            null
+	 * @param commands
+	 *            the commands to send
+	 * @return the results of the commands, in the same order
+	 */
+	public List<String> sendAll(final String setup, List<String> commands)
+	{
+		ArrayList<Future<String>> futures = new ArrayList<Future<String>>(commands.size());
+
+		for (final String command : commands)
+		{
+			futures.add(submit(new PythonTask<String>()
+			{
+				@Override
+				public String run(PythonBridge pb)
+				{
+					if (setup != null)
+						pb.send(setup);
+
+					return pb.send(command);
+				}
+			}));
+		}
+
+		ArrayList<String> rv = new ArrayList<String>(commands.size());
+
+		for (Future<String> f : futures)
+			rv.add(getResult(f));
+
+		return rv;
+	}
+
+	/**
+	 * Wait for the result of a Future from submit(). AutomatonExportExceptions raised by the task are
+	 * rethrown directly.
+	 *
+	 * @param f
+	 *            the future
+	 * @return the task's result
+	 */
+	public static <T> T getResult(Future<T> f)
+	{
+		T rv = null;
+
+		try
+		{
+			rv = f.get();
+		}
+		catch (InterruptedException e)
+		{
+			throw new AutomatonExportException("Interrupted while waiting for python worker", e);
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+
+			if (cause instanceof AutomatonExportException)
+				throw (AutomatonExportException) cause;
+			else if (cause instanceof Error)
+				throw (Error) cause;
+
+			throw new AutomatonExportException("Python worker task failed: " + cause,
+					(Exception) cause);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Split a list into at most getSize() contiguous chunks of nearly equal size
+	 *
+	 * @param list
+	 *            the list to split
+	 * @return the chunks, in order
+	 */
+	public <T> List<List<T>> split(List<T> list)
+	{
+		int numChunks = Math.min(size, list.size());
+		ArrayList<List<T>> rv = new ArrayList<List<T>>(numChunks);
+		int start = 0;
+
+		for (int c = 0; c < numChunks; ++c)
+		{
+			int end = start + (list.size() - start) / (numChunks - c);
+
+			rv.add(list.subList(start, end));
+			start = end;
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Stop the background threads and close all the idle workers. Leased workers are closed when
+	 * they are released.
+	 */
+	public void shutdown()
+	{
+		ArrayList<PythonBridge> toClose;
+
+		synchronized (this)
+		{
+			shutdown = true;
+			toClose = new ArrayList<PythonBridge>(idle);
+			numWorkers -= idle.size();
+			idle.clear();
+			notifyAll();
+		}
+
+		executor.shutdown();
+
+		for (PythonBridge pb : toClose)
+			pb.close();
+	}
+}
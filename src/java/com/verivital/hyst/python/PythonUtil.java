@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -351,6 +352,20 @@ public class PythonUtil
 	public static Expression pythonSimplifyNumber(Expression e)
 	{
 		PythonBridge pb = PythonBridge.getInstance();
+		String result = pb.send(makeSimplifyNumberCommand(e));
+
+		return parseSimplifyNumberResult(result);
+	}
+
+	/**
+	 * Make the python command used to simplify a numeric expression with sympy
+	 * 
+	 * @param e
+	 *            the expression
+	 * @return the python command
+	 */
+	private static String makeSimplifyNumberCommand(Expression e)
+	{
 		StringBuilder s = new StringBuilder();
 
 		String symbols = makeExpressionVariableSymbols(e);
@@ -363,14 +378,79 @@ public class PythonUtil
 		s.append(pySympyPrinter.print(e));
 		s.append("))");
 
-		String result = pb.send(s.toString());
+		return s.toString();
+	}
 
+	private static Expression parseSimplifyNumberResult(String result)
+	{
 		// substitute back
 		result = result.replace("**", "^");
 		return FormulaParser.parseValue(result);
 	}
 
+	/**
+	 * Simplify an expression with sympy, splitting boolean operations and simplifying each numeric
+	 * part separately. If the PythonBridgePool is enabled, the parts are simplified in parallel.
+	 * 
+	 * @param e
+	 *            the input expression
+	 * @return the simplified expression
+	 */
 	public static Expression pythonSimplifyRecursively(Expression e)
+	{
+		ArrayList<Expression> parts = new ArrayList<Expression>();
+		getNumericParts(e, parts);
+
+		ArrayList<String> commands = new ArrayList<String>(parts.size());
+
+		for (Expression part : parts)
+			commands.add(makeSimplifyNumberCommand(part));
+
+		List<String> results;
+
+		if (parts.size() > 1 && PythonBridgePool.isEnabled())
+			results = PythonBridgePool.getInstance().sendAll(null, commands);
+		else
+		{
+			PythonBridge pb = PythonBridge.getInstance();
+			results = new ArrayList<String>(commands.size());
+
+			for (String command : commands)
+				results.add(pb.send(command));
+		}
+
+		ArrayList<Expression> simplified = new ArrayList<Expression>(results.size());
+
+		for (String result : results)
+			simplified.add(parseSimplifyNumberResult(result));
+
+		return replaceNumericParts(e, simplified.iterator());
+	}
+
+	/**
+	 * Get the numeric parts of an expression, which are operations that are not boolean operations
+	 * or locations, in depth-first order
+	 */
+	private static void getNumericParts(Expression e, List<Expression> rv)
+	{
+		if (e instanceof Operation)
+		{
+			Operation o = e.asOperation();
+
+			if (Operator.isBooleanOperator(o.op))
+			{
+				for (Expression child : o.children)
+					getNumericParts(child, rv);
+			}
+			else if (o.op != Operator.LOC)
+				rv.add(e);
+		}
+	}
+
+	/**
+	 * Rebuild an expression, replacing its numeric parts (in the order of getNumericParts)
+	 */
+	private static Expression replaceNumericParts(Expression e, Iterator<Expression> replacements)
 	{
 		Expression rv = e;
 
@@ -385,15 +465,10 @@ public class PythonUtil
 				rv = rvOp;
 
 				for (Expression child : o.children)
-				{
-					Expression newE = pythonSimplifyRecursively(child);
-					rvOp.children.add(newE);
-				}
+					rvOp.children.add(replaceNumericParts(child, replacements));
 			}
-			else if (o.op == Operator.LOC)
-				; // skip
-			else
-				rv = pythonSimplifyNumber(e);
+			else if (o.op != Operator.LOC)
+				rv = replacements.next();
 		}
 
 		return rv;
@@ -448,8 +523,49 @@ public class PythonUtil
 			throw new AutomatonExportException("number of expression(" + expList.size()
 					+ ") and number of bounds (" + boundsList.size() + ") must match.");
 
-		PythonBridge pb = PythonBridge.getInstance();
+		List<Interval> rv;
+		final String IMPORT = "from pythonbridge.interval_optimize import *";
+
+		if (expList.size() > 1 && PythonBridgePool.isEnabled())
+		{
+			// split the expressions across the pool; each python process is single-threaded
+			PythonBridgePool pool = PythonBridgePool.getInstance();
+			List<List<Expression>> expChunks = pool.split(expList);
+			List<List<HashMap<String, Interval>>> boundsChunks = pool.split(boundsList);
+			ArrayList<String> commands = new ArrayList<String>(expChunks.size());
+
+			for (int i = 0; i < expChunks.size(); ++i)
+				commands.add(makeIntervalOptimizeCommand(expChunks.get(i), boundsChunks.get(i),
+						maxError, false));
+
+			rv = new ArrayList<Interval>(expList.size());
 
+			for (String result : pool.sendAll(IMPORT, commands))
+				rv.addAll(parseIntervalListResult(result));
+		}
+		else
+		{
+			PythonBridge pb = PythonBridge.getInstance();
+			String command = makeIntervalOptimizeCommand(expList, boundsList, maxError, true);
+
+			pb.send(IMPORT);
+			String result = pb.send(command);
+
+			rv = parseIntervalListResult(result);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Make the python command for an interval optimization
+	 * 
+	 * @param multithreaded
+	 *            should python use a multiprocessing pool
+	 */
+	private static String makeIntervalOptimizeCommand(List<Expression> expList,
+			List<HashMap<String, Interval>> boundsList, double maxError, boolean multithreaded)
+	{
 		StringBuilder s = new StringBuilder();
 
 		HashSet<String> allVariables = new HashSet<String>();
@@ -483,12 +599,14 @@ public class PythonUtil
 		if (maxError > 0)
 			errorStr = "" + maxError;
 
-		s.append(errorStr + ")");
+		s.append(errorStr);
 
-		pb.send("from pythonbridge.interval_optimize import *");
-		String result = pb.send(s.toString());
+		if (!multithreaded)
+			s.append(", multithreaded=False");
 
-		return parseIntervalListResult(result);
+		s.append(")");
+
+		return s.toString();
 	}
 
 	/**
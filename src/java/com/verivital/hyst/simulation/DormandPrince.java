@@ -0,0 +1,341 @@
+package com.verivital.hyst.simulation;
+
+/**
+ * An adaptive Runge-Kutta ODE integrator using the Dormand-Prince 5(4) method (the method used by
+ * scipy's 'dopri5' and matlab's ode45). The fifth-order solution is propagated, and the embedded
+ * fourth-order solution is used to estimate the local error and control the step size. The last
+ * stage of each step is the first stage of the next step (first same as last), so each accepted
+ * step costs six derivative evaluations.
+ *
+ * The interface is similar to scipy's ode object: set the initial value, then either take single
+ * adaptive steps with step(), or integrate() up to an exact time. An integrator object is not
+ * thread-safe, but separate objects can be used on separate threads.
+ */
+public class DormandPrince
+{
+	public static final double DEFAULT_RTOL = 1e-8;
+	public static final double DEFAULT_ATOL = 1e-10;
+
+	// Butcher tableau
+	private static final double C2 = 1.0 / 5, C3 = 3.0 / 10, C4 = 4.0 / 5, C5 = 8.0 / 9;
+
+	private static final double A21 = 1.0 / 5;
+	private static final double A31 = 3.0 / 40, A32 = 9.0 / 40;
+	private static final double A41 = 44.0 / 45, A42 = -56.0 / 15, A43 = 32.0 / 9;
+	private static final double A51 = 19372.0 / 6561, A52 = -25360.0 / 2187,
+			A53 = 64448.0 / 6561, A54 = -212.0 / 729;
+	private static final double A61 = 9017.0 / 3168, A62 = -355.0 / 33, A63 = 46732.0 / 5247,
+			A64 = 49.0 / 176, A65 = -5103.0 / 18656;
+	private static final double A71 = 35.0 / 384, A73 = 500.0 / 1113, A74 = 125.0 / 192,
+			A75 = -2187.0 / 6784, A76 = 11.0 / 84;
+
+	// error coefficients (difference between the fifth and fourth order weights)
+	private static final double E1 = 71.0 / 57600, E3 = -71.0 / 16695, E4 = 71.0 / 1920,
+			E5 = -17253.0 / 339200, E6 = 22.0 / 525, E7 = -1.0 / 40;
+
+	// step size controller
+	private static final double SAFETY = 0.9;
+	private static final double MIN_FACTOR = 0.2;
+	private static final double MAX_FACTOR = 10.0;
+
+	/**
+	 * The right-hand side of the ODE, x' = f(t, x)
+	 */
+	public interface Derivative
+	{
+		/**
+		 * Evaluate the derivative
+		 *
+		 * @param t
+		 *            the time
+		 * @param x
+		 *            the state (should not be modified)
+		 * @param dx
+		 *            [out] the derivative at the state
+		 */
+		public void eval(double t, double[] x, double[] dx);
+	}
+
+	private final Derivative der;
+	private final int dims;
+	private double rtol = DEFAULT_RTOL;
+	private double atol = DEFAULT_ATOL;
+	private double maxStep = Double.POSITIVE_INFINITY;
+
+	private double t = 0;
+	private final double[] y;
+	private double hNext = 0; // suggested next step size (0 = needs an initial guess)
+	private long numEvaluations = 0;
+	private long numRejected = 0;
+
+	// work arrays
+	private final double[] k1, k2, k3, k4, k5, k6, k7;
+	private final double[] yTemp, yNew;
+
+	public DormandPrince(Derivative der, int dims)
+	{
+		this.der = der;
+		this.dims = dims;
+
+		y = new double[dims];
+		k1 = new double[dims];
+		k2 = new double[dims];
+		k3 = new double[dims];
+		k4 = new double[dims];
+		k5 = new double[dims];
+		k6 = new double[dims];
+		k7 = new double[dims];
+		yTemp = new double[dims];
+		yNew = new double[dims];
+	}
+
+	/**
+	 * Set the relative and absolute error tolerances for each step
+	 *
+	 * @param rtol
+	 *            the relative tolerance
+	 * @param atol
+	 *            the absolute tolerance
+	 */
+	public void setTolerances(double rtol, double atol)
+	{
+		if (rtol <= 0 || atol <= 0)
+			throw new SimulationException(
+					"integrator tolerances must be positive: rtol=" + rtol + ", atol=" + atol);
+
+		this.rtol = rtol;
+		this.atol = atol;
+	}
+
+	/**
+	 * Set the maximum step size
+	 *
+	 * @param maxStep
+	 *            the maximum step (Double.POSITIVE_INFINITY for no limit)
+	 */
+	public void setMaxStep(double maxStep)
+	{
+		if (maxStep <= 0)
+			throw new SimulationException("integrator max step must be positive: " + maxStep);
+
+		this.maxStep = maxStep;
+	}
+
+	/**
+	 * Set the state and time, like scipy's ode.set_initial_value
+	 *
+	 * @param state
+	 *            the initial state (copied)
+	 * @param time
+	 *            the initial time
+	 */
+	public void setInitialValue(double[] state, double time)
+	{
+		if (state.length != dims)
+			throw new SimulationException(
+					"initial state had " + state.length + " dimensions; expected " + dims);
+
+		System.arraycopy(state, 0, y, 0, dims);
+		t = time;
+		hNext = 0;
+
+		evaluate(t, y, k1);
+	}
+
+	/**
+	 * Get the current time
+	 *
+	 * @return the time
+	 */
+	public double getTime()
+	{
+		return t;
+	}
+
+	/**
+	 * Get a copy of the current state
+	 *
+	 * @return the state
+	 */
+	public double[] getState()
+	{
+		double[] rv = new double[dims];
+		System.arraycopy(y, 0, rv, 0, dims);
+
+		return rv;
+	}
+
+	/**
+	 * Get the total number of derivative evaluations
+	 *
+	 * @return the evaluation count
+	 */
+	public long getNumEvaluations()
+	{
+		return numEvaluations;
+	}
+
+	/**
+	 * Get the total number of steps which were rejected because the error estimate was too large
+	 *
+	 * @return the rejected step count
+	 */
+	public long getNumRejected()
+	{
+		return numRejected;
+	}
+
+	/**
+	 * Take a single adaptive step, which does not go past tMax. If the current time is already at
+	 * (or past) tMax, this does nothing.
+	 *
+	 * @param tMax
+	 *            the maximum time
+	 * @throws SimulationException
+	 *             if the step size becomes too small (for example, for stiff systems or if the state
+	 *             becomes non-finite)
+	 */
+	public void step(double tMax)
+	{
+		double remaining = tMax - t;
+
+		if (remaining <= 0)
+			return;
+
+		if (hNext == 0)
+			hNext = initialStep();
+
+		double h = Math.min(hNext, maxStep);
+		double minStep = 1e-14 * Math.max(1.0, Math.abs(t));
+
+		while (true)
+		{
+			boolean last = h >= remaining;
+
+			if (last)
+				h = remaining;
+
+			double err = attemptStep(h);
+
+			if (err <= 1.0)
+			{
+				double factor = err == 0 ? MAX_FACTOR
+						: Math.min(MAX_FACTOR, Math.max(MIN_FACTOR, SAFETY * Math.pow(err, -0.2)));
+
+				t = last ? tMax : t + h;
+				System.arraycopy(yNew, 0, y, 0, dims);
+				System.arraycopy(k7, 0, k1, 0, dims); // first same as last
+				hNext = h * factor;
+				break;
+			}
+
+			++numRejected;
+
+			double factor = Double.isNaN(err) || Double.isInfinite(err) ? MIN_FACTOR
+					: Math.max(MIN_FACTOR, SAFETY * Math.pow(err, -0.2));
+			h *= factor;
+
+			if (h < minStep)
+				throw new SimulationException("ODE integrator step size became too small at time "
+						+ t + " (h = " + h + ")");
+		}
+	}
+
+	/**
+	 * Integrate to an exact time, like scipy's ode.integrate
+	 *
+	 * @param tEnd
+	 *            the desired time
+	 */
+	public void integrate(double tEnd)
+	{
+		while (t < tEnd)
+			step(tEnd);
+	}
+
+	/**
+	 * Compute a single step of size h from the current state into yNew (and k7), and return the
+	 * scaled error norm. The step should be accepted if the error is at most 1.
+	 */
+	private double attemptStep(double h)
+	{
+		for (int i = 0; i < dims; ++i)
+			yTemp[i] = y[i] + h * A21 * k1[i];
+
+		evaluate(t + C2 * h, yTemp, k2);
+
+		for (int i = 0; i < dims; ++i)
+			yTemp[i] = y[i] + h * (A31 * k1[i] + A32 * k2[i]);
+
+		evaluate(t + C3 * h, yTemp, k3);
+
+		for (int i = 0; i < dims; ++i)
+			yTemp[i] = y[i] + h * (A41 * k1[i] + A42 * k2[i] + A43 * k3[i]);
+
+		evaluate(t + C4 * h, yTemp, k4);
+
+		for (int i = 0; i < dims; ++i)
+			yTemp[i] = y[i] + h * (A51 * k1[i] + A52 * k2[i] + A53 * k3[i] + A54 * k4[i]);
+
+		evaluate(t + C5 * h, yTemp, k5);
+
+		for (int i = 0; i < dims; ++i)
+			yTemp[i] = y[i]
+					+ h * (A61 * k1[i] + A62 * k2[i] + A63 * k3[i] + A64 * k4[i] + A65 * k5[i]);
+
+		evaluate(t + h, yTemp, k6);
+
+		for (int i = 0; i < dims; ++i)
+			yNew[i] = y[i] + h * (A71 * k1[i] + A73 * k3[i] + A74 * k4[i] + A75 * k5[i]
+					+ A76 * k6[i]);
+
+		evaluate(t + h, yNew, k7);
+
+		// root-mean-square error norm, scaled by the tolerances
+		double sum = 0;
+
+		for (int i = 0; i < dims; ++i)
+		{
+			double errI = h * (E1 * k1[i] + E3 * k3[i] + E4 * k4[i] + E5 * k5[i] + E6 * k6[i]
+					+ E7 * k7[i]);
+			double scale = atol + rtol * Math.max(Math.abs(y[i]), Math.abs(yNew[i]));
+			double ratio = errI / scale;
+
+			sum += ratio * ratio;
+		}
+
+		return dims == 0 ? 0 : Math.sqrt(sum / dims);
+	}
+
+	/**
+	 * Guess an initial step size, based on the magnitudes of the state and derivative (Hairer,
+	 * Norsett and Wanner, "Solving Ordinary Differential Equations I", section II.4)
+	 */
+	private double initialStep()
+	{
+		double d0 = 0, d1 = 0;
+
+		for (int i = 0; i < dims; ++i)
+		{
+			double scale = atol + rtol * Math.abs(y[i]);
+
+			d0 += (y[i] / scale) * (y[i] / scale);
+			d1 += (k1[i] / scale) * (k1[i] / scale);
+		}
+
+		double rv;
+
+		if (d0 < 1e-10 || d1 < 1e-10)
+			rv = 1e-6;
+		else
+			rv = 0.01 * Math.sqrt(d0 / d1);
+
+		return Math.min(rv, maxStep);
+	}
+
+	private void evaluate(double time, double[] x, double[] dx)
+	{
+		++numEvaluations;
+		der.eval(time, x, dx);
+	}
+}
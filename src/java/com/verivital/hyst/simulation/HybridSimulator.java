@@ -0,0 +1,735 @@
+package com.verivital.hyst.simulation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import com.verivital.hyst.geometry.HyperPoint;
+import com.verivital.hyst.geometry.Interval;
+import com.verivital.hyst.geometry.SymbolicStatePoint;
+import com.verivital.hyst.grammar.formula.CompiledExpression;
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.ir.SymbolTable;
+import com.verivital.hyst.ir.base.AutomatonMode;
+import com.verivital.hyst.ir.base.AutomatonTransition;
+import com.verivital.hyst.ir.base.BaseComponent;
+import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.main.ConversionContext;
+import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.passes.basic.SubstituteConstantsPass;
+
+/**
+ * A simulator for (flat) hybrid automata which runs inside the JVM. This is an alternative to
+ * pysim (hybridpy/pysim/simulate.py and pythonbridge/pysim_utils.py), and follows the same
+ * semantics, so that passes can use either one:
+ *
+ * - At each step, if any outgoing transition's guard is true, the first one (in the automaton's
+ * transition order) is taken. Variables without a reset keep their value.
+ *
+ * - Otherwise, if the invariant is false, the simulation stops with an error.
+ *
+ * - Otherwise, a single adaptive Dormand-Prince step is taken. If the invariant becomes false or a
+ * guard becomes true during the step, the crossing time is found by bisection (as in
+ * find_event_bisection), up to a time tolerance of max(1e-10, end_time / 1e10).
+ *
+ * Urgent modes have no dynamics, so a transition must be enabled as soon as an urgent mode is
+ * entered. Flows and resets use the expression part of each ExpressionInterval (the interval part
+ * is ignored, like in pysim), and all expressions are compiled with CompiledExpression when the
+ * simulator is constructed. Constants are substituted with their values.
+ *
+ * A simulator object can be shared between threads; each simulation uses its own integrator and
+ * evaluation stack.
+ */
+public class HybridSimulator
+{
+	public static final int DEFAULT_MAX_JUMPS = 500;
+	public static final int DEFAULT_MIN_STEPS = 100; // like simulate_multi_trajectory_time
+	public static final double MAX_STATE_MAGNITUDE = 1e15;
+
+	private final List<String> variables;
+	private final SymbolTable symbols;
+	private final int numVars;
+	private final LinkedHashMap<String, CompiledMode> modes = new LinkedHashMap<String, CompiledMode>();
+	private int stackSize = 1;
+	private int maxJumps = DEFAULT_MAX_JUMPS;
+	private double rtol = DormandPrince.DEFAULT_RTOL;
+	private double atol = DormandPrince.DEFAULT_ATOL;
+
+	private static class CompiledMode
+	{
+		String name;
+		boolean urgent;
+		CompiledExpression invariant;
+		CompiledExpression[] flows; // null entries have zero derivative, null array if urgent
+		ArrayList<CompiledTransition> transitions = new ArrayList<CompiledTransition>();
+	}
+
+	private static class CompiledTransition
+	{
+		String description;
+		CompiledMode to;
+		CompiledExpression guard;
+		CompiledExpression[] reset; // null entries are identity resets
+	}
+
+	/**
+	 * The part of a simulation in a single mode, like ModeSim in simulate.py
+	 */
+	public static class ModeSim
+	{
+		public final String modeName;
+		public final ArrayList<double[]> points = new ArrayList<double[]>();
+		public final ArrayList<Double> times = new ArrayList<Double>(); // absolute times
+
+		public ModeSim(String modeName)
+		{
+			this.modeName = modeName;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "[ModeSim: " + modeName + " - " + points.size() + " points]";
+		}
+	}
+
+	/**
+	 * The result of a single simulation
+	 */
+	public static class SimulationResult
+	{
+		public final ArrayList<ModeSim> traces = new ArrayList<ModeSim>();
+
+		// the message of the SimulationException which stopped the simulation early, or null
+		public String error = null;
+
+		/**
+		 * Get the final state of the simulation
+		 *
+		 * @return the final mode and point
+		 */
+		public SymbolicStatePoint getLastState()
+		{
+			ModeSim ms = traces.get(traces.size() - 1);
+
+			return new SymbolicStatePoint(ms.modeName,
+					new HyperPoint(ms.points.get(ms.points.size() - 1)));
+		}
+	}
+
+	/**
+	 * Should the simulation-based passes use this simulator rather than python's pysim? This is a
+	 * setting of the current ConversionContext, which is enabled with the -java_sim flag.
+	 */
+	public static boolean isJavaSimulatorEnabled()
+	{
+		return ConversionContext.get().useJavaSimulator;
+	}
+
+	public static void setJavaSimulatorEnabled(boolean enabled)
+	{
+		ConversionContext.get().useJavaSimulator = enabled;
+	}
+
+	/**
+	 * Create a simulator for a configuration with a flat automaton
+	 *
+	 * @param config
+	 *            the configuration
+	 */
+	public HybridSimulator(Configuration config)
+	{
+		this(getBaseComponent(config));
+	}
+
+	/**
+	 * Create a simulator for a base component
+	 *
+	 * @param ha
+	 *            the automaton
+	 */
+	public HybridSimulator(BaseComponent ha)
+	{
+		variables = ha.variables;
+		symbols = ha.getSymbolTable();
+		numVars = variables.size();
+
+		for (AutomatonMode am : ha.modes.values())
+		{
+			CompiledMode cm = new CompiledMode();
+			cm.name = am.name;
+			cm.urgent = am.urgent;
+			cm.invariant = compile(ha, am.invariant, "invariant of mode " + am.name);
+
+			if (!am.urgent)
+			{
+				cm.flows = new CompiledExpression[numVars];
+				ExpressionInterval[] flows = am.getFlowArray();
+
+				for (int i = 0; i < numVars; ++i)
+				{
+					ExpressionInterval ei = flows[i];
+
+					if (ei != null)
+						cm.flows[i] = compile(ha, ei.getExpression(),
+								"flow of " + variables.get(i) + " in mode " + am.name);
+				}
+			}
+
+			modes.put(am.name, cm);
+		}
+
+		for (AutomatonTransition at : ha.transitions)
+		{
+			CompiledTransition ct = new CompiledTransition();
+			ct.description = at.from.name + " -> " + at.to.name;
+			ct.to = modes.get(at.to.name);
+			ct.guard = compile(ha, at.guard, "guard of transition " + ct.description);
+			ct.reset = new CompiledExpression[numVars];
+			ExpressionInterval[] resets = at.getResetArray();
+
+			for (int i = 0; i < numVars; ++i)
+			{
+				ExpressionInterval ei = resets[i];
+
+				if (ei != null)
+					ct.reset[i] = compile(ha, ei.getExpression(), "reset of " + variables.get(i)
+							+ " in transition " + ct.description);
+			}
+
+			modes.get(at.from.name).transitions.add(ct);
+		}
+	}
+
+	private static BaseComponent getBaseComponent(Configuration config)
+	{
+		if (!(config.root instanceof BaseComponent))
+			throw new AutomatonExportException("Simulation requires a flat automaton.");
+
+		return (BaseComponent) config.root;
+	}
+
+	private CompiledExpression compile(BaseComponent ha, Expression e, String description)
+	{
+		CompiledExpression rv;
+
+		try
+		{
+			if (ha.constants.size() > 0)
+				e = SubstituteConstantsPass.substituteConstantsIntoExpression(ha.constants, e);
+
+			rv = CompiledExpression.compile(e, symbols);
+		}
+		catch (AutomatonExportException ex)
+		{
+			throw new AutomatonExportException("Error compiling " + description, ex);
+		}
+
+		stackSize = Math.max(stackSize, rv.newStack().length);
+
+		return rv;
+	}
+
+	/**
+	 * Set the maximum number of discrete transitions in each simulation
+	 *
+	 * @param maxJumps
+	 *            the maximum number of jumps (should be positive)
+	 */
+	public void setMaxJumps(int maxJumps)
+	{
+		if (maxJumps <= 0)
+			throw new AutomatonExportException(
+					"max jumps should be greater than zero: " + maxJumps);
+
+		this.maxJumps = maxJumps;
+	}
+
+	/**
+	 * Set the integrator's relative and absolute error tolerances
+	 *
+	 * @param rtol
+	 *            the relative tolerance
+	 * @param atol
+	 *            the absolute tolerance
+	 */
+	public void setTolerances(double rtol, double atol)
+	{
+		this.rtol = rtol;
+		this.atol = atol;
+	}
+
+	/**
+	 * Simulate from a single point, like simulate_one in simulate.py
+	 *
+	 * @param start
+	 *            the start mode and point
+	 * @param endTime
+	 *            the total desired simulation time (discrete events may reduce the actual time)
+	 * @param maxStep
+	 *            the maximum integration step, or a nonpositive value for endTime / 100
+	 * @param reraiseErrors
+	 *            if true, a SimulationException which stops the simulation is rethrown. If false,
+	 *            the partial result is returned with the error message set.
+	 * @return the simulation result
+	 */
+	public SimulationResult simulateOne(SymbolicStatePoint start, double endTime, double maxStep,
+			boolean reraiseErrors)
+	{
+		if (endTime < 0)
+			throw new AutomatonExportException(
+					"simulation time should be nonnegative: " + endTime);
+
+		if (start.hp.dims.length != numVars)
+			throw new AutomatonExportException("start point had " + start.hp.dims.length
+					+ " dimensions; expected " + numVars);
+
+		CompiledMode mode = modes.get(start.modeName);
+
+		if (mode == null)
+			throw new AutomatonExportException("Unknown simulation start mode: " + start.modeName);
+
+		if (maxStep <= 0)
+			maxStep = endTime > 0 ? endTime / 100.0 : Double.POSITIVE_INFINITY;
+
+		Run r = new Run(endTime, maxStep);
+
+		try
+		{
+			r.simulate(mode, start.hp.dims);
+		}
+		catch (SimulationException e)
+		{
+			r.result.error = e.getMessage();
+
+			if (reraiseErrors)
+				throw e;
+
+			Hyst.logDebug("Simulation stopped: " + e.getMessage() + " in mode " + r.mode.name
+					+ " at time " + r.time);
+		}
+
+		return r.result;
+	}
+
+	/**
+	 * Simulate for the given time, returning the final state, like simulate_one_time in
+	 * simulate.py
+	 *
+	 * @param start
+	 *            the start state
+	 * @param time
+	 *            the simulation time
+	 * @return the final state
+	 * @throws SimulationException
+	 *             if the simulation didn't complete
+	 */
+	public SymbolicStatePoint simulateOneTime(SymbolicStatePoint start, double time)
+	{
+		return simulateOne(start, time, 0, true).getLastState();
+	}
+
+	/**
+	 * Simulate from a start state, getting the state at a list of times, like simulate_times in
+	 * pysim_utils.py
+	 *
+	 * @param start
+	 *            the start state
+	 * @param times
+	 *            the (increasing) times where to return the state
+	 * @return the state at each of the times
+	 */
+	public ArrayList<SymbolicStatePoint> simulateTimes(SymbolicStatePoint start, List<Double> times)
+	{
+		ArrayList<SymbolicStatePoint> rv = new ArrayList<SymbolicStatePoint>(times.size());
+		SymbolicStatePoint q = start;
+		double lastTime = 0;
+
+		for (double time : times)
+		{
+			q = simulateOneTime(q, time - lastTime);
+			lastTime = time;
+
+			rv.add(q);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Simulate from several start states, returning the trajectories, like
+	 * simulate_multi_trajectory_time in pysim_utils.py. The maximum step is time / min_steps.
+	 * Simulations which stop early (for example, if an invariant becomes false) are truncated.
+	 *
+	 * @param startPoints
+	 *            the start states
+	 * @param time
+	 *            the simulation time
+	 * @return the trajectories, each is a list of all the simulation points in all the modes
+	 */
+	public ArrayList<ArrayList<SymbolicStatePoint>> simulateMultiTrajectoryTime(
+			List<SymbolicStatePoint> startPoints, double time)
+	{
+		ArrayList<ArrayList<SymbolicStatePoint>> rv = new ArrayList<ArrayList<SymbolicStatePoint>>(
+				startPoints.size());
+		double maxStep = time / DEFAULT_MIN_STEPS;
+
+		for (SymbolicStatePoint start : startPoints)
+			rv.add(getTrajectory(simulateOne(start, time, maxStep, false)));
+
+		return rv;
+	}
+
+	/**
+	 * Convert a simulation result to a trajectory of symbolic states
+	 *
+	 * @param result
+	 *            the simulation result
+	 * @return a list of all the simulation points in all the modes
+	 */
+	public static ArrayList<SymbolicStatePoint> getTrajectory(SimulationResult result)
+	{
+		ArrayList<SymbolicStatePoint> rv = new ArrayList<SymbolicStatePoint>();
+
+		for (ModeSim ms : result.traces)
+		{
+			for (double[] pt : ms.points)
+				rv.add(new SymbolicStatePoint(ms.modeName, new HyperPoint(pt)));
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Simulate from several start states, getting the final state of each one, like
+	 * simulate_set_time in pysim_utils.py
+	 *
+	 * @param startPoints
+	 *            the start states
+	 * @param time
+	 *            the simulation time
+	 * @return the final state of each simulation
+	 */
+	public ArrayList<SymbolicStatePoint> simulateSetTime(List<SymbolicStatePoint> startPoints,
+			double time)
+	{
+		ArrayList<SymbolicStatePoint> rv = new ArrayList<SymbolicStatePoint>(startPoints.size());
+
+		for (ArrayList<SymbolicStatePoint> traj : simulateMultiTrajectoryTime(startPoints, time))
+			rv.add(traj.get(traj.size() - 1));
+
+		return rv;
+	}
+
+	/**
+	 * Simulate from a start state, getting the range of the derivative of a variable within each
+	 * of several time ranges, like simulate_der_range in pysim_utils.py. Urgent modes are skipped,
+	 * and ranges which contain no simulation points are [inf, -inf].
+	 *
+	 * @param derVarIndex
+	 *            the index of the variable whose derivative is tracked
+	 * @param start
+	 *            the start state
+	 * @param timeRanges
+	 *            the time ranges
+	 * @return the range of the derivative within each time range
+	 */
+	public ArrayList<Interval> simulateDerRange(int derVarIndex, SymbolicStatePoint start,
+			List<Interval> timeRanges)
+	{
+		if (derVarIndex < 0 || derVarIndex >= numVars)
+			throw new AutomatonExportException("derivative variable index out of bounds: "
+					+ derVarIndex);
+
+		ArrayList<Double> allTimes = new ArrayList<Double>();
+
+		for (Interval i : timeRanges)
+		{
+			allTimes.add(i.min);
+			allTimes.add(i.max);
+		}
+
+		Collections.sort(allTimes);
+
+		ArrayList<Interval> rv = new ArrayList<Interval>(timeRanges.size());
+
+		for (int i = 0; i < timeRanges.size(); ++i)
+		{
+			Interval empty = new Interval();
+			empty.min = Double.POSITIVE_INFINITY;
+			empty.max = Double.NEGATIVE_INFINITY;
+
+			rv.add(empty);
+		}
+
+		double[] stack = new double[stackSize];
+
+		for (ModeSim ms : simulateWithTimes(start, allTimes))
+		{
+			CompiledMode mode = modes.get(ms.modeName);
+
+			// skip urgent modes as derivatives are in transit
+			if (mode.urgent)
+				continue;
+
+			CompiledExpression flow = mode.flows[derVarIndex];
+
+			for (int p = 0; p < ms.points.size(); ++p)
+			{
+				double time = ms.times.get(p);
+				double der = flow == null ? 0 : flow.evaluate(ms.points.get(p), stack);
+
+				for (int r = 0; r < timeRanges.size(); ++r)
+				{
+					Interval timeRange = timeRanges.get(r);
+
+					if (time < timeRange.min || time > timeRange.max)
+						continue;
+
+					Interval range = rv.get(r);
+					range.min = Math.min(range.min, der);
+					range.max = Math.max(range.max, der);
+				}
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Simulate with guaranteed points at specific times, like simulate_with_times in
+	 * pysim_utils.py
+	 *
+	 * @param start
+	 *            the start state
+	 * @param allTimes
+	 *            the sorted times where there must be a sample
+	 * @return the mode simulations, with absolute times
+	 */
+	private ArrayList<ModeSim> simulateWithTimes(SymbolicStatePoint start, List<Double> allTimes)
+	{
+		ArrayList<ModeSim> rv = new ArrayList<ModeSim>();
+		SymbolicStatePoint q = start;
+		double lastTime = 0;
+
+		for (double time : allTimes)
+		{
+			if (time == lastTime)
+				continue;
+
+			SimulationResult res = simulateOne(q, time - lastTime, 0, true);
+
+			for (ModeSim ms : res.traces)
+			{
+				for (int i = 0; i < ms.times.size(); ++i)
+					ms.times.set(i, ms.times.get(i) + lastTime);
+			}
+
+			rv.addAll(res.traces);
+			lastTime = time;
+			q = res.getLastState();
+		}
+
+		return rv;
+	}
+
+	/**
+	 * The state of a single simulation
+	 */
+	private class Run
+	{
+		final SimulationResult result = new SimulationResult();
+		final double endTime;
+		final double maxStep;
+		final double jumpErrorTol;
+		final double[] stack = new double[stackSize];
+
+		CompiledMode mode;
+		DormandPrince solver; // null in urgent modes
+		double time = 0;
+		double[] state;
+		ModeSim modeSim;
+
+		Run(double endTime, double maxStep)
+		{
+			this.endTime = endTime;
+			this.maxStep = maxStep;
+			this.jumpErrorTol = Math.max(1e-10, endTime / 1e10);
+		}
+
+		void simulate(CompiledMode startMode, double[] startPoint)
+		{
+			int jumpsLeft = maxJumps;
+
+			enterMode(startMode, startPoint.clone(), 0);
+
+			while (time < endTime)
+			{
+				CompiledTransition t = getActiveTransition(state);
+
+				if (t != null)
+				{
+					// discrete post
+					double[] post = new double[numVars];
+
+					for (int i = 0; i < numVars; ++i)
+						post[i] = t.reset[i] == null ? state[i] : t.reset[i].evaluate(state, stack);
+
+					enterMode(t.to, post, time);
+
+					if (--jumpsLeft < 0)
+						throw new SimulationException("Max jumps (" + maxJumps + ") reached");
+				}
+				else if (!isTrue(mode.invariant, state))
+					throw new SimulationException("Invariant became false");
+				else if (mode.urgent)
+					throw new SimulationException(
+							"No transitions were enabled in urgent mode " + mode.name);
+				else
+				{
+					continuousPost();
+
+					modeSim.points.add(state);
+					modeSim.times.add(time);
+				}
+			}
+		}
+
+		private void enterMode(CompiledMode m, double[] point, double startTime)
+		{
+			mode = m;
+			state = point;
+			time = startTime;
+
+			modeSim = new ModeSim(m.name);
+			modeSim.points.add(point);
+			modeSim.times.add(startTime);
+			result.traces.add(modeSim);
+
+			if (m.urgent)
+				solver = null;
+			else
+			{
+				final CompiledExpression[] flows = m.flows;
+
+				solver = new DormandPrince(new DormandPrince.Derivative()
+				{
+					@Override
+					public void eval(double t, double[] x, double[] dx)
+					{
+						for (int i = 0; i < numVars; ++i)
+							dx[i] = flows[i] == null ? 0 : flows[i].evaluate(x, stack);
+					}
+				}, numVars);
+
+				solver.setTolerances(rtol, atol);
+				solver.setMaxStep(maxStep);
+				solver.setInitialValue(point, startTime);
+			}
+		}
+
+		/**
+		 * A single continuous step, with event detection. This updates time and state.
+		 */
+		private void continuousPost()
+		{
+			double initTime = time;
+			double[] initState = state;
+
+			solver.step(endTime);
+
+			for (int event = 0; event < 2; ++event)
+			{
+				double[] y = solver.getState();
+
+				if (eventOccurred(event, y))
+					findEventBisection(event, initState, initTime, solver.getTime() - initTime, y);
+			}
+
+			time = solver.getTime();
+			state = solver.getState();
+
+			for (double val : state)
+			{
+				if (Math.abs(val) > MAX_STATE_MAGNITUDE || Double.isNaN(val))
+					throw new SimulationException("Continuous post reached unreasonably large "
+							+ "state; may cause floating-point issues.");
+			}
+		}
+
+		/**
+		 * Check if an event occurred at a state. Event 0 is the invariant becoming false, event 1
+		 * is a transition becoming enabled.
+		 */
+		private boolean eventOccurred(int event, double[] x)
+		{
+			boolean rv;
+
+			if (event == 0)
+				rv = !isTrue(mode.invariant, x);
+			else
+				rv = getActiveTransition(x) != null;
+
+			return rv;
+		}
+
+		/**
+		 * Do a binary search to find a discrete event's time and state, like find_event_bisection
+		 * in simulate.py. Upon returning, the solver is at a time and state where the event has
+		 * occurred, at most jumpErrorTol after the actual crossing.
+		 */
+		private void findEventBisection(int event, double[] initValue, double initTime,
+				double crossDelta, double[] crossValue)
+		{
+			while (crossDelta >= jumpErrorTol)
+			{
+				double midDelta = crossDelta / 2.0;
+				double midTime = initTime + midDelta;
+
+				solver.setInitialValue(initValue, initTime);
+				solver.integrate(midTime);
+
+				double[] midValue = solver.getState();
+
+				if (!eventOccurred(event, midValue))
+				{
+					initValue = midValue;
+					initTime = midTime;
+				}
+				else
+					crossValue = midValue;
+
+				crossDelta = midDelta;
+			}
+
+			solver.setInitialValue(crossValue, initTime + crossDelta);
+		}
+
+		/**
+		 * Get the first transition whose guard is true at a state, or null
+		 */
+		private CompiledTransition getActiveTransition(double[] x)
+		{
+			CompiledTransition rv = null;
+
+			for (CompiledTransition t : mode.transitions)
+			{
+				if (isTrue(t.guard, x))
+				{
+					rv = t;
+					break;
+				}
+			}
+
+			return rv;
+		}
+
+		private boolean isTrue(CompiledExpression e, double[] x)
+		{
+			return e.evaluate(x, stack) != 0;
+		}
+	}
+}
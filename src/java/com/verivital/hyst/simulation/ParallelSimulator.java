@@ -0,0 +1,366 @@
+package com.verivital.hyst.simulation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.verivital.hyst.geometry.SymbolicStatePoint;
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.main.ConversionContext;
+import com.verivital.hyst.main.Hyst;
+
+/**
+ * Simulates many start points in parallel with a HybridSimulator, using a shared ForkJoinPool.
+ * This is used for the multi-point simulation strategies of HybridizeMixedTriggeredPass (star,
+ * corners, starcorners, rand#), where the number of start points can be large.
+ *
+ * Each start point is an independent simulation, and results are stored by index, so the output
+ * order (and the output itself) is the same as simulating the points sequentially, regardless of
+ * the number of threads.
+ *
+ * At most MAX_IN_FLIGHT start points are submitted to the pool at once. Larger point sets are
+ * simulated in consecutive windows, which bounds the number of queued tasks and partial
+ * trajectories in memory. Progress is logged (in debug mode) every 10% of the points, and a
+ * ProgressListener can be attached. Metrics for the last call (wall time, total simulation time,
+ * number of simulations which stopped early) are available afterwards.
+ */
+public class ParallelSimulator
+{
+	// maximum number of start points submitted to the pool at once
+	public static final int MAX_IN_FLIGHT = 1024;
+
+	// parallelism -> shared pool
+	private static final Map<Integer, ForkJoinPool> pools = new HashMap<Integer, ForkJoinPool>();
+
+	private final HybridSimulator sim;
+	private final int numThreads;
+	private final int maxInFlight;
+	private ProgressListener listener = null;
+
+	// metrics for the last call
+	private final AtomicInteger completed = new AtomicInteger();
+	private final AtomicInteger stoppedEarly = new AtomicInteger();
+	private final AtomicInteger lastDecile = new AtomicInteger();
+	private final AtomicLong simNanos = new AtomicLong();
+	private int total = 0;
+	private long wallMs = 0;
+
+	/**
+	 * Receives progress updates, possibly from several threads (calls are serialized)
+	 */
+	public interface ProgressListener
+	{
+		public void progress(int completed, int total);
+	}
+
+	/**
+	 * The computation for a single start point
+	 */
+	private interface PointFunction<T>
+	{
+		public T run(SymbolicStatePoint start);
+	}
+
+	/**
+	 * Get the number of simulation threads (1 = simulate sequentially on the calling thread). This
+	 * is a setting of the current ConversionContext, set with -sim_threads.
+	 */
+	public static int getNumThreads()
+	{
+		return ConversionContext.get().simThreads;
+	}
+
+	public static void setNumThreads(int numThreads)
+	{
+		ConversionContext.get().simThreads = numThreads;
+	}
+
+	/**
+	 * Create a parallel simulator using getNumThreads() and MAX_IN_FLIGHT
+	 *
+	 * @param sim
+	 *            the simulator to use for each point
+	 */
+	public ParallelSimulator(HybridSimulator sim)
+	{
+		this(sim, getNumThreads(), MAX_IN_FLIGHT);
+	}
+
+	/**
+	 * Create a parallel simulator
+	 *
+	 * @param sim
+	 *            the simulator to use for each point
+	 * @param numThreads
+	 *            the number of threads (1 = sequential)
+	 * @param maxInFlight
+	 *            the maximum number of start points submitted at once
+	 */
+	public ParallelSimulator(HybridSimulator sim, int numThreads, int maxInFlight)
+	{
+		if (numThreads < 1)
+			throw new AutomatonExportException(
+					"number of simulation threads must be positive: " + numThreads);
+
+		if (maxInFlight < 1)
+			throw new AutomatonExportException(
+					"max in-flight simulations must be positive: " + maxInFlight);
+
+		this.sim = sim;
+		this.numThreads = numThreads;
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * Get the shared pool with the given parallelism, creating it if needed. Pools are never shut
+	 * down, since concurrent conversions may be using them (their idle threads exit on their own).
+	 */
+	private static synchronized ForkJoinPool getPool(int parallelism)
+	{
+		ForkJoinPool rv = pools.get(parallelism);
+
+		if (rv == null)
+		{
+			rv = new ForkJoinPool(parallelism);
+			pools.put(parallelism, rv);
+		}
+
+		return rv;
+	}
+
+	public void setProgressListener(ProgressListener listener)
+	{
+		this.listener = listener;
+	}
+
+	/**
+	 * Simulate from several start states, returning the trajectories. This is the parallel
+	 * version of HybridSimulator.simulateMultiTrajectoryTime, and has the same result.
+	 *
+	 * @param startPoints
+	 *            the start states
+	 * @param time
+	 *            the simulation time
+	 * @return the trajectories, in the same order as startPoints
+	 */
+	public ArrayList<ArrayList<SymbolicStatePoint>> simulateMultiTrajectoryTime(
+			List<SymbolicStatePoint> startPoints, final double time)
+	{
+		final double maxStep = time / HybridSimulator.DEFAULT_MIN_STEPS;
+
+		return runAll(startPoints, new PointFunction<ArrayList<SymbolicStatePoint>>()
+		{
+			@Override
+			public ArrayList<SymbolicStatePoint> run(SymbolicStatePoint start)
+			{
+				HybridSimulator.SimulationResult res = sim.simulateOne(start, time, maxStep, false);
+
+				if (res.error != null)
+					stoppedEarly.incrementAndGet();
+
+				return HybridSimulator.getTrajectory(res);
+			}
+		});
+	}
+
+	/**
+	 * Simulate from several start states, getting the final state of each one. This is the
+	 * parallel version of HybridSimulator.simulateSetTime, and has the same result.
+	 *
+	 * @param startPoints
+	 *            the start states
+	 * @param time
+	 *            the simulation time
+	 * @return the final state of each simulation, in the same order as startPoints
+	 */
+	public ArrayList<SymbolicStatePoint> simulateSetTime(List<SymbolicStatePoint> startPoints,
+			final double time)
+	{
+		final double maxStep = time / HybridSimulator.DEFAULT_MIN_STEPS;
+
+		return runAll(startPoints, new PointFunction<SymbolicStatePoint>()
+		{
+			@Override
+			public SymbolicStatePoint run(SymbolicStatePoint start)
+			{
+				HybridSimulator.SimulationResult res = sim.simulateOne(start, time, maxStep, false);
+
+				if (res.error != null)
+					stoppedEarly.incrementAndGet();
+
+				return res.getLastState();
+			}
+		});
+	}
+
+	/**
+	 * Run a function on every start point, in parallel, storing the results by index
+	 */
+	private <T> ArrayList<T> runAll(final List<SymbolicStatePoint> startPoints,
+			final PointFunction<T> func)
+	{
+		final int n = startPoints.size();
+		final Object[] results = new Object[n];
+
+		total = n;
+		completed.set(0);
+		stoppedEarly.set(0);
+		lastDecile.set(0);
+		simNanos.set(0);
+
+		long startMs = System.currentTimeMillis();
+
+		if (numThreads == 1 || n <= 1)
+		{
+			for (int i = 0; i < n; ++i)
+				runOne(startPoints, func, results, i);
+		}
+		else
+		{
+			ForkJoinPool fjp = getPool(numThreads);
+
+			for (int windowStart = 0; windowStart < n; windowStart += maxInFlight)
+			{
+				int windowEnd = Math.min(n, windowStart + maxInFlight);
+
+				fjp.invoke(new RangeAction<T>(startPoints, func, results, windowStart, windowEnd));
+			}
+		}
+
+		wallMs = System.currentTimeMillis() - startMs;
+
+		if (n > 1)
+			Hyst.log("Simulated " + n + " points in " + wallMs + " ms using "
+					+ Math.min(numThreads, n) + " thread(s) (total simulation time "
+					+ getSimulationTimeMs() + " ms; " + stoppedEarly.get() + " stopped early)");
+
+		ArrayList<T> rv = new ArrayList<T>(n);
+
+		for (Object o : results)
+		{
+			@SuppressWarnings("unchecked")
+			T t = (T) o;
+			rv.add(t);
+		}
+
+		return rv;
+	}
+
+	private <T> void runOne(List<SymbolicStatePoint> startPoints, PointFunction<T> func,
+			Object[] results, int index)
+	{
+		long start = System.nanoTime();
+		results[index] = func.run(startPoints.get(index));
+		simNanos.addAndGet(System.nanoTime() - start);
+
+		int done = completed.incrementAndGet();
+		int decile = (int) (10L * done / total);
+		int prev = lastDecile.get();
+
+		if (decile > prev && lastDecile.compareAndSet(prev, decile))
+			Hyst.logDebug("Simulation progress: " + done + " / " + total + " points");
+
+		if (listener != null)
+		{
+			synchronized (listener)
+			{
+				listener.progress(done, total);
+			}
+		}
+	}
+
+	/**
+	 * Simulates a contiguous range of start points, splitting it in half until single points
+	 */
+	@SuppressWarnings("serial")
+	private class RangeAction<T> extends RecursiveAction
+	{
+		private final List<SymbolicStatePoint> startPoints;
+		private final PointFunction<T> func;
+		private final Object[] results;
+		private final int start, end;
+
+		// the conversion's context, from the thread which created the action
+		private final ConversionContext context = ConversionContext.get();
+
+		RangeAction(List<SymbolicStatePoint> startPoints, PointFunction<T> func, Object[] results,
+				int start, int end)
+		{
+			this.startPoints = startPoints;
+			this.func = func;
+			this.results = results;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute()
+		{
+			ConversionContext previous = context.enter();
+
+			try
+			{
+				if (end - start == 1)
+					runOne(startPoints, func, results, start);
+				else
+				{
+					int mid = (start + end) / 2;
+
+					invokeAll(new RangeAction<T>(startPoints, func, results, start, mid),
+							new RangeAction<T>(startPoints, func, results, mid, end));
+				}
+			}
+			finally
+			{
+				ConversionContext.exit(previous);
+			}
+		}
+	}
+
+	/**
+	 * Get the number of points simulated in the last call
+	 *
+	 * @return the number of completed points
+	 */
+	public int getNumCompleted()
+	{
+		return completed.get();
+	}
+
+	/**
+	 * Get the number of simulations in the last call which stopped before the final time (for
+	 * example, because an invariant became false)
+	 *
+	 * @return the number of simulations which stopped early
+	 */
+	public int getNumStoppedEarly()
+	{
+		return stoppedEarly.get();
+	}
+
+	/**
+	 * Get the wall-clock time of the last call
+	 *
+	 * @return the time in milliseconds
+	 */
+	public long getWallTimeMs()
+	{
+		return wallMs;
+	}
+
+	/**
+	 * Get the sum of the individual simulation times in the last call. Divided by the wall time,
+	 * this is the speedup from parallelism.
+	 *
+	 * @return the time in milliseconds
+	 */
+	public long getSimulationTimeMs()
+	{
+		return simNanos.get() / 1000000L;
+	}
+}
@@ -0,0 +1,22 @@
+package com.verivital.hyst.simulation;
+
+import com.verivital.hyst.ir.AutomatonExportException;
+
+/**
+ * An error which stops a simulation from progressing, for example if an invariant becomes false,
+ * the maximum number of jumps is reached, or the integrator fails. This mirrors
+ * SimulationException in pysim's simulate.py.
+ */
+@SuppressWarnings("serial")
+public class SimulationException extends AutomatonExportException
+{
+	public SimulationException(String string)
+	{
+		super(string);
+	}
+
+	public SimulationException(String string, Exception e)
+	{
+		super(string, e);
+	}
+}
@@ -17,10 +17,12 @@ import java.util.regex.Pattern;
 
 import com.verivital.hyst.geometry.HyperPoint;
 import com.verivital.hyst.geometry.Interval;
+import com.verivital.hyst.grammar.formula.CompiledExpression;
 import com.verivital.hyst.grammar.formula.Constant;
 import com.verivital.hyst.grammar.formula.DefaultExpressionPrinter;
 import com.verivital.hyst.grammar.formula.Expression;
 import com.verivital.hyst.grammar.formula.FormulaParser;
+import com.verivital.hyst.grammar.formula.ForwardDiff;
 import com.verivital.hyst.grammar.formula.LutExpression;
 import com.verivital.hyst.grammar.formula.MatrixExpression;
 import com.verivital.hyst.grammar.formula.Operation;
@@ -35,6 +37,7 @@ import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.ir.base.ExpressionInterval;
 import com.verivital.hyst.ir.network.ComponentInstance;
 import com.verivital.hyst.ir.network.NetworkComponent;
+import com.verivital.hyst.main.ConversionContext;
 import com.verivital.hyst.main.Hyst;
 import com.verivital.hyst.passes.basic.SimplifyExpressionsPass;
 import com.verivital.hyst.util.RangeExtractor.ConstantMismatchException;
@@ -49,6 +52,21 @@ import com.verivital.hyst.util.RangeExtractor.UnsupportedConditionException;
  */
 public abstract class AutomatonUtil
 {
+	/**
+	 * Should numeric evaluation (evaluateExpression, getGradientAtPoint, estimateJacobian,
+	 * processReset) use CompiledExpression, rather than substituting values and simplifying? This
+	 * is a setting of the current ConversionContext.
+	 */
+	public static boolean isCompiledEvaluationEnabled()
+	{
+		return ConversionContext.get().useCompiledEvaluation;
+	}
+
+	public static void setCompiledEvaluationEnabled(boolean enabled)
+	{
+		ConversionContext.get().useCompiledEvaluation = enabled;
+	}
+
 	/**
 	 * Substitute a variable in an expression and return the new expression
 	 * 
@@ -172,20 +190,19 @@ public abstract class AutomatonUtil
 					am.urgent = false;
 
 					// update transitions
-					for (AutomatonTransition at : ha.transitions)
+					for (AutomatonTransition at : ha.getIncomingTransitions(am))
 					{
-						if (at.to == am)
-						{
-							// transition to urgent mode
-							at.guard = urgCondition.copy();
-							at.reset.put(urgentClockName,
-									new ExpressionInterval(new Constant(0), new Interval(0, C)));
-						}
-						else if (at.from == am)
-						{
-							// transition from urgent mode
+						// transition to urgent mode
+						at.guard = urgCondition.copy();
+						at.reset.put(urgentClockName,
+								new ExpressionInterval(new Constant(0), new Interval(0, C)));
+					}
+
+					for (AutomatonTransition at : ha.getOutgoingTransitions(am))
+					{
+						// transition from urgent mode (self-loops were handled above)
+						if (at.to != am)
 							at.reset.put(urgentClockName, new ExpressionInterval(new Constant(0)));
-						}
 					}
 				}
 				else
@@ -747,6 +764,54 @@ public abstract class AutomatonUtil
 		return list.toArray(new String[list.size()]);
 	}
 
+	/**
+	 * Compute the Jacobian matrix at the center of a box, using forward-mode automatic
+	 * differentiation (ForwardDiff). This is exact (up to floating-point error), and needs one
+	 * evaluation pass per variable, rather than sampling.
+	 * 
+	 * @param dy
+	 *            the dynamics
+	 * @param bounds
+	 *            the bounds whose center is the linearization point
+	 * @return the Jacobian Matrix at the center of the bounds
+	 */
+	public static double[][] jacobianAtCenter(LinkedHashMap<String, ExpressionInterval> dy,
+			HashMap<String, Interval> bounds)
+	{
+		ArrayList<String> variables = new ArrayList<String>();
+		variables.addAll(dy.keySet());
+
+		return jacobianAtPoint(dy, boundsCenter(bounds, variables));
+	}
+
+	/**
+	 * Compute the Jacobian matrix at a point, using forward-mode automatic differentiation
+	 * 
+	 * @param dy
+	 *            the dynamics
+	 * @param pt
+	 *            the point, in the order of the dynamics' variables
+	 * @return the Jacobian Matrix at the point
+	 */
+	public static double[][] jacobianAtPoint(LinkedHashMap<String, ExpressionInterval> dy,
+			HyperPoint pt)
+	{
+		final int NUM_VARS = dy.size();
+		double[][] rv = new double[NUM_VARS][NUM_VARS];
+		ArrayList<String> variables = new ArrayList<String>();
+		ArrayList<Expression> rows = new ArrayList<Expression>();
+
+		for (Entry<String, ExpressionInterval> e : dy.entrySet())
+		{
+			variables.add(e.getKey());
+			rows.add(e.getValue().getExpression());
+		}
+
+		new ForwardDiff(rows, variables).jacobian(pt.dims, rv);
+
+		return rv;
+	}
+
 	/**
 	 * Estimate the Jacobian matrix using sampling
 	 * 
@@ -771,6 +836,10 @@ public abstract class AutomatonUtil
 			String derVariable = variables.get(y);
 			Expression derFunc = dy.get(derVariable).getExpression();
 
+			// compile once per row, rather than substituting for every sample
+			CompiledExpression compiled = isCompiledEvaluationEnabled()
+					? CompiledExpression.getCached(derFunc, variables) : null;
+
 			for (int x = 0; x < NUM_VARS; ++x)
 			{
 				String partialDerVar = variables.get(x); // the partial
@@ -783,8 +852,18 @@ public abstract class AutomatonUtil
 				left.dims[x] -= sampleOffset;
 				right.dims[x] += sampleOffset;
 
-				double leftVal = AutomatonUtil.evaluateExpression(derFunc, left, variables);
-				double rightVal = AutomatonUtil.evaluateExpression(derFunc, right, variables);
+				double leftVal, rightVal;
+
+				if (compiled != null)
+				{
+					leftVal = compiled.evaluate(left.dims);
+					rightVal = compiled.evaluate(right.dims);
+				}
+				else
+				{
+					leftVal = AutomatonUtil.evaluateExpression(derFunc, left, variables);
+					rightVal = AutomatonUtil.evaluateExpression(derFunc, right, variables);
+				}
 
 				rv[y][x] = (rightVal - leftVal) / (2 * sampleOffset);
 			}
@@ -1308,25 +1387,125 @@ public abstract class AutomatonUtil
 	 */
 	public static double[] getGradientAtPoint(AutomatonMode am, HyperPoint pt)
 	{
-		List<String> vars = am.automaton.variables;
-		Map<String, Expression> flowDynamics = centerDynamics(am.flowDynamics);
+		double[] rv;
+
+		if (isCompiledEvaluationEnabled())
+			rv = getGradientAtPoint(compileFlowDynamics(am), pt);
+		else
+		{
+			List<String> vars = am.automaton.variables;
+			Map<String, Expression> flowDynamics = centerDynamics(am.flowDynamics);
+
+			rv = new double[pt.dims.length];
+
+			for (int dim = 0; dim < pt.dims.length; ++dim)
+			{
+				String varName = vars.get(dim);
+				Expression e = flowDynamics.get(varName);
+
+				double d = evaluateExpression(e, pt, vars);
+
+				rv[dim] = d;
+			}
+		}
 
+		return rv;
+	}
+
+	/**
+	 * Get the gradient vector using flow dynamics which were compiled with compileFlowDynamics().
+	 * Compile once and call this repeatedly when evaluating many points in the same mode.
+	 * 
+	 * @param flows
+	 *            the compiled (centered) flow dynamics, in the automaton's variable ordering
+	 * @param pt
+	 *            the point where to evaluate, in the automaton's variable ordering
+	 * @return the gradient vector (with the automaton's variable ordering)
+	 */
+	public static double[] getGradientAtPoint(CompiledExpression[] flows, HyperPoint pt)
+	{
 		double[] rv = new double[pt.dims.length];
 
 		for (int dim = 0; dim < pt.dims.length; ++dim)
+			rv[dim] = flows[dim].evaluate(pt.dims);
+
+		return rv;
+	}
+
+	/**
+	 * Compile the 'average' flow dynamics of a mode (the center of the interval, if there's
+	 * nondeterminism), for use with getGradientAtPoint(CompiledExpression[], HyperPoint)
+	 * 
+	 * @param am
+	 *            the mode
+	 * @return the compiled flows, in the automaton's variable ordering
+	 */
+	public static CompiledExpression[] compileFlowDynamics(AutomatonMode am)
+	{
+		List<String> vars = am.automaton.variables;
+		Map<String, Expression> flowDynamics = centerDynamics(am.flowDynamics);
+		CompiledExpression[] rv = new CompiledExpression[vars.size()];
+
+		for (int dim = 0; dim < rv.length; ++dim)
 		{
-			String varName = vars.get(dim);
-			Expression e = flowDynamics.get(varName);
+			Expression e = flowDynamics.get(vars.get(dim));
 
-			double d = evaluateExpression(e, pt, vars);
+			if (e == null)
+				throw new AutomatonExportException(
+						"Flow not defined for variable " + vars.get(dim) + " in mode " + am.name);
 
-			rv[dim] = d;
+			rv[dim] = CompiledExpression.compile(e, vars);
 		}
 
 		return rv;
 	}
 
+	/**
+	 * Evaluate an expression at a point. If compiled evaluation is enabled, this uses a
+	 * CompiledExpression (from the current thread's cache, so repeated evaluations don't
+	 * recompile), otherwise values are substituted and the expression is simplified.
+	 * 
+	 * @param e
+	 *            the expression to evaluate
+	 * @param pt
+	 *            the point
+	 * @param variableNames
+	 *            the variable names, in the same order as pt
+	 * @return the value of the expression
+	 */
 	public static double evaluateExpression(Expression e, HyperPoint pt, List<String> variableNames)
+	{
+		double rv;
+
+		if (isCompiledEvaluationEnabled())
+		{
+			List<String> vars = variableNames;
+
+			if (vars.size() > pt.dims.length)
+				vars = vars.subList(0, pt.dims.length);
+
+			rv = CompiledExpression.getCached(e, vars).evaluate(pt.dims);
+		}
+		else
+			rv = evaluateExpressionSimplify(e, pt, variableNames);
+
+		return rv;
+	}
+
+	/**
+	 * Evaluate an expression at a point by substituting in values and simplifying the result (this
+	 * is the slower, non-compiled version of evaluateExpression).
+	 * 
+	 * @param e
+	 *            the expression to evaluate
+	 * @param pt
+	 *            the point
+	 * @param variableNames
+	 *            the variable names, in the same order as pt
+	 * @return the value of the expression
+	 */
+	public static double evaluateExpressionSimplify(Expression e, HyperPoint pt,
+			List<String> variableNames)
 	{
 		// create value map
 		TreeMap<String, Expression> valMap = new TreeMap<String, Expression>();
@@ -1405,9 +1584,7 @@ public abstract class AutomatonUtil
 	private static double assignFromExpression(String v, HyperPoint p,
 			ArrayList<String> variableNames, ExpressionInterval resetAssignment)
 	{
-		HyperPoint hp = new HyperPoint(p);
-
-		double d = AutomatonUtil.evaluateExpression(resetAssignment.getExpression(), hp,
+		double d = AutomatonUtil.evaluateExpression(resetAssignment.getExpression(), p,
 				variableNames);
 
 		Interval i = resetAssignment.getInterval();
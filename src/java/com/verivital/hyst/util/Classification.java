@@ -76,9 +76,11 @@ public class Classification
 		// TODO: stochastic ones, etc.
 	}
 
-	public static LinkedHashMap<String, Integer> varID;
-	public static double[][] linearMatrix;
-	public static BaseComponent ha;
+	// set by setVarID() and setLinearMatrix(); these are per-instance, so that several
+	// conversions can classify automata at the same time
+	public LinkedHashMap<String, Integer> varID;
+	public double[][] linearMatrix;
+	public BaseComponent ha;
 
 	/**
 	 * Classify whether an automaton is deterministic or not
@@ -293,6 +295,7 @@ public class Classification
 	 */
 	public void setVarID(BaseComponent ha)
 	{
+		this.ha = ha;
 		varID = new LinkedHashMap<String, Integer>();
 		int id = 0;
 		for (String v : ha.variables)
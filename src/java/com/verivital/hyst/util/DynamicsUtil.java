@@ -8,7 +8,9 @@ import com.verivital.hyst.grammar.formula.Operation;
 import com.verivital.hyst.grammar.formula.Operator;
 import com.verivital.hyst.grammar.formula.Variable;
 import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.SymbolTable;
 import com.verivital.hyst.ir.base.AutomatonMode;
+import com.verivital.hyst.ir.base.ExpressionInterval;
 
 public class DynamicsUtil
 {
@@ -35,14 +37,7 @@ public class DynamicsUtil
 	{
 		ArrayList<ArrayList<Double>> rv = new ArrayList<ArrayList<Double>>();
 		ArrayList<String> nonInputVars = getNonInputVariables(am, am.automaton.variables);
-
-		ArrayList<String> inputVars = new ArrayList<String>();
-
-		for (String var : am.automaton.variables)
-		{
-			if (!nonInputVars.contains(var))
-				inputVars.add(var);
-		}
+		ArrayList<String> inputVars = getInputVariables(am);
 
 		for (String row : nonInputVars)
 		{
@@ -78,6 +73,52 @@ public class DynamicsUtil
 		return rv;
 	}
 
+	/**
+	 * Get the input variables of a mode (those without flow dynamics), in the automaton's variable
+	 * order
+	 * 
+	 * @param am
+	 *            the mode
+	 * @return the input variables (empty for urgent modes)
+	 */
+	public static ArrayList<String> getInputVariables(AutomatonMode am)
+	{
+		ArrayList<String> rv = new ArrayList<String>();
+		ExpressionInterval[] flows = am.getFlowArray();
+
+		if (flows != null)
+		{
+			SymbolTable symbols = am.automaton.getSymbolTable();
+
+			for (int id = 0; id < flows.length; ++id)
+			{
+				if (flows[id] == null)
+					rv.add(symbols.getVariableName(id));
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Check if a name is a non-input variable, using a mode's flows by variable id
+	 * 
+	 * @param symbols
+	 *            the automaton's symbol table
+	 * @param flows
+	 *            the mode's flows, from AutomatonMode.getFlowArray() (null for urgent modes)
+	 * @param name
+	 *            the name to check
+	 * @return true if name is a variable with flow dynamics (or any variable, in an urgent mode)
+	 */
+	public static boolean isNonInputVariable(SymbolTable symbols, ExpressionInterval[] flows,
+			String name)
+	{
+		int id = symbols.getVariableId(name);
+
+		return id != -1 && (flows == null || flows[id] != null);
+	}
+
 	/**
 	 * Get the dynamics C vector in x' = Ax + Bu + c
 	 */
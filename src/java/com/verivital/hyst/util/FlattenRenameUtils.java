@@ -112,21 +112,19 @@ public class FlattenRenameUtils
 			ArrayList<ComponentMapping> parentMappings, String prefix)
 	{
 		Map<String, String> rv = new HashMap<String, String>();
+		HashMap<String, String> mapped = new HashMap<String, String>();
+
+		// the parent name of each mapped child param (the first mapping is used)
+		for (ComponentMapping m : parentMappings)
+		{
+			if (!mapped.containsKey(m.childParam))
+				mapped.put(m.childParam, m.parentParam);
+		}
 
 		for (String v : childNames)
 		{
 			// either it's a mapped name, or it's a local
-			String from = null;
-
-			// get v's mapped value in the parent
-			for (ComponentMapping m : parentMappings)
-			{
-				if (m.childParam.equals(v))
-				{
-					from = m.parentParam;
-					break;
-				}
-			}
+			String from = mapped.get(v);
 
 			if (from == null)
 				rv.put(v, prefix + v); // local, use prefix
@@ -0,0 +1,744 @@
+package com.verivital.hyst.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.verivital.hyst.geometry.HyperPoint;
+import com.verivital.hyst.geometry.HyperRectangle;
+import com.verivital.hyst.geometry.HyperRectangleCornerEnumerator;
+import com.verivital.hyst.geometry.Interval;
+import com.verivital.hyst.grammar.formula.CompiledExpression;
+import com.verivital.hyst.grammar.formula.Constant;
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.Operation;
+import com.verivital.hyst.grammar.formula.Operator;
+import com.verivital.hyst.grammar.formula.Variable;
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.main.ConversionContext;
+import com.verivital.hyst.main.Hyst;
+
+/**
+ * Bounds functions over hyper-rectangles using interval arithmetic (Interval.intervalEvaluate).
+ * This is the Java version of pythonbridge/interval_optimize.py (PythonUtil.intervalOptimize and
+ * intervalOptimizeBounded), and doesn't need python or sympy.
+ *
+ * Polynomial (sub)expressions are also rewritten in Horner form, and each box is evaluated in both
+ * the original and the Horner form. Both results are sound, so their intersection is used, which
+ * reduces the overapproximation from the dependency problem.
+ *
+ * If a maximum error is given, an under-approximation of the range is computed by sampling (the
+ * corners of the domain and the centers of boxes). Boxes whose interval bound exceeds the
+ * under-approximation by more than the error are bisected along their widest dimension (branch and
+ * bound). Boxes are processed from a priority queue, largest excess first, so the
+ * under-approximation grows quickly and fewer boxes need to be split.
+ *
+ * Work is done in a shared ForkJoinPool. Expressions are bounded in parallel, and after a task has
+ * processed FORK_BOXES boxes, half of its queue is forked off as a new task, which idle threads can
+ * steal. At most MAX_BOXES boxes are evaluated for each expression; after that, the remaining boxes
+ * are accepted as they are (the result is still sound, but may exceed the error bound).
+ */
+public class IntervalOptimizer
+{
+	// maximum number of boxes evaluated for each expression
+	public static final int MAX_BOXES = 1000000;
+
+	// also evaluate polynomials in Horner form?
+	public static final boolean USE_HORNER = true;
+
+	// number of boxes a task processes before it may fork off half of its queue
+	private static final int FORK_BOXES = 64;
+
+	// boxes narrower than this in every dimension are not split further
+	private static final double MIN_WIDTH = 1e-12;
+
+	// corners are sampled in dimensions up to this, otherwise only the center
+	private static final int MAX_CORNER_DIMS = 10;
+
+	// polynomials with more terms than this are not rewritten in Horner form
+	private static final int MAX_POLY_TERMS = 1000;
+
+	// maximum integer exponent expanded when converting to a polynomial
+	private static final int MAX_POLY_EXPONENT = 32;
+
+	// parallelism -> shared pool
+	private static final Map<Integer, ForkJoinPool> pools = new HashMap<Integer, ForkJoinPool>();
+
+	/**
+	 * Get the number of optimization threads (1 = optimize sequentially on the calling thread).
+	 * This is a setting of the current ConversionContext.
+	 */
+	public static int getNumThreads()
+	{
+		return ConversionContext.get().optimizerThreads;
+	}
+
+	public static void setNumThreads(int numThreads)
+	{
+		ConversionContext.get().optimizerThreads = numThreads;
+	}
+
+	/**
+	 * Bound several expressions, each in its own domain
+	 *
+	 * @param exps
+	 *            the expressions
+	 * @param boundsList
+	 *            the domain for each expression
+	 * @param maxError
+	 *            the maximum overapproximation error, or 0 for a single interval evaluation
+	 * @return the bounds of each expression
+	 */
+	public static List<Interval> optimize(List<Expression> exps,
+			List<HashMap<String, Interval>> boundsList, double maxError)
+	{
+		if (exps.size() != boundsList.size())
+			throw new AutomatonExportException("number of expression(" + exps.size()
+					+ ") and number of bounds (" + boundsList.size() + ") must match.");
+
+		if (maxError < 0)
+			throw new AutomatonExportException("max error must be nonnegative: " + maxError);
+
+		long startMs = System.currentTimeMillis();
+		final List<BoxTask> tasks = new ArrayList<BoxTask>(exps.size());
+		List<Problem> problems = new ArrayList<Problem>(exps.size());
+
+		for (int i = 0; i < exps.size(); ++i)
+		{
+			Problem p = new Problem(exps.get(i), boundsList.get(i), maxError);
+
+			problems.add(p);
+			tasks.add(p.createRootTask());
+		}
+
+		List<Interval> rv = new ArrayList<Interval>(exps.size());
+
+		int numThreads = getNumThreads();
+
+		if (numThreads <= 1)
+		{
+			for (BoxTask t : tasks)
+				rv.add(t.run(false));
+		}
+		else
+		{
+			getPool(numThreads).invoke(new RecursiveAction()
+			{
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute()
+				{
+					invokeAll(tasks);
+				}
+			});
+
+			for (BoxTask t : tasks)
+				rv.add(t.getRawResult());
+		}
+
+		int totalBoxes = 0;
+
+		for (Problem p : problems)
+		{
+			totalBoxes += p.boxCount.get();
+
+			if (p.boxCount.get() > MAX_BOXES)
+				Hyst.log("Warning: interval optimization box limit (" + MAX_BOXES
+						+ ") reached for " + p.original.toDefaultString()
+						+ "; result may exceed the error bound " + maxError);
+		}
+
+		Hyst.logDebug("Interval optimization of " + exps.size() + " expressions evaluated "
+				+ totalBoxes + " boxes in " + (System.currentTimeMillis() - startMs) + " ms");
+
+		return rv;
+	}
+
+	/**
+	 * Get the shared pool with the given parallelism, creating it if needed. Pools are never shut
+	 * down, since concurrent conversions may be using them (their idle threads exit on their own).
+	 */
+	private static synchronized ForkJoinPool getPool(int parallelism)
+	{
+		ForkJoinPool rv = pools.get(parallelism);
+
+		if (rv == null)
+		{
+			rv = new ForkJoinPool(parallelism);
+			pools.put(parallelism, rv);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * The state for bounding a single expression, shared between its tasks
+	 */
+	private static class Problem
+	{
+		final Expression original;
+		final Expression horner; // null if the same as the original
+		final ArrayList<String> vars = new ArrayList<String>();
+		final CompiledExpression compiled;
+		final double maxError;
+		final HyperRectangle domain;
+		final AtomicInteger boxCount = new AtomicInteger();
+
+		// under-approximation of the range, from samples
+		private double underMin = Double.POSITIVE_INFINITY;
+		private double underMax = Double.NEGATIVE_INFINITY;
+
+		Problem(Expression e, Map<String, Interval> bounds, double maxError)
+		{
+			this.original = e;
+			this.maxError = maxError;
+
+			vars.addAll(AutomatonUtil.getVariablesInExpression(e));
+			Collections.sort(vars);
+
+			domain = new HyperRectangle(vars.size());
+
+			for (int d = 0; d < vars.size(); ++d)
+			{
+				Interval i = bounds.get(vars.get(d));
+
+				if (i == null)
+					throw new AutomatonExportException("Range of variable " + vars.get(d)
+							+ " is needed, but wasn't provided.");
+
+				domain.dims[d] = new Interval(i);
+			}
+
+			Expression h = USE_HORNER ? toHornerForm(e) : null;
+			horner = (h == null || h.toDefaultString().equals(e.toDefaultString())) ? null : h;
+			compiled = maxError > 0 ? CompiledExpression.compile(e, vars) : null;
+		}
+
+		BoxTask createRootTask()
+		{
+			Box root = new Box(domain, evaluate(domain));
+			PriorityQueue<Box> queue = newQueue();
+
+			if (maxError > 0)
+			{
+				final double[] stack = compiled.newStack();
+
+				if (vars.size() <= MAX_CORNER_DIMS)
+				{
+					domain.enumerateCornersUnique(new HyperRectangleCornerEnumerator()
+					{
+						@Override
+						protected void enumerate(HyperPoint p)
+						{
+							sample(p.dims, stack);
+						}
+					});
+				}
+
+				sample(domain.center().dims, stack);
+			}
+
+			queue.add(root);
+
+			return new BoxTask(this, queue);
+		}
+
+		/**
+		 * Interval evaluation of a box, intersecting the original and Horner forms
+		 */
+		Interval evaluate(HyperRectangle box)
+		{
+			boxCount.incrementAndGet();
+			HashMap<String, Interval> ranges = new HashMap<String, Interval>();
+
+			for (int d = 0; d < vars.size(); ++d)
+				ranges.put(vars.get(d), box.dims[d]);
+
+			Interval rv = Interval.intervalEvaluate(original, ranges);
+
+			if (horner != null)
+			{
+				Interval h = Interval.intervalEvaluate(horner, ranges);
+				Interval both = Interval.intersection(rv, h);
+
+				// both are sound, so they can only be disjoint from floating-point error
+				if (both != null)
+					rv = both;
+			}
+
+			return rv;
+		}
+
+		synchronized void sample(double[] point, double[] stack)
+		{
+			double val = compiled.evaluate(point, stack);
+
+			if (!Double.isNaN(val))
+			{
+				underMin = Math.min(underMin, val);
+				underMax = Math.max(underMax, val);
+			}
+		}
+
+		/**
+		 * How much does a bound exceed the under-approximation?
+		 */
+		synchronized double excess(Interval bound)
+		{
+			return Math.max(underMin - bound.min, bound.max - underMax);
+		}
+
+		boolean limitReached()
+		{
+			return boxCount.get() > MAX_BOXES;
+		}
+	}
+
+	private static class Box
+	{
+		final HyperRectangle rect;
+		final Interval bound;
+		final double excess; // excess when the box was created (an upper bound later on)
+
+		Box(HyperRectangle rect, Interval bound)
+		{
+			this(rect, bound, Double.POSITIVE_INFINITY);
+		}
+
+		Box(HyperRectangle rect, Interval bound, double excess)
+		{
+			this.rect = rect;
+			this.bound = bound;
+			this.excess = excess;
+		}
+	}
+
+	private static PriorityQueue<Box> newQueue()
+	{
+		return new PriorityQueue<Box>(16, new Comparator<Box>()
+		{
+			@Override
+			public int compare(Box a, Box b)
+			{
+				return Double.compare(b.excess, a.excess); // largest first
+			}
+		});
+	}
+
+	/**
+	 * Processes a queue of boxes, returning the union of the bounds of the final boxes
+	 */
+	@SuppressWarnings("serial")
+	private static class BoxTask extends RecursiveTask<Interval>
+	{
+		private final Problem p;
+		private final PriorityQueue<Box> queue;
+
+		BoxTask(Problem p, PriorityQueue<Box> queue)
+		{
+			this.p = p;
+			this.queue = queue;
+		}
+
+		@Override
+		protected Interval compute()
+		{
+			return run(true);
+		}
+
+		Interval run(boolean canFork)
+		{
+			Interval rv = null;
+			double[] stack = p.maxError > 0 ? p.compiled.newStack() : null;
+			ArrayList<BoxTask> forked = new ArrayList<BoxTask>();
+			int processed = 0;
+
+			while (!queue.isEmpty())
+			{
+				Box b = queue.poll();
+
+				if (p.maxError <= 0 || p.excess(b.bound) <= p.maxError || p.limitReached()
+						|| isTooSmall(b.rect))
+				{
+					rv = (rv == null) ? b.bound : Interval.union(rv, b.bound);
+					continue;
+				}
+
+				// bisect along the widest dimension
+				int splitDim = 0;
+
+				for (int d = 1; d < b.rect.dims.length; ++d)
+				{
+					if (b.rect.dims[d].width() > b.rect.dims[splitDim].width())
+						splitDim = d;
+				}
+
+				Interval i = b.rect.dims[splitDim];
+				double mid = i.middle();
+
+				HyperRectangle left = b.rect.copy();
+				left.dims[splitDim] = new Interval(i.min, mid);
+				HyperRectangle right = b.rect.copy();
+				right.dims[splitDim] = new Interval(mid, i.max);
+
+				for (HyperRectangle child : new HyperRectangle[] { left, right })
+				{
+					p.sample(child.center().dims, stack);
+					Interval bound = p.evaluate(child);
+					queue.add(new Box(child, bound, p.excess(bound)));
+				}
+
+				if (canFork && ++processed >= FORK_BOXES && queue.size() >= 2)
+				{
+					// give away every other box, so both halves have similar priorities
+					PriorityQueue<Box> half = newQueue();
+					PriorityQueue<Box> kept = newQueue();
+					boolean give = false;
+
+					while (!queue.isEmpty())
+					{
+						(give ? half : kept).add(queue.poll());
+						give = !give;
+					}
+
+					queue.addAll(kept);
+					BoxTask t = new BoxTask(p, half);
+					t.fork();
+					forked.add(t);
+					processed = 0;
+				}
+			}
+
+			for (BoxTask t : forked)
+			{
+				Interval i = t.join();
+
+				if (i != null)
+					rv = (rv == null) ? i : Interval.union(rv, i);
+			}
+
+			return rv;
+		}
+
+		private boolean isTooSmall(HyperRectangle rect)
+		{
+			boolean rv = true;
+
+			for (Interval i : rect.dims)
+			{
+				if (i.width() > MIN_WIDTH * Math.max(1, Math.abs(i.middle())))
+				{
+					rv = false;
+					break;
+				}
+			}
+
+			return rv;
+		}
+	}
+
+	/**
+	 * Rewrite the polynomial parts of an expression in Horner form. For example, x^3 + 2 * x^2 + x
+	 * becomes x * (1 + x * (2 + x)). Like terms are collected, and multivariate polynomials are
+	 * factored one variable at a time (the variable in the most terms first). Non-polynomial
+	 * operations (like sin or division by a non-constant) are kept, with their arguments rewritten.
+	 *
+	 * @param e
+	 *            the expression
+	 * @return an equivalent expression, with polynomials in Horner form
+	 */
+	public static Expression toHornerForm(Expression e)
+	{
+		ArrayList<String> vars = new ArrayList<String>(AutomatonUtil.getVariablesInExpression(e));
+		Collections.sort(vars);
+
+		return hornerRec(e, vars);
+	}
+
+	private static Expression hornerRec(Expression e, List<String> vars)
+	{
+		Expression rv = e;
+		LinkedHashMap<List<Integer>, Double> poly = toPolynomial(e, vars);
+
+		if (poly != null)
+			rv = hornerPoly(poly, vars);
+		else if (e instanceof Operation)
+		{
+			Operation o = e.asOperation();
+			ArrayList<Expression> children = new ArrayList<Expression>(o.children.size());
+
+			for (Expression c : o.children)
+				children.add(hornerRec(c, vars));
+
+			rv = new Operation(o.op, children);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Convert an expression to a polynomial, mapping exponent lists to coefficients
+	 *
+	 * @return the polynomial, or null if the expression is not a polynomial
+	 */
+	private static LinkedHashMap<List<Integer>, Double> toPolynomial(Expression e, List<String> vars)
+	{
+		LinkedHashMap<List<Integer>, Double> rv = null;
+
+		if (e instanceof Constant)
+			rv = constantPoly(((Constant) e).getVal(), vars.size());
+		else if (e instanceof Variable)
+		{
+			int index = vars.indexOf(((Variable) e).name);
+
+			if (index >= 0)
+			{
+				rv = new LinkedHashMap<List<Integer>, Double>();
+				List<Integer> mono = zeroMonomial(vars.size());
+				mono.set(index, 1);
+				rv.put(mono, 1.0);
+			}
+		}
+		else if (e instanceof Operation)
+		{
+			Operation o = e.asOperation();
+
+			if (o.op == Operator.NEGATIVE)
+			{
+				LinkedHashMap<List<Integer>, Double> child = toPolynomial(o.children.get(0), vars);
+
+				if (child != null)
+					rv = scale(child, -1);
+			}
+			else if (o.children.size() == 2)
+			{
+				LinkedHashMap<List<Integer>, Double> left = toPolynomial(o.getLeft(), vars);
+				Expression right = o.getRight();
+
+				if (left != null)
+				{
+					if (o.op == Operator.POW || o.op == Operator.DIVIDE)
+					{
+						if (right instanceof Constant)
+						{
+							double c = ((Constant) right).getVal();
+
+							if (o.op == Operator.DIVIDE && c != 0)
+								rv = scale(left, 1.0 / c);
+							else if (o.op == Operator.POW && c >= 0 && c == Math.floor(c)
+									&& c <= MAX_POLY_EXPONENT)
+							{
+								rv = constantPoly(1, vars.size());
+
+								for (int k = 0; k < (int) c && rv != null; ++k)
+									rv = multiply(rv, left);
+							}
+						}
+					}
+					else
+					{
+						LinkedHashMap<List<Integer>, Double> r = toPolynomial(right, vars);
+
+						if (r != null)
+						{
+							if (o.op == Operator.ADD)
+								rv = add(left, r, 1);
+							else if (o.op == Operator.SUBTRACT)
+								rv = add(left, r, -1);
+							else if (o.op == Operator.MULTIPLY)
+								rv = multiply(left, r);
+						}
+					}
+				}
+			}
+		}
+
+		return rv;
+	}
+
+	private static List<Integer> zeroMonomial(int numVars)
+	{
+		return new ArrayList<Integer>(Collections.nCopies(numVars, 0));
+	}
+
+	private static LinkedHashMap<List<Integer>, Double> constantPoly(double c, int numVars)
+	{
+		LinkedHashMap<List<Integer>, Double> rv = new LinkedHashMap<List<Integer>, Double>();
+
+		if (c != 0)
+			rv.put(zeroMonomial(numVars), c);
+
+		return rv;
+	}
+
+	private static LinkedHashMap<List<Integer>, Double> scale(
+			LinkedHashMap<List<Integer>, Double> p, double c)
+	{
+		LinkedHashMap<List<Integer>, Double> rv = new LinkedHashMap<List<Integer>, Double>();
+
+		if (c != 0)
+		{
+			for (Entry<List<Integer>, Double> e : p.entrySet())
+				rv.put(e.getKey(), e.getValue() * c);
+		}
+
+		return rv;
+	}
+
+	private static void addTerm(LinkedHashMap<List<Integer>, Double> p, List<Integer> mono,
+			double c)
+	{
+		Double cur = p.get(mono);
+		double val = (cur == null ? 0 : cur) + c;
+
+		if (val == 0)
+			p.remove(mono);
+		else
+			p.put(mono, val);
+	}
+
+	/**
+	 * a + sign * b
+	 */
+	private static LinkedHashMap<List<Integer>, Double> add(LinkedHashMap<List<Integer>, Double> a,
+			LinkedHashMap<List<Integer>, Double> b, double sign)
+	{
+		LinkedHashMap<List<Integer>, Double> rv = new LinkedHashMap<List<Integer>, Double>(a);
+
+		for (Entry<List<Integer>, Double> e : b.entrySet())
+			addTerm(rv, e.getKey(), sign * e.getValue());
+
+		return rv.size() > MAX_POLY_TERMS ? null : rv;
+	}
+
+	private static LinkedHashMap<List<Integer>, Double> multiply(
+			LinkedHashMap<List<Integer>, Double> a, LinkedHashMap<List<Integer>, Double> b)
+	{
+		LinkedHashMap<List<Integer>, Double> rv = new LinkedHashMap<List<Integer>, Double>();
+
+		for (Entry<List<Integer>, Double> ea : a.entrySet())
+		{
+			for (Entry<List<Integer>, Double> eb : b.entrySet())
+			{
+				List<Integer> mono = new ArrayList<Integer>(ea.getKey());
+
+				for (int i = 0; i < mono.size(); ++i)
+					mono.set(i, mono.get(i) + eb.getKey().get(i));
+
+				addTerm(rv, mono, ea.getValue() * eb.getValue());
+			}
+
+			if (rv.size() > MAX_POLY_TERMS)
+				return null;
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Build the Horner form of a polynomial
+	 */
+	private static Expression hornerPoly(LinkedHashMap<List<Integer>, Double> poly,
+			List<String> vars)
+	{
+		Expression rv;
+
+		// pick the variable which occurs in the most terms
+		int bestVar = -1, bestCount = 0;
+
+		for (int v = 0; v < vars.size(); ++v)
+		{
+			int count = 0;
+
+			for (List<Integer> mono : poly.keySet())
+			{
+				if (mono.get(v) > 0)
+					++count;
+			}
+
+			if (count > bestCount)
+			{
+				bestVar = v;
+				bestCount = count;
+			}
+		}
+
+		if (bestVar == -1)
+		{
+			// constant
+			Double c = poly.get(zeroMonomial(vars.size()));
+			rv = new Constant(c == null ? 0 : c);
+		}
+		else
+		{
+			// group terms by the exponent of bestVar
+			TreeMap<Integer, LinkedHashMap<List<Integer>, Double>> groups = new TreeMap<Integer, LinkedHashMap<List<Integer>, Double>>();
+
+			for (Entry<List<Integer>, Double> e : poly.entrySet())
+			{
+				int exp = e.getKey().get(bestVar);
+				List<Integer> rest = new ArrayList<Integer>(e.getKey());
+				rest.set(bestVar, 0);
+
+				LinkedHashMap<List<Integer>, Double> group = groups.get(exp);
+
+				if (group == null)
+				{
+					group = new LinkedHashMap<List<Integer>, Double>();
+					groups.put(exp, group);
+				}
+
+				group.put(rest, e.getValue());
+			}
+
+			Variable v = new Variable(vars.get(bestVar));
+			int prevExp = groups.lastKey();
+			rv = hornerPoly(groups.get(prevExp), vars);
+
+			for (int exp : groups.descendingKeySet())
+			{
+				if (exp == prevExp)
+					continue;
+
+				rv = new Operation(Operator.ADD, hornerPoly(groups.get(exp), vars),
+						multiplyPower(v, prevExp - exp, rv));
+				prevExp = exp;
+			}
+
+			if (prevExp > 0)
+				rv = multiplyPower(v, prevExp, rv);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * v^exp * e, without multiplying by one
+	 */
+	private static Expression multiplyPower(Variable v, int exp, Expression e)
+	{
+		Expression power = exp == 1 ? v : new Operation(Operator.POW, v, new Constant(exp));
+		Expression rv;
+
+		if (e instanceof Constant && ((Constant) e).getVal() == 1)
+			rv = power;
+		else if (e instanceof Constant)
+			rv = new Operation(Operator.MULTIPLY, e, power);
+		else
+			rv = new Operation(Operator.MULTIPLY, power, e);
+
+		return rv;
+	}
+}
@@ -0,0 +1,306 @@
+package com.verivital.hyst.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.base.AutomatonMode;
+import com.verivital.hyst.ir.base.AutomatonTransition;
+import com.verivital.hyst.ir.base.BaseComponent;
+
+/**
+ * The discrete graph of a flat automaton. Modes are numbered in the order of the modes map, and the
+ * transitions are stored as adjacency arrays (in both directions), so that searches and the
+ * strongly connected components take O(M + T) time for M modes and T transitions.
+ *
+ * The graph is a snapshot; build a new one if the automaton is modified.
+ */
+public class ModeGraph
+{
+	private final String[] modeNames;
+	private final HashMap<String, Integer> modeIndices = new HashMap<String, Integer>();
+
+	// successors of mode m are outTargets[outStart[m]] ... outTargets[outStart[m + 1] - 1]
+	private final int[] outStart, outTargets;
+	private final int[] inStart, inSources;
+
+	public ModeGraph(BaseComponent ha)
+	{
+		int numModes = ha.modes.size();
+		int numTransitions = ha.transitions.size();
+		modeNames = ha.modes.keySet().toArray(new String[numModes]);
+
+		for (int m = 0; m < numModes; ++m)
+			modeIndices.put(modeNames[m], m);
+
+		int[] from = new int[numTransitions];
+		int[] to = new int[numTransitions];
+		int t = 0;
+
+		for (AutomatonTransition at : ha.transitions)
+		{
+			from[t] = getExistingModeIndex(at.from);
+			to[t] = getExistingModeIndex(at.to);
+			++t;
+		}
+
+		outStart = new int[numModes + 1];
+		outTargets = new int[numTransitions];
+		inStart = new int[numModes + 1];
+		inSources = new int[numTransitions];
+
+		makeAdjacency(from, to, outStart, outTargets);
+		makeAdjacency(to, from, inStart, inSources);
+	}
+
+	private int getExistingModeIndex(AutomatonMode am)
+	{
+		Integer rv = modeIndices.get(am.name);
+
+		if (rv == null)
+			throw new AutomatonExportException(
+					"transition mode not found while building mode graph: " + am.name);
+
+		return rv;
+	}
+
+	/**
+	 * Build compressed adjacency arrays (a counting sort of the edges by source)
+	 */
+	private static void makeAdjacency(int[] sources, int[] targets, int[] start, int[] adjacent)
+	{
+		int numNodes = start.length - 1;
+
+		for (int s : sources)
+			++start[s + 1];
+
+		for (int n = 0; n < numNodes; ++n)
+			start[n + 1] += start[n];
+
+		int[] next = Arrays.copyOf(start, numNodes);
+
+		for (int e = 0; e < sources.length; ++e)
+			adjacent[next[sources[e]]++] = targets[e];
+	}
+
+	public int numModes()
+	{
+		return modeNames.length;
+	}
+
+	public String getModeName(int m)
+	{
+		return modeNames[m];
+	}
+
+	/**
+	 * Get the number of a mode, by name
+	 *
+	 * @return the mode number, or -1 if there's no such mode
+	 */
+	public int getModeIndex(String name)
+	{
+		Integer rv = modeIndices.get(name);
+
+		return rv == null ? -1 : rv;
+	}
+
+	/**
+	 * Get the mode numbers of a collection of mode names (like the keys of the init or forbidden
+	 * maps), skipping names which are not modes
+	 */
+	public int[] getModeIndices(Collection<String> names)
+	{
+		int[] rv = new int[names.size()];
+		int size = 0;
+
+		for (String name : names)
+		{
+			int m = getModeIndex(name);
+
+			if (m != -1)
+				rv[size++] = m;
+		}
+
+		return Arrays.copyOf(rv, size);
+	}
+
+	/**
+	 * Find the modes which are reachable from (or, searching backwards, can reach) a set of modes,
+	 * including the modes themselves
+	 *
+	 * @param seeds
+	 *            the mode numbers to start from
+	 * @param forward
+	 *            true to follow transitions forward, false to follow them backward
+	 * @return the found modes, indexed by mode number
+	 */
+	public boolean[] search(int[] seeds, boolean forward)
+	{
+		int[] start = forward ? outStart : inStart;
+		int[] adjacent = forward ? outTargets : inSources;
+		boolean[] rv = new boolean[modeNames.length];
+		int[] queue = new int[modeNames.length];
+		int head = 0, tail = 0;
+
+		for (int m : seeds)
+		{
+			if (!rv[m])
+			{
+				rv[m] = true;
+				queue[tail++] = m;
+			}
+		}
+
+		while (head < tail)
+		{
+			int m = queue[head++];
+
+			for (int i = start[m]; i < start[m + 1]; ++i)
+			{
+				int next = adjacent[i];
+
+				if (!rv[next])
+				{
+					rv[next] = true;
+					queue[tail++] = next;
+				}
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Compute the strongly connected components of the graph, using an iterative version of
+	 * Tarjan's algorithm. Components are numbered in reverse topological order (a component can
+	 * only have transitions to components with smaller or equal numbers).
+	 *
+	 * @param include
+	 *            which modes to include (modes and transitions outside this set are ignored), or
+	 *            null to include all modes
+	 * @return the component number of each mode, or -1 for modes which are not included
+	 */
+	public int[] findComponents(boolean[] include)
+	{
+		int numModes = modeNames.length;
+		int[] rv = new int[numModes];
+		int[] index = new int[numModes];
+		int[] low = new int[numModes];
+		int[] nextEdge = new int[numModes];
+		boolean[] onStack = new boolean[numModes];
+		int[] stack = new int[numModes];
+		int[] callStack = new int[numModes];
+		int stackSize = 0, depth = 0, counter = 0, numComponents = 0;
+
+		Arrays.fill(rv, -1);
+		Arrays.fill(index, -1);
+
+		for (int root = 0; root < numModes; ++root)
+		{
+			if (index[root] != -1 || (include != null && !include[root]))
+				continue;
+
+			index[root] = low[root] = counter++;
+			nextEdge[root] = outStart[root];
+			stack[stackSize++] = root;
+			onStack[root] = true;
+			callStack[depth++] = root;
+
+			while (depth > 0)
+			{
+				int v = callStack[depth - 1];
+
+				if (nextEdge[v] < outStart[v + 1])
+				{
+					int w = outTargets[nextEdge[v]++];
+
+					if (include != null && !include[w])
+						continue;
+
+					if (index[w] == -1)
+					{
+						index[w] = low[w] = counter++;
+						nextEdge[w] = outStart[w];
+						stack[stackSize++] = w;
+						onStack[w] = true;
+						callStack[depth++] = w;
+					}
+					else if (onStack[w])
+						low[v] = Math.min(low[v], index[w]);
+				}
+				else
+				{
+					--depth;
+
+					if (low[v] == index[v])
+					{
+						int w;
+
+						do
+						{
+							w = stack[--stackSize];
+							onStack[w] = false;
+							rv[w] = numComponents;
+						} while (w != v);
+
+						++numComponents;
+					}
+
+					if (depth > 0)
+					{
+						int u = callStack[depth - 1];
+						low[u] = Math.min(low[u], low[v]);
+					}
+				}
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Get the strongly connected components as lists of mode names
+	 *
+	 * @param include
+	 *            which modes to include, or null to include all modes
+	 * @return the components, in reverse topological order (see findComponents())
+	 */
+	public List<List<String>> getComponents(boolean[] include)
+	{
+		int[] components = findComponents(include);
+		List<List<String>> rv = new ArrayList<List<String>>();
+
+		for (int m = 0; m < components.length; ++m)
+		{
+			int c = components[m];
+
+			if (c == -1)
+				continue;
+
+			while (rv.size() <= c)
+				rv.add(new ArrayList<String>());
+
+			rv.get(c).add(modeNames[m]);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Does a mode have a transition to itself?
+	 */
+	public boolean hasSelfLoop(int m)
+	{
+		for (int i = outStart[m]; i < outStart[m + 1]; ++i)
+		{
+			if (outTargets[i] == m)
+				return true;
+		}
+
+		return false;
+	}
+}
@@ -1,5 +1,6 @@
 package com.verivital.hyst.util;
 
+import java.util.ArrayList;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -32,7 +33,72 @@ public class ValueSubstituter
 		Expression rv = null;
 
 		if (e != null)
-			rv = substituteCopy(e.copy());
+		{
+			if (e.isImmutable())
+				rv = substituteShared(e);
+			else
+				rv = substituteCopy(e.copy());
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Copy-on-write substitution for immutable (interned) expressions. Subexpressions without any
+	 * substitutions are returned as they are, rather than copied. A changed expression is returned
+	 * as a new, fully mutable tree.
+	 * 
+	 * @param e
+	 *            the immutable expression
+	 * @return the substituted expression, which is e itself if nothing was substituted
+	 */
+	private Expression substituteShared(Expression e)
+	{
+		Expression rv = e;
+
+		if (e instanceof Variable)
+		{
+			Expression subIn = valMap.get(((Variable) e).name);
+
+			if (subIn != null)
+				rv = subIn.copy();
+		}
+		else if (e instanceof Operation)
+		{
+			Operation o = (Operation) e;
+			ArrayList<Expression> newChildren = null;
+
+			for (int i = 0; i < o.children.size(); ++i)
+			{
+				Expression child = o.children.get(i);
+				Expression newChild = substitute(child);
+
+				if (newChild instanceof Constant && o.op == Operator.NEGATIVE)
+				{
+					rv = new Constant(-((Constant) newChild).getVal());
+					newChildren = null;
+					break;
+				}
+
+				if (newChild != child && newChildren == null)
+					newChildren = new ArrayList<Expression>(o.children);
+
+				if (newChildren != null)
+					newChildren.set(i, newChild);
+			}
+
+			if (newChildren != null)
+			{
+				// unchanged children are copied, so the new (mutable) operation can be edited
+				for (int i = 0; i < newChildren.size(); ++i)
+				{
+					if (newChildren.get(i).isImmutable())
+						newChildren.set(i, newChildren.get(i).copy());
+				}
+
+				rv = new Operation(o.op, newChildren);
+			}
+		}
 
 		return rv;
 	}
@@ -57,7 +123,8 @@ public class ValueSubstituter
 			{
 				Expression child = o.children.get(i);
 
-				Expression newChild = substitute(child);
+				// the child is already a copy, so substitute in place
+				Expression newChild = substituteCopy(child);
 
 				if (newChild instanceof Constant && o.op == Operator.NEGATIVE)
 				{
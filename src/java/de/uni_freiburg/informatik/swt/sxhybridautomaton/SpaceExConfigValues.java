@@ -1,9 +1,12 @@
 package de.uni_freiburg.informatik.swt.sxhybridautomaton;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 
-public class SpaceExConfigValues
+public class SpaceExConfigValues implements Serializable
 {
+	private static final long serialVersionUID = 1L;
+
 	public ArrayList<String> outputVars = new ArrayList<String>();
 	public double timeHorizon = 10;
 	public int maxIterations = 10;
@@ -10,6 +10,30 @@ from hybridpy.pysim.simulate import simulate_one_time
 from hybridpy.pysim.simulate import simulate_one
 from hybridpy.pysim.simulate import simulate_multi
 
+# registered automata: handle -> define_ha function (see register_automaton)
+_automata = {}
+
+def register_automaton(handle, source):
+    '''
+    define an automaton once, so that later simulation calls can refer to it by handle using cached_ha()
+
+    source is the automaton source code from PySimPrinter.automatonToString, which defines define_ha()
+    '''
+
+    namespace = {}
+    exec(source, namespace)
+    _automata[handle] = namespace['define_ha']
+
+def unregister_automaton(handle):
+    'remove a registered automaton'
+
+    _automata.pop(handle, None)
+
+def cached_ha(handle):
+    'construct a new instance of a registered automaton'
+
+    return _automata[handle]()
+
 def simulate_with_times(q, all_times, max_jumps=500, solver='vode'):
     '''
     simulate a hybrid automaton, with guaranteed points at specific times
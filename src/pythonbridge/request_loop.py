@@ -0,0 +1,133 @@
+'''
+Request loop for the java PythonBridge (framed protocol)
+
+Instead of driving the interactive interpreter and scanning for the '>>> ' prompt, the java side
+starts this module and exchanges length-prefixed frames with it. Each frame is a 4-byte big-endian
+length followed by that many bytes of utf-8 text.
+
+On startup, a single frame is sent with the python version (like the interactive preamble).
+After that, each request is one frame containing python source code. The code is run statement by
+statement, in the same way the interactive interpreter would (expression values are printed), and
+the response is two frames: the captured stdout and the captured stderr (including any traceback).
+
+This module has no dependencies outside of the standard library, so that it can start even if the
+packages required by Hyst are missing (the java side reports those errors).
+'''
+
+from __future__ import print_function
+
+import ast
+import os
+import struct
+import sys
+import traceback
+
+try:
+    from StringIO import StringIO # python 2
+except ImportError:
+    from io import StringIO # python 3
+
+HEADER = struct.Struct('>I')
+
+def read_exactly(stream, num_bytes):
+    'read a fixed number of bytes from a binary stream, or return None at the end of the stream'
+
+    chunks = []
+    remaining = num_bytes
+
+    while remaining > 0:
+        chunk = stream.read(remaining)
+
+        if not chunk:
+            return None
+
+        chunks.append(chunk)
+        remaining -= len(chunk)
+
+    return b''.join(chunks)
+
+def read_frame(stream):
+    'read a single frame and return it as text, or None at the end of the stream'
+
+    header = read_exactly(stream, HEADER.size)
+    rv = None
+
+    if header is not None:
+        data = read_exactly(stream, HEADER.unpack(header)[0])
+
+        if data is not None:
+            rv = data.decode('utf-8')
+
+    return rv
+
+def write_frame(stream, text):
+    'write a single frame (text) and flush the stream'
+
+    if not isinstance(text, bytes):
+        text = text.encode('utf-8')
+
+    stream.write(HEADER.pack(len(text)))
+    stream.write(text)
+    stream.flush()
+
+def run_request(source, namespace):
+    '''
+    run python source code as if it were typed into the interactive interpreter
+
+    returns a tuple (stdout, stderr) with the captured output
+    '''
+
+    out = StringIO()
+    err = StringIO()
+    old_stdout = sys.stdout
+    old_stderr = sys.stderr
+    sys.stdout = out
+    sys.stderr = err
+
+    try:
+        tree = ast.parse(source, '<hyst>', 'exec')
+
+        # 'single' mode prints the value of expression statements, like the interactive prompt
+        for stmt in tree.body:
+            code = compile(ast.Interactive(body=[stmt]), '<hyst>', 'single')
+            exec(code, namespace)
+    except SystemExit:
+        raise
+    except: # pylint: disable=bare-except
+        traceback.print_exc()
+    finally:
+        sys.stdout = old_stdout
+        sys.stderr = old_stderr
+
+    return out.getvalue(), err.getvalue()
+
+def main():
+    'run the request loop until the input stream is closed'
+
+    # the frames use private copies of stdin / stdout. Anything written directly to the stdout
+    # file descriptor (for example, by native code) is redirected to stderr, so it cannot
+    # corrupt the frames
+    frames_in = os.fdopen(os.dup(sys.stdin.fileno()), 'rb')
+    frames_out = os.fdopen(os.dup(sys.stdout.fileno()), 'wb')
+    os.dup2(sys.stderr.fileno(), sys.stdout.fileno())
+
+    namespace = {'__name__': '__main__', '__builtins__': __builtins__}
+
+    write_frame(frames_out, 'Python ' + sys.version)
+
+    while True:
+        source = read_frame(frames_in)
+
+        if source is None:
+            break
+
+        try:
+            out, err = run_request(source, namespace)
+        except SystemExit:
+            break
+
+        write_frame(frames_out, out)
+        write_frame(frames_out, err)
+
+if __name__ == '__main__':
+    main()
@@ -145,6 +145,33 @@ class TestPySimUtils(unittest.TestCase):
 
         self.assertTrue(inv([float(t), float(x), float(y)]), msg="Invariant should be true at last point")
 
+    def test_cached_ha(self):
+        'test registering an automaton and simulating it by handle'
+
+        source = '''
+from hybridpy.pysim.hybrid_automaton import HybridAutomaton
+
+def define_ha():
+    ha = HybridAutomaton()
+    m = ha.new_mode('on')
+    m.inv = lambda _: True
+    m.der = lambda _, state: [1, 2]
+    return ha
+'''
+
+        util.register_automaton('ha_test', source)
+
+        res = util.simulate_set_time(util.cached_ha('ha_test'), ['on'], [[0, 0]], 1.0)
+        _, x, y = res.split(",")
+        self.assertAlmostEqual(float(x), 1.0, places=3)
+        self.assertAlmostEqual(float(y), 2.0, places=3)
+
+        # each call makes a new automaton object
+        self.assertFalse(util.cached_ha('ha_test') is util.cached_ha('ha_test'))
+
+        util.unregister_automaton('ha_test')
+        self.assertRaises(KeyError, util.cached_ha, 'ha_test')
+
 if __name__ == '__main__':
     unittest.main()
 
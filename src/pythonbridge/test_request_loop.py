@@ -0,0 +1,38 @@
+'''Unit tests for the framed request loop in pythonbridge'''
+from __future__ import absolute_import
+
+import io
+import unittest
+from pythonbridge import request_loop as loop
+
+class TestRequestLoop(unittest.TestCase):
+    'Unit tests for the request loop'
+
+    def test_frames(self):
+        'test that frames can be written and read back'
+        stream = io.BytesIO()
+        loop.write_frame(stream, u'x = 1\nprint(x)')
+        loop.write_frame(stream, u'')
+        stream.seek(0)
+
+        self.assertEqual(loop.read_frame(stream), u'x = 1\nprint(x)')
+        self.assertEqual(loop.read_frame(stream), u'')
+        self.assertEqual(loop.read_frame(stream), None)
+
+    def test_run_request(self):
+        'test that expression values are printed like the interactive interpreter'
+        namespace = {}
+        out, err = loop.run_request('x = 5\nx + 1\ndef f(a):\n\n    return a * 2\nf(x)', namespace)
+
+        self.assertEqual(out, '6\n10\n')
+        self.assertEqual(err, '')
+
+    def test_run_request_error(self):
+        'test that exceptions are reported on stderr'
+        out, err = loop.run_request('print(1)\nundefined_name', {})
+
+        self.assertEqual(out, '1\n')
+        self.assertTrue('NameError' in err)
+
+if __name__ == '__main__':
+    unittest.main()